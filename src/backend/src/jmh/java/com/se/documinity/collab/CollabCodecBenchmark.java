@@ -0,0 +1,119 @@
+package com.se.documinity.collab;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The map-based JSON handling the collab handler used to do against
+ * {@link JsonCollabCodec}, per message. Run with
+ * {@code mvn -Pdmp-bench test -Ddmp.bench=CollabCodecBenchmark}; the gc
+ * profiler's {@code gc.alloc.rate.norm} is the heap allocated per message.
+ *
+ * Each {@code map*} benchmark has a {@code typed*} twin handling the same
+ * frame. Lives in the codec's package, as the codec is package-private.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CollabCodecBenchmark {
+    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<>() {
+    };
+
+    private ObjectMapper objectMapper;
+    private JsonCollabCodec codec;
+    private JsonCollabCodec.Encoder encoder;
+    private String cursorFrame;
+    private String patchFrame;
+    private OutboundMessage.Ack ack;
+    private OutboundMessage.Cursors cursors;
+
+    @Setup
+    public void setUp() throws Exception {
+        objectMapper = new ObjectMapper();
+        diff_match_patch dmp = new diff_match_patch();
+        codec = new JsonCollabCodec(objectMapper, dmp);
+        encoder = codec.newEncoder();
+
+        String patchText = dmp.patch_toText(dmp.patch_make(
+                "# Notes\n\nThe quick brown fox jumps over the lazy dog.\n",
+                "# Notes\n\nThe quick red fox jumps over the very lazy dog.\n"));
+        cursorFrame = "{\"type\":\"cursor-update\",\"docId\":42,\"selectionStart\":120,\"selectionEnd\":131}";
+        patchFrame = "{\"type\":\"patch-update\",\"docId\":42,\"patches\":"
+                + objectMapper.writeValueAsString(patchText) + ",\"baseVersion\":1287,\"opId\":\"client_k3j2:88\"}";
+        ack = new OutboundMessage.Ack(42L, "client_k3j2:88", 1288L);
+        cursors = new OutboundMessage.Cursors(42L, List.of(
+                new OutboundMessage.CursorView("client_a", "Ann", "#f97316", 10, 14),
+                new OutboundMessage.CursorView("client_b", "Bao", "#22c55e", 220, 220)));
+    }
+
+    @Benchmark
+    public Object mapDecodeCursorUpdate() throws Exception {
+        return objectMapper.readValue(cursorFrame, MAP_TYPE);
+    }
+
+    @Benchmark
+    public Object typedDecodeCursorUpdate() throws Exception {
+        return codec.decode(cursorFrame);
+    }
+
+    @Benchmark
+    public Object mapDecodePatchUpdate() throws Exception {
+        return objectMapper.readValue(patchFrame, MAP_TYPE);
+    }
+
+    @Benchmark
+    public Object typedDecodePatchUpdate() throws Exception {
+        return codec.decode(patchFrame);
+    }
+
+    @Benchmark
+    public String mapEncodeAck() throws Exception {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("type", "ack");
+        map.put("docId", 42L);
+        map.put("opId", "client_k3j2:88");
+        map.put("serverVersion", 1288L);
+        return objectMapper.writeValueAsString(map);
+    }
+
+    @Benchmark
+    public String typedEncodeAck() throws Exception {
+        return encoder.encode(ack);
+    }
+
+    @Benchmark
+    public String mapEncodeCursors() throws Exception {
+        return objectMapper.writeValueAsString(Map.of(
+                "type", "cursors",
+                "docId", 42L,
+                "cursors", List.of(
+                        Map.of("selectionStart", 10, "selectionEnd", 14,
+                                "user", Map.of("clientId", "client_a", "name", "Ann", "color", "#f97316")),
+                        Map.of("selectionStart", 220, "selectionEnd", 220,
+                                "user", Map.of("clientId", "client_b", "name", "Bao", "color", "#22c55e")))));
+    }
+
+    @Benchmark
+    public String typedEncodeCursors() throws Exception {
+        return encoder.encode(cursors);
+    }
+}
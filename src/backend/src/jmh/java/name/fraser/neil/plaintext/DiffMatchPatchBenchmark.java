@@ -0,0 +1,114 @@
+package name.fraser.neil.plaintext;
+
+import name.fraser.neil.plaintext.diff_match_patch.Diff;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the diff_match_patch calls on the collab path, over
+ * Markdown documents of several sizes. Run with {@code mvn -Pdmp-bench
+ * test}; the profile adds JMH's gc profiler, so each result comes with its
+ * allocation rate ({@code gc.alloc.rate.norm} is bytes per call), and
+ * writes the results to {@code target/jmh-dmp.json} for comparing runs.
+ *
+ * Patches are made from one editing burst on the document. In the exact
+ * mix they are applied to the text they were made from, as the server does
+ * for an op on the current version; in the fuzzy mix other edits have
+ * moved the text first, so every patch has to be found by
+ * {@code match_main}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffMatchPatchBenchmark {
+    // Edits in the burst the patches are made from, and in the concurrent edits that move the fuzzy target
+    private static final int EDITS = 3;
+    private static final int CONCURRENT_EDITS = 4;
+    private static final int MATCH_PATTERN_CHARS = 28;
+
+    @State(Scope.Thread)
+    public static class Documents {
+        @Param({"2000", "32000", "256000"})
+        public int size;
+
+        final diff_match_patch dmp = new diff_match_patch();
+        String base;
+        String edited;
+        LinkedList<Diff> diffs;
+        LinkedList<Patch> patches;
+        String patchText;
+
+        @Setup
+        public void setUp() {
+            base = MarkdownCorpus.document(size, 1);
+            edited = MarkdownCorpus.edit(base, EDITS, 2);
+            diffs = dmp.diff_main(base, edited);
+            patches = dmp.patch_make(base, diffs);
+            patchText = dmp.patch_toText(patches);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Targets {
+        @Param({"exact", "fuzzy"})
+        public String mix;
+
+        String target;
+        String pattern;
+        int loc;
+
+        @Setup
+        public void setUp(Documents docs) {
+            target = "exact".equals(mix) ? docs.base : MarkdownCorpus.edit(docs.base, CONCURRENT_EDITS, 3);
+            // Text next to the middle edit, looked up where it was in the base
+            loc = docs.base.length() / 2 - MATCH_PATTERN_CHARS;
+            pattern = docs.base.substring(loc, loc + MATCH_PATTERN_CHARS);
+        }
+    }
+
+    @Benchmark
+    public LinkedList<Diff> diffMain(Documents docs) {
+        return docs.dmp.diff_main(docs.base, docs.edited);
+    }
+
+    @Benchmark
+    public LinkedList<Patch> patchMake(Documents docs) {
+        return docs.dmp.patch_make(docs.base, docs.diffs);
+    }
+
+    @Benchmark
+    public String patchToText(Documents docs) {
+        return docs.dmp.patch_toText(docs.patches);
+    }
+
+    @Benchmark
+    public List<Patch> patchFromText(Documents docs) {
+        return docs.dmp.patch_fromText(docs.patchText);
+    }
+
+    @Benchmark
+    public Object[] patchApply(Documents docs, Targets targets) {
+        return docs.dmp.patch_apply(docs.patches, targets.target);
+    }
+
+    @Benchmark
+    public int matchMain(Documents docs, Targets targets) {
+        return docs.dmp.match_main(targets.target, targets.pattern, targets.loc);
+    }
+}
@@ -0,0 +1,104 @@
+package name.fraser.neil.plaintext;
+
+import java.util.Random;
+
+/**
+ * Deterministic Markdown documents shaped like the ones users write:
+ * headings, prose, lists, code blocks, tables and links. Generated rather
+ * than checked in so any size can be benchmarked, and seeded so every run
+ * and every branch sees the same text.
+ */
+final class MarkdownCorpus {
+    private static final String[] WORDS = {
+            "document", "team", "review", "draft", "section", "meeting", "notes", "release", "feature",
+            "design", "the", "a", "of", "and", "to", "in", "for", "with", "on", "is", "we", "should",
+            "update", "before", "after", "collaborative", "editor", "server", "client", "version", "patch",
+            "sync", "latency", "budget", "owner", "deadline", "summary", "question", "answer", "example",
+            "performance", "cache", "request", "response", "user", "share", "link", "comment", "history"
+    };
+
+    private MarkdownCorpus() {
+    }
+
+    /**
+     * A document of about {@code chars} characters, ending on a line break.
+     */
+    static String document(int chars, long seed) {
+        Random random = new Random(seed);
+        StringBuilder out = new StringBuilder(chars + 512);
+        out.append("# ").append(sentence(random, 4, false)).append("\n\n");
+        int section = 1;
+        while (out.length() < chars) {
+            switch (random.nextInt(8)) {
+                case 0 -> out.append("## ").append(section++).append(". ")
+                        .append(sentence(random, 3, false)).append("\n\n");
+                case 1, 2 -> {
+                    for (int i = 2 + random.nextInt(4); i > 0; i--) {
+                        out.append("- ").append(sentence(random, 6, true)).append('\n');
+                    }
+                    out.append('\n');
+                }
+                case 3 -> {
+                    out.append("```java\n");
+                    for (int i = 2 + random.nextInt(6); i > 0; i--) {
+                        out.append("    ").append(word(random)).append('.').append(word(random))
+                                .append("(").append(random.nextInt(1000)).append(");\n");
+                    }
+                    out.append("```\n\n");
+                }
+                case 4 -> {
+                    out.append("| Item | Owner | Status |\n| --- | --- | --- |\n");
+                    for (int i = 2 + random.nextInt(5); i > 0; i--) {
+                        out.append("| ").append(word(random)).append(" | @").append(word(random))
+                                .append(" | ").append(random.nextBoolean() ? "done" : "open").append(" |\n");
+                    }
+                    out.append('\n');
+                }
+                default -> {
+                    for (int i = 3 + random.nextInt(5); i > 0; i--) {
+                        out.append(sentence(random, 8, true)).append(' ');
+                    }
+                    if (random.nextInt(3) == 0) {
+                        out.append("See [").append(word(random)).append("](https://example.com/")
+                                .append(word(random)).append(").");
+                    }
+                    out.append("\n\n");
+                }
+            }
+        }
+        int end = out.lastIndexOf("\n", chars);
+        return out.substring(0, end > 0 ? end + 1 : out.length());
+    }
+
+    /**
+     * {@code text} with {@code count} edits spread through it: a word typed,
+     * a phrase deleted or a line rewritten, the way one editing burst reads.
+     */
+    static String edit(String text, int count, long seed) {
+        Random random = new Random(seed);
+        StringBuilder out = new StringBuilder(text);
+        for (int i = 0; i < count; i++) {
+            int at = (int) ((long) out.length() * (2 * i + 1) / (2L * count));
+            int deleted = Math.min(out.length() - at, random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(40));
+            String inserted = random.nextInt(3) == 1 ? "" : word(random) + ' ' + word(random) + ' ';
+            out.replace(at, at + deleted, inserted);
+        }
+        return out.toString();
+    }
+
+    private static String sentence(Random random, int words, boolean period) {
+        StringBuilder out = new StringBuilder();
+        for (int i = words / 2 + random.nextInt(words); i > 0; i--) {
+            if (out.length() > 0) {
+                out.append(' ');
+            }
+            String word = word(random);
+            out.append(out.length() == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+        }
+        return period ? out.append('.').toString() : out.toString();
+    }
+
+    private static String word(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+}
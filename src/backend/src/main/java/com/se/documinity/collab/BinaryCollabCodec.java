@@ -0,0 +1,380 @@
+package com.se.documinity.collab;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Diff;
+import name.fraser.neil.plaintext.diff_match_patch.Operation;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Codec for the {@value CollabProtocols#BINARY} sub-protocol.
+ *
+ * Every frame starts with a one-byte message tag. Integers (ids, versions,
+ * offsets, lengths) are unsigned LEB128 varints, strings are a varint byte
+ * length followed by UTF-8, and nullable values are shifted by one so that
+ * {@code 0} means absent. Patches are sent as their start/length fields and
+ * diff ops instead of the URL-encoded {@code patch_toText} form. Message
+ * types without a dedicated layout travel as {@link #TAG_JSON} frames
+ * carrying the usual JSON object, so new message types work before they get
+ * one.
+ *
+ * Tags are shared between directions but the layouts differ: inbound frames
+ * carry only what the client supplies, outbound ones what the server adds.
+ */
+final class BinaryCollabCodec {
+    static final byte TAG_JSON = 0;
+    static final byte TAG_JOIN = 1;
+    static final byte TAG_JOINED = 2;
+    static final byte TAG_PATCH_UPDATE = 3;
+    static final byte TAG_CONTENT_UPDATE = 4;
+    static final byte TAG_CURSOR_UPDATE = 5;
+    static final byte TAG_CURSORS = 6;
+    // 7 carried the full roster on every join and leave; it is no longer sent
+    static final byte TAG_ACK = 8;
+    static final byte TAG_OP_REJECTED = 9;
+    static final byte TAG_SAVED = 10;
+    static final byte TAG_SAVE_ERROR = 11;
+    static final byte TAG_ERROR = 12;
+    static final byte TAG_USER_JOINED = 13;
+    static final byte TAG_USER_LEFT = 14;
+    static final byte TAG_USER_UPDATED = 15;
+
+    private static final byte OP_EQUAL = 0;
+    private static final byte OP_INSERT = 1;
+    private static final byte OP_DELETE = 2;
+
+    private final JsonCollabCodec jsonCodec;
+    private final diff_match_patch dmp;
+
+    BinaryCollabCodec(JsonCollabCodec jsonCodec, diff_match_patch dmp) {
+        this.jsonCodec = jsonCodec;
+        this.dmp = dmp;
+    }
+
+    /**
+     * Decodes a client frame.
+     *
+     * @throws IllegalArgumentException if the frame is truncated or has an unknown tag
+     */
+    InboundMessage decode(ByteBuffer frame) throws IOException {
+        try {
+            byte tag = frame.get();
+            switch (tag) {
+                case TAG_JSON:
+                    byte[] json = new byte[frame.remaining()];
+                    frame.get(json);
+                    return jsonCodec.decode(json);
+                case TAG_JOIN:
+                    // lastVersion was appended later; older clients end the frame before it
+                    return new InboundMessage.Join(readNullableLong(frame), readString(frame), readString(frame),
+                            readString(frame), readString(frame), readString(frame),
+                            frame.hasRemaining() ? readNullableLong(frame) : null);
+                case TAG_PATCH_UPDATE:
+                    return new InboundMessage.PatchUpdate(readNullableLong(frame), readString(frame),
+                            PatchPayload.ofPatches(dmp, readPatches(frame)));
+                case TAG_CONTENT_UPDATE:
+                    return new InboundMessage.ContentUpdate(readString(frame));
+                case TAG_CURSOR_UPDATE:
+                    return new InboundMessage.CursorUpdate((int) readVarint(frame), (int) readVarint(frame));
+                default:
+                    throw new IllegalArgumentException("Unknown collab frame tag " + tag);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated collab frame", e);
+        }
+    }
+
+    byte[] encode(OutboundMessage message) throws IOException {
+        return newEncoder().encode(message);
+    }
+
+    /**
+     * Wraps an already encoded JSON message in a {@link #TAG_JSON} frame.
+     */
+    static byte[] wrapJson(String json) {
+        byte[] utf8 = json.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[utf8.length + 1];
+        frame[0] = TAG_JSON;
+        System.arraycopy(utf8, 0, frame, 1, utf8.length);
+        return frame;
+    }
+
+    /**
+     * Creates an encoder that reuses its output buffer across frames. Not
+     * thread-safe; each room keeps its own on its mailbox.
+     */
+    Encoder newEncoder() {
+        return new Encoder();
+    }
+
+    final class Encoder {
+        private final Output out = new Output();
+        private JsonCollabCodec.Encoder json;
+
+        private Encoder() {
+        }
+
+        byte[] encode(OutboundMessage message) throws IOException {
+            out.reset();
+            switch (message) {
+                case OutboundMessage.Joined m -> {
+                    out.writeByte(TAG_JOINED);
+                    out.writeNullableLong(m.docId());
+                    out.writeVarint(m.serverVersion());
+                    out.writeString(m.role());
+                    out.writeString(m.content());
+                    writeUsers(out, m.users());
+                }
+                case OutboundMessage.PatchUpdate m -> {
+                    out.writeByte(TAG_PATCH_UPDATE);
+                    out.writeNullableLong(m.docId());
+                    out.writeVarint(m.baseVersion());
+                    out.writeVarint(m.serverVersion());
+                    out.writeString(m.from());
+                    writePatches(out, m.patches().patches());
+                }
+                case OutboundMessage.ContentUpdate m -> {
+                    out.writeByte(TAG_CONTENT_UPDATE);
+                    out.writeNullableLong(m.docId());
+                    out.writeVarint(m.serverVersion());
+                    out.writeString(m.from());
+                    out.writeString(m.content());
+                }
+                case OutboundMessage.Cursors m -> {
+                    out.writeByte(TAG_CURSORS);
+                    out.writeNullableLong(m.docId());
+                    out.writeVarint(m.cursors().size());
+                    for (OutboundMessage.CursorView cursor : m.cursors()) {
+                        out.writeString(cursor.clientId());
+                        out.writeString(cursor.name());
+                        out.writeString(cursor.color());
+                        out.writeVarint(cursor.selectionStart());
+                        out.writeVarint(cursor.selectionEnd());
+                    }
+                }
+                case OutboundMessage.UserJoined m -> {
+                    out.writeByte(TAG_USER_JOINED);
+                    writeUser(out, m.user());
+                }
+                case OutboundMessage.UserLeft m -> {
+                    out.writeByte(TAG_USER_LEFT);
+                    out.writeString(m.clientId());
+                }
+                case OutboundMessage.UserUpdated m -> {
+                    out.writeByte(TAG_USER_UPDATED);
+                    writeUser(out, m.user());
+                }
+                case OutboundMessage.Ack m -> {
+                    out.writeByte(TAG_ACK);
+                    out.writeNullableLong(m.docId());
+                    out.writeVarint(m.serverVersion());
+                    out.writeString(m.opId());
+                }
+                case OutboundMessage.OpRejected m -> {
+                    out.writeByte(TAG_OP_REJECTED);
+                    out.writeNullableLong(m.docId());
+                    out.writeVarint(m.serverVersion());
+                    out.writeString(m.opId());
+                    out.writeString(m.reason());
+                    out.writeString(m.content());
+                    out.writeVarint(m.failedHunks().length);
+                    for (int hunk : m.failedHunks()) {
+                        out.writeVarint(hunk);
+                    }
+                }
+                case OutboundMessage.Saved m -> {
+                    out.writeByte(TAG_SAVED);
+                    out.writeNullableLong(m.docId());
+                    out.writeVarint(m.version());
+                    out.writeString(m.savedAt());
+                }
+                case OutboundMessage.SaveError m -> {
+                    out.writeByte(TAG_SAVE_ERROR);
+                    out.writeNullableLong(m.docId());
+                    out.writeString(m.message());
+                }
+                case OutboundMessage.ErrorMessage m -> {
+                    out.writeByte(TAG_ERROR);
+                    out.writeString(m.message());
+                }
+                default -> {
+                    if (json == null) {
+                        json = jsonCodec.newEncoder();
+                    }
+                    out.writeByte(TAG_JSON);
+                    out.writeBytes(json.encode(message).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static void writeUsers(Output out, List<OutboundMessage.UserView> users) {
+        out.writeVarint(users.size());
+        for (OutboundMessage.UserView user : users) {
+            writeUser(out, user);
+        }
+    }
+
+    private static void writeUser(Output out, OutboundMessage.UserView user) {
+        out.writeString(user.clientId());
+        out.writeString(user.name());
+        out.writeString(user.color());
+        out.writeString(user.role());
+    }
+
+    static void writePatches(Output out, List<Patch> patches) {
+        out.writeVarint(patches.size());
+        for (Patch patch : patches) {
+            out.writeVarint(patch.start1);
+            out.writeVarint(patch.length1);
+            out.writeVarint(patch.start2);
+            out.writeVarint(patch.length2);
+            out.writeVarint(patch.diffs.size());
+            for (Diff diff : patch.diffs) {
+                switch (diff.operation) {
+                    case EQUAL:
+                        out.writeByte(OP_EQUAL);
+                        break;
+                    case INSERT:
+                        out.writeByte(OP_INSERT);
+                        break;
+                    case DELETE:
+                        out.writeByte(OP_DELETE);
+                        break;
+                }
+                out.writeString(diff.text);
+            }
+        }
+    }
+
+    static LinkedList<Patch> readPatches(ByteBuffer in) {
+        int count = (int) readVarint(in);
+        LinkedList<Patch> patches = new LinkedList<>();
+        for (int i = 0; i < count; i++) {
+            Patch patch = new Patch();
+            patch.start1 = (int) readVarint(in);
+            patch.length1 = (int) readVarint(in);
+            patch.start2 = (int) readVarint(in);
+            patch.length2 = (int) readVarint(in);
+            int diffs = (int) readVarint(in);
+            for (int d = 0; d < diffs; d++) {
+                byte op = in.get();
+                Operation operation = switch (op) {
+                    case OP_EQUAL -> Operation.EQUAL;
+                    case OP_INSERT -> Operation.INSERT;
+                    case OP_DELETE -> Operation.DELETE;
+                    default -> throw new IllegalArgumentException("Unknown diff op " + op);
+                };
+                String text = readString(in);
+                patch.diffs.add(new Diff(operation, text != null ? text : ""));
+            }
+            patches.add(patch);
+        }
+        return patches;
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IllegalArgumentException("Varint too long");
+            }
+        }
+    }
+
+    static Long readNullableLong(ByteBuffer in) {
+        long value = readVarint(in);
+        return value == 0 ? null : value - 1;
+    }
+
+    static String readString(ByteBuffer in) {
+        long length = readVarint(in);
+        if (length == 0) {
+            return null;
+        }
+        // Checked before narrowing, so a huge length cannot wrap to a small or negative size
+        if (length - 1 > in.remaining()) {
+            throw new IllegalArgumentException("Truncated collab frame");
+        }
+        int size = (int) (length - 1);
+        if (in.hasArray()) {
+            String value = new String(in.array(), in.arrayOffset() + in.position(), size, StandardCharsets.UTF_8);
+            in.position(in.position() + size);
+            return value;
+        }
+        byte[] utf8 = new byte[size];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Growable byte buffer for building one frame.
+     */
+    static final class Output {
+        private byte[] bytes = new byte[64];
+        private int size;
+
+        void writeByte(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void writeNullableLong(Long value) {
+            writeVarint(value != null ? value + 1 : 0L);
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(utf8.length + 1L);
+            writeBytes(utf8);
+        }
+
+        void writeBytes(byte[] data) {
+            ensure(data.length);
+            System.arraycopy(data, 0, bytes, size, data.length);
+            size += data.length;
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+}
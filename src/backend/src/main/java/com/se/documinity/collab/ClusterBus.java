@@ -0,0 +1,52 @@
+package com.se.documinity.collab;
+
+import java.util.function.Consumer;
+
+/**
+ * Messaging and room ownership shared by the collab nodes of a deployment.
+ *
+ * Each room is owned by exactly one node, which holds its authoritative
+ * content; the other nodes forward their sessions' ops to the owner and
+ * receive its broadcasts over {@link #publish}/{@link #subscribe}. Messages
+ * published by one node on a channel must be delivered to subscribers in
+ * the order they were published.
+ */
+public interface ClusterBus {
+
+    /**
+     * Id of this node, unique among the live nodes.
+     */
+    String nodeId();
+
+    void publish(String channel, String payload);
+
+    /**
+     * Registers a listener for a channel. Listeners are called off the
+     * publisher's thread, one message at a time.
+     */
+    void subscribe(String channel, Consumer<String> listener);
+
+    /**
+     * Makes this node the owner of a room unless another live node already
+     * is.
+     *
+     * @return the id of the owning node
+     */
+    String claim(Long docId);
+
+    /**
+     * Gives up ownership of a room, if this node holds it.
+     */
+    void release(Long docId);
+
+    /**
+     * Registers a listener told the id of each node that leaves, after the
+     * rooms it owned have been released.
+     */
+    void onNodeLeft(Consumer<String> listener);
+
+    /**
+     * Releases every room this node owns and announces that it left.
+     */
+    void leave();
+}
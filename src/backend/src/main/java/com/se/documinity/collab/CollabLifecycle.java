@@ -0,0 +1,35 @@
+package com.se.documinity.collab;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+/**
+ * Drains the collab handler when the context stops. In the default phase
+ * it stops before the web server's graceful shutdown, so the sessions it
+ * closes are still open to be told to reconnect; keep
+ * {@code app.collab.drain.timeout-ms} under
+ * {@code spring.lifecycle.timeout-per-shutdown-phase}.
+ */
+@Component
+@RequiredArgsConstructor
+class CollabLifecycle implements SmartLifecycle {
+    private final DocumentCollabHandler handler;
+    private volatile boolean running;
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        handler.drain();
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,88 @@
+package com.se.documinity.collab;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Meters for the collab message path: connected sessions, what clients
+ * send, how long ops take to apply and how long broadcasts take to fan
+ * out. Rooms, eviction and saves are metered by {@link RoomRegistry} and
+ * {@link SaveFlusher}.
+ */
+@Component
+@RequiredArgsConstructor
+class CollabMetrics {
+    static final String OUTCOME_APPLIED = "applied";
+    static final String OUTCOME_REJECTED = "rejected";
+    // Client-chosen types are not used as tags, so one client cannot blow up the series count
+    private static final String UNKNOWN_TYPE = "unknown";
+
+    private final MeterRegistry meterRegistry;
+
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final Map<String, Counter> inbound = new ConcurrentHashMap<>();
+    private final Map<String, Timer> apply = new ConcurrentHashMap<>();
+    private Timer fanout;
+    private DistributionSummary fanoutBytes;
+
+    @PostConstruct
+    void start() {
+        Gauge.builder("collab.sessions", sessions, AtomicInteger::get)
+                .description("WebSocket sessions open on this node")
+                .register(meterRegistry);
+        fanout = Timer.builder("collab.broadcast.fanout")
+                .description("Time to encode a broadcast and queue it for every recipient")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        fanoutBytes = DistributionSummary.builder("collab.broadcast.bytes")
+                .description("Bytes queued per broadcast, summed over recipients")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    void sessionOpened() {
+        sessions.incrementAndGet();
+    }
+
+    void sessionClosed() {
+        sessions.decrementAndGet();
+    }
+
+    void received(InboundMessage message) {
+        String type = message instanceof InboundMessage.Unknown ? UNKNOWN_TYPE : message.type();
+        inbound.computeIfAbsent(type, key -> Counter.builder("collab.messages.inbound")
+                .description("Messages received from clients")
+                .tag("type", key)
+                .register(meterRegistry)).increment();
+    }
+
+    /**
+     * Records an edit of {@code type} taking {@code nanos} to transform and
+     * apply, or to be rejected.
+     */
+    void applied(String type, boolean accepted, long nanos) {
+        String outcome = accepted ? OUTCOME_APPLIED : OUTCOME_REJECTED;
+        apply.computeIfAbsent(type + ':' + outcome, key -> Timer.builder("collab.ops.apply")
+                .description("Time to rebase and apply a client's edit to the room")
+                .tag("type", type)
+                .tag("outcome", outcome)
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void fannedOut(long nanos, long bytes) {
+        fanout.record(nanos, TimeUnit.NANOSECONDS);
+        fanoutBytes.record(bytes);
+    }
+}
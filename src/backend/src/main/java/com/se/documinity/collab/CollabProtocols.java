@@ -0,0 +1,13 @@
+package com.se.documinity.collab;
+
+/**
+ * WebSocket sub-protocols offered on {@code /ws/documents}. Clients that ask
+ * for none, or only for {@link #JSON}, get the JSON text protocol.
+ */
+public final class CollabProtocols {
+    public static final String JSON = "documinity.json.v1";
+    public static final String BINARY = "documinity.binary.v1";
+
+    private CollabProtocols() {
+    }
+}
@@ -0,0 +1,51 @@
+package com.se.documinity.collab;
+
+import jakarta.annotation.PostConstruct;
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * The diff engines rooms diff and patch with, built once from configuration.
+ * Each is an immutable {@link diff_match_patch}, so rooms working in
+ * parallel share no mutable state. Documents of {@code large-doc-chars} or
+ * more get a longer diff timeout, so a full-content update to one still
+ * yields a tight patch; the match fuzziness applies to every size.
+ */
+@Component
+class DiffEngines {
+    @Value("${app.collab.diff.timeout-ms:1000}")
+    private long timeoutMs;
+
+    @Value("${app.collab.diff.large-doc-chars:262144}")
+    private int largeDocChars;
+
+    @Value("${app.collab.diff.large-timeout-ms:5000}")
+    private long largeTimeoutMs;
+
+    @Value("${app.collab.match.threshold:0.5}")
+    private float matchThreshold;
+
+    @Value("${app.collab.match.distance:1000}")
+    private int matchDistance;
+
+    private diff_match_patch standard;
+    private diff_match_patch large;
+
+    @PostConstruct
+    void start() {
+        diff_match_patch.Config config = diff_match_patch.Config.DEFAULT
+                .withDiffTimeout(timeoutMs / 1000f)
+                .withMatchThreshold(matchThreshold)
+                .withMatchDistance(matchDistance);
+        standard = new diff_match_patch(config);
+        large = standard.with(config.withDiffTimeout(largeTimeoutMs / 1000f));
+    }
+
+    /**
+     * The engine for a document of {@code chars} characters.
+     */
+    diff_match_patch forLength(int chars) {
+        return chars >= largeDocChars ? large : standard;
+    }
+}
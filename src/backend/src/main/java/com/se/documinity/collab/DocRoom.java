@@ -0,0 +1,186 @@
+package com.se.documinity.collab;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Live state of one collaboratively edited document. Everything except
+ * {@link #docId}, {@link #mailbox}, {@link #owner}, {@link #cursorsDirty},
+ * {@link #cursorTick} and the eviction bookkeeping read by the
+ * {@link RoomRegistry} is confined to tasks run through the mailbox.
+ *
+ * Editors ({@link #sessions}) get the full interactive path: presence,
+ * cursors and their own ops. Read-only sessions sit in {@link #viewers} and
+ * only receive the room's broadcasts.
+ *
+ * On the node that owns the room it holds the authoritative content and
+ * every joined session, local or remote. On other nodes {@link #owner} names
+ * the owning node and the room only tracks that node's own sessions; its
+ * content and version are not used. On the owner {@link #content} is
+ * {@code null} until the room is first used, and again after an idle room's
+ * saved content is evicted. It is kept as a {@link Rope} so edits to large
+ * documents do not copy them; {@link #text()} builds the {@code String} that
+ * snapshots and saves need.
+ */
+final class DocRoom {
+    static final int HISTORY_CAPACITY = 256;
+    // Ops kept for catching up rejoining sessions; a few large pastes should not pin megabytes
+    static final long HISTORY_PAYLOAD_CHARS = 256 * 1024;
+
+    final Long docId;
+    final RoomMailbox mailbox;
+    // Owning node when it is another one; set before the room is published
+    String owner;
+    Rope content;
+    long version;
+    // Latest version known to be written to the database
+    long savedVersion;
+    // Checksum of the content last loaded or snapshotted for a save, journaled with the next op
+    long journalBase = EditJournal.NO_BASE;
+    boolean closed;
+    final OpHistory history = new OpHistory(HISTORY_CAPACITY, HISTORY_PAYLOAD_CHARS);
+    final Map<String, SessionState> sessions = new LinkedHashMap<>();
+    final ViewerTier viewers;
+    // Editors and viewers joined through other nodes, keyed by node and session id
+    final Map<String, RemoteSession> remoteSessions = new LinkedHashMap<>();
+    final Map<String, RemoteSession> remoteViewers = new HashMap<>();
+    // Remote sessions of either kind per node, to relay each broadcast once per node
+    final Map<String, Integer> remoteNodes = new LinkedHashMap<>();
+    // Joined frame by role for viewers at viewerJoinedVersion, shared by everyone joining at that version
+    final Map<String, OutboundFrame> viewerJoined = new HashMap<>();
+    long viewerJoinedVersion = -1;
+    // Roster as last announced to the room, and editors whose join or leave is not announced yet
+    final Map<String, OutboundMessage.UserView> announced = new HashMap<>();
+    final Set<String> presenceDirty = new LinkedHashSet<>();
+    boolean presenceQueued;
+    // Latest selection per clientId, flushed as one frame per cursor tick
+    final Map<String, OutboundMessage.CursorView> cursors = new LinkedHashMap<>();
+    final AtomicBoolean cursorsDirty = new AtomicBoolean();
+    volatile ScheduledFuture<?> cursorTick;
+    // Estimated heap held by the content, as counted by the registry
+    volatile long residentBytes;
+    // Last join or edit, for choosing which rooms to evict
+    volatile long lastActiveNanos = System.nanoTime();
+    // Caps the edits applied from all sessions together; set before the room is published
+    RateLimiter.Buckets limits;
+    // Reused for every frame this room sends; created on first use
+    JsonCollabCodec.Encoder jsonEncoder;
+    BinaryCollabCodec.Encoder binaryEncoder;
+
+    DocRoom(Long docId, String content, long version, Executor drainer) {
+        this.docId = docId;
+        this.mailbox = new RoomMailbox(drainer);
+        this.viewers = new ViewerTier(drainer);
+        this.content = content != null ? Rope.of(content) : null;
+        this.version = version;
+        this.savedVersion = version;
+    }
+
+    DocRoom(String content, long version) {
+        this(null, content, version, Runnable::run);
+    }
+
+    /**
+     * The content as one {@code String}, or {@code null} if it is not loaded.
+     * Copies the whole document, so only for snapshots and saves.
+     */
+    String text() {
+        return content != null ? content.toString() : null;
+    }
+
+    List<OutboundMessage.UserView> getUsers() {
+        List<OutboundMessage.UserView> users = new ArrayList<>(sessions.size() + remoteSessions.size());
+        for (SessionState state : sessions.values()) {
+            users.add(userView(state.info));
+        }
+        for (RemoteSession remote : remoteSessions.values()) {
+            users.add(userView(remote.info));
+        }
+        return users;
+    }
+
+    /**
+     * The editor with the given clientId, if one is joined.
+     */
+    OutboundMessage.UserView findUser(String clientId) {
+        for (SessionState state : sessions.values()) {
+            if (state.info.clientId.equals(clientId)) {
+                return userView(state.info);
+            }
+        }
+        for (RemoteSession remote : remoteSessions.values()) {
+            if (remote.info.clientId.equals(clientId)) {
+                return userView(remote.info);
+            }
+        }
+        return null;
+    }
+
+    SessionState localSession(String sessionId) {
+        SessionState state = sessions.get(sessionId);
+        return state != null ? state : viewers.get(sessionId);
+    }
+
+    int editorCount() {
+        return sessions.size() + remoteSessions.size();
+    }
+
+    int viewerCount() {
+        return viewers.size() + remoteViewers.size();
+    }
+
+    boolean isEmpty() {
+        return editorCount() == 0 && viewerCount() == 0;
+    }
+
+    void addRemote(String key, RemoteSession remote) {
+        RemoteSession previous = (remote.viewer ? remoteViewers : remoteSessions).put(key, remote);
+        if (previous == null) {
+            remoteNodes.merge(remote.node, 1, Integer::sum);
+        }
+    }
+
+    RemoteSession getRemote(String key) {
+        RemoteSession remote = remoteSessions.get(key);
+        return remote != null ? remote : remoteViewers.get(key);
+    }
+
+    RemoteSession removeRemote(String key) {
+        RemoteSession remote = remoteSessions.remove(key);
+        if (remote == null) {
+            remote = remoteViewers.remove(key);
+        }
+        if (remote != null) {
+            remoteNodes.computeIfPresent(remote.node, (node, count) -> count > 1 ? count - 1 : null);
+        }
+        return remote;
+    }
+
+    /**
+     * Removes and returns every remote session of a node.
+     */
+    List<RemoteSession> removeRemoteNode(String node) {
+        List<RemoteSession> removed = new ArrayList<>();
+        for (Map<String, RemoteSession> remotes : List.of(remoteSessions, remoteViewers)) {
+            remotes.values().removeIf(remote -> remote.node.equals(node) && removed.add(remote));
+        }
+        remoteNodes.remove(node);
+        return removed;
+    }
+
+    static String remoteKey(String node, String sessionId) {
+        return node + "/" + sessionId;
+    }
+
+    private static OutboundMessage.UserView userView(SessionInfo info) {
+        return new OutboundMessage.UserView(info.clientId, info.name, info.color, info.role);
+    }
+}
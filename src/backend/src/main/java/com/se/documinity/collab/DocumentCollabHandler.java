@@ -1,108 +1,311 @@
 package com.se.documinity.collab;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.se.documinity.entity.DocumentEntity;
-import com.se.documinity.entity.UserEntity;
-import com.se.documinity.exception.DocumentNotFoundException;
 import com.se.documinity.exception.NotAuthorizedException;
+import com.se.documinity.repository.DocumentContent;
 import com.se.documinity.repository.DocumentRepository;
-import com.se.documinity.repository.UserRepository;
+import com.se.documinity.service.CollabAccessService;
 import com.se.documinity.service.DocumentAccessService;
 import com.se.documinity.service.JwtService;
-import com.se.documinity.util.ShareTokenUtil;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PongMessage;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 import name.fraser.neil.plaintext.diff_match_patch;
-import name.fraser.neil.plaintext.diff_match_patch.Patch;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.LinkedList;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * WebSocket endpoint for collaborative editing.
+ *
+ * Each room is owned by one node of the cluster (see {@link ClusterBus}),
+ * which applies every op to the authoritative content. Sessions that connect
+ * to another node join a follower room there: their joins, ops and cursor
+ * moves are relayed to the owner, and the owner's frames for them are
+ * relayed back. When the owner leaves, its followers look up the owner
+ * again and rejoin their sessions from the saved content.
+ */
 @Component
 @RequiredArgsConstructor
-public class DocumentCollabHandler extends TextWebSocketHandler {
+public class DocumentCollabHandler extends AbstractWebSocketHandler {
     private static final String SESSION_DOC_ID = "docId";
     private static final String SESSION_ROLE = "role";
     private static final String SESSION_CLIENT_ID = "clientId";
     private static final String SESSION_NAME = "name";
     private static final String SESSION_COLOR = "color";
+    private static final String SESSION_LAST_SEEN = "lastSeen";
+    private static final String SESSION_LIMITS = "limits";
     private static final String ACTIVE_STATUS = "ACTIVE";
-    private static final int MAX_SESSIONS = 10;
+    private static final String TYPE_CURSORS = "cursors";
+    private static final String TYPE_PATCH_UPDATE = "patch-update";
+    private static final String TYPE_CONTENT_UPDATE = "content-update";
+    private static final String TYPE_CURSOR_UPDATE = "cursor-update";
+    private static final String TYPE_SNAPSHOT_REQUEST = "snapshot-request";
+    private static final String NODE_CHANNEL_PREFIX = "collab.node.";
 
     private final DocumentRepository documentRepository;
-    private final UserRepository userRepository;
     private final JwtService jwtService;
     private final DocumentAccessService accessService;
+    private final CollabAccessService collabAccess;
+    private final SaveFlusher saveFlusher;
+    private final EditJournal journal;
+    private final ClusterBus clusterBus;
+    private final RoomRegistry rooms;
+    private final RateLimiter rateLimiter;
+    private final CollabMetrics metrics;
+    private final DiffEngines diffEngines;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
-    private final Map<Long, DocRoom> rooms = new ConcurrentHashMap<>();
-    private final Map<Long, ScheduledFuture<?>> pendingSaves = new ConcurrentHashMap<>();
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // Drains room mailboxes and runs blocking saves, off the WebSocket I/O threads
+    private final ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
 
-    // dmp instance for patching
+    // Parses and prints patches; diffing and matching use the tuned engines from diffEngines
     private final diff_match_patch dmp = new diff_match_patch();
+    private TransformEngine transformEngine;
+    private final JsonCollabCodec jsonCodec = new JsonCollabCodec(objectMapper, dmp);
+    private final BinaryCollabCodec binaryCodec = new BinaryCollabCodec(jsonCodec, dmp);
+    private final SaveFlusher.Listener saveListener = this::onFlushed;
+    private final Object drainLock = new Object();
+    private volatile boolean draining;
+    private DrainReport drainReport;
 
-    @Override
-    public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-        Map<String, Object> payload = objectMapper.readValue(message.getPayload(),
-                new TypeReference<Map<String, Object>>() {
+    @Value("${app.collab.cursor-tick-hz:25}")
+    private int cursorTickHz;
+
+    @Value("${app.collab.outbox.buffer-size-limit:524288}")
+    private int outboxBufferSizeLimit;
+
+    @Value("${app.collab.outbox.send-time-limit-ms:5000}")
+    private long outboxSendTimeLimitMs;
+
+    @Value("${app.collab.max-message-bytes:1048576}")
+    private int maxMessageBytes;
+
+    @Value("${app.collab.max-editors:10}")
+    private int maxEditors;
+
+    @Value("${app.collab.max-viewers:1000}")
+    private int maxViewers;
+
+    @Value("${app.collab.heartbeat.interval-ms:15000}")
+    private long heartbeatIntervalMs;
+
+    @Value("${app.collab.heartbeat.timeout-ms:45000}")
+    private long heartbeatTimeoutMs;
+
+    @Value("${app.collab.rooms.idle-ms:600000}")
+    private long roomIdleMs;
+
+    @Value("${app.collab.presence.debounce-ms:250}")
+    private long presenceDebounceMs;
+
+    @Value("${app.collab.drain.timeout-ms:20000}")
+    private long drainTimeoutMs;
+
+    @Value("${app.collab.drain.parallelism:8}")
+    private int drainParallelism;
+
+    /**
+     * Joins the cluster and starts the sweep that pings sessions, reaps the
+     * silent ones and evicts idle rooms.
+     */
+    @PostConstruct
+    void start() {
+        transformEngine = new TransformEngine(dmp, diffEngines::forLength);
+        clusterBus.subscribe(NODE_CHANNEL_PREFIX + clusterBus.nodeId(), this::onRelay);
+        clusterBus.onNodeLeft(this::onNodeLeft);
+        scheduler.scheduleWithFixedDelay(this::sweep, heartbeatIntervalMs, heartbeatIntervalMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drains this node before it stops, within {@code drain.timeout-ms}.
+     * New joins are turned away and every session here is closed as
+     * restarting, so clients reconnect, and land on another node once this
+     * one has left the cluster. Meanwhile the rooms this node owns are written
+     * back and released, at most {@code drain.parallelism} at a time, and the
+     * node leaves the cluster so their followers reopen them elsewhere from
+     * the saved state. Edits of rooms not written in time are still in the
+     * journal and replayed on the next start. Safe to call more than once.
+     */
+    DrainReport drain() {
+        synchronized (drainLock) {
+            if (drainReport != null) {
+                return drainReport;
+            }
+            draining = true;
+            long started = System.nanoTime();
+            long deadline = started + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMs);
+
+            List<DocRoom> owned = new ArrayList<>();
+            for (DocRoom room : rooms.all()) {
+                if (room.owner == null) {
+                    owned.add(room);
+                }
+                submit(room, () -> {
+                    List<WebSocketSession> local = new ArrayList<>();
+                    room.sessions.values().forEach(state -> local.add(state.session));
+                    room.viewers.all().forEach(state -> local.add(state.session));
+                    virtualThreads.execute(() -> local.forEach(this::closeForRestart));
                 });
-        String type = asString(payload.get("type"));
-        if ("join".equals(type)) {
-            handleJoin(session, payload);
-            return;
+            }
+
+            AtomicInteger saved = new AtomicInteger();
+            AtomicInteger failed = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(owned.size());
+            Semaphore permits = new Semaphore(Math.max(1, drainParallelism));
+            virtualThreads.execute(() -> {
+                for (DocRoom room : owned) {
+                    try {
+                        if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                            return;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    submit(room, () -> {
+                        try {
+                            if (room.closed || closeRoom(room)) {
+                                saved.incrementAndGet();
+                            } else {
+                                failed.incrementAndGet();
+                            }
+                        } finally {
+                            permits.release();
+                            done.countDown();
+                        }
+                    });
+                }
+            });
+            try {
+                done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            clusterBus.leave();
+
+            drainReport = new DrainReport(owned.size(), saved.get(), failed.get(),
+                    owned.size() - saved.get() - failed.get(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            System.err.println("Collab drain: " + drainReport);
+            return drainReport;
         }
-        if ("content-update".equals(type)) {
-            handleContentUpdate(session, payload);
-            return;
+    }
+
+    private void closeForRestart(WebSocketSession session) {
+        try {
+            session.close(CloseStatus.SERVICE_RESTARTED);
+        } catch (Exception e) {
+            System.err.println("Failed to close session " + session.getId() + " for restart: " + e.getMessage());
         }
-        if ("patch-update".equals(type)) {
-            handlePatchUpdate(session, payload);
-            return;
+    }
+
+    /**
+     * How a drain went: of the {@code rooms} this node owned, how many were
+     * written back (or had nothing to write), failed to write, or were still
+     * unwritten at the deadline.
+     */
+    record DrainReport(int rooms, int saved, int failed, int unfinished, long elapsedMs) {
+    }
+
+    @PreDestroy
+    void stop() {
+        // Normally already done by CollabLifecycle, before the web server stopped
+        drain();
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        session.getAttributes().put(SESSION_LAST_SEEN, new AtomicLong(System.nanoTime()));
+        session.getAttributes().put(SESSION_LIMITS, rateLimiter.forSession());
+        // Edits made while an op is in flight go out as one patch, and a content-update is the whole text
+        session.setTextMessageSizeLimit(maxMessageBytes);
+        session.setBinaryMessageSizeLimit(maxMessageBytes);
+        metrics.sessionOpened();
+    }
+
+    @Override
+    public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+        dispatch(session, jsonCodec.decode(message.getPayload()));
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        dispatch(session, binaryCodec.decode(message.getPayload()));
+    }
+
+    @Override
+    protected void handlePongMessage(WebSocketSession session, PongMessage message) {
+        touch(session);
+    }
+
+    private void touch(WebSocketSession session) {
+        AtomicLong lastSeen = (AtomicLong) session.getAttributes().get(SESSION_LAST_SEEN);
+        if (lastSeen != null) {
+            lastSeen.set(System.nanoTime());
         }
-        if ("cursor-update".equals(type)) {
-            handleCursorUpdate(session, payload);
+    }
+
+    private void dispatch(WebSocketSession session, InboundMessage message) throws Exception {
+        touch(session);
+        metrics.received(message);
+        switch (message) {
+            case InboundMessage.Join join -> handleJoin(session, join);
+            case InboundMessage.ContentUpdate update -> handleContentUpdate(session, update);
+            case InboundMessage.PatchUpdate update -> handlePatchUpdate(session, update);
+            case InboundMessage.CursorUpdate update -> handleCursorUpdate(session, update);
+            case InboundMessage.SnapshotRequest request -> handleSnapshotRequest(session);
+            case InboundMessage.Unknown unknown -> {
+            }
         }
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+        metrics.sessionClosed();
         Long docId = (Long) session.getAttributes().get(SESSION_DOC_ID);
         if (docId == null) {
             return;
         }
         DocRoom room = rooms.get(docId);
         if (room != null) {
-            room.sessions.remove(session.getId());
-            if (room.sessions.isEmpty()) {
-                saveRoom(docId);
-                rooms.remove(docId);
-            } else {
-                broadcastPresence(room);
-            }
+            submit(room, () -> handleLeave(room, session));
         }
     }
 
-    private void handleJoin(WebSocketSession session, Map<String, Object> payload) throws Exception {
-        String authToken = asString(payload.get("authToken"));
-        String shareToken = asString(payload.get("shareToken"));
-        String clientId = asString(payload.get("clientId"));
-        String displayName = asString(payload.get("displayName"));
-        String color = asString(payload.get("color"));
-        Long docId = toLong(payload.get("docId"));
+    private void handleJoin(WebSocketSession session, InboundMessage.Join join) throws Exception {
+        if (draining) {
+            // Shutting down; the client retries and reaches another node
+            session.close(CloseStatus.SERVICE_RESTARTED);
+            return;
+        }
+        String authToken = join.authToken();
+        String shareToken = join.shareToken();
+        String clientId = join.clientId();
+        String displayName = join.displayName();
+        String color = join.color();
+        Long docId = join.docId();
         if (clientId == null || clientId.isBlank()) {
             clientId = session.getId();
         }
@@ -110,145 +313,630 @@ public class DocumentCollabHandler extends TextWebSocketHandler {
             color = "#3b82f6";
         }
 
-        DocumentEntity doc;
-        String role;
+        // Cached for a short while, so a burst of joins to one document barely touches the database
+        CollabAccessService.Grant grant;
         if (shareToken != null && !shareToken.isBlank()) {
-            String hash = ShareTokenUtil.hashToken(shareToken);
-            doc = documentRepository.findByShareTokenHashAndShareEnabledTrue(hash)
-                    .orElseThrow(() -> new DocumentNotFoundException("Share link not found"));
-            if (!ACTIVE_STATUS.equals(doc.getStatus())) {
-                throw new NotAuthorizedException("Forbidden");
-            }
-            role = doc.getShareRole() != null ? doc.getShareRole() : DocumentAccessService.ROLE_EDITOR;
-            docId = doc.getId();
+            grant = collabAccess.resolveShareJoin(shareToken);
             if (displayName == null || displayName.isBlank()) {
                 displayName = "Guest";
             }
         } else if (authToken != null && !authToken.isBlank()) {
-            String username = jwtService.extractUsername(authToken);
-            UserEntity user = userRepository.findByUsername(username)
-                    .orElseThrow(() -> new NotAuthorizedException("Invalid user"));
-            doc = documentRepository.findById(docId)
-                    .orElseThrow(() -> new DocumentNotFoundException("Document not found"));
-            if (!ACTIVE_STATUS.equals(doc.getStatus())) {
-                throw new NotAuthorizedException("Forbidden");
-            }
-            if (!accessService.canView(doc, user)) {
-                throw new NotAuthorizedException("Forbidden");
-            }
-            role = accessService.resolveRole(doc, user);
-            if (role == null && Boolean.TRUE.equals(doc.getIsPublic())) {
-                role = DocumentAccessService.ROLE_VIEWER;
-            }
-            displayName = user.getFullname() != null ? user.getFullname() : user.getUsername();
+            grant = collabAccess.resolveUserJoin(jwtService.extractUsername(authToken), docId);
+            displayName = grant.displayName();
         } else {
             throw new NotAuthorizedException("Missing auth");
         }
+        docId = grant.docId();
+        String role = grant.role();
 
-        DocRoom room = rooms.computeIfAbsent(docId, id -> new DocRoom(
-                doc.getContent() != null ? doc.getContent() : "",
-                doc.getContentVersion() != null ? doc.getContentVersion() : 0L));
-
-        if (room.sessions.size() >= MAX_SESSIONS) {
-            sendError(session, "Room is full");
-            session.close(CloseStatus.POLICY_VIOLATION);
+        if (rooms.get(docId) == null && rooms.overBudget()) {
+            // Opening another document would take more memory than live rooms may use
+            session.close(CloseStatus.SERVICE_OVERLOAD);
             return;
         }
-
         SessionInfo info = new SessionInfo(clientId, displayName, color, role);
-        room.sessions.put(session.getId(), new SessionState(session, info));
+        enterRoom(session, docId, info, join.lastVersion(), null);
+    }
+
+    /**
+     * Joins a session to the room, opening it if needed. {@code lastVersion}
+     * is the version a reconnecting session already has, if any, and
+     * {@code outbox} the session's existing outbox when it is moved from a
+     * room that closed.
+     */
+    private void enterRoom(WebSocketSession session, Long docId, SessionInfo info, Long lastVersion,
+            SessionOutbox outbox) {
+        DocRoom room = rooms.open(docId, this::openRoom);
+        // Set before queueing so a close that races the join still queues its leave behind it
         session.getAttributes().put(SESSION_DOC_ID, docId);
-        session.getAttributes().put(SESSION_ROLE, role);
-        session.getAttributes().put(SESSION_CLIENT_ID, clientId);
-        session.getAttributes().put(SESSION_NAME, displayName);
-        session.getAttributes().put(SESSION_COLOR, color);
-
-        sendMessage(session, Map.of(
-                "type", "joined",
-                "docId", docId,
-                "content", room.content,
-                "serverVersion", room.version,
-                "role", role,
-                "users", room.getUsers()));
-        broadcastPresence(room);
-    }
-
-    private void handleContentUpdate(WebSocketSession session, Map<String, Object> payload) throws Exception {
+        session.getAttributes().put(SESSION_ROLE, info.role);
+        session.getAttributes().put(SESSION_CLIENT_ID, info.clientId);
+        session.getAttributes().put(SESSION_NAME, info.name);
+        session.getAttributes().put(SESSION_COLOR, info.color);
+        submit(room, () -> {
+            if (room.closed) {
+                // The room emptied and was flushed while this join was queued; start from the saved state
+                enterRoom(session, docId, info, lastVersion, outbox);
+                return;
+            }
+            if (!session.isOpen()) {
+                return;
+            }
+            boolean viewer = isViewer(info.role);
+            if (room.owner == null && isFull(room, viewer)) {
+                sendError(room, session, "Room is full");
+                session.close(CloseStatus.POLICY_VIOLATION);
+                return;
+            }
+            if (room.owner == null && !activate(room)) {
+                sendError(room, session, "Document not found");
+                session.close(CloseStatus.POLICY_VIOLATION);
+                return;
+            }
+
+            SessionOutbox sessionOutbox = outbox != null ? outbox : new SessionOutbox(session, isBinary(session),
+                    virtualThreads, outboxBufferSizeLimit, outboxSendTimeLimitMs);
+            SessionState state = new SessionState(session, info, sessionOutbox);
+            if (viewer) {
+                room.viewers.add(state);
+            } else {
+                room.sessions.put(session.getId(), state);
+            }
+
+            if (room.owner != null) {
+                // The owner admits the session and sends it the snapshot
+                relay(room.owner, new RelayMessage.Enter(docId, clusterBus.nodeId(), session.getId(),
+                        info.clientId, info.name, info.color, info.role, lastVersion));
+                return;
+            }
+            sendJoined(room, clusterBus.nodeId(), session.getId(), info.role, viewer, lastVersion);
+            if (!viewer) {
+                presenceChanged(room, info.clientId);
+            }
+        });
+    }
+
+    /**
+     * Sends a session that just joined an owned room its starting state. One
+     * rejoining from {@code lastVersion} gets a {@code joined} without
+     * content followed by the ops it missed, as long as the room still has
+     * them all; anyone else gets the full snapshot.
+     */
+    private void sendJoined(DocRoom room, String node, String sessionId, String role, boolean viewer,
+            Long lastVersion) throws Exception {
+        List<OpHistory.Entry> missed = lastVersion != null && lastVersion <= room.version
+                ? room.history.replayable(lastVersion, room.version)
+                : null;
+        if (missed == null) {
+            if (viewer) {
+                replyFrame(room, node, sessionId, viewerJoined(room, role));
+            } else {
+                reply(room, node, sessionId, new OutboundMessage.Joined(
+                        room.docId, room.text(), room.version, role, room.getUsers()));
+            }
+            return;
+        }
+        reply(room, node, sessionId, new OutboundMessage.Joined(
+                room.docId, null, lastVersion, role, room.getUsers()));
+        for (OpHistory.Entry entry : missed) {
+            reply(room, node, sessionId, new OutboundMessage.PatchUpdate(
+                    room.docId, entry.payload(), entry.version() - 1, entry.version(), entry.clientId()));
+        }
+    }
+
+    /**
+     * Read-only sessions go to the viewer tier: no presence, no cursors, and
+     * a separate limit from editors.
+     */
+    private boolean isViewer(String role) {
+        return !accessService.canEditRole(role);
+    }
+
+    private boolean isFull(DocRoom room, boolean viewer) {
+        return viewer ? room.viewerCount() >= maxViewers : room.editorCount() >= maxEditors;
+    }
+
+    /**
+     * The {@code joined} snapshot for a viewer, encoded once per version and
+     * role and shared by every viewer joining in between.
+     */
+    private OutboundFrame viewerJoined(DocRoom room, String role) throws Exception {
+        if (room.viewerJoinedVersion != room.version) {
+            room.viewerJoined.clear();
+            room.viewerJoinedVersion = room.version;
+        }
+        OutboundFrame frame = room.viewerJoined.get(role);
+        if (frame == null) {
+            frame = toFrame(room, new OutboundMessage.Joined(
+                    room.docId, room.text(), room.version, role, room.getUsers()), true, true);
+            room.viewerJoined.put(role, frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Creates the room for a document. An owned room loads its content on
+     * first use, on its mailbox; a follower room never holds any.
+     */
+    private DocRoom openRoom(Long docId) {
+        String owner = clusterBus.claim(docId);
+        boolean owned = owner.equals(clusterBus.nodeId());
+        DocRoom room = new DocRoom(docId, owned ? null : "", 0L, virtualThreads);
+        if (!owned) {
+            room.owner = owner;
+        }
+        room.limits = rateLimiter.forRoom();
+        long tickMicros = 1_000_000L / Math.max(1, cursorTickHz);
+        room.cursorTick = scheduler.scheduleAtFixedRate(() -> {
+            // Only touch the mailbox when some selection actually moved
+            if (room.cursorsDirty.compareAndSet(true, false)) {
+                submit(room, () -> flushCursors(room));
+            }
+        }, tickMicros, tickMicros, TimeUnit.MICROSECONDS);
+        return room;
+    }
+
+    private void handleLeave(DocRoom room, WebSocketSession session) throws Exception {
+        SessionState state = room.sessions.remove(session.getId());
+        boolean viewer = state == null;
+        if (viewer) {
+            state = room.viewers.remove(session.getId());
+            if (state == null) {
+                return;
+            }
+        }
+        state.outbox.close();
+        if (!viewer && room.cursors.remove(state.info.clientId) != null) {
+            room.cursorsDirty.set(true);
+        }
+        if (room.owner != null) {
+            relay(room.owner, new RelayMessage.Leave(room.docId, clusterBus.nodeId(), session.getId()));
+            closeIfNoSessions(room);
+            return;
+        }
+        if (!viewer) {
+            presenceChanged(room, state.info.clientId);
+        }
+        closeIfEmpty(room);
+    }
+
+    private void closeIfEmpty(DocRoom room) {
+        // While draining, rooms are written back by the drain, with bounded concurrency
+        if (room.isEmpty() && !draining) {
+            closeRoom(room);
+        }
+    }
+
+    /**
+     * Notes that an editor joined or left an owned room. Changes are
+     * announced together once {@code presence.debounce-ms} has passed, as
+     * one event per editor whose state differs from what the room was last
+     * told, so a session that drops and rejoins within it causes none.
+     */
+    private void presenceChanged(DocRoom room, String clientId) {
+        // The cached viewer snapshot carries the roster
+        room.viewerJoinedVersion = -1;
+        room.presenceDirty.add(clientId);
+        if (!room.presenceQueued) {
+            room.presenceQueued = true;
+            scheduler.schedule(() -> submit(room, () -> flushPresence(room)),
+                    presenceDebounceMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushPresence(DocRoom room) throws Exception {
+        room.presenceQueued = false;
+        if (room.closed) {
+            return;
+        }
+        for (String clientId : room.presenceDirty) {
+            OutboundMessage.UserView user = room.findUser(clientId);
+            if (user == null) {
+                if (room.announced.remove(clientId) != null) {
+                    broadcast(room, new OutboundMessage.UserLeft(clientId));
+                }
+                continue;
+            }
+            OutboundMessage.UserView previous = room.announced.put(clientId, user);
+            if (previous == null) {
+                broadcast(room, new OutboundMessage.UserJoined(user));
+            } else if (!previous.equals(user)) {
+                broadcast(room, new OutboundMessage.UserUpdated(user));
+            }
+        }
+        room.presenceDirty.clear();
+    }
+
+    /**
+     * Writes back and releases an owned room, when its last session leaves or
+     * the node drains, so a rejoin on any node loads the latest state.
+     *
+     * @return {@code false} if the write failed
+     */
+    private boolean closeRoom(DocRoom room) {
+        room.cursorTick.cancel(false);
+        boolean saved = true;
+        // Evicted content was saved before it was dropped
+        if (room.content != null) {
+            saved = saveFlusher.writeNow(room, room.text(), room.version) != null;
+            if (saved) {
+                journal.saved(room.docId, room.version);
+            }
+        }
+        room.closed = true;
+        rooms.remove(room);
+        clusterBus.release(room.docId);
+        return saved;
+    }
+
+    private void closeIfNoSessions(DocRoom room) {
+        if (room.sessions.isEmpty() && room.viewers.size() == 0) {
+            room.cursorTick.cancel(false);
+            room.closed = true;
+            rooms.remove(room);
+        }
+    }
+
+    /**
+     * Marks an owned room as in use, loading its content first if the room
+     * is new or was evicted. Runs on the room's mailbox.
+     *
+     * @return {@code false} if the document is gone
+     */
+    private boolean activate(DocRoom room) {
+        room.lastActiveNanos = System.nanoTime();
+        if (room.content != null) {
+            return true;
+        }
+        DocumentContent doc = documentRepository.findContentById(room.docId).orElse(null);
+        if (doc == null || !ACTIVE_STATUS.equals(doc.getStatus())) {
+            return false;
+        }
+        long version = doc.getContentVersion() != null ? doc.getContentVersion() : 0L;
+        if (version != room.version) {
+            // New, or written elsewhere while evicted; ops based on older content can no longer be rebased
+            room.history.clear();
+            room.version = version;
+        }
+        String content = doc.getContent() != null ? doc.getContent() : "";
+        room.content = Rope.of(content);
+        room.savedVersion = version;
+        room.journalBase = EditJournal.checksum(content);
+        rooms.account(room);
+        return true;
+    }
+
+    /**
+     * Drops the content of an owned room once everything it holds is saved.
+     * Its sessions stay joined and the next join or edit reloads it.
+     */
+    private void evict(DocRoom room, boolean idle) {
+        if (room.closed || room.owner != null || room.content == null || room.savedVersion != room.version) {
+            return;
+        }
+        room.content = null;
+        room.viewerJoined.clear();
+        room.viewerJoinedVersion = -1;
+        room.jsonEncoder = null;
+        room.binaryEncoder = null;
+        // Spans stay for rebasing; sessions rejoining after this get a snapshot
+        room.history.dropPayloads();
+        rooms.evicted(room, idle);
+    }
+
+    /**
+     * Runs every heartbeat interval: pings each local session, drops those
+     * that stayed silent past the timeout, evicts rooms idle for
+     * {@code rooms.idle-ms} and, if live content is still over budget, the
+     * least recently active rooms.
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatTimeoutMs);
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(roomIdleMs);
+        for (DocRoom room : rooms.all()) {
+            submit(room, () -> {
+                if (room.closed) {
+                    return;
+                }
+                List<SessionState> local = new ArrayList<>(room.sessions.values());
+                local.addAll(room.viewers.all());
+                for (SessionState state : local) {
+                    AtomicLong lastSeen = (AtomicLong) state.session.getAttributes().get(SESSION_LAST_SEEN);
+                    if (lastSeen != null && now - lastSeen.get() > timeoutNanos) {
+                        reap(room, state.session);
+                    } else {
+                        state.outbox.ping();
+                    }
+                }
+                if (roomIdleMs > 0 && now - room.lastActiveNanos > idleNanos) {
+                    evict(room, true);
+                }
+            });
+        }
+        for (DocRoom room : rooms.evictionCandidates()) {
+            submit(room, () -> evict(room, false));
+        }
+    }
+
+    private void reap(DocRoom room, WebSocketSession session) throws Exception {
+        rooms.reaped();
+        handleLeave(room, session);
+        virtualThreads.execute(() -> {
+            try {
+                session.close(CloseStatus.SESSION_NOT_RELIABLE);
+            } catch (Exception e) {
+                System.err.println("Failed to close silent session " + session.getId() + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private void handleContentUpdate(WebSocketSession session, InboundMessage.ContentUpdate update) {
         Long docId = (Long) session.getAttributes().get(SESSION_DOC_ID);
         if (docId == null) {
             return;
         }
+        DocRoom room = rooms.get(docId);
+        if (room == null) {
+            return;
+        }
+        if (!admit(session, room, TYPE_CONTENT_UPDATE, null)) {
+            return;
+        }
         String role = (String) session.getAttributes().get(SESSION_ROLE);
+        String content = update.content();
+        String clientId = (String) session.getAttributes().get(SESSION_CLIENT_ID);
+        submit(room, () -> {
+            if (room.owner != null && accessService.canEditRole(role) && !room.closed) {
+                relay(room.owner, new RelayMessage.Content(docId, clusterBus.nodeId(), session.getId(), content));
+                return;
+            }
+            applyContent(room, clusterBus.nodeId(), session.getId(), clientId, role, content);
+        });
+    }
+
+    private void applyContent(DocRoom room, String node, String sessionId, String clientId, String role,
+            String content) throws Exception {
         if (!accessService.canEditRole(role)) {
-            sendError(session, "Not allowed to edit");
+            reply(room, node, sessionId, new OutboundMessage.ErrorMessage("Not allowed to edit"));
             return;
         }
-        DocRoom room = rooms.get(docId);
-        if (room == null) {
+        if (room.closed || throttledByRoom(room, node, sessionId, TYPE_CONTENT_UPDATE, null)) {
             return;
         }
-        String content = asString(payload.get("content"));
-        String clientId = (String) session.getAttributes().get(SESSION_CLIENT_ID);
-        synchronized (room) {
-            room.content = content != null ? content : "";
-            room.version += 1;
+        if (!activate(room)) {
+            reply(room, node, sessionId, new OutboundMessage.ErrorMessage("Document not found"));
+            return;
+        }
+        long started = System.nanoTime();
+        TransformResult result = transformEngine.submitContent(room, clientId, content);
+        metrics.applied(TYPE_CONTENT_UPDATE, result.accepted(), System.nanoTime() - started);
+        if (result.patches().isEmpty()) {
+            reply(room, node, sessionId, new OutboundMessage.Ack(room.docId, null, result.version()));
+            return;
         }
+        rooms.account(room);
+        // Journaled whole, so replay never depends on the diff applying cleanly
+        acknowledgeWhenJournaled(room, node, sessionId, null, result.version(),
+                journal.append(room.docId, result.version(), takeJournalBase(room), EditJournal.KIND_CONTENT,
+                        content != null ? content : ""));
 
-        // Broadcast full content
-        broadcast(room, Map.of(
-                "type", "content-update",
-                "docId", docId,
-                "content", room.content,
-                "serverVersion", room.version,
-                "from", clientId));
-        scheduleSave(docId);
+        // Only the diff goes out; sessions that need the whole text ask for a snapshot
+        broadcast(room, new OutboundMessage.PatchUpdate(
+                room.docId, result.patches(), result.version() - 1, result.version(), clientId), node, sessionId);
+        saveFlusher.markDirty(room, saveListener);
     }
 
-    private void handlePatchUpdate(WebSocketSession session, Map<String, Object> payload) throws Exception {
+    private void handlePatchUpdate(WebSocketSession session, InboundMessage.PatchUpdate update) {
         Long docId = (Long) session.getAttributes().get(SESSION_DOC_ID);
         if (docId == null) {
             return;
         }
+        DocRoom room = rooms.get(docId);
+        if (room == null) {
+            return;
+        }
+        if (!admit(session, room, TYPE_PATCH_UPDATE, update.opId())) {
+            return;
+        }
         String role = (String) session.getAttributes().get(SESSION_ROLE);
+        PatchPayload patches = update.patches();
+        Long baseVersion = update.baseVersion();
+        String opId = update.opId();
+        String clientId = (String) session.getAttributes().get(SESSION_CLIENT_ID);
+        submit(room, () -> {
+            if (room.owner != null && accessService.canEditRole(role) && !room.closed) {
+                relay(room.owner, new RelayMessage.Patch(docId, clusterBus.nodeId(), session.getId(),
+                        baseVersion, opId, patches.text()));
+                return;
+            }
+            applyPatch(room, clusterBus.nodeId(), session.getId(), clientId, role, baseVersion, opId, patches);
+        });
+    }
+
+    private void applyPatch(DocRoom room, String node, String sessionId, String clientId, String role,
+            Long baseVersion, String opId, PatchPayload patches) throws Exception {
+        Long docId = room.docId;
         if (!accessService.canEditRole(role)) {
-            sendError(session, "Not allowed to edit");
+            reply(room, node, sessionId, new OutboundMessage.ErrorMessage("Not allowed to edit"));
+            return;
+        }
+        if (room.closed || throttledByRoom(room, node, sessionId, TYPE_PATCH_UPDATE, opId)) {
+            return;
+        }
+        if (!activate(room)) {
+            reply(room, node, sessionId, new OutboundMessage.ErrorMessage("Document not found"));
+            return;
+        }
+        long started = System.nanoTime();
+        TransformResult result = transformEngine.submitPatch(room, clientId, baseVersion, patches);
+        metrics.applied(TYPE_PATCH_UPDATE, result.accepted(), System.nanoTime() - started);
+        if (!result.accepted()) {
+            System.err.println("Patch rejected for doc " + docId + ": " + result.describe());
+            // The sender has diverged; hand it the authoritative state to rebase onto
+            reply(room, node, sessionId, new OutboundMessage.OpRejected(
+                    docId, opId, result.reason(), room.text(), room.version, result.failedHunks()));
+            return;
+        }
+
+        rooms.account(room);
+
+        acknowledgeWhenJournaled(room, node, sessionId, opId, result.version(),
+                journal.append(docId, result.version(), takeJournalBase(room), EditJournal.KIND_PATCH,
+                        result.patches().text()));
+
+        // Relay the (possibly rebased) patch to the other editors
+        broadcast(room, new OutboundMessage.PatchUpdate(
+                docId, result.patches(), result.version() - 1, result.version(), clientId), node, sessionId);
+
+        saveFlusher.markDirty(room, saveListener);
+    }
+
+    private void handleSnapshotRequest(WebSocketSession session) {
+        Long docId = (Long) session.getAttributes().get(SESSION_DOC_ID);
+        if (docId == null) {
             return;
         }
         DocRoom room = rooms.get(docId);
-        if (room == null) {
+        if (room == null || !admit(session, room, TYPE_SNAPSHOT_REQUEST, null)) {
             return;
         }
-        String patchesText = asString(payload.get("patches"));
-        String clientId = (String) session.getAttributes().get(SESSION_CLIENT_ID);
+        submit(room, () -> {
+            if (room.closed || room.localSession(session.getId()) == null) {
+                return;
+            }
+            if (room.owner != null) {
+                relay(room.owner, new RelayMessage.Snapshot(docId, clusterBus.nodeId(), session.getId()));
+                return;
+            }
+            sendSnapshot(room, clusterBus.nodeId(), session.getId());
+        });
+    }
 
-        synchronized (room) {
-            // Apply patch to server state
-            try {
-                LinkedList<Patch> patches = (LinkedList<Patch>) dmp.patch_fromText(patchesText);
-                Object[] results = dmp.patch_apply(patches, room.content);
-                room.content = (String) results[0];
-                room.version += 1;
-                // We could check boolean[] results[1] for failures, but LWW accepts best effort
-            } catch (Exception e) {
-                System.err.println("Patch failed for doc " + docId + ": " + e.getMessage());
-                // Fallback: If patch fails, we might request a full sync, but for now just
-                // ignore
+    /**
+     * Sends one session the room's full content, as a {@code content-update}
+     * from no one.
+     */
+    private void sendSnapshot(DocRoom room, String node, String sessionId) throws Exception {
+        if (room.closed || !activate(room)) {
+            return;
+        }
+        reply(room, node, sessionId, new OutboundMessage.ContentUpdate(room.docId, room.text(), room.version, null));
+    }
+
+    /**
+     * Takes a token from the session's limit for {@code type}; {@code false}
+     * if the message is to be dropped. Only the first drop of a run tells
+     * the client how long to hold off, so a flood costs the room nothing.
+     */
+    private boolean admit(WebSocketSession session, DocRoom room, String type, String opId) {
+        RateLimiter.Buckets limits = (RateLimiter.Buckets) session.getAttributes().get(SESSION_LIMITS);
+        long wait = limits != null ? limits.acquire(type) : 0;
+        if (wait == 0) {
+            return true;
+        }
+        if (limits.shouldSignal(type)) {
+            OutboundMessage throttled = new OutboundMessage.Throttled(room.docId, type, opId, retryAfterMs(wait));
+            submit(room, () -> reply(room, clusterBus.nodeId(), session.getId(), throttled));
+        }
+        return false;
+    }
+
+    /**
+     * Takes a token from the room's limit for an edit of {@code type}; if
+     * there is none the edit is dropped and its sender told so.
+     */
+    private boolean throttledByRoom(DocRoom room, String node, String sessionId, String type, String opId)
+            throws Exception {
+        long wait = room.limits.acquire(type);
+        if (wait == 0) {
+            return false;
+        }
+        reply(room, node, sessionId, new OutboundMessage.Throttled(room.docId, type, opId, retryAfterMs(wait)));
+        return true;
+    }
+
+    private static long retryAfterMs(long waitNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1;
+    }
+
+    /**
+     * The base checksum for the op being journaled: set only on the first op
+     * after the content was loaded or snapshotted for a save.
+     */
+    private static long takeJournalBase(DocRoom room) {
+        long base = room.journalBase;
+        room.journalBase = EditJournal.NO_BASE;
+        return base;
+    }
+
+    /**
+     * Acks an op once it is journaled, so an acked op survives a crash
+     * before the next save. If the append failed, the room is written to the
+     * database first; if that fails too, the sender is resynced instead of
+     * being told the op is safe.
+     */
+    private void acknowledgeWhenJournaled(DocRoom room, String node, String sessionId, String opId, long version,
+            CompletableFuture<Void> journaled) {
+        journaled.whenComplete((ignored, error) -> submit(room, () -> {
+            if (room.closed || !inRoom(room, node, sessionId)) {
                 return;
             }
+            if (error != null) {
+                System.err.println("Journal append failed for doc " + room.docId + ": " + error.getMessage());
+                if (!saveNow(room, version)) {
+                    resync(room, node, sessionId);
+                    return;
+                }
+            }
+            reply(room, node, sessionId, new OutboundMessage.Ack(room.docId, opId, version));
+        }));
+    }
+
+    /**
+     * Makes sure the room is stored at least up to {@code version}, writing
+     * its content on the mailbox if it is not yet.
+     */
+    private boolean saveNow(DocRoom room, long version) {
+        // Also covers evicted content, which is only dropped once saved
+        if (room.savedVersion >= version) {
+            return true;
+        }
+        String content = room.text();
+        LocalDateTime savedAt = saveFlusher.writeNow(room, content, room.version);
+        if (savedAt != null) {
+            room.journalBase = EditJournal.checksum(content);
         }
+        onFlushed(room, room.version, savedAt);
+        return savedAt != null;
+    }
 
-        // Broadcast patch to others (Bandwidth efficient download)
-        broadcast(room, Map.of(
-                "type", "patch-update",
-                "docId", docId,
-                "patches", patchesText,
-                "serverVersion", room.version,
-                "from", clientId));
+    /**
+     * Closes a session so its client rejoins from a snapshot, on whichever
+     * node it is.
+     */
+    private void resync(DocRoom room, String node, String sessionId) {
+        if (!clusterBus.nodeId().equals(node)) {
+            relay(node, new RelayMessage.Resync(room.docId, sessionId));
+            return;
+        }
+        SessionState state = room.localSession(sessionId);
+        if (state != null) {
+            closeForResync(state.session);
+        }
+    }
 
-        scheduleSave(docId);
+    private void closeForResync(WebSocketSession session) {
+        virtualThreads.execute(() -> {
+            try {
+                session.close(SessionOutbox.RESYNC);
+            } catch (Exception e) {
+                System.err.println("Failed to close session " + session.getId() + " for resync: " + e.getMessage());
+            }
+        });
     }
 
-    private void handleCursorUpdate(WebSocketSession session, Map<String, Object> payload) throws Exception {
+    private void handleCursorUpdate(WebSocketSession session, InboundMessage.CursorUpdate update) {
         Long docId = (Long) session.getAttributes().get(SESSION_DOC_ID);
         if (docId == null) {
             return;
@@ -257,170 +945,501 @@ public class DocumentCollabHandler extends TextWebSocketHandler {
         if (room == null) {
             return;
         }
-        int selectionStart = toInt(payload.get("selectionStart"));
-        int selectionEnd = toInt(payload.get("selectionEnd"));
+        if (isViewer((String) session.getAttributes().get(SESSION_ROLE))
+                || !admit(session, room, TYPE_CURSOR_UPDATE, null)) {
+            return;
+        }
+        int selectionStart = update.selectionStart();
+        int selectionEnd = update.selectionEnd();
         String clientId = (String) session.getAttributes().get(SESSION_CLIENT_ID);
         String name = (String) session.getAttributes().get(SESSION_NAME);
         String color = (String) session.getAttributes().get(SESSION_COLOR);
 
-        broadcast(room, Map.of(
-                "type", "cursor-update",
-                "docId", docId,
-                "selectionStart", selectionStart,
-                "selectionEnd", selectionEnd,
-                "user", Map.of(
-                        "clientId", clientId,
-                        "name", name,
-                        "color", color)));
+        // Coalesced with everyone else's moves and sent on the next cursor tick
+        submit(room, () -> {
+            if (room.closed) {
+                return;
+            }
+            room.cursors.put(clientId, new OutboundMessage.CursorView(
+                    clientId, name, color, selectionStart, selectionEnd));
+            room.cursorsDirty.set(true);
+        });
     }
 
-    private void broadcastPresence(DocRoom room) throws Exception {
-        broadcast(room, Map.of(
-                "type", "presence",
-                "users", room.getUsers()));
+    private void flushCursors(DocRoom room) throws Exception {
+        if (room.closed) {
+            return;
+        }
+        if (room.owner != null) {
+            relay(room.owner, new RelayMessage.Cursors(room.docId, clusterBus.nodeId(),
+                    List.copyOf(room.cursors.values())));
+            return;
+        }
+        broadcast(room, new OutboundMessage.Cursors(room.docId, List.copyOf(room.cursors.values())));
+    }
+
+    /**
+     * Queues work on the room's mailbox. All reads and writes of room state and
+     * all sends to the room's sessions go through here.
+     */
+    private void submit(DocRoom room, RoomTask task) {
+        room.mailbox.execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("Collab task failed for doc " + room.docId + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private void broadcast(DocRoom room, OutboundMessage message) throws Exception {
+        broadcast(room, message, null, null);
     }
 
-    private void broadcast(DocRoom room, Map<String, Object> message) throws Exception {
-        String json = objectMapper.writeValueAsString(message);
-        TextMessage textMessage = new TextMessage(json);
+    /**
+     * Sends a message to every session in an owned room, local or remote,
+     * except the one given by {@code excludeNode} and {@code excludeSession}.
+     * Viewers get everything but cursors.
+     */
+    private void broadcast(DocRoom room, OutboundMessage message, String excludeNode, String excludeSession)
+            throws Exception {
+        long started = System.nanoTime();
+        String exclude = clusterBus.nodeId().equals(excludeNode) ? excludeSession : null;
+        boolean toViewers = forViewers(message.type());
+        boolean anyText = toViewers && room.viewers.anyText();
+        boolean anyBinary = toViewers && room.viewers.anyBinary();
+        for (SessionState state : room.sessions.values()) {
+            if (!state.session.getId().equals(exclude)) {
+                anyBinary |= state.outbox.binary();
+                anyText |= !state.outbox.binary();
+            }
+        }
+        boolean anyRemote = toViewers ? !room.remoteNodes.isEmpty() : !room.remoteSessions.isEmpty();
+        if (!anyText && !anyBinary && !anyRemote) {
+            return;
+        }
+        // Serialized once per protocol; each session's outbox does its own (possibly slow) send
+        OutboundFrame frame = toFrame(room, message, anyText || anyRemote, anyBinary);
+        long bytes = 0;
         for (SessionState state : room.sessions.values()) {
-            WebSocketSession ws = state.session;
-            if (ws.isOpen()) {
-                ws.sendMessage(textMessage);
+            if (!state.session.getId().equals(exclude)) {
+                state.outbox.offer(frame);
+                bytes += frame.size(state.outbox.binary());
+            }
+        }
+        if (toViewers) {
+            room.viewers.publish(frame);
+            bytes += room.viewers.bytes(frame);
+        }
+        if (anyRemote) {
+            // One relay per follower node, which fans the frame out to its own sessions
+            String json = frame.text().getPayload();
+            if (toViewers) {
+                for (String node : room.remoteNodes.keySet()) {
+                    relay(node, new RelayMessage.Deliver(room.docId, null,
+                            node.equals(excludeNode) ? excludeSession : null, frame.type(), json));
+                    bytes += frame.textSize();
+                }
+            } else {
+                List<String> nodes = new ArrayList<>(2);
+                for (RemoteSession remote : room.remoteSessions.values()) {
+                    if (!nodes.contains(remote.node)) {
+                        nodes.add(remote.node);
+                        relay(remote.node, new RelayMessage.Deliver(room.docId, null,
+                                remote.node.equals(excludeNode) ? excludeSession : null, frame.type(), json));
+                        bytes += frame.textSize();
+                    }
+                }
             }
         }
+        metrics.fannedOut(System.nanoTime() - started, bytes);
     }
 
-    private void sendMessage(WebSocketSession session, Map<String, Object> message) throws Exception {
-        String json = objectMapper.writeValueAsString(message);
-        session.sendMessage(new TextMessage(json));
+    private boolean forViewers(String type) {
+        return !TYPE_CURSORS.equals(type);
     }
 
-    private void sendError(WebSocketSession session, String error) throws Exception {
-        sendMessage(session, Map.of(
-                "type", "error",
-                "message", error));
+    /**
+     * Sends a message to one session of an owned room, on whichever node it is.
+     */
+    private void reply(DocRoom room, String node, String sessionId, OutboundMessage message) throws Exception {
+        if (clusterBus.nodeId().equals(node)) {
+            SessionState state = room.localSession(sessionId);
+            if (state != null) {
+                boolean binary = state.outbox.binary();
+                offer(room, state, toFrame(room, message, !binary, binary));
+            }
+            return;
+        }
+        OutboundFrame frame = toFrame(room, message, true, false);
+        relay(node, new RelayMessage.Deliver(room.docId, sessionId, null, frame.type(), frame.text().getPayload()));
     }
 
-    private void scheduleSave(Long docId) {
-        ScheduledFuture<?> existing = pendingSaves.get(docId);
-        if (existing != null) {
-            existing.cancel(false);
+    /**
+     * Like {@link #reply}, for a frame already encoded in both forms.
+     */
+    private void replyFrame(DocRoom room, String node, String sessionId, OutboundFrame frame) {
+        if (clusterBus.nodeId().equals(node)) {
+            SessionState state = room.localSession(sessionId);
+            if (state != null) {
+                offer(room, state, frame);
+            }
+            return;
         }
-        ScheduledFuture<?> future = scheduler.schedule(() -> saveRoom(docId), 500, TimeUnit.MILLISECONDS);
-        pendingSaves.put(docId, future);
+        relay(node, new RelayMessage.Deliver(room.docId, sessionId, null, frame.type(), frame.text().getPayload()));
     }
 
-    private void saveRoom(Long docId) {
-        pendingSaves.remove(docId);
-        DocRoom room = rooms.get(docId);
-        if (room == null) {
-            return;
+    /**
+     * Queues a frame for one local session. A viewer's goes through the
+     * viewer tier, behind the broadcasts already published to it.
+     */
+    private void offer(DocRoom room, SessionState state, OutboundFrame frame) {
+        if (room.viewers.get(state.session.getId()) == state) {
+            room.viewers.send(state, frame);
+        } else {
+            state.outbox.offer(frame);
         }
-        try {
-            DocumentEntity doc = documentRepository.findById(docId)
-                    .orElseThrow(() -> new DocumentNotFoundException("Document not found"));
-            doc.setContent(room.content);
-            LocalDateTime savedAt = LocalDateTime.now(java.time.ZoneId.of("Asia/Ho_Chi_Minh"));
-            doc.setLastModified(savedAt);
-            doc.setContentVersion(room.version);
-            documentRepository.save(doc);
-
-            // Broadcast save confirmation to all clients in the room
-            try {
-                broadcast(room, Map.of(
-                        "type", "saved",
-                        "docId", docId,
-                        "version", room.version,
-                        "savedAt", savedAt.toString()));
-            } catch (Exception broadcastError) {
-                System.err.println(
-                        "Failed to broadcast save confirmation for doc " + docId + ": " + broadcastError.getMessage());
+    }
+
+    private boolean inRoom(DocRoom room, String node, String sessionId) {
+        if (clusterBus.nodeId().equals(node)) {
+            return room.localSession(sessionId) != null;
+        }
+        return room.getRemote(DocRoom.remoteKey(node, sessionId)) != null;
+    }
+
+    private void sendMessage(DocRoom room, WebSocketSession session, OutboundMessage message) throws Exception {
+        boolean binary = isBinary(session);
+        OutboundFrame frame = toFrame(room, message, !binary, binary);
+        SessionState state = room.localSession(session.getId());
+        if (state != null) {
+            offer(room, state, frame);
+        } else {
+            // Not (or no longer) in the room, so nothing else is sending to it
+            session.sendMessage(frame.message(binary));
+        }
+    }
+
+    private void sendError(DocRoom room, WebSocketSession session, String error) throws Exception {
+        sendMessage(room, session, new OutboundMessage.ErrorMessage(error));
+    }
+
+    /**
+     * Encodes a message with the room's reusable encoders. Must run on the
+     * room's mailbox.
+     */
+    private OutboundFrame toFrame(DocRoom room, OutboundMessage message, boolean text, boolean binary)
+            throws Exception {
+        String type = message.type();
+        String json = null;
+        if (text) {
+            if (room.jsonEncoder == null) {
+                room.jsonEncoder = jsonCodec.newEncoder();
             }
-        } catch (Exception e) {
-            System.err.println("Failed to save document " + docId + ": " + e.getMessage());
-            e.printStackTrace();
-            // Notify clients of save failure
-            try {
-                broadcast(room, Map.of(
-                        "type", "save-error",
-                        "docId", docId,
-                        "message", "Failed to save: " + e.getMessage()));
-            } catch (Exception broadcastError) {
-                System.err.println("Failed to broadcast save error: " + broadcastError.getMessage());
+            json = room.jsonEncoder.encode(message);
+        }
+        byte[] bytes = null;
+        if (binary) {
+            if (room.binaryEncoder == null) {
+                room.binaryEncoder = binaryCodec.newEncoder();
             }
+            bytes = room.binaryEncoder.encode(message);
         }
+        return new OutboundFrame(type, collapseKey(type),
+                json != null ? new TextMessage(json) : null, json != null ? json.length() : 0,
+                bytes != null ? new BinaryMessage(bytes) : null, bytes != null ? bytes.length : 0);
     }
 
-    private String asString(Object value) {
-        return value != null ? String.valueOf(value) : null;
+    private boolean isBinary(WebSocketSession session) {
+        return CollabProtocols.BINARY.equals(session.getAcceptedProtocol());
     }
 
-    private Long toLong(Object value) {
-        if (value instanceof Number) {
-            return ((Number) value).longValue();
-        }
-        if (value != null) {
-            return Long.parseLong(value.toString());
+    /**
+     * Cursor frames are superseded by the next one, so queued copies can be
+     * replaced or dropped; everything else must be delivered.
+     */
+    private String collapseKey(String type) {
+        if (TYPE_CURSORS.equals(type)) {
+            return type;
         }
         return null;
     }
 
-    private int toInt(Object value) {
-        if (value instanceof Number) {
-            return ((Number) value).intValue();
+    private void onFlushed(DocRoom room, long version, LocalDateTime savedAt) {
+        if (savedAt != null) {
+            journal.saved(room.docId, version);
+        }
+        submit(room, () -> {
+            if (room.closed) {
+                return;
+            }
+            if (savedAt != null) {
+                room.savedVersion = Math.max(room.savedVersion, version);
+                broadcast(room, new OutboundMessage.Saved(room.docId, version, savedAt.toString()));
+            } else {
+                broadcast(room, new OutboundMessage.SaveError(room.docId, "Failed to save document"));
+            }
+        });
+    }
+
+    private void relay(String node, RelayMessage message) {
+        try {
+            clusterBus.publish(NODE_CHANNEL_PREFIX + node, objectMapper.writeValueAsString(message));
+        } catch (Exception e) {
+            System.err.println("Failed to relay to node " + node + ": " + e.getMessage());
+        }
+    }
+
+    private void onRelay(String payload) {
+        RelayMessage message;
+        try {
+            message = objectMapper.readValue(payload, RelayMessage.class);
+        } catch (Exception e) {
+            System.err.println("Dropping malformed relay message: " + e.getMessage());
+            return;
         }
-        if (value != null) {
-            return Integer.parseInt(value.toString());
+        DocRoom room = rooms.get(message.docId());
+        switch (message) {
+            case RelayMessage.Enter enter -> {
+                if (ownedOrRehome(room, enter.docId(), enter.node())) {
+                    submit(room, () -> admitRemote(room, enter));
+                }
+            }
+            case RelayMessage.Patch patch -> {
+                if (ownedOrRehome(room, patch.docId(), patch.node())) {
+                    submit(room, () -> {
+                        RemoteSession remote = room.getRemote(DocRoom.remoteKey(patch.node(), patch.sessionId()));
+                        if (remote != null) {
+                            applyPatch(room, patch.node(), patch.sessionId(), remote.info.clientId, remote.info.role,
+                                    patch.baseVersion(), patch.opId(), PatchPayload.ofText(dmp, patch.patches()));
+                        }
+                    });
+                }
+            }
+            case RelayMessage.Content content -> {
+                if (ownedOrRehome(room, content.docId(), content.node())) {
+                    submit(room, () -> {
+                        RemoteSession remote = room.getRemote(
+                                DocRoom.remoteKey(content.node(), content.sessionId()));
+                        if (remote != null) {
+                            applyContent(room, content.node(), content.sessionId(), remote.info.clientId,
+                                    remote.info.role, content.content());
+                        }
+                    });
+                }
+            }
+            case RelayMessage.Snapshot snapshot -> {
+                if (ownedOrRehome(room, snapshot.docId(), snapshot.node())) {
+                    submit(room, () -> {
+                        if (room.getRemote(DocRoom.remoteKey(snapshot.node(), snapshot.sessionId())) != null) {
+                            sendSnapshot(room, snapshot.node(), snapshot.sessionId());
+                        }
+                    });
+                }
+            }
+            case RelayMessage.Leave leave -> {
+                if (room != null && room.owner == null) {
+                    submit(room, () -> {
+                        RemoteSession remote = room.removeRemote(DocRoom.remoteKey(leave.node(), leave.sessionId()));
+                        if (remote != null && !room.closed) {
+                            if (!remote.viewer) {
+                                presenceChanged(room, remote.info.clientId);
+                                if (room.cursors.remove(remote.info.clientId) != null) {
+                                    room.cursorsDirty.set(true);
+                                }
+                            }
+                            closeIfEmpty(room);
+                        }
+                    });
+                }
+            }
+            case RelayMessage.Cursors cursors -> {
+                if (room != null && room.owner == null) {
+                    submit(room, () -> {
+                        if (room.closed) {
+                            return;
+                        }
+                        for (OutboundMessage.CursorView cursor : cursors.cursors()) {
+                            room.cursors.put(cursor.clientId(), cursor);
+                        }
+                        room.cursorsDirty.set(true);
+                    });
+                }
+            }
+            case RelayMessage.Deliver deliver -> {
+                if (room != null && room.owner != null) {
+                    submit(room, () -> deliverLocal(room, deliver));
+                }
+            }
+            case RelayMessage.Refused refused -> {
+                if (room != null && room.owner != null) {
+                    submit(room, () -> refuseLocal(room, refused));
+                }
+            }
+            case RelayMessage.Resync resync -> {
+                if (room != null && room.owner != null) {
+                    submit(room, () -> {
+                        SessionState state = room.localSession(resync.session());
+                        if (state != null) {
+                            closeForResync(state.session);
+                        }
+                    });
+                }
+            }
+            case RelayMessage.Rehome rehome -> {
+                if (room != null && room.owner != null) {
+                    rehome(room);
+                }
+            }
         }
-        return 0;
     }
 
-    private static final class DocRoom {
-        private volatile String content;
-        private volatile long version;
-        private final Map<String, SessionState> sessions = new ConcurrentHashMap<>();
+    /**
+     * Whether this node owns the room an op was relayed for. If not, tells
+     * the sender to look the owner up again.
+     */
+    private boolean ownedOrRehome(DocRoom room, Long docId, String sender) {
+        if (room != null && room.owner == null) {
+            return true;
+        }
+        relay(sender, new RelayMessage.Rehome(docId));
+        return false;
+    }
 
-        private DocRoom(String content, long version) {
-            this.content = content;
-            this.version = version;
+    private void admitRemote(DocRoom room, RelayMessage.Enter enter) throws Exception {
+        if (room.closed) {
+            // Closed after the lookup; by now another node may own it
+            relay(enter.node(), new RelayMessage.Rehome(room.docId));
+            return;
+        }
+        boolean viewer = isViewer(enter.role());
+        if (isFull(room, viewer)) {
+            relay(enter.node(), new RelayMessage.Refused(room.docId, enter.sessionId(), "Room is full"));
+            return;
+        }
+        if (!activate(room)) {
+            relay(enter.node(), new RelayMessage.Refused(room.docId, enter.sessionId(), "Document not found"));
+            return;
+        }
+        SessionInfo info = new SessionInfo(enter.clientId(), enter.name(), enter.color(), enter.role());
+        room.addRemote(DocRoom.remoteKey(enter.node(), enter.sessionId()),
+                new RemoteSession(enter.node(), enter.sessionId(), info, viewer));
+        sendJoined(room, enter.node(), enter.sessionId(), info.role, viewer, enter.lastVersion());
+        if (!viewer) {
+            presenceChanged(room, info.clientId);
         }
+    }
 
-        private List<Map<String, Object>> getUsers() {
-            List<Map<String, Object>> users = new ArrayList<>();
-            for (SessionState state : sessions.values()) {
-                SessionInfo info = state.info;
-                users.add(Map.of(
-                        "clientId", info.clientId,
-                        "name", info.name,
-                        "color", info.color,
-                        "role", info.role));
+    /**
+     * Passes a frame relayed by the owner on to this node's sessions in a
+     * follower room. Binary sessions get it as a JSON frame.
+     */
+    private void deliverLocal(DocRoom room, RelayMessage.Deliver deliver) {
+        if (room.closed) {
+            return;
+        }
+        List<SessionState> targets = new ArrayList<>(room.sessions.size());
+        boolean toViewers = false;
+        if (deliver.session() != null) {
+            SessionState state = room.localSession(deliver.session());
+            if (state != null) {
+                targets.add(state);
             }
-            return users;
+        } else {
+            for (SessionState state : room.sessions.values()) {
+                if (!state.session.getId().equals(deliver.exclude())) {
+                    targets.add(state);
+                }
+            }
+            toViewers = forViewers(deliver.type()) && room.viewers.size() > 0;
+        }
+        boolean anyBinary = toViewers && room.viewers.anyBinary();
+        for (SessionState state : targets) {
+            anyBinary |= state.outbox.binary();
+        }
+        if (targets.isEmpty() && !toViewers) {
+            return;
+        }
+        String json = deliver.json();
+        byte[] bytes = anyBinary ? BinaryCollabCodec.wrapJson(json) : null;
+        OutboundFrame frame = new OutboundFrame(deliver.type(), collapseKey(deliver.type()),
+                new TextMessage(json), json.length(),
+                bytes != null ? new BinaryMessage(bytes) : null, bytes != null ? bytes.length : 0);
+        for (SessionState state : targets) {
+            offer(room, state, frame);
+        }
+        if (toViewers) {
+            room.viewers.publish(frame);
         }
     }
 
-    private static final class SessionState {
-        private final WebSocketSession session;
-        private final SessionInfo info;
-
-        private SessionState(WebSocketSession session, SessionInfo info) {
-            this.session = session;
-            this.info = info;
+    private void refuseLocal(DocRoom room, RelayMessage.Refused refused) throws Exception {
+        SessionState state = room.sessions.remove(refused.session());
+        if (state == null) {
+            state = room.viewers.remove(refused.session());
+        }
+        if (state == null) {
+            return;
         }
+        state.outbox.close();
+        sendError(room, state.session, refused.reason());
+        state.session.close(CloseStatus.POLICY_VIOLATION);
+        closeIfNoSessions(room);
     }
 
-    private static final class SessionInfo {
-        private final String clientId;
-        private final String name;
-        private final String color;
-        private final String role;
+    /**
+     * Drops a follower room whose owner is gone and rejoins its sessions,
+     * which claims the room again or finds its new owner. Sessions keep
+     * their outboxes and receive a fresh {@code joined} snapshot.
+     */
+    private void rehome(DocRoom room) {
+        submit(room, () -> {
+            if (room.closed) {
+                return;
+            }
+            room.closed = true;
+            room.cursorTick.cancel(false);
+            rooms.remove(room);
+            List<SessionState> states = new ArrayList<>(room.sessions.values());
+            room.sessions.clear();
+            states.addAll(room.viewers.clear());
+            if (states.isEmpty()) {
+                return;
+            }
+            for (SessionState state : states) {
+                enterRoom(state.session, room.docId, state.info, null, state.outbox);
+            }
+        });
+    }
 
-        private SessionInfo(String clientId, String name, String color, String role) {
-            this.clientId = clientId;
-            this.name = name;
-            this.color = color;
-            this.role = role;
+    private void onNodeLeft(String node) {
+        for (DocRoom room : rooms.all()) {
+            if (node.equals(room.owner)) {
+                rehome(room);
+            } else if (room.owner == null) {
+                submit(room, () -> {
+                    if (room.closed) {
+                        return;
+                    }
+                    if (!room.remoteNodes.containsKey(node)) {
+                        return;
+                    }
+                    for (RemoteSession remote : room.removeRemoteNode(node)) {
+                        if (!remote.viewer) {
+                            presenceChanged(room, remote.info.clientId);
+                            if (room.cursors.remove(remote.info.clientId) != null) {
+                                room.cursorsDirty.set(true);
+                            }
+                        }
+                    }
+                    closeIfEmpty(room);
+                });
+            }
         }
     }
+
+    @FunctionalInterface
+    private interface RoomTask {
+        void run() throws Exception;
+    }
 }
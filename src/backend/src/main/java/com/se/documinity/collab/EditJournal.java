@@ -0,0 +1,492 @@
+package com.se.documinity.collab;
+
+import com.se.documinity.entity.DocumentEntity;
+import com.se.documinity.repository.DocumentRepository;
+import com.se.documinity.service.DocumentRevisionService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of accepted room edits, so edits that have not reached
+ * the database yet survive a crash or redeploy.
+ *
+ * Every accepted op is appended with its docId and the version it produced.
+ * A single writer thread drains whatever has queued up, writes it and forces
+ * the file once for the whole batch (group commit), then completes the
+ * callers' futures. Segments roll at {@code segment-bytes} and are deleted
+ * once every document in them has been saved at or past its last journaled
+ * version. On startup, entries newer than a document's persisted
+ * {@code contentVersion} are replayed onto it and written back, with a
+ * revision, in one transaction per document. Segments holding a document
+ * whose replay failed are kept, and go like any other once it is saved past
+ * them. A failed write fails its batch and moves on to a new segment, so
+ * later records never follow a torn one.
+ *
+ * Journals are per node while room ownership moves, so the stored row may
+ * have been written by another owner since. The first op after the owner
+ * loads a document or snapshots it for a save carries a {@link #checksum}
+ * of that content, and replay only starts from an op whose checksum matches
+ * the stored row; otherwise the row holds another node's history and the
+ * entries are dropped rather than applied on top of it.
+ *
+ * Record layout: int length, long docId, long version, long base checksum
+ * (0 if none), byte kind, UTF-8 payload, int CRC32 of everything after the
+ * length. A torn or corrupt record ends the segment.
+ */
+@Component
+@RequiredArgsConstructor
+class EditJournal {
+    static final byte KIND_PATCH = 1;
+    static final byte KIND_CONTENT = 2;
+    static final long NO_BASE = 0L;
+
+    private static final int HEADER_BYTES = 4 + 8 + 8 + 8 + 1;
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final ZoneId ZONE = ZoneId.of("Asia/Ho_Chi_Minh");
+    private static final Object STOP = new Object();
+
+    private final DocumentRepository documentRepository;
+    private final DocumentRevisionService revisionService;
+    private final TransactionTemplate transactionTemplate;
+
+    // Only parses patches; every journaled patch applies exactly, so no tuning is involved
+    private final diff_match_patch dmp = new diff_match_patch();
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    // Writer-thread state
+    private final Deque<Segment> closedSegments = new ArrayDeque<>();
+    private final Map<Long, Long> savedVersions = new HashMap<>();
+    private Segment active;
+    private long nextSegment;
+    private Thread writer;
+
+    @Value("${app.collab.journal.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.collab.journal.dir:collab-journal}")
+    private String dir;
+
+    @Value("${app.collab.journal.segment-bytes:8388608}")
+    private long segmentBytes;
+
+    record Entry(long docId, long version, long base, byte kind, String payload) {
+    }
+
+    private record Saved(long docId, long version) {
+    }
+
+    private record Pending(Entry entry, CompletableFuture<Void> done) {
+    }
+
+    private static final class Segment {
+        final Path path;
+        FileChannel channel;
+        long size;
+        // Last journaled version per document in this segment
+        final Map<Long, Long> lastVersions = new HashMap<>();
+
+        Segment(Path path) {
+            this.path = path;
+        }
+    }
+
+    @PostConstruct
+    void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Path root = Path.of(dir);
+        Files.createDirectories(root);
+        List<Path> existing = listSegments(root);
+        if (!existing.isEmpty()) {
+            recover(existing);
+            nextSegment = segmentNumber(existing.get(existing.size() - 1)) + 1;
+        }
+        active = openSegment();
+        // Drops the replayed segments; any a document could not be written back from stay
+        compact();
+        writer = Thread.ofPlatform().daemon().name("collab-journal").start(this::writeLoop);
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        if (writer != null) {
+            // Not an interrupt: that would close the channel under a write in progress
+            queue.add(STOP);
+            writer.join(5000);
+        }
+    }
+
+    /**
+     * Queues an accepted op. The future completes once it is on disk.
+     *
+     * @param base {@link #checksum} of the content the op was applied to, if
+     *             that content was loaded from or saved to the database, else
+     *             {@link #NO_BASE}
+     */
+    CompletableFuture<Void> append(long docId, long version, long base, byte kind, String payload) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String text = payload != null ? payload : "";
+        if (!fits(text)) {
+            // Could not be read back, so it is not written at all
+            return CompletableFuture.failedFuture(new IOException("Journal record for document " + docId
+                    + " at version " + version + " is over " + MAX_RECORD_BYTES + " bytes"));
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.add(new Pending(new Entry(docId, version, base, kind, text), done));
+        return done;
+    }
+
+    private static boolean fits(String payload) {
+        long limit = MAX_RECORD_BYTES - (HEADER_BYTES - 4);
+        // UTF-8 takes at most three bytes per char, so only huge payloads are encoded to check
+        return (long) payload.length() * 3 <= limit
+                || payload.getBytes(StandardCharsets.UTF_8).length <= limit;
+    }
+
+    /**
+     * Checksum of document content for {@link Entry#base}: 64-bit FNV-1a over
+     * its chars, so neither side has to encode the text to compute it.
+     */
+    static long checksum(CharSequence content) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < content.length(); i++) {
+            hash ^= content.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Tells the journal a document is persisted up to {@code version}, so
+     * segments holding nothing newer can go.
+     */
+    void saved(long docId, long version) {
+        if (enabled) {
+            queue.add(new Saved(docId, version));
+        }
+    }
+
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch);
+            stopping = batch.remove(STOP);
+            writeBatch(batch);
+            batch.clear();
+        }
+        closeQuietly(active);
+    }
+
+    private void writeBatch(List<Object> batch) {
+        boolean anyWritten = false;
+        boolean anySaved = false;
+        try {
+            for (Object item : batch) {
+                if (item instanceof Pending pending) {
+                    write(pending.entry);
+                    anyWritten = true;
+                } else if (item instanceof Saved saved) {
+                    savedVersions.merge(saved.docId, saved.version, Math::max);
+                    anySaved = true;
+                }
+            }
+            if (anyWritten) {
+                active.channel.force(false);
+            }
+            for (Object item : batch) {
+                if (item instanceof Pending pending) {
+                    pending.done.complete(null);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Collab journal write failed: " + e.getMessage());
+            for (Object item : batch) {
+                if (item instanceof Pending pending) {
+                    pending.done.completeExceptionally(e);
+                }
+            }
+            rollAfterFailure();
+        }
+        if (anySaved) {
+            compact();
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        if (active.channel == null) {
+            // Opening a segment after a failed write failed too
+            active = openSegment();
+        } else if (active.size >= segmentBytes) {
+            active.channel.force(false);
+            closeQuietly(active);
+            closedSegments.addLast(active);
+            active = openSegment();
+        }
+        ByteBuffer record = encode(entry);
+        int length = record.remaining();
+        while (record.hasRemaining()) {
+            active.channel.write(record);
+        }
+        active.size += length;
+        active.lastVersions.merge(entry.docId, entry.version, Math::max);
+    }
+
+    /**
+     * Closes the active segment after a failed write, which may have left a
+     * partial record in it, and opens a new one for the next batch.
+     */
+    private void rollAfterFailure() {
+        if (active.channel != null) {
+            closeQuietly(active);
+            closedSegments.addLast(active);
+        }
+        try {
+            active = openSegment();
+        } catch (IOException e) {
+            System.err.println("Could not open a new journal segment: " + e.getMessage());
+        }
+    }
+
+    private void compact() {
+        while (!closedSegments.isEmpty() && covered(closedSegments.peekFirst())) {
+            Segment segment = closedSegments.removeFirst();
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                System.err.println("Could not delete journal segment " + segment.path + ": " + e.getMessage());
+            }
+        }
+        if (closedSegments.isEmpty() && active.channel != null && active.size > 0 && covered(active)) {
+            try {
+                active.channel.truncate(0);
+                active.channel.position(0);
+                active.size = 0;
+                active.lastVersions.clear();
+            } catch (IOException e) {
+                System.err.println("Could not truncate journal segment " + active.path + ": " + e.getMessage());
+            }
+        }
+        // Only documents still in some segment need their saved version remembered
+        savedVersions.keySet().removeIf(docId -> !active.lastVersions.containsKey(docId)
+                && closedSegments.stream().noneMatch(segment -> segment.lastVersions.containsKey(docId)));
+    }
+
+    private boolean covered(Segment segment) {
+        for (Map.Entry<Long, Long> last : segment.lastVersions.entrySet()) {
+            if (savedVersions.getOrDefault(last.getKey(), -1L) < last.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Segment openSegment() throws IOException {
+        Segment segment = new Segment(Path.of(dir, String.format("%s%020d%s", SEGMENT_PREFIX, nextSegment++, SEGMENT_SUFFIX)));
+        segment.channel = FileChannel.open(segment.path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return segment;
+    }
+
+    private static void closeQuietly(Segment segment) {
+        if (segment == null || segment.channel == null) {
+            return;
+        }
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            System.err.println("Could not close journal segment " + segment.path + ": " + e.getMessage());
+        }
+        segment.channel = null;
+    }
+
+    /**
+     * Replays journaled edits newer than each document's persisted version.
+     * The segments are taken on as closed ones, and every document written
+     * back (or with nothing to replay) counts as saved up to its last entry.
+     */
+    private void recover(List<Path> segments) throws IOException {
+        Map<Long, List<Entry>> byDoc = new LinkedHashMap<>();
+        for (Path path : segments) {
+            Segment segment = new Segment(path);
+            for (Entry entry : read(path)) {
+                byDoc.computeIfAbsent(entry.docId, id -> new ArrayList<>()).add(entry);
+                segment.lastVersions.merge(entry.docId, entry.version, Math::max);
+            }
+            closedSegments.addLast(segment);
+        }
+        for (Map.Entry<Long, List<Entry>> doc : byDoc.entrySet()) {
+            try {
+                recoverDocument(doc.getKey(), doc.getValue());
+            } catch (Exception e) {
+                System.err.println("Journal replay failed for document " + doc.getKey() + ": " + e.getMessage());
+                continue;
+            }
+            long last = doc.getValue().stream().mapToLong(Entry::version).max().orElse(0L);
+            savedVersions.merge(doc.getKey(), last, Math::max);
+        }
+    }
+
+    private void recoverDocument(long docId, List<Entry> entries) {
+        DocumentEntity doc = documentRepository.findById(docId).orElse(null);
+        if (doc == null) {
+            return;
+        }
+        String content = doc.getContent() != null ? doc.getContent() : "";
+        long version = doc.getContentVersion() != null ? doc.getContentVersion() : 0L;
+        long persisted = version;
+        // The latest op this node applied to exactly the stored content
+        long stored = checksum(content);
+        int start = -1;
+        boolean newer = false;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            newer |= entry.version > version;
+            if (entry.version == version + 1 && entry.base == stored) {
+                start = i;
+            }
+        }
+        if (start < 0) {
+            if (newer) {
+                System.err.println("Journal for document " + docId + " does not continue stored version "
+                        + version + ", written by another owner; replay refused");
+            }
+            return;
+        }
+        for (Entry entry : entries.subList(start, entries.size())) {
+            if (entry.version <= version) {
+                continue;
+            }
+            if (entry.version != version + 1) {
+                System.err.println("Journal for document " + docId + " skips from " + version + " to "
+                        + entry.version + "; replay stopped");
+                break;
+            }
+            if (entry.base != NO_BASE && entry.base != checksum(content)) {
+                System.err.println("Journal for document " + docId + " changes history at version "
+                        + entry.version + "; replay stopped");
+                break;
+            }
+            content = replay(content, entry);
+            version = entry.version;
+        }
+        if (version > persisted) {
+            String recovered = content;
+            long recoveredVersion = version;
+            LocalDateTime savedAt = LocalDateTime.now(ZONE);
+            // Runs from @PostConstruct, where no transaction is open for the @Modifying update
+            transactionTemplate.executeWithoutResult(status -> {
+                if (documentRepository.updateContent(docId, recovered, recoveredVersion, savedAt) > 0) {
+                    revisionService.record(docId, recoveredVersion, recovered, savedAt);
+                }
+            });
+            System.err.println("Recovered document " + docId + " from journal: version " + persisted
+                    + " -> " + version);
+        }
+    }
+
+    String replay(String content, Entry entry) {
+        if (entry.kind == KIND_CONTENT) {
+            return entry.payload;
+        }
+        // Journaled as applied, so its context is where it says or this is not the text it was applied to
+        Rope replayed = TransformEngine.applyExact(Rope.of(content), dmp.patch_fromText(entry.payload));
+        if (replayed == null) {
+            throw new IllegalStateException("Journaled patch for version " + entry.version
+                    + " does not apply exactly");
+        }
+        return replayed.toString();
+    }
+
+    static ByteBuffer encode(Entry entry) {
+        byte[] payload = entry.payload.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = HEADER_BYTES - 4 + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(4 + bodyLength + 4);
+        record.putInt(bodyLength);
+        record.putLong(entry.docId);
+        record.putLong(entry.version);
+        record.putLong(entry.base);
+        record.put(entry.kind);
+        record.put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, bodyLength);
+        record.putInt((int) crc.getValue());
+        return record.flip();
+    }
+
+    static List<Entry> read(Path path) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (in.remaining() >= 4) {
+            int bodyLength = in.getInt();
+            if (bodyLength < HEADER_BYTES - 4 || bodyLength > MAX_RECORD_BYTES || in.remaining() < bodyLength + 4) {
+                break;
+            }
+            int start = in.position();
+            CRC32 crc = new CRC32();
+            crc.update(in.array(), start, bodyLength);
+            long docId = in.getLong();
+            long version = in.getLong();
+            long base = in.getLong();
+            byte kind = in.get();
+            String payload = new String(in.array(), in.position(), start + bodyLength - in.position(),
+                    StandardCharsets.UTF_8);
+            in.position(start + bodyLength);
+            if ((int) crc.getValue() != in.getInt()) {
+                break;
+            }
+            entries.add(new Entry(docId, version, base, kind, payload));
+        }
+        return entries;
+    }
+
+    private static List<Path> listSegments(Path root) throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        }
+    }
+
+    private static long segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
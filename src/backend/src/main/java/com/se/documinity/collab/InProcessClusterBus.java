@@ -0,0 +1,89 @@
+package com.se.documinity.collab;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * {@link ClusterBus} whose nodes live in one JVM. With a private hub it is
+ * the single-node default; tests attach several nodes to a shared
+ * {@link Hub} to exercise relaying and ownership handoff.
+ */
+public final class InProcessClusterBus implements ClusterBus {
+    private final Hub hub;
+    private final String nodeId;
+
+    public InProcessClusterBus() {
+        this(new Hub(), UUID.randomUUID().toString());
+    }
+
+    public InProcessClusterBus(Hub hub, String nodeId) {
+        this.hub = hub;
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void publish(String channel, String payload) {
+        for (Subscription subscription : hub.subscriptions.getOrDefault(channel, List.of())) {
+            // Each subscriber gets its own ordered queue, like a connection to a broker
+            subscription.mailbox.execute(() -> subscription.listener.accept(payload));
+        }
+    }
+
+    @Override
+    public void subscribe(String channel, Consumer<String> listener) {
+        hub.subscriptions.computeIfAbsent(channel, c -> new CopyOnWriteArrayList<>())
+                .add(new Subscription(nodeId, new RoomMailbox(hub.delivery), listener));
+    }
+
+    @Override
+    public String claim(Long docId) {
+        return hub.owners.computeIfAbsent(docId, id -> nodeId);
+    }
+
+    @Override
+    public void release(Long docId) {
+        hub.owners.remove(docId, nodeId);
+    }
+
+    @Override
+    public void onNodeLeft(Consumer<String> listener) {
+        hub.leaveListeners.add(new LeaveListener(nodeId, listener));
+    }
+
+    @Override
+    public void leave() {
+        hub.owners.values().removeIf(nodeId::equals);
+        hub.subscriptions.values().forEach(list -> list.removeIf(s -> s.node.equals(nodeId)));
+        hub.leaveListeners.removeIf(l -> l.node.equals(nodeId));
+        for (LeaveListener l : hub.leaveListeners) {
+            hub.delivery.execute(() -> l.listener.accept(nodeId));
+        }
+    }
+
+    /**
+     * Shared state of the nodes of one in-process cluster.
+     */
+    public static final class Hub {
+        private final Map<String, List<Subscription>> subscriptions = new ConcurrentHashMap<>();
+        private final Map<Long, String> owners = new ConcurrentHashMap<>();
+        private final List<LeaveListener> leaveListeners = new CopyOnWriteArrayList<>();
+        private final Executor delivery = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    private record Subscription(String node, RoomMailbox mailbox, Consumer<String> listener) {
+    }
+
+    private record LeaveListener(String node, Consumer<String> listener) {
+    }
+}
@@ -0,0 +1,54 @@
+package com.se.documinity.collab;
+
+/**
+ * Messages a client sends on {@code /ws/documents}, decoded by
+ * {@link JsonCollabCodec} or {@link BinaryCollabCodec}.
+ */
+sealed interface InboundMessage {
+
+    String type();
+
+    /**
+     * {@code lastVersion} is the serverVersion a reconnecting client already
+     * has, if it has no unconfirmed ops; it is then sent only what it missed.
+     */
+    record Join(Long docId, String clientId, String displayName, String color,
+            String authToken, String shareToken, Long lastVersion) implements InboundMessage {
+        public String type() {
+            return "join";
+        }
+    }
+
+    record PatchUpdate(Long baseVersion, String opId, PatchPayload patches) implements InboundMessage {
+        public String type() {
+            return "patch-update";
+        }
+    }
+
+    record ContentUpdate(String content) implements InboundMessage {
+        public String type() {
+            return "content-update";
+        }
+    }
+
+    record CursorUpdate(int selectionStart, int selectionEnd) implements InboundMessage {
+        public String type() {
+            return "cursor-update";
+        }
+    }
+
+    /**
+     * Asks for the room's full content, e.g. after a patch failed to apply.
+     */
+    record SnapshotRequest() implements InboundMessage {
+        public String type() {
+            return "snapshot-request";
+        }
+    }
+
+    /**
+     * A message type this server does not handle; ignored like before.
+     */
+    record Unknown(String type) implements InboundMessage {
+    }
+}
@@ -0,0 +1,319 @@
+package com.se.documinity.collab;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import name.fraser.neil.plaintext.diff_match_patch;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Codec for the JSON text protocol.
+ *
+ * Decoding streams the frame: when {@code type} is the first field (as every
+ * client we ship sends it) the remaining fields are bound straight into the
+ * matching {@link InboundMessage} record, without building a map or boxing
+ * each value. Frames with {@code type} elsewhere fall back to a tree read.
+ * Encoding writes each {@link OutboundMessage} field by field with a
+ * streaming generator that is reused across frames.
+ */
+final class JsonCollabCodec {
+    private final ObjectMapper objectMapper;
+    private final JsonFactory factory;
+    private final diff_match_patch dmp;
+
+    JsonCollabCodec(ObjectMapper objectMapper, diff_match_patch dmp) {
+        this.objectMapper = objectMapper;
+        this.factory = objectMapper.getFactory();
+        this.dmp = dmp;
+    }
+
+    InboundMessage decode(String json) throws IOException {
+        try (JsonParser parser = factory.createParser(json)) {
+            return decode(parser, json);
+        }
+    }
+
+    InboundMessage decode(byte[] json) throws IOException {
+        try (JsonParser parser = factory.createParser(json)) {
+            return decode(parser, json);
+        }
+    }
+
+    private InboundMessage decode(JsonParser parser, Object source) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IllegalArgumentException("Collab message must be a JSON object");
+        }
+        if (parser.nextToken() == JsonToken.FIELD_NAME && "type".equals(parser.currentName())) {
+            parser.nextToken();
+            return readBody(parser.getValueAsString(), parser);
+        }
+        JsonNode tree = source instanceof String text ? objectMapper.readTree(text) : objectMapper.readTree((byte[]) source);
+        try (JsonParser replay = objectMapper.treeAsTokens(tree)) {
+            replay.nextToken();
+            return readBody(tree.path("type").asText(null), replay);
+        }
+    }
+
+    /**
+     * Reads the remaining fields of the current object into the record for
+     * {@code type}. Fields a type does not use, including a repeated
+     * {@code type}, are skipped.
+     */
+    private InboundMessage readBody(String type, JsonParser parser) throws IOException {
+        if (type == null) {
+            return new InboundMessage.Unknown(null);
+        }
+        switch (type) {
+            case "join": {
+                Long docId = null;
+                String clientId = null;
+                String displayName = null;
+                String color = null;
+                String authToken = null;
+                String shareToken = null;
+                Long lastVersion = null;
+                while (nextField(parser)) {
+                    switch (parser.currentName()) {
+                        case "docId" -> docId = readLong(parser);
+                        case "clientId" -> clientId = readString(parser);
+                        case "displayName" -> displayName = readString(parser);
+                        case "color" -> color = readString(parser);
+                        case "authToken" -> authToken = readString(parser);
+                        case "shareToken" -> shareToken = readString(parser);
+                        case "lastVersion" -> lastVersion = readLong(parser);
+                        default -> parser.skipChildren();
+                    }
+                }
+                return new InboundMessage.Join(docId, clientId, displayName, color, authToken, shareToken,
+                        lastVersion);
+            }
+            case "patch-update": {
+                Long baseVersion = null;
+                String opId = null;
+                String patches = null;
+                while (nextField(parser)) {
+                    switch (parser.currentName()) {
+                        case "baseVersion" -> baseVersion = readLong(parser);
+                        case "opId" -> opId = readString(parser);
+                        case "patches" -> patches = readString(parser);
+                        default -> parser.skipChildren();
+                    }
+                }
+                return new InboundMessage.PatchUpdate(baseVersion, opId, PatchPayload.ofText(dmp, patches));
+            }
+            case "content-update": {
+                String content = null;
+                while (nextField(parser)) {
+                    if ("content".equals(parser.currentName())) {
+                        content = readString(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                return new InboundMessage.ContentUpdate(content);
+            }
+            case "cursor-update": {
+                int selectionStart = 0;
+                int selectionEnd = 0;
+                while (nextField(parser)) {
+                    switch (parser.currentName()) {
+                        case "selectionStart" -> selectionStart = readInt(parser);
+                        case "selectionEnd" -> selectionEnd = readInt(parser);
+                        default -> parser.skipChildren();
+                    }
+                }
+                return new InboundMessage.CursorUpdate(selectionStart, selectionEnd);
+            }
+            case "snapshot-request": {
+                while (nextField(parser)) {
+                    parser.skipChildren();
+                }
+                return new InboundMessage.SnapshotRequest();
+            }
+            default:
+                return new InboundMessage.Unknown(type);
+        }
+    }
+
+    /**
+     * Advances to the value of the next field; {@code false} at the end of the object.
+     */
+    private static boolean nextField(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.FIELD_NAME) {
+            return false;
+        }
+        parser.nextToken();
+        return true;
+    }
+
+    private static String readString(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (token.isScalarValue()) {
+            return parser.getValueAsString();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static Long readLong(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+            return parser.getValueAsLong();
+        }
+        if (token == JsonToken.VALUE_STRING) {
+            // Route params reach the client as strings
+            return Long.parseLong(parser.getText().trim());
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static int readInt(JsonParser parser) throws IOException {
+        Long value = readLong(parser);
+        return value != null ? value.intValue() : 0;
+    }
+
+    String encode(OutboundMessage message) throws IOException {
+        return newEncoder().encode(message);
+    }
+
+    /**
+     * Creates an encoder that reuses one generator and output buffer across
+     * frames. Not thread-safe; each room keeps its own on its mailbox.
+     */
+    Encoder newEncoder() throws IOException {
+        return new Encoder();
+    }
+
+    final class Encoder {
+        private final CharArrayWriter out = new CharArrayWriter(256);
+        private final JsonGenerator gen;
+
+        private Encoder() throws IOException {
+            gen = factory.createGenerator(out);
+            // Frames are independent root values; no separator between them
+            gen.setRootValueSeparator(null);
+        }
+
+        String encode(OutboundMessage message) throws IOException {
+            gen.writeStartObject();
+            gen.writeStringField("type", message.type());
+            switch (message) {
+                case OutboundMessage.Joined m -> {
+                    writeId(gen, "docId", m.docId());
+                    gen.writeStringField("content", m.content());
+                    gen.writeNumberField("serverVersion", m.serverVersion());
+                    gen.writeStringField("role", m.role());
+                    writeUsers(gen, m.users());
+                }
+                case OutboundMessage.PatchUpdate m -> {
+                    writeId(gen, "docId", m.docId());
+                    gen.writeStringField("patches", m.patches().text());
+                    gen.writeNumberField("baseVersion", m.baseVersion());
+                    gen.writeNumberField("serverVersion", m.serverVersion());
+                    gen.writeStringField("from", m.from());
+                }
+                case OutboundMessage.ContentUpdate m -> {
+                    writeId(gen, "docId", m.docId());
+                    gen.writeStringField("content", m.content());
+                    gen.writeNumberField("serverVersion", m.serverVersion());
+                    gen.writeStringField("from", m.from());
+                }
+                case OutboundMessage.Cursors m -> {
+                    writeId(gen, "docId", m.docId());
+                    gen.writeArrayFieldStart("cursors");
+                    for (OutboundMessage.CursorView cursor : m.cursors()) {
+                        gen.writeStartObject();
+                        gen.writeNumberField("selectionStart", cursor.selectionStart());
+                        gen.writeNumberField("selectionEnd", cursor.selectionEnd());
+                        gen.writeObjectFieldStart("user");
+                        gen.writeStringField("clientId", cursor.clientId());
+                        gen.writeStringField("name", cursor.name());
+                        gen.writeStringField("color", cursor.color());
+                        gen.writeEndObject();
+                        gen.writeEndObject();
+                    }
+                    gen.writeEndArray();
+                }
+                case OutboundMessage.UserJoined m -> {
+                    gen.writeFieldName("user");
+                    writeUser(gen, m.user());
+                }
+                case OutboundMessage.UserLeft m -> gen.writeStringField("clientId", m.clientId());
+                case OutboundMessage.UserUpdated m -> {
+                    gen.writeFieldName("user");
+                    writeUser(gen, m.user());
+                }
+                case OutboundMessage.Ack m -> {
+                    writeId(gen, "docId", m.docId());
+                    gen.writeStringField("opId", m.opId());
+                    gen.writeNumberField("serverVersion", m.serverVersion());
+                }
+                case OutboundMessage.OpRejected m -> {
+                    writeId(gen, "docId", m.docId());
+                    gen.writeStringField("opId", m.opId());
+                    gen.writeStringField("reason", m.reason());
+                    gen.writeStringField("content", m.content());
+                    gen.writeNumberField("serverVersion", m.serverVersion());
+                    gen.writeFieldName("failedHunks");
+                    gen.writeArray(m.failedHunks(), 0, m.failedHunks().length);
+                }
+                case OutboundMessage.Throttled m -> {
+                    writeId(gen, "docId", m.docId());
+                    gen.writeStringField("request", m.request());
+                    gen.writeStringField("opId", m.opId());
+                    gen.writeNumberField("retryAfterMs", m.retryAfterMs());
+                }
+                case OutboundMessage.Saved m -> {
+                    writeId(gen, "docId", m.docId());
+                    gen.writeNumberField("version", m.version());
+                    gen.writeStringField("savedAt", m.savedAt());
+                }
+                case OutboundMessage.SaveError m -> {
+                    writeId(gen, "docId", m.docId());
+                    gen.writeStringField("message", m.message());
+                }
+                case OutboundMessage.ErrorMessage m -> gen.writeStringField("message", m.message());
+            }
+            gen.writeEndObject();
+            gen.flush();
+            String json = out.toString();
+            out.reset();
+            return json;
+        }
+    }
+
+    private static void writeId(JsonGenerator gen, String field, Long id) throws IOException {
+        if (id != null) {
+            gen.writeNumberField(field, id);
+        } else {
+            gen.writeNullField(field);
+        }
+    }
+
+    private static void writeUsers(JsonGenerator gen, List<OutboundMessage.UserView> users) throws IOException {
+        gen.writeArrayFieldStart("users");
+        for (OutboundMessage.UserView user : users) {
+            writeUser(gen, user);
+        }
+        gen.writeEndArray();
+    }
+
+    private static void writeUser(JsonGenerator gen, OutboundMessage.UserView user) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("clientId", user.clientId());
+        gen.writeStringField("name", user.name());
+        gen.writeStringField("color", user.color());
+        gen.writeStringField("role", user.role());
+        gen.writeEndObject();
+    }
+}
@@ -0,0 +1,140 @@
+package com.se.documinity.collab;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounded log of the edits accepted into a room, held in a ring indexed by
+ * server version. Each entry keeps the edited spans of one version, so that
+ * ops authored against an older serverVersion can be rebased onto the
+ * current content, and the op as it was broadcast, so that a session
+ * rejoining from an older version can be sent just the ops it missed.
+ *
+ * The broadcast ops are capped at {@code payloadBudget} chars in total; past
+ * that the oldest lose their payload but keep their spans.
+ */
+final class OpHistory {
+    private final Entry[] ring;
+    private final long payloadBudget;
+    // Versions held are (last - size, last]
+    private long last;
+    private int size;
+    // Oldest version that still has its payload
+    private long firstPayload;
+    private long payloadChars;
+
+    OpHistory(int capacity, long payloadBudget) {
+        this.ring = new Entry[capacity];
+        this.payloadBudget = payloadBudget;
+    }
+
+    /**
+     * Records the op accepted as {@code version}. {@code payload} may be
+     * {@code null} for ops that cannot be replayed as a patch.
+     */
+    void append(long version, String clientId, int[] spans, PatchPayload payload) {
+        if (size > 0 && version != last + 1) {
+            // Not a continuation of what is held, so nothing here can be rebased onto it
+            clear();
+        }
+        if (size == ring.length) {
+            long oldest = last - size + 1;
+            dropPayload(slot(oldest));
+            firstPayload = Math.max(firstPayload, oldest + 1);
+            size--;
+        }
+        if (size == 0) {
+            firstPayload = version;
+        }
+        int chars = payload != null ? payload.length() : 0;
+        ring[slot(version)] = new Entry(version, clientId, spans, payload, chars);
+        last = version;
+        size++;
+        payloadChars += chars;
+        while (payloadChars > payloadBudget && firstPayload <= last) {
+            dropPayload(slot(firstPayload++));
+        }
+    }
+
+    void clear() {
+        Arrays.fill(ring, null);
+        size = 0;
+        payloadChars = 0;
+    }
+
+    /**
+     * Drops every payload, keeping the spans for rebasing.
+     */
+    void dropPayloads() {
+        for (long version = firstPayload; version <= last && size > 0; version++) {
+            dropPayload(slot(version));
+        }
+        firstPayload = last + 1;
+    }
+
+    /**
+     * Chars held by the payloads, for estimating the room's footprint.
+     */
+    long payloadChars() {
+        return payloadChars;
+    }
+
+    /**
+     * Returns the entries after {@code baseVersion} up to the current version,
+     * or {@code null} when some of them have already been dropped.
+     */
+    List<Entry> since(long baseVersion, long currentVersion) {
+        if (baseVersion >= currentVersion) {
+            return List.of();
+        }
+        if (size == 0 || currentVersion != last || last - size + 1 > baseVersion + 1) {
+            return null;
+        }
+        List<Entry> missed = new ArrayList<>((int) (currentVersion - baseVersion));
+        for (long version = baseVersion + 1; version <= currentVersion; version++) {
+            missed.add(ring[slot(version)]);
+        }
+        return missed;
+    }
+
+    /**
+     * Like {@link #since}, but also {@code null} when an op in between can no
+     * longer be replayed; the caller then sends a full snapshot instead.
+     */
+    List<Entry> replayable(long baseVersion, long currentVersion) {
+        if (baseVersion < currentVersion && baseVersion + 1 < firstPayload) {
+            return null;
+        }
+        List<Entry> missed = since(baseVersion, currentVersion);
+        if (missed == null) {
+            return null;
+        }
+        for (Entry entry : missed) {
+            if (entry.payload() == null) {
+                return null;
+            }
+        }
+        return missed;
+    }
+
+    private int slot(long version) {
+        return (int) Math.floorMod(version, (long) ring.length);
+    }
+
+    private void dropPayload(int slot) {
+        Entry entry = ring[slot];
+        if (entry != null && entry.payload() != null) {
+            payloadChars -= entry.chars();
+            ring[slot] = new Entry(entry.version(), entry.clientId(), entry.spans(), null, 0);
+        }
+    }
+
+    /**
+     * One accepted op. {@code spans} holds (offset, deleted, inserted) triples
+     * in the order they were applied; {@code payload} is the op as broadcast,
+     * or {@code null} once dropped.
+     */
+    record Entry(long version, String clientId, int[] spans, PatchPayload payload, int chars) {
+    }
+}
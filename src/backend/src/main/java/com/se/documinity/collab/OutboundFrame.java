@@ -0,0 +1,30 @@
+package com.se.documinity.collab;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+/**
+ * A serialized message ready to be queued on session outboxes, in whichever
+ * wire forms the recipients need (the other one is {@code null}). Frames with
+ * a {@code collapseKey} only matter in their latest form (cursors),
+ * so a newer frame with the same key replaces a queued one and they may be
+ * dropped under pressure. Frames without one (patches, acks, snapshots) are
+ * always delivered in order or not at all.
+ */
+record OutboundFrame(String type, String collapseKey,
+        TextMessage text, int textSize,
+        BinaryMessage binary, int binarySize) {
+
+    boolean collapsible() {
+        return collapseKey != null;
+    }
+
+    WebSocketMessage<?> message(boolean binaryProtocol) {
+        return binaryProtocol ? binary : text;
+    }
+
+    int size(boolean binaryProtocol) {
+        return binaryProtocol ? binarySize : textSize;
+    }
+}
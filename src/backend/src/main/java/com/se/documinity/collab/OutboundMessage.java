@@ -0,0 +1,121 @@
+package com.se.documinity.collab;
+
+import java.util.List;
+
+/**
+ * Messages the server sends on {@code /ws/documents}. The JSON field names
+ * follow the record components, with {@link #type()} written first.
+ */
+sealed interface OutboundMessage {
+
+    String type();
+
+    record UserView(String clientId, String name, String color, String role) {
+    }
+
+    record CursorView(String clientId, String name, String color, int selectionStart, int selectionEnd) {
+    }
+
+    /**
+     * {@code content} is {@code null} when the session rejoined from a
+     * version the room still has the ops after: {@code serverVersion} is
+     * then that version, and the missed ops follow as patch updates.
+     */
+    record Joined(Long docId, String content, long serverVersion, String role, List<UserView> users)
+            implements OutboundMessage {
+        public String type() {
+            return "joined";
+        }
+    }
+
+    record PatchUpdate(Long docId, PatchPayload patches, long baseVersion, long serverVersion, String from)
+            implements OutboundMessage {
+        public String type() {
+            return "patch-update";
+        }
+    }
+
+    record ContentUpdate(Long docId, String content, long serverVersion, String from) implements OutboundMessage {
+        public String type() {
+            return "content-update";
+        }
+    }
+
+    record Cursors(Long docId, List<CursorView> cursors) implements OutboundMessage {
+        public String type() {
+            return "cursors";
+        }
+    }
+
+    /**
+     * An editor joined. Roster events are keyed by clientId and idempotent:
+     * a client applies them to the roster it got in {@link Joined}, which
+     * may already include the change.
+     */
+    record UserJoined(UserView user) implements OutboundMessage {
+        public String type() {
+            return "user-joined";
+        }
+    }
+
+    record UserLeft(String clientId) implements OutboundMessage {
+        public String type() {
+            return "user-left";
+        }
+    }
+
+    /**
+     * An editor's name, color or role changed, e.g. it rejoined as someone else.
+     */
+    record UserUpdated(UserView user) implements OutboundMessage {
+        public String type() {
+            return "user-updated";
+        }
+    }
+
+    record Ack(Long docId, String opId, long serverVersion) implements OutboundMessage {
+        public String type() {
+            return "ack";
+        }
+    }
+
+    /**
+     * An op was not applied. {@code failedHunks} are the indices of the
+     * patches that found no match in the room's text, if that was the cause.
+     */
+    record OpRejected(Long docId, String opId, String reason, String content, long serverVersion,
+            int[] failedHunks) implements OutboundMessage {
+        public String type() {
+            return "op-rejected";
+        }
+    }
+
+    /**
+     * A message of type {@code request} went over a rate limit and was
+     * dropped, along with any more of that type in the next
+     * {@code retryAfterMs}. {@code opId} names the dropped edit, if it had one.
+     */
+    record Throttled(Long docId, String request, String opId, long retryAfterMs) implements OutboundMessage {
+        public String type() {
+            return "throttled";
+        }
+    }
+
+    record Saved(Long docId, long version, String savedAt) implements OutboundMessage {
+        public String type() {
+            return "saved";
+        }
+    }
+
+    record SaveError(Long docId, String message) implements OutboundMessage {
+        public String type() {
+            return "save-error";
+        }
+    }
+
+    record ErrorMessage(String message) implements OutboundMessage {
+        public String type() {
+            return "error";
+        }
+    }
+}
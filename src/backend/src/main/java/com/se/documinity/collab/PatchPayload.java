@@ -0,0 +1,72 @@
+package com.se.documinity.collab;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+
+import java.util.LinkedList;
+
+/**
+ * A patch list that arrived, or leaves, in either wire form. JSON clients use
+ * the {@code patch_toText} form and binary clients the decoded patch objects;
+ * each form is produced at most once, on first use.
+ */
+final class PatchPayload {
+    private final diff_match_patch dmp;
+    private String text;
+    private LinkedList<Patch> patches;
+
+    private PatchPayload(diff_match_patch dmp, String text, LinkedList<Patch> patches) {
+        this.dmp = dmp;
+        this.text = text;
+        this.patches = patches;
+    }
+
+    static PatchPayload ofText(diff_match_patch dmp, String text) {
+        return new PatchPayload(dmp, text, null);
+    }
+
+    static PatchPayload ofPatches(diff_match_patch dmp, LinkedList<Patch> patches) {
+        return new PatchPayload(dmp, null, patches);
+    }
+
+    boolean isEmpty() {
+        return patches != null ? patches.isEmpty() : text == null || text.isEmpty();
+    }
+
+    /**
+     * Rough size in chars, from whichever form is at hand.
+     */
+    int length() {
+        if (text != null) {
+            return text.length();
+        }
+        int length = 0;
+        for (Patch patch : patches) {
+            // Header and per-diff overhead of the text form
+            length += 24;
+            for (diff_match_patch.Diff diff : patch.diffs) {
+                length += diff.text.length() + 2;
+            }
+        }
+        return length;
+    }
+
+    @JsonValue
+    String text() {
+        if (text == null) {
+            text = dmp.patch_toText(patches);
+        }
+        return text;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the text form is not a valid patch
+     */
+    LinkedList<Patch> patches() {
+        if (patches == null) {
+            patches = new LinkedList<>(dmp.patch_fromText(text));
+        }
+        return patches;
+    }
+}
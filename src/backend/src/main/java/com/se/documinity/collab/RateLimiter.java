@@ -0,0 +1,123 @@
+package com.se.documinity.collab;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Token-bucket limits on what clients send, per session and per room, by
+ * message type. Each limit is written {@code type=perSecond/burst}, comma
+ * separated; types without one are not limited.
+ *
+ * The session limits are checked as a message arrives, before it reaches
+ * the room's mailbox, so one flooding client only costs its own I/O thread.
+ * The room limits cap the edits the owner applies from all sessions
+ * together, local and relayed.
+ */
+@Component
+@RequiredArgsConstructor
+class RateLimiter {
+    static final String SCOPE_SESSION = "session";
+    static final String SCOPE_ROOM = "room";
+
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, Counter> throttled = new ConcurrentHashMap<>();
+    private Map<String, double[]> sessionLimits;
+    private Map<String, double[]> roomLimits;
+
+    @Value("${app.collab.rate-limit.session:patch-update=50/100,content-update=5/10,cursor-update=60/120,snapshot-request=2/5}")
+    private String sessionSpec;
+
+    @Value("${app.collab.rate-limit.room:patch-update=200/400,content-update=20/40}")
+    private String roomSpec;
+
+    @PostConstruct
+    void start() {
+        sessionLimits = parse(sessionSpec);
+        roomLimits = parse(roomSpec);
+    }
+
+    static Map<String, double[]> parse(String spec) {
+        Map<String, double[]> limits = new HashMap<>();
+        if (spec == null || spec.isBlank()) {
+            return limits;
+        }
+        for (String entry : spec.split(",")) {
+            String[] typeAndRate = entry.trim().split("=");
+            String[] rateAndBurst = typeAndRate.length == 2 ? typeAndRate[1].split("/") : new String[0];
+            if (rateAndBurst.length != 2) {
+                throw new IllegalArgumentException("Rate limit must be type=perSecond/burst: " + entry);
+            }
+            double perSecond = Double.parseDouble(rateAndBurst[0].trim());
+            double burst = Double.parseDouble(rateAndBurst[1].trim());
+            if (perSecond > 0) {
+                limits.put(typeAndRate[0].trim(), new double[] {perSecond, Math.max(1, burst)});
+            }
+        }
+        return limits;
+    }
+
+    Buckets forSession() {
+        return new Buckets(SCOPE_SESSION, sessionLimits);
+    }
+
+    Buckets forRoom() {
+        return new Buckets(SCOPE_ROOM, roomLimits);
+    }
+
+    private Counter throttled(String scope, String type) {
+        return throttled.computeIfAbsent(scope + ':' + type, key -> Counter.builder("collab.throttled")
+                .description("Client messages dropped for going over a rate limit")
+                .tag("scope", scope)
+                .tag("type", type)
+                .register(meterRegistry));
+    }
+
+    /**
+     * One bucket per limited message type. Confined like {@link TokenBucket}.
+     */
+    final class Buckets {
+        private final String scope;
+        private final Map<String, TokenBucket> byType = new HashMap<>();
+
+        private Buckets(String scope, Map<String, double[]> limits) {
+            this.scope = scope;
+            long now = System.nanoTime();
+            limits.forEach((type, limit) -> byType.put(type, new TokenBucket(limit[0], limit[1], now)));
+        }
+
+        /**
+         * Takes a token for a message of {@code type}. Returns 0 if it may
+         * go through, otherwise the nanos until one of its type would, and
+         * counts it as throttled.
+         */
+        long acquire(String type) {
+            TokenBucket bucket = byType.get(type);
+            if (bucket == null) {
+                return 0;
+            }
+            long wait = bucket.tryAcquire(System.nanoTime());
+            if (wait > 0) {
+                throttled(scope, type).increment();
+            }
+            return wait;
+        }
+
+        /**
+         * Whether the client should be told about this refusal: only the
+         * first of each run of refusals is signalled.
+         */
+        boolean shouldSignal(String type) {
+            TokenBucket bucket = byType.get(type);
+            return bucket != null && bucket.startThrottling();
+        }
+    }
+}
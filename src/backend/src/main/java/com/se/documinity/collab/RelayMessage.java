@@ -0,0 +1,84 @@
+package com.se.documinity.collab;
+
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+
+import java.util.List;
+
+/**
+ * Messages exchanged between collab nodes over the {@link ClusterBus}, as
+ * JSON on the receiving node's channel. Followers send their sessions'
+ * joins, leaves and ops to a room's owner; the owner sends back frames for
+ * those sessions.
+ */
+@JsonTypeInfo(use = JsonTypeInfo.Id.NAME, property = "kind")
+@JsonSubTypes({
+        @JsonSubTypes.Type(value = RelayMessage.Enter.class, name = "enter"),
+        @JsonSubTypes.Type(value = RelayMessage.Leave.class, name = "leave"),
+        @JsonSubTypes.Type(value = RelayMessage.Patch.class, name = "patch"),
+        @JsonSubTypes.Type(value = RelayMessage.Content.class, name = "content"),
+        @JsonSubTypes.Type(value = RelayMessage.Cursors.class, name = "cursors"),
+        @JsonSubTypes.Type(value = RelayMessage.Snapshot.class, name = "snapshot"),
+        @JsonSubTypes.Type(value = RelayMessage.Deliver.class, name = "deliver"),
+        @JsonSubTypes.Type(value = RelayMessage.Refused.class, name = "refused"),
+        @JsonSubTypes.Type(value = RelayMessage.Resync.class, name = "resync"),
+        @JsonSubTypes.Type(value = RelayMessage.Rehome.class, name = "rehome")
+})
+sealed interface RelayMessage {
+
+    Long docId();
+
+    record Enter(Long docId, String node, String sessionId, String clientId, String name, String color,
+            String role, Long lastVersion) implements RelayMessage {
+    }
+
+    record Leave(Long docId, String node, String sessionId) implements RelayMessage {
+    }
+
+    record Patch(Long docId, String node, String sessionId, Long baseVersion, String opId, String patches)
+            implements RelayMessage {
+    }
+
+    record Content(Long docId, String node, String sessionId, String content) implements RelayMessage {
+    }
+
+    /**
+     * Latest selections of a follower's sessions, sent once per cursor tick.
+     */
+    record Cursors(Long docId, String node, List<OutboundMessage.CursorView> cursors) implements RelayMessage {
+    }
+
+    /**
+     * A follower's session asked for the full content.
+     */
+    record Snapshot(Long docId, String node, String sessionId) implements RelayMessage {
+    }
+
+    /**
+     * A frame for the follower's sessions in the room: just {@code session}
+     * if set, otherwise all of them except {@code exclude}.
+     */
+    record Deliver(Long docId, String session, String exclude, String type, String json)
+            implements RelayMessage {
+    }
+
+    /**
+     * The owner turned a session away, e.g. because the room is full.
+     */
+    record Refused(Long docId, String session, String reason) implements RelayMessage {
+    }
+
+    /**
+     * The owner could not make the session's last op durable, so the follower
+     * closes it for a resync instead of it being acked.
+     */
+    record Resync(Long docId, String session) implements RelayMessage {
+    }
+
+    /**
+     * The receiver no longer owns the room; the follower should look up the
+     * owner again and rejoin its sessions.
+     */
+    record Rehome(Long docId) implements RelayMessage {
+    }
+}
@@ -0,0 +1,19 @@
+package com.se.documinity.collab;
+
+/**
+ * A session connected to another node and joined to a room this node owns.
+ */
+final class RemoteSession {
+    final String node;
+    final String sessionId;
+    final SessionInfo info;
+    // Read-only sessions sit in the viewer tier of their node
+    final boolean viewer;
+
+    RemoteSession(String node, String sessionId, SessionInfo info, boolean viewer) {
+        this.node = node;
+        this.sessionId = sessionId;
+        this.info = info;
+        this.viewer = viewer;
+    }
+}
@@ -0,0 +1,61 @@
+package com.se.documinity.collab;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single-writer mailbox for a room. Tasks are queued from any thread and run
+ * one at a time, in submission order, by at most one drainer thread. Room
+ * state touched only from these tasks needs no locking.
+ */
+final class RoomMailbox implements Executor {
+    private final Queue<Runnable> tasks;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Executor drainer;
+
+    RoomMailbox(Executor drainer) {
+        this(drainer, new ConcurrentLinkedQueue<>());
+    }
+
+    RoomMailbox(Executor drainer, Queue<Runnable> tasks) {
+        this.drainer = drainer;
+        this.tasks = tasks;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        scheduleDrain();
+    }
+
+    int pending() {
+        return tasks.size();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            drainer.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Room task failed: " + e.getMessage());
+                }
+            }
+        } finally {
+            draining.set(false);
+            // A task may have been queued after the last poll but before the flag was cleared
+            if (!tasks.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.se.documinity.collab;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * The rooms live on this node and the heap their content holds.
+ *
+ * Each room's resident size is estimated from its content and the ops it
+ * keeps for rejoining sessions, and kept current by {@link #account}, so the
+ * total can be capped: past {@code max-resident-bytes} no new room is opened
+ * and the least recently active rooms are picked to have their content
+ * evicted. Eviction itself is done by the handler, which only drops content
+ * that has been saved.
+ */
+@Component
+@RequiredArgsConstructor
+class RoomRegistry {
+    // Strings may hold two bytes a char; the rest of a room is small next to its content
+    private static final long ROOM_OVERHEAD_BYTES = 2048;
+
+    private final MeterRegistry meterRegistry;
+
+    private final Map<Long, DocRoom> rooms = new ConcurrentHashMap<>();
+    private final AtomicLong residentBytes = new AtomicLong();
+    private Counter idleEvictions;
+    private Counter memoryEvictions;
+    private Counter reapedSessions;
+
+    @Value("${app.collab.rooms.max-resident-bytes:268435456}")
+    private long maxResidentBytes;
+
+    @PostConstruct
+    void start() {
+        Gauge.builder("collab.rooms", rooms, Map::size)
+                .description("Rooms open on this node")
+                .register(meterRegistry);
+        Gauge.builder("collab.rooms.resident.bytes", residentBytes, AtomicLong::get)
+                .description("Estimated heap held by the content of open rooms")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        idleEvictions = evictions("idle");
+        memoryEvictions = evictions("memory");
+        reapedSessions = Counter.builder("collab.sessions.reaped")
+                .description("Sessions dropped for missing heartbeats")
+                .register(meterRegistry);
+    }
+
+    private Counter evictions(String reason) {
+        return Counter.builder("collab.rooms.evicted")
+                .description("Rooms whose saved content was dropped from memory")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    DocRoom get(Long docId) {
+        return rooms.get(docId);
+    }
+
+    DocRoom open(Long docId, Function<Long, DocRoom> opener) {
+        return rooms.computeIfAbsent(docId, id -> {
+            DocRoom room = opener.apply(id);
+            account(room);
+            return room;
+        });
+    }
+
+    Collection<DocRoom> all() {
+        return rooms.values();
+    }
+
+    /**
+     * Drops a closed room. Must run on the room's mailbox.
+     */
+    void remove(DocRoom room) {
+        if (rooms.remove(room.docId, room)) {
+            residentBytes.addAndGet(-room.residentBytes);
+            room.residentBytes = 0;
+        }
+    }
+
+    /**
+     * Re-estimates the room's resident size after its content changed. Must
+     * run on the room's mailbox.
+     */
+    void account(DocRoom room) {
+        if (room.closed) {
+            return;
+        }
+        long bytes = 0;
+        if (room.owner == null) {
+            if (room.content != null) {
+                bytes = ROOM_OVERHEAD_BYTES + 2L * room.content.length();
+            }
+            bytes += 2L * room.history.payloadChars();
+        }
+        residentBytes.addAndGet(bytes - room.residentBytes);
+        room.residentBytes = bytes;
+    }
+
+    void evicted(DocRoom room, boolean idle) {
+        account(room);
+        (idle ? idleEvictions : memoryEvictions).increment();
+    }
+
+    void reaped() {
+        reapedSessions.increment();
+    }
+
+    long residentBytes() {
+        return residentBytes.get();
+    }
+
+    /**
+     * Whether live content is over its budget; {@code max-resident-bytes}
+     * of 0 means unbounded.
+     */
+    boolean overBudget() {
+        return maxResidentBytes > 0 && residentBytes.get() > maxResidentBytes;
+    }
+
+    /**
+     * The least recently active owned rooms whose content, once evicted,
+     * brings the total back under budget.
+     */
+    List<DocRoom> evictionCandidates() {
+        long excess = maxResidentBytes > 0 ? residentBytes.get() - maxResidentBytes : 0;
+        if (excess <= 0) {
+            return List.of();
+        }
+        List<DocRoom> resident = new ArrayList<>();
+        for (DocRoom room : rooms.values()) {
+            if (room.owner == null && room.residentBytes > 0) {
+                resident.add(room);
+            }
+        }
+        resident.sort(Comparator.comparingLong(room -> room.lastActiveNanos));
+        List<DocRoom> candidates = new ArrayList<>();
+        for (DocRoom room : resident) {
+            if (excess <= 0) {
+                break;
+            }
+            candidates.add(room);
+            excess -= room.residentBytes;
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,211 @@
+package com.se.documinity.collab;
+
+/**
+ * Immutable text held as a height-balanced tree of short chunks, so a live
+ * room's content can be edited without copying the whole document. An edit
+ * copies the chunk it lands in and the path down to it, O(log n) nodes, and
+ * leaves the previous version intact, which lets a patch be abandoned
+ * halfway through. A {@code String} is only built by {@link #toString()},
+ * for snapshots and saves.
+ */
+final class Rope {
+    // Chunks are split above this size; edits copy at most about this many chars
+    static final int MAX_LEAF = 512;
+
+    private static final Rope EMPTY = new Rope("");
+
+    private final String leaf;
+    private final Rope left;
+    private final Rope right;
+    private final int length;
+    private final int height;
+
+    private Rope(String leaf) {
+        this.leaf = leaf;
+        this.left = null;
+        this.right = null;
+        this.length = leaf.length();
+        this.height = 0;
+    }
+
+    private Rope(Rope left, Rope right) {
+        this.leaf = null;
+        this.left = left;
+        this.right = right;
+        this.length = left.length + right.length;
+        this.height = 1 + Math.max(left.height, right.height);
+    }
+
+    static Rope of(String text) {
+        if (text.isEmpty()) {
+            return EMPTY;
+        }
+        return build(text, 0, text.length());
+    }
+
+    private static Rope build(String text, int start, int end) {
+        if (end - start <= MAX_LEAF) {
+            return new Rope(text.substring(start, end));
+        }
+        // Split on a chunk boundary so every leaf but the last is full
+        int chunks = (end - start + MAX_LEAF - 1) / MAX_LEAF;
+        int mid = start + (chunks / 2) * MAX_LEAF;
+        return new Rope(build(text, start, mid), build(text, mid, end));
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Whether {@code text} occurs at {@code offset}.
+     */
+    boolean regionMatches(int offset, String text) {
+        if (offset < 0 || offset + text.length() > length) {
+            return false;
+        }
+        return matches(offset, text, 0, text.length());
+    }
+
+    private boolean matches(int offset, String text, int from, int count) {
+        if (count == 0) {
+            return true;
+        }
+        if (leaf != null) {
+            return leaf.regionMatches(offset, text, from, count);
+        }
+        int leftCount = Math.max(0, Math.min(count, left.length - offset));
+        if (leftCount > 0 && !left.matches(offset, text, from, leftCount)) {
+            return false;
+        }
+        return right.matches(Math.max(0, offset - left.length), text, from + leftCount, count - leftCount);
+    }
+
+    /**
+     * This text with {@code deleted} chars at {@code offset} replaced by
+     * {@code inserted}.
+     */
+    Rope replace(int offset, int deleted, String inserted) {
+        if (offset < 0 || deleted < 0 || offset + deleted > length) {
+            throw new IndexOutOfBoundsException("Replace " + offset + "+" + deleted + " in length " + length);
+        }
+        if (deleted == 0 && inserted.isEmpty()) {
+            return this;
+        }
+        Rope edited = editInPlace(offset, deleted, inserted);
+        if (edited != null) {
+            return edited;
+        }
+        // The edit spans chunks: cut around it and join the pieces back up
+        Rope before = split(offset, true);
+        Rope after = split(offset + deleted, false);
+        Rope middle = inserted.isEmpty() ? EMPTY : of(inserted);
+        return join(join(before, middle), after);
+    }
+
+    /**
+     * Applies an edit that falls inside one chunk by copying that chunk and
+     * the nodes above it, or returns {@code null} if it does not.
+     */
+    private Rope editInPlace(int offset, int deleted, String inserted) {
+        if (leaf != null) {
+            if (leaf.length() + inserted.length() - deleted > 2 * MAX_LEAF) {
+                return null;
+            }
+            String text = leaf.substring(0, offset) + inserted + leaf.substring(offset + deleted);
+            return text.length() > MAX_LEAF ? build(text, 0, text.length()) : new Rope(text);
+        }
+        // Inserts on a boundary go to the end of the left chunk
+        Rope edited;
+        if (offset + deleted <= left.length) {
+            edited = left.editInPlace(offset, deleted, inserted);
+            return edited != null ? balance(edited, right) : null;
+        }
+        if (offset >= left.length) {
+            edited = right.editInPlace(offset - left.length, deleted, inserted);
+            return edited != null ? balance(left, edited) : null;
+        }
+        return null;
+    }
+
+    /**
+     * The text before {@code offset} if {@code head}, else the text from it.
+     */
+    private Rope split(int offset, boolean head) {
+        if (offset <= 0) {
+            return head ? EMPTY : this;
+        }
+        if (offset >= length) {
+            return head ? this : EMPTY;
+        }
+        if (leaf != null) {
+            return new Rope(head ? leaf.substring(0, offset) : leaf.substring(offset));
+        }
+        if (offset < left.length) {
+            return head ? left.split(offset, true) : join(left.split(offset, false), right);
+        }
+        if (offset > left.length) {
+            return head ? join(left, right.split(offset - left.length, true)) : right.split(offset - left.length, false);
+        }
+        return head ? left : right;
+    }
+
+    /**
+     * Concatenates two balanced ropes into a balanced one, descending the
+     * taller one until the heights meet.
+     */
+    private static Rope join(Rope a, Rope b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        if (a.leaf != null && b.leaf != null && a.length + b.length <= MAX_LEAF) {
+            return new Rope(a.leaf + b.leaf);
+        }
+        if (a.height > b.height + 1) {
+            return balance(a.left, join(a.right, b));
+        }
+        if (b.height > a.height + 1) {
+            return balance(join(a, b.left), b.right);
+        }
+        return new Rope(a, b);
+    }
+
+    /**
+     * A node over {@code a} and {@code b}, rotated if their heights differ by
+     * two, which is as far as a single edit or join can tip them.
+     */
+    private static Rope balance(Rope a, Rope b) {
+        if (a.height > b.height + 1) {
+            if (a.left.height >= a.right.height) {
+                return new Rope(a.left, new Rope(a.right, b));
+            }
+            return new Rope(new Rope(a.left, a.right.left), new Rope(a.right.right, b));
+        }
+        if (b.height > a.height + 1) {
+            if (b.right.height >= b.left.height) {
+                return new Rope(new Rope(a, b.left), b.right);
+            }
+            return new Rope(new Rope(a, b.left.left), new Rope(b.left.right, b.right));
+        }
+        return new Rope(a, b);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(length);
+        appendTo(out);
+        return out.toString();
+    }
+
+    private void appendTo(StringBuilder out) {
+        if (leaf != null) {
+            out.append(leaf);
+        } else {
+            left.appendTo(out);
+            right.appendTo(out);
+        }
+    }
+}
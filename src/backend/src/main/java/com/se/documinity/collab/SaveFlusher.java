@@ -0,0 +1,348 @@
+package com.se.documinity.collab;
+
+import com.se.documinity.repository.DocumentRepository;
+import com.se.documinity.service.DocumentRevisionService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind stage for live room content.
+ *
+ * Rooms are marked dirty after each accepted edit and written back in
+ * batches with a targeted {@code UPDATE} instead of a load and full-entity
+ * save. A room is written once it has been quiet for {@code quiet-ms}, or
+ * after {@code max-staleness-ms} while edits keep coming, so a busy room
+ * costs one UPDATE per staleness window. At most {@code parallelism}
+ * batches are in flight and a room is never written by two batches at once.
+ * Each write also records a revision in the same transaction; the revision
+ * is diffed before the transaction opens. Rooms in a
+ * batch that failed to commit are marked dirty again and retried after a
+ * backoff.
+ */
+@Component
+@RequiredArgsConstructor
+class SaveFlusher {
+    private static final ZoneId ZONE = ZoneId.of("Asia/Ho_Chi_Minh");
+    private static final long TICK_MS = 100;
+
+    private final DocumentRepository documentRepository;
+    private final DocumentRevisionService revisionService;
+    private final TransactionTemplate transactionTemplate;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<Long, Dirty> dirty = new ConcurrentHashMap<>();
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+    private Semaphore permits;
+    private Timer lag;
+    private Timer settle;
+    private Timer writeSucceeded;
+    private Timer writeFailed;
+    private Counter failures;
+
+    @Value("${app.collab.flush.quiet-ms:500}")
+    private long quietMs;
+
+    @Value("${app.collab.flush.max-staleness-ms:5000}")
+    private long maxStalenessMs;
+
+    @Value("${app.collab.flush.parallelism:4}")
+    private int parallelism;
+
+    @Value("${app.collab.flush.batch-size:50}")
+    private int batchSize;
+
+    @Value("${app.collab.flush.retry-ms:1000}")
+    private long retryMs;
+
+    @Value("${app.collab.flush.retry-max-ms:60000}")
+    private long retryMaxMs;
+
+    /**
+     * Told the outcome of every write; {@code savedAt} is {@code null} if it
+     * failed. Called off the room's mailbox.
+     */
+    @FunctionalInterface
+    interface Listener {
+        void flushed(DocRoom room, long version, LocalDateTime savedAt);
+    }
+
+    @PostConstruct
+    void start() {
+        permits = new Semaphore(Math.max(1, parallelism));
+        lag = Timer.builder("collab.flush.lag")
+                .description("Time from a room's first unsaved edit until it is written")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        settle = Timer.builder("collab.flush.settle")
+                .description("Time from a room's last edit before a write until it is written")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        writeSucceeded = writes("success");
+        writeFailed = writes("failure");
+        failures = Counter.builder("collab.flush.failures")
+                .description("Room writes that failed or matched no row")
+                .register(meterRegistry);
+        Gauge.builder("collab.flush.dirty", dirty, Map::size)
+                .description("Rooms with edits not yet written")
+                .register(meterRegistry);
+        Gauge.builder("collab.flush.inflight", inFlight, Set::size)
+                .description("Rooms being written right now")
+                .register(meterRegistry);
+        ticker.scheduleWithFixedDelay(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private Timer writes(String outcome) {
+        return Timer.builder("collab.flush.write")
+                .description("Time to write one batch of rooms, or one closing room")
+                .tag("outcome", outcome)
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    void stop() {
+        ticker.shutdownNow();
+        virtualThreads.shutdown();
+    }
+
+    /**
+     * Records an edit to the room. Must run on the room's mailbox, after the
+     * edit is applied.
+     */
+    void markDirty(DocRoom room, Listener listener) {
+        long now = System.nanoTime();
+        dirty.compute(room.docId, (id, existing) -> {
+            if (existing == null) {
+                return new Dirty(room, listener, now);
+            }
+            existing.lastEditNanos = now;
+            return existing;
+        });
+    }
+
+    /**
+     * Writes the given snapshot now, on the calling thread, and forgets any
+     * pending write for the room. Used when a room
+     * closes, and when an op could not be journaled; must run on the room's
+     * mailbox so no edit lands between the snapshot and the write.
+     *
+     * @return the save time, or {@code null} if the write failed
+     */
+    LocalDateTime writeNow(DocRoom room, String content, long version) {
+        Dirty pending = dirty.remove(room.docId);
+        LocalDateTime savedAt = LocalDateTime.now(ZONE);
+        long started = System.nanoTime();
+        try {
+            DocumentRevisionService.Prepared revision = revisionService.prepare(room.docId, version, content);
+            Integer updated = transactionTemplate.execute(status -> {
+                int rows = documentRepository.updateContent(room.docId, content, version, savedAt);
+                if (rows > 0) {
+                    revisionService.record(revision, savedAt);
+                }
+                return rows;
+            });
+            long finished = System.nanoTime();
+            if (updated == null || updated == 0) {
+                writeFailed.record(finished - started, TimeUnit.NANOSECONDS);
+                failures.increment();
+                System.err.println("Document " + room.docId + " not saved: missing or newer version stored");
+                return null;
+            }
+            writeSucceeded.record(finished - started, TimeUnit.NANOSECONDS);
+            if (pending != null) {
+                recordLag(pending, finished);
+            }
+            return savedAt;
+        } catch (Exception e) {
+            writeFailed.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            failures.increment();
+            System.err.println("Failed to save document " + room.docId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        long quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMs);
+        long staleNanos = TimeUnit.MILLISECONDS.toNanos(maxStalenessMs);
+        List<Dirty> due = new ArrayList<>();
+        for (Dirty entry : dirty.values()) {
+            Long docId = entry.room.docId;
+            if (inFlight.contains(docId) || (entry.failedWrites > 0 && now - entry.retryAtNanos < 0)) {
+                continue;
+            }
+            if (now - entry.lastEditNanos >= quietNanos || now - entry.firstEditNanos >= staleNanos) {
+                if (dirty.remove(docId, entry)) {
+                    inFlight.add(docId);
+                    due.add(entry);
+                }
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        virtualThreads.execute(() -> {
+            for (int from = 0; from < due.size(); from += batchSize) {
+                List<Dirty> batch = due.subList(from, Math.min(due.size(), from + batchSize));
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    batch.forEach(entry -> inFlight.remove(entry.room.docId));
+                    return;
+                }
+                virtualThreads.execute(() -> {
+                    try {
+                        writeBatch(batch);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        });
+    }
+
+    private void writeBatch(List<Dirty> batch) {
+        // Snapshot each room on its own mailbox, then write them in one transaction
+        List<CompletableFuture<Snapshot>> pending = new ArrayList<>(batch.size());
+        for (Dirty entry : batch) {
+            DocRoom room = entry.room;
+            CompletableFuture<Snapshot> snapshot = new CompletableFuture<>();
+            room.mailbox.execute(() -> {
+                if (room.closed || room.content == null) {
+                    snapshot.complete(null);
+                    return;
+                }
+                String content = room.text();
+                // The next op is journaled as following this content, so replay can tell it is stored
+                room.journalBase = EditJournal.checksum(content);
+                snapshot.complete(new Snapshot(content, room.version));
+            });
+            pending.add(snapshot);
+        }
+        List<Snapshot> snapshots = new ArrayList<>(batch.size());
+        for (CompletableFuture<Snapshot> snapshot : pending) {
+            snapshots.add(snapshot.join());
+        }
+
+        LocalDateTime savedAt = LocalDateTime.now(ZONE);
+        int[] updated = new int[batch.size()];
+        boolean committed;
+        long started = System.nanoTime();
+        try {
+            DocumentRevisionService.Prepared[] revisions = new DocumentRevisionService.Prepared[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                Snapshot snapshot = snapshots.get(i);
+                if (snapshot != null) {
+                    revisions[i] = revisionService.prepare(batch.get(i).room.docId, snapshot.version,
+                            snapshot.content);
+                }
+            }
+            transactionTemplate.executeWithoutResult(status -> {
+                for (int i = 0; i < batch.size(); i++) {
+                    Snapshot snapshot = snapshots.get(i);
+                    if (snapshot != null) {
+                        updated[i] = documentRepository.updateContent(
+                                batch.get(i).room.docId, snapshot.content, snapshot.version, savedAt);
+                        if (updated[i] > 0) {
+                            revisionService.record(revisions[i], savedAt);
+                        }
+                    }
+                }
+            });
+            committed = true;
+        } catch (Exception e) {
+            System.err.println("Failed to save " + batch.size() + " documents: " + e.getMessage());
+            committed = false;
+        }
+        long finished = System.nanoTime();
+        (committed ? writeSucceeded : writeFailed).record(finished - started, TimeUnit.NANOSECONDS);
+
+        for (int i = 0; i < batch.size(); i++) {
+            Dirty entry = batch.get(i);
+            Snapshot snapshot = snapshots.get(i);
+            inFlight.remove(entry.room.docId);
+            if (snapshot == null) {
+                // Closed or evicted while queued; its state was already written
+                continue;
+            }
+            boolean saved = committed && updated[i] > 0;
+            if (saved) {
+                recordLag(entry, finished);
+            } else {
+                failures.increment();
+                if (!committed) {
+                    // A failed transaction may go through later; a missing row or newer stored version will not
+                    retry(entry);
+                }
+            }
+            entry.listener.flushed(entry.room, snapshot.version, saved ? savedAt : null);
+        }
+    }
+
+    /**
+     * Marks a room from a failed batch dirty again, keeping the time of its
+     * first unsaved edit, with a backoff that doubles per failure in a row.
+     */
+    private void retry(Dirty failed) {
+        int attempts = failed.failedWrites + 1;
+        long delayMs = Math.min(retryMaxMs, retryMs << Math.min(attempts - 1, 16));
+        long retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        dirty.compute(failed.room.docId, (id, existing) -> {
+            Dirty retry = new Dirty(failed.room, failed.listener, failed.firstEditNanos);
+            retry.lastEditNanos = existing != null ? existing.lastEditNanos : failed.lastEditNanos;
+            retry.failedWrites = attempts;
+            retry.retryAtNanos = retryAt;
+            return retry;
+        });
+    }
+
+    private void recordLag(Dirty entry, long writtenNanos) {
+        lag.record(writtenNanos - entry.firstEditNanos, TimeUnit.NANOSECONDS);
+        settle.record(writtenNanos - entry.lastEditNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static final class Dirty {
+        final DocRoom room;
+        final Listener listener;
+        final long firstEditNanos;
+        volatile long lastEditNanos;
+        // Failed writes in a row, and when the next may start
+        int failedWrites;
+        long retryAtNanos;
+
+        Dirty(DocRoom room, Listener listener, long now) {
+            this.room = room;
+            this.listener = listener;
+            this.firstEditNanos = now;
+            this.lastEditNanos = now;
+        }
+    }
+
+    private record Snapshot(String content, long version) {
+    }
+}
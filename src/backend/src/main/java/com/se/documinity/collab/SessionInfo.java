@@ -0,0 +1,15 @@
+package com.se.documinity.collab;
+
+final class SessionInfo {
+    final String clientId;
+    final String name;
+    final String color;
+    final String role;
+
+    SessionInfo(String clientId, String name, String color, String role) {
+        this.clientId = clientId;
+        this.name = name;
+        this.color = color;
+        this.role = role;
+    }
+}
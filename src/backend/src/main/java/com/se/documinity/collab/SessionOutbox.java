@@ -0,0 +1,189 @@
+package com.se.documinity.collab;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded, non-blocking send queue for one WebSocket session.
+ *
+ * Producers only enqueue; a single drainer performs the blocking sends, so a
+ * slow client never holds up the room and sends on the session never overlap.
+ * Collapsible frames, the room's cursor frame and the keepalive ping, are
+ * superseded by the next of their kind, so a queued one is replaced rather
+ * than followed; when the buffer exceeds its byte limit they are dropped
+ * first. A session that is still over the limit, or whose in-flight send has
+ * taken longer than the time limit, is closed with {@link #RESYNC} so the
+ * client rejoins from a fresh snapshot.
+ */
+final class SessionOutbox {
+    static final CloseStatus RESYNC = new CloseStatus(4001, "Slow consumer, resync required");
+    // Sent as a WebSocket ping; a newer one replaces one still queued
+    private static final OutboundFrame PING = new OutboundFrame("ping", "ping", null, 0, null, 0);
+
+    private final WebSocketSession session;
+    private final boolean binary;
+    private final Executor drainer;
+    private final int bufferSizeLimit;
+    private final long sendTimeLimitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<OutboundFrame> queue = new ArrayDeque<>();
+    private int queuedBytes;
+    private boolean sending;
+    private long sendStartedAt;
+    private boolean closed;
+
+    SessionOutbox(WebSocketSession session, boolean binary, Executor drainer,
+            int bufferSizeLimit, long sendTimeLimitMs) {
+        this.session = session;
+        this.binary = binary;
+        this.drainer = drainer;
+        this.bufferSizeLimit = bufferSizeLimit;
+        this.sendTimeLimitNanos = sendTimeLimitMs * 1_000_000L;
+    }
+
+    /**
+     * Queues a frame for delivery.
+     *
+     * @return {@code false} if the session is closed or was evicted by this call
+     */
+    boolean offer(OutboundFrame frame) {
+        boolean startDrain = false;
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (sending && System.nanoTime() - sendStartedAt > sendTimeLimitNanos) {
+                evictLocked();
+                return false;
+            }
+            if (frame.collapsible()) {
+                // Only the latest cursors frame or ping matters; the new frame goes to the tail
+                // so it stays ordered after anything queued since the one it replaces
+                removeQueued(frame.collapseKey());
+            }
+            queue.addLast(frame);
+            queuedBytes += frame.size(binary);
+            if (queuedBytes > bufferSizeLimit) {
+                dropCollapsible();
+                if (queuedBytes > bufferSizeLimit) {
+                    evictLocked();
+                    return false;
+                }
+            }
+            if (!sending) {
+                sending = true;
+                // Counts from now until the drainer stamps its first send
+                sendStartedAt = System.nanoTime();
+                startDrain = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (startDrain) {
+            drainer.execute(this::drain);
+        }
+        return true;
+    }
+
+    /**
+     * Queues a ping, so heartbeats are ordered with and never overlap the
+     * session's other sends. A session stuck in a send is evicted as usual.
+     */
+    boolean ping() {
+        return offer(PING);
+    }
+
+    boolean binary() {
+        return binary;
+    }
+
+    int queuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queue.clear();
+            queuedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeQueued(String collapseKey) {
+        Iterator<OutboundFrame> it = queue.iterator();
+        while (it.hasNext()) {
+            OutboundFrame queued = it.next();
+            if (collapseKey.equals(queued.collapseKey())) {
+                it.remove();
+                queuedBytes -= queued.size(binary);
+                return;
+            }
+        }
+    }
+
+    private void dropCollapsible() {
+        Iterator<OutboundFrame> it = queue.iterator();
+        while (it.hasNext() && queuedBytes > bufferSizeLimit) {
+            OutboundFrame queued = it.next();
+            if (queued.collapsible()) {
+                it.remove();
+                queuedBytes -= queued.size(binary);
+            }
+        }
+    }
+
+    private void evictLocked() {
+        closed = true;
+        queue.clear();
+        queuedBytes = 0;
+        drainer.execute(() -> {
+            try {
+                session.close(RESYNC);
+            } catch (Exception e) {
+                System.err.println("Failed to close slow session " + session.getId() + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private void drain() {
+        while (true) {
+            OutboundFrame frame;
+            lock.lock();
+            try {
+                frame = closed ? null : queue.pollFirst();
+                if (frame == null) {
+                    sending = false;
+                    return;
+                }
+                queuedBytes -= frame.size(binary);
+                sendStartedAt = System.nanoTime();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                if (session.isOpen()) {
+                    session.sendMessage(frame == PING ? new PingMessage() : frame.message(binary));
+                }
+            } catch (Exception e) {
+                System.err.println("Failed to send to session " + session.getId() + ": " + e.getMessage());
+                close();
+            }
+        }
+    }
+}
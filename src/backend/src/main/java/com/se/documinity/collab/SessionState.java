@@ -0,0 +1,15 @@
+package com.se.documinity.collab;
+
+import org.springframework.web.socket.WebSocketSession;
+
+final class SessionState {
+    final WebSocketSession session;
+    final SessionInfo info;
+    final SessionOutbox outbox;
+
+    SessionState(WebSocketSession session, SessionInfo info, SessionOutbox outbox) {
+        this.session = session;
+        this.info = info;
+        this.outbox = outbox;
+    }
+}
@@ -0,0 +1,47 @@
+package com.se.documinity.collab;
+
+/**
+ * Token bucket refilled at a steady rate up to a burst. Not thread-safe: a
+ * session's buckets are only used by its own (serial) message handling, a
+ * room's only on its mailbox.
+ */
+final class TokenBucket {
+    private final double perNano;
+    private final double burst;
+    private double tokens;
+    private long refilledAt;
+    // Set by the first refusal and cleared by the next success, to signal once per episode
+    private boolean throttled;
+
+    TokenBucket(double perSecond, double burst, long now) {
+        this.perNano = perSecond / 1_000_000_000d;
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilledAt = now;
+    }
+
+    /**
+     * Takes a token; returns 0 if there was one, otherwise the nanos until
+     * there will be.
+     */
+    long tryAcquire(long now) {
+        tokens = Math.min(burst, tokens + (now - refilledAt) * perNano);
+        refilledAt = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            throttled = false;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / perNano));
+    }
+
+    /**
+     * Whether this refusal starts a new throttling episode; later refusals
+     * in the same episode return {@code false}.
+     */
+    boolean startThrottling() {
+        boolean first = !throttled;
+        throttled = true;
+        return first;
+    }
+}
@@ -0,0 +1,283 @@
+package com.se.documinity.collab;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Diff;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Server-side transform step for collaborative edits.
+ *
+ * Clients send {@code diff_match_patch} patches computed against the
+ * serverVersion they last saw, plus their own ops sent since. If other
+ * editors' ops were accepted since then, the patch offsets are shifted over
+ * those ops before applying, and the op is either accepted under a new
+ * version or rejected as a whole. Must be called from the room's mailbox.
+ *
+ * The history holds each op in the coordinates of the text it was applied
+ * to, so other editors' ops accepted before one of the sender's own are
+ * first moved past it, into the text the sender had diffed against. Where
+ * they overlap there is no such position and the op is rejected. So is a
+ * rebased op whose context no longer matches exactly: fuzzy matching is only
+ * trusted for ops on the current version.
+ *
+ * Diffing and fuzzy matching use the engine tuned for the room's document
+ * size; engines are immutable, so one instance serves every room. An op
+ * that only applied by fuzzy matching is re-diffed, so what is relayed,
+ * kept in the history and journaled is the edit exactly as it was made.
+ */
+final class TransformEngine {
+    static final String REJECT_MALFORMED = "malformed-patch";
+    static final String REJECT_UNKNOWN_VERSION = "unknown-version";
+    static final String REJECT_STALE_VERSION = "stale-version";
+    static final String REJECT_CONFLICT = "conflict";
+
+    // Parses and prints patches, which no tuning affects
+    private final diff_match_patch dmp;
+    private final IntFunction<diff_match_patch> engines;
+
+    TransformEngine(diff_match_patch dmp) {
+        this(dmp, chars -> dmp);
+    }
+
+    TransformEngine(diff_match_patch dmp, IntFunction<diff_match_patch> engines) {
+        this.dmp = dmp;
+        this.engines = engines;
+    }
+
+    TransformResult submitPatch(DocRoom room, String clientId, Long baseVersion, String patchesText) {
+        return submitPatch(room, clientId, baseVersion, PatchPayload.ofText(dmp, patchesText));
+    }
+
+    TransformResult submitPatch(DocRoom room, String clientId, Long baseVersion, PatchPayload payload) {
+        if (payload.isEmpty()) {
+            return TransformResult.rejected(REJECT_MALFORMED);
+        }
+        LinkedList<Patch> patches;
+        try {
+            patches = payload.patches();
+        } catch (IllegalArgumentException e) {
+            return TransformResult.rejected(REJECT_MALFORMED);
+        }
+
+        // Legacy clients do not send a base version; treat their ops as current.
+        long base = baseVersion != null ? baseVersion : room.version;
+        if (base > room.version) {
+            return TransformResult.rejected(REJECT_UNKNOWN_VERSION);
+        }
+        boolean rebased = false;
+        if (base < room.version) {
+            List<OpHistory.Entry> missed = room.history.since(base, room.version);
+            if (missed == null) {
+                return TransformResult.rejected(REJECT_STALE_VERSION);
+            }
+            // Other editors' spans, in the coordinates of the sender's text once its own ops are in
+            int[] others = new int[0];
+            for (OpHistory.Entry entry : missed) {
+                if (entry.clientId().equals(clientId)) {
+                    // Already part of the text the client diffed against
+                    if (others.length > 0 && !swapPast(others, entry.spans())) {
+                        return TransformResult.rejected(REJECT_CONFLICT);
+                    }
+                } else {
+                    int[] spans = entry.spans();
+                    others = Arrays.copyOf(others, others.length + spans.length);
+                    System.arraycopy(spans, 0, others, others.length - spans.length, spans.length);
+                }
+            }
+            if (others.length > 0) {
+                rebase(patches, others);
+                rebased = true;
+            }
+        }
+
+        boolean matched = false;
+        Rope edited = applyExact(room.content, patches);
+        if (edited == null) {
+            if (rebased) {
+                // Another editor changed the patch's context; a fuzzy match could land on a lookalike elsewhere
+                return TransformResult.rejected(REJECT_CONFLICT);
+            }
+            // The text around an edit moved; let patch_apply find it, at the cost of copying the document
+            String before = room.text();
+            diff_match_patch engine = engines.apply(before.length());
+            diff_match_patch.PatchResult result = engine.patch_applyResult(patches, before);
+            if (!result.allApplied()) {
+                // Applying the rest would leave the sender diverged; it is resynced instead
+                return TransformResult.conflict(result.failed());
+            }
+            edited = Rope.of(result.text);
+            // Relay, record and journal the edit where it was made, so it applies exactly everywhere else
+            patches = engine.patch_make(before, result.text);
+            matched = true;
+        }
+        room.content = edited;
+        room.version += 1;
+        // Rebasing or matching moved the patches, so the original wire form is stale
+        PatchPayload applied = rebased || matched ? PatchPayload.ofPatches(dmp, patches) : payload;
+        room.history.append(room.version, clientId, spansOf(patches), applied);
+        return TransformResult.accepted(room.version, applied);
+    }
+
+    /**
+     * Replaces the room's content with a client's full text. The change is
+     * diffed against the current content so that only a patch needs to be
+     * relayed; content identical to the room's is accepted under the current
+     * version with an empty patch.
+     */
+    TransformResult submitContent(DocRoom room, String clientId, String content) {
+        String next = content != null ? content : "";
+        String current = room.text();
+        if (next.equals(current)) {
+            return TransformResult.accepted(room.version, PatchPayload.ofPatches(dmp, new LinkedList<>()));
+        }
+        LinkedList<Patch> patches = engines.apply(Math.max(current.length(), next.length()))
+                .patch_make(current, next);
+        PatchPayload payload = PatchPayload.ofPatches(dmp, patches);
+        room.content = Rope.of(next);
+        room.version += 1;
+        room.history.append(room.version, clientId, spansOf(patches), payload);
+        return TransformResult.accepted(room.version, payload);
+    }
+
+    /**
+     * Applies patches whose context is found exactly where they say, which is
+     * the usual case once they are rebased, editing only the spans they
+     * touch. Gives the same text {@code patch_apply} would.
+     *
+     * @return the edited text, or {@code null} if any patch's context is not
+     * at its expected offset
+     */
+    static Rope applyExact(Rope text, List<Patch> patches) {
+        for (Patch patch : patches) {
+            int pos = patch.start2;
+            for (Diff diff : patch.diffs) {
+                if (diff.operation != diff_match_patch.Operation.INSERT) {
+                    if (!text.regionMatches(pos, diff.text)) {
+                        return null;
+                    }
+                    pos += diff.text.length();
+                }
+            }
+            pos = patch.start2;
+            for (Diff diff : patch.diffs) {
+                int length = diff.text.length();
+                switch (diff.operation) {
+                    case EQUAL:
+                        pos += length;
+                        break;
+                    case DELETE:
+                        text = text.replace(pos, length, "");
+                        break;
+                    case INSERT:
+                        text = text.replace(pos, 0, diff.text);
+                        pos += length;
+                        break;
+                }
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Flattens patches into (offset, deleted, inserted) triples expressed in
+     * the coordinates of the text as each patch is applied in turn.
+     */
+    static int[] spansOf(List<Patch> patches) {
+        int[] spans = new int[12];
+        int size = 0;
+        for (Patch patch : patches) {
+            int pos = patch.start2;
+            for (Diff diff : patch.diffs) {
+                int length = diff.text.length();
+                switch (diff.operation) {
+                    case EQUAL:
+                        pos += length;
+                        break;
+                    case DELETE:
+                    case INSERT:
+                        int deleted = diff.operation == diff_match_patch.Operation.DELETE ? length : 0;
+                        int inserted = length - deleted;
+                        if (size > 0 && spans[size - 3] + spans[size - 1] == pos) {
+                            spans[size - 2] += deleted;
+                            spans[size - 1] += inserted;
+                        } else {
+                            if (size + 3 > spans.length) {
+                                spans = Arrays.copyOf(spans, spans.length * 2);
+                            }
+                            spans[size++] = pos;
+                            spans[size++] = deleted;
+                            spans[size++] = inserted;
+                        }
+                        pos += inserted;
+                        break;
+                }
+            }
+        }
+        return Arrays.copyOf(spans, size);
+    }
+
+    /**
+     * Moves {@code own}, applied after {@code spans}, to before them, leaving
+     * {@code spans} rewritten in the coordinates of the text once {@code own}
+     * is in. Both are sequential (offset, deleted, inserted) triples.
+     *
+     * @return {@code false} if some triple of {@code own} edits text a triple
+     * of {@code spans} touched, so there is no such order; {@code spans} is
+     * then left partly rewritten
+     */
+    static boolean swapPast(int[] spans, int[] own) {
+        int[] moving = own.clone();
+        for (int j = 0; j < moving.length; j += 3) {
+            // Each own triple is in the coordinates after every span, so it is swapped from the last back
+            for (int i = spans.length - 3; i >= 0; i -= 3) {
+                int offset = spans[i];
+                int deleted = spans[i + 1];
+                int inserted = spans[i + 2];
+                if (moving[j] + moving[j + 1] <= offset) {
+                    spans[i] += moving[j + 2] - moving[j + 1];
+                } else if (moving[j] >= offset + inserted) {
+                    moving[j] += deleted - inserted;
+                } else {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    static void rebase(List<Patch> patches, int[] spans) {
+        for (Patch patch : patches) {
+            patch.start1 = mapPosition(patch.start1, spans);
+            patch.start2 = mapPosition(patch.start2, spans);
+        }
+    }
+
+    /**
+     * Maps a position over sequential (offset, deleted, inserted) triples of
+     * ops accepted before it. An earlier op keeps its place: a position where
+     * it inserted text lands after that text, and one inside a range it
+     * deleted lands at the start of the range. Clients rebase their op in
+     * flight by the same rule, so both sides order concurrent edits alike.
+     */
+    static int mapPosition(int position, int[] spans) {
+        for (int i = 0; i < spans.length; i += 3) {
+            int offset = spans[i];
+            int deleted = spans[i + 1];
+            int inserted = spans[i + 2];
+            if (position < offset) {
+                continue;
+            }
+            if (position >= offset + deleted) {
+                position += inserted - deleted;
+            } else {
+                position = offset;
+            }
+        }
+        return position;
+    }
+}
@@ -0,0 +1,31 @@
+package com.se.documinity.collab;
+
+import java.util.Arrays;
+
+/**
+ * Outcome of submitting an op to a room: either the new serverVersion and the
+ * patches to relay to the other editors, or the reason it was rejected. A
+ * conflict also names the op's patches that did not apply, by index.
+ */
+record TransformResult(boolean accepted, long version, PatchPayload patches, String reason, int[] failedHunks) {
+    private static final int[] NONE = new int[0];
+
+    static TransformResult accepted(long version, PatchPayload patches) {
+        return new TransformResult(true, version, patches, null, NONE);
+    }
+
+    static TransformResult rejected(String reason) {
+        return new TransformResult(false, -1L, null, reason, NONE);
+    }
+
+    static TransformResult conflict(int[] failedHunks) {
+        return new TransformResult(false, -1L, null, TransformEngine.REJECT_CONFLICT, failedHunks);
+    }
+
+    /**
+     * The reason, with the failed hunks if there are any, for logging.
+     */
+    String describe() {
+        return failedHunks.length == 0 ? reason : reason + " (hunks " + Arrays.toString(failedHunks) + ")";
+    }
+}
@@ -0,0 +1,131 @@
+package com.se.documinity.collab;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * The read-only sessions of a room on this node (viewers and commenters).
+ *
+ * Viewers take no part in presence or cursors and only receive frames the
+ * room has already serialized for its editors. Handing a frame to every
+ * viewer outbox is done on the tier's own mailbox, so the room's mailbox
+ * spends the same time on a broadcast whether it has ten viewers or a
+ * thousand. Membership is confined to the room's mailbox; each publish
+ * captures the members at that point, so a viewer only gets frames
+ * published after it joined. Frames for a single viewer go through the
+ * same mailbox, so a snapshot sent to one never overtakes a broadcast
+ * published before it.
+ */
+final class ViewerTier {
+    private static final SessionOutbox[] NONE = new SessionOutbox[0];
+
+    private final RoomMailbox fanout;
+    private final Map<String, SessionState> viewers = new LinkedHashMap<>();
+    // Copy-on-write, so publish can hand the current array to the fan-out task
+    private SessionOutbox[] outboxes = NONE;
+    private int binaryCount;
+
+    ViewerTier(Executor drainer) {
+        this.fanout = new RoomMailbox(drainer);
+    }
+
+    void add(SessionState state) {
+        SessionState previous = viewers.put(state.session.getId(), state);
+        if (previous != null) {
+            removeOutbox(previous);
+        }
+        outboxes = Arrays.copyOf(outboxes, outboxes.length + 1);
+        outboxes[outboxes.length - 1] = state.outbox;
+        if (state.outbox.binary()) {
+            binaryCount++;
+        }
+    }
+
+    SessionState remove(String sessionId) {
+        SessionState state = viewers.remove(sessionId);
+        if (state != null) {
+            removeOutbox(state);
+        }
+        return state;
+    }
+
+    SessionState get(String sessionId) {
+        return viewers.get(sessionId);
+    }
+
+    Collection<SessionState> all() {
+        return viewers.values();
+    }
+
+    int size() {
+        return viewers.size();
+    }
+
+    boolean anyBinary() {
+        return binaryCount > 0;
+    }
+
+    boolean anyText() {
+        return binaryCount < viewers.size();
+    }
+
+    /**
+     * Bytes a frame costs once queued for every current viewer.
+     */
+    long bytes(OutboundFrame frame) {
+        return (long) binaryCount * frame.binarySize() + (long) (viewers.size() - binaryCount) * frame.textSize();
+    }
+
+    /**
+     * Queues a frame for every current viewer.
+     */
+    void publish(OutboundFrame frame) {
+        SessionOutbox[] targets = outboxes;
+        if (targets.length == 0) {
+            return;
+        }
+        fanout.execute(() -> {
+            for (SessionOutbox outbox : targets) {
+                outbox.offer(frame);
+            }
+        });
+    }
+
+    /**
+     * Queues a frame for one viewer, behind every frame published before it.
+     */
+    void send(SessionState state, OutboundFrame frame) {
+        fanout.execute(() -> state.outbox.offer(frame));
+    }
+
+    /**
+     * Removes every viewer and returns them.
+     */
+    List<SessionState> clear() {
+        List<SessionState> removed = new ArrayList<>(viewers.values());
+        viewers.clear();
+        outboxes = NONE;
+        binaryCount = 0;
+        return removed;
+    }
+
+    private void removeOutbox(SessionState state) {
+        for (int i = 0; i < outboxes.length; i++) {
+            if (outboxes[i] == state.outbox) {
+                SessionOutbox[] next = new SessionOutbox[outboxes.length - 1];
+                System.arraycopy(outboxes, 0, next, 0, i);
+                System.arraycopy(outboxes, i + 1, next, i, outboxes.length - i - 1);
+                outboxes = next;
+                break;
+            }
+        }
+        if (state.outbox.binary()) {
+            binaryCount--;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.se.documinity.config;
+
+import com.se.documinity.collab.ClusterBus;
+import com.se.documinity.collab.InProcessClusterBus;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class CollabClusterConfig {
+
+    // Single-node default; a shared bus (e.g. a broker-backed one) replaces this to run several collab nodes
+    @Bean
+    @ConditionalOnProperty(name = "app.collab.cluster.bus", havingValue = "in-process", matchIfMissing = true)
+    public ClusterBus clusterBus() {
+        return new InProcessClusterBus();
+    }
+}
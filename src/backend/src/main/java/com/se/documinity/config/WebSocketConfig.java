@@ -1,11 +1,13 @@
 package com.se.documinity.config;
 
+import com.se.documinity.collab.CollabProtocols;
 import com.se.documinity.collab.DocumentCollabHandler;
 import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
 
 @Configuration
 @EnableWebSocket
@@ -15,7 +17,12 @@ public class WebSocketConfig implements WebSocketConfigurer {
 
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        // Clients opt into the binary protocol via Sec-WebSocket-Protocol; JSON stays the default
+        DefaultHandshakeHandler handshakeHandler = new DefaultHandshakeHandler();
+        handshakeHandler.setSupportedProtocols(CollabProtocols.BINARY, CollabProtocols.JSON);
+
         registry.addHandler(documentCollabHandler, "/ws/documents")
+                .setHandshakeHandler(handshakeHandler)
                 .setAllowedOriginPatterns("*");
     }
 }
@@ -4,6 +4,7 @@ import com.se.documinity.dto.document.*;
 import com.se.documinity.dto.comunity.PublicDocumentResponse;
 import com.se.documinity.exception.NoContentToRefineException;
 import com.se.documinity.service.AIService;
+import com.se.documinity.service.DocumentRevisionService;
 import com.se.documinity.service.DocumentService;
 
 import jakarta.validation.Valid;
@@ -23,6 +24,7 @@ public class DocumentController {
 
     private final DocumentService documentService;
     private final AIService aiService;
+    private final DocumentRevisionService documentRevisionService;
 
     @PostMapping
     public ResponseEntity<ResponseDTO> createDocument(@Valid @RequestBody CreateDocumentRequest request) {
@@ -100,6 +102,38 @@ public class DocumentController {
         return ResponseEntity.ok(responseDTO);
     }
 
+    @GetMapping("/{id}/revisions")
+    public ResponseEntity<ResponseDTO> listRevisions(@PathVariable Long id) {
+        List<RevisionResponse> revisions = documentRevisionService.listRevisions(id);
+        ResponseDTO responseDTO = new ResponseDTO();
+        responseDTO.setData(revisions);
+        responseDTO.setMessage("success");
+        responseDTO.setDetail("Revisions retrieved successfully");
+        return ResponseEntity.ok(responseDTO);
+    }
+
+    @GetMapping("/{id}/revisions/diff")
+    public ResponseEntity<ResponseDTO> diffRevisions(@PathVariable Long id,
+            @RequestParam long from,
+            @RequestParam long to) {
+        RevisionDiffResponse diff = documentRevisionService.diffRevisions(id, from, to);
+        ResponseDTO responseDTO = new ResponseDTO();
+        responseDTO.setData(diff);
+        responseDTO.setMessage("success");
+        responseDTO.setDetail("Revisions compared successfully");
+        return ResponseEntity.ok(responseDTO);
+    }
+
+    @GetMapping("/{id}/revisions/{version}")
+    public ResponseEntity<ResponseDTO> getRevision(@PathVariable Long id, @PathVariable long version) {
+        RevisionContentResponse revision = documentRevisionService.getRevision(id, version);
+        ResponseDTO responseDTO = new ResponseDTO();
+        responseDTO.setData(revision);
+        responseDTO.setMessage("success");
+        responseDTO.setDetail("Revision retrieved successfully");
+        return ResponseEntity.ok(responseDTO);
+    }
+
     @PostMapping("/{id}/refine")
     public ResponseEntity<ResponseDTO> refineDocument(
             @PathVariable Long id,
@@ -0,0 +1,16 @@
+package com.se.documinity.dto.document;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RevisionContentResponse {
+    private Long version;
+    private String content;
+    private LocalDateTime savedAt;
+}
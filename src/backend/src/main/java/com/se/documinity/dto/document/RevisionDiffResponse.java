@@ -0,0 +1,17 @@
+package com.se.documinity.dto.document;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RevisionDiffResponse {
+    private Long fromVersion;
+    private Long toVersion;
+    private List<RevisionDiffSegment> diffs;
+    private String patch;
+}
@@ -0,0 +1,13 @@
+package com.se.documinity.dto.document;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RevisionDiffSegment {
+    private String operation;
+    private String text;
+}
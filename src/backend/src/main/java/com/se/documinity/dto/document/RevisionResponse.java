@@ -0,0 +1,17 @@
+package com.se.documinity.dto.document;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RevisionResponse {
+    private Long version;
+    private String kind;
+    private Integer contentLength;
+    private LocalDateTime savedAt;
+}
@@ -0,0 +1,55 @@
+package com.se.documinity.entity;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * One saved version of a document's content. A SNAPSHOT holds the full text;
+ * a DELTA holds a diff_match_patch delta from {@code baseVersion}. Both are
+ * deflated and Base64-encoded in {@code data}.
+ */
+@Entity
+@Table(name = "document_revisions", indexes = @Index(name = "idx_document_revisions_document_version",
+        columnList = "document_id, version"))
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class DocumentRevisionEntity {
+    public static final String KIND_SNAPSHOT = "SNAPSHOT";
+    public static final String KIND_DELTA = "DELTA";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "document_id", nullable = false)
+    private Long documentId;
+
+    @Column(name = "version", nullable = false)
+    private Long version;
+
+    @Column(name = "base_version")
+    private Long baseVersion;
+
+    @Column(name = "kind", nullable = false)
+    private String kind;
+
+    @Column(name = "data", columnDefinition = "TEXT")
+    private String data;
+
+    @Column(name = "content_length")
+    private Integer contentLength;
+
+    @Column(name = "saved_at")
+    private LocalDateTime savedAt;
+}
@@ -0,0 +1,12 @@
+package com.se.documinity.repository;
+
+/**
+ * The live text of a document and its version, without the entity graph.
+ */
+public interface DocumentContent {
+    String getContent();
+
+    Long getContentVersion();
+
+    String getStatus();
+}
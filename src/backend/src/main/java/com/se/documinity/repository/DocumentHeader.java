@@ -0,0 +1,17 @@
+package com.se.documinity.repository;
+
+/**
+ * The columns of a document that decide who may open it, without its
+ * content or collections.
+ */
+public interface DocumentHeader {
+    Long getId();
+
+    String getStatus();
+
+    Boolean getIsPublic();
+
+    String getShareRole();
+
+    Long getOwnerId();
+}
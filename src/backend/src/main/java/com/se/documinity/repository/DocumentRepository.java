@@ -7,6 +7,7 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.w3c.dom.stylesheets.LinkStyle;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 
@@ -43,4 +44,34 @@ public interface DocumentRepository extends JpaRepository<DocumentEntity, Long>
             Pageable pageable);
 
     Optional<DocumentEntity> findByShareTokenHashAndShareEnabledTrue(String shareTokenHash);
+
+    @org.springframework.data.jpa.repository.Query("SELECT d.id AS id, d.status AS status, d.isPublic AS isPublic, " +
+            "d.shareRole AS shareRole, u.id AS ownerId FROM DocumentEntity d LEFT JOIN d.user u WHERE d.id = :id")
+    Optional<DocumentHeader> findHeaderById(@org.springframework.data.repository.query.Param("id") Long id);
+
+    @org.springframework.data.jpa.repository.Query("SELECT d.id AS id, d.status AS status, d.isPublic AS isPublic, " +
+            "d.shareRole AS shareRole, u.id AS ownerId FROM DocumentEntity d LEFT JOIN d.user u " +
+            "WHERE d.shareTokenHash = :hash AND d.shareEnabled = true")
+    Optional<DocumentHeader> findHeaderByShareTokenHash(
+            @org.springframework.data.repository.query.Param("hash") String shareTokenHash);
+
+    @org.springframework.data.jpa.repository.Query("SELECT d.content AS content, d.contentVersion AS contentVersion, " +
+            "d.status AS status FROM DocumentEntity d WHERE d.id = :id")
+    Optional<DocumentContent> findContentById(@org.springframework.data.repository.query.Param("id") Long id);
+
+    /**
+     * Writes live collab content without loading the entity graph. Never moves
+     * a document back to an older version.
+     *
+     * @return 1 if the row was written, 0 if it is gone or already newer
+     */
+    @org.springframework.data.jpa.repository.Modifying
+    @org.springframework.data.jpa.repository.Query("UPDATE DocumentEntity d SET d.content = :content, " +
+            "d.contentVersion = :version, d.lastModified = :lastModified " +
+            "WHERE d.id = :id AND (d.contentVersion IS NULL OR d.contentVersion <= :version)")
+    int updateContent(
+            @org.springframework.data.repository.query.Param("id") Long id,
+            @org.springframework.data.repository.query.Param("content") String content,
+            @org.springframework.data.repository.query.Param("version") long version,
+            @org.springframework.data.repository.query.Param("lastModified") LocalDateTime lastModified);
 }
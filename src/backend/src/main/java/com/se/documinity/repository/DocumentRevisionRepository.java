@@ -0,0 +1,25 @@
+package com.se.documinity.repository;
+
+import com.se.documinity.entity.DocumentRevisionEntity;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.util.List;
+import java.util.Optional;
+
+public interface DocumentRevisionRepository extends JpaRepository<DocumentRevisionEntity, Long> {
+    List<DocumentRevisionSummary> findByDocumentIdOrderByVersionDesc(Long documentId);
+
+    Optional<DocumentRevisionEntity> findByDocumentIdAndVersion(Long documentId, Long version);
+
+    Optional<DocumentRevisionEntity> findFirstByDocumentIdOrderByVersionDesc(Long documentId);
+
+    Optional<DocumentRevisionEntity> findFirstByDocumentIdAndKindAndVersionLessThanEqualOrderByVersionDesc(
+            Long documentId, String kind, Long version);
+
+    List<DocumentRevisionEntity> findByDocumentIdAndVersionBetweenOrderByVersionAsc(
+            Long documentId, Long fromVersion, Long toVersion);
+
+    boolean existsByDocumentIdAndVersion(Long documentId, Long version);
+
+    void deleteByDocumentId(Long documentId);
+}
@@ -0,0 +1,16 @@
+package com.se.documinity.repository;
+
+import java.time.LocalDateTime;
+
+/**
+ * Revision metadata without the stored text.
+ */
+public interface DocumentRevisionSummary {
+    Long getVersion();
+
+    String getKind();
+
+    Integer getContentLength();
+
+    LocalDateTime getSavedAt();
+}
@@ -0,0 +1,14 @@
+package com.se.documinity.repository;
+
+/**
+ * A user together with their collaborator role on one document, if any.
+ */
+public interface JoinPrincipal {
+    Long getUserId();
+
+    String getUsername();
+
+    String getFullname();
+
+    String getRole();
+}
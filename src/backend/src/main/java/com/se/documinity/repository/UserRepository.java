@@ -21,4 +21,9 @@ public interface UserRepository extends JpaRepository<UserEntity, Long> {
 
     @Query(value = "SELECT COUNT(*) > 0 FROM user_follows WHERE follower_id = :followerId AND following_id = :followingId", nativeQuery = true)
     boolean isFollowing(@Param("followerId") Long followerId, @Param("followingId") Long followingId);
+
+    @Query("SELECT u.id AS userId, u.username AS username, u.fullname AS fullname, c.role AS role FROM UserEntity u " +
+            "LEFT JOIN DocumentCollaboratorEntity c ON c.user = u AND c.document.id = :documentId " +
+            "WHERE u.username = :username")
+    Optional<JoinPrincipal> findJoinPrincipal(@Param("username") String username, @Param("documentId") Long documentId);
 }
@@ -0,0 +1,209 @@
+package com.se.documinity.service;
+
+import com.se.documinity.exception.DocumentNotFoundException;
+import com.se.documinity.exception.NotAuthorizedException;
+import com.se.documinity.repository.DocumentHeader;
+import com.se.documinity.repository.DocumentRepository;
+import com.se.documinity.repository.JoinPrincipal;
+import com.se.documinity.repository.UserRepository;
+import com.se.documinity.util.ShareTokenUtil;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Decides who may join a document's live editing session.
+ *
+ * Decisions are cached for {@code ttl-ms}, keyed by share-token hash or by
+ * user and document, and the access columns of each document are cached
+ * alongside them. A burst of joins to one document, such as a class opening
+ * the same share link, then costs one lightweight query instead of several
+ * entity loads per join. {@link DocumentService} calls {@link #invalidate}
+ * whenever a document's collaborators, sharing or visibility change.
+ */
+@Service
+@RequiredArgsConstructor
+public class CollabAccessService {
+    private static final String ACTIVE_STATUS = "ACTIVE";
+
+    private final DocumentRepository documentRepository;
+    private final UserRepository userRepository;
+    private final DocumentAccessService accessService;
+
+    private final Map<String, Cached<Grant>> shareGrants = new ConcurrentHashMap<>();
+    private final Map<UserKey, Cached<Grant>> userGrants = new ConcurrentHashMap<>();
+    private final Map<Long, Cached<DocumentHeader>> headers = new ConcurrentHashMap<>();
+    // Bumped on every invalidation, so a lookup that raced one is not cached
+    private final AtomicLong generation = new AtomicLong();
+
+    @Value("${app.collab.join-cache.ttl-ms:30000}")
+    private long ttlMs;
+
+    @Value("${app.collab.join-cache.max-entries:10000}")
+    private int maxEntries;
+
+    /**
+     * The outcome of a join lookup: the document and role to join with, or
+     * why the join is refused.
+     */
+    public record Grant(Long docId, String role, String displayName, String denied, boolean missing) {
+
+        static Grant allowed(Long docId, String role, String displayName) {
+            return new Grant(docId, role, displayName, null, false);
+        }
+
+        static Grant notFound(String reason) {
+            return new Grant(null, null, null, reason, true);
+        }
+
+        static Grant forbidden(String reason) {
+            return new Grant(null, null, null, reason, false);
+        }
+
+        Grant orThrow() {
+            if (denied == null) {
+                return this;
+            }
+            if (missing) {
+                throw new DocumentNotFoundException(denied);
+            }
+            throw new NotAuthorizedException(denied);
+        }
+    }
+
+    /**
+     * Resolves a join through a share link. The display name is left to the
+     * caller.
+     */
+    public Grant resolveShareJoin(String shareToken) {
+        String hash = ShareTokenUtil.hashToken(shareToken);
+        return cached(shareGrants, hash, () -> {
+            DocumentHeader header = documentRepository.findHeaderByShareTokenHash(hash).orElse(null);
+            if (header == null) {
+                return Grant.notFound("Share link not found");
+            }
+            headers.put(header.getId(), new Cached<>(header, expiry()));
+            if (!ACTIVE_STATUS.equals(header.getStatus())) {
+                return Grant.forbidden("Forbidden");
+            }
+            String role = header.getShareRole() != null ? header.getShareRole() : DocumentAccessService.ROLE_EDITOR;
+            return Grant.allowed(header.getId(), role, null);
+        }).orThrow();
+    }
+
+    /**
+     * Resolves a signed-in user's join to a document.
+     */
+    public Grant resolveUserJoin(String username, Long docId) {
+        return cached(userGrants, new UserKey(username, docId), () -> {
+            DocumentHeader header = cached(headers, docId,
+                    () -> documentRepository.findHeaderById(docId).orElse(null));
+            if (header == null) {
+                return Grant.notFound("Document not found");
+            }
+            if (!ACTIVE_STATUS.equals(header.getStatus())) {
+                return Grant.forbidden("Forbidden");
+            }
+            JoinPrincipal principal = userRepository.findJoinPrincipal(username, docId).orElse(null);
+            if (principal == null) {
+                return Grant.forbidden("Invalid user");
+            }
+            String role = principal.getUserId().equals(header.getOwnerId())
+                    ? DocumentAccessService.ROLE_OWNER
+                    : principal.getRole();
+            boolean isPublic = Boolean.TRUE.equals(header.getIsPublic());
+            if (!isPublic && !accessService.canViewRole(role)) {
+                return Grant.forbidden("Forbidden");
+            }
+            if (role == null) {
+                role = DocumentAccessService.ROLE_VIEWER;
+            }
+            String name = principal.getFullname() != null ? principal.getFullname() : principal.getUsername();
+            return Grant.allowed(docId, role, name);
+        }).orThrow();
+    }
+
+    /**
+     * Drops every cached decision about a document. Inside a transaction this
+     * happens after commit: until then the stored state is still the old one,
+     * and a join in between would only cache it again.
+     */
+    public void invalidate(Long docId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    evict(docId);
+                }
+            });
+        } else {
+            evict(docId);
+        }
+    }
+
+    /**
+     * Drops the cached decisions for one user, whose display name is part of
+     * them. Like {@link #invalidate}, waits for commit inside a transaction.
+     */
+    public void invalidateUser(String username) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    evictUser(username);
+                }
+            });
+        } else {
+            evictUser(username);
+        }
+    }
+
+    private void evictUser(String username) {
+        generation.incrementAndGet();
+        userGrants.keySet().removeIf(key -> key.username().equals(username));
+    }
+
+    private void evict(Long docId) {
+        generation.incrementAndGet();
+        headers.remove(docId);
+        userGrants.keySet().removeIf(key -> key.docId().equals(docId));
+        shareGrants.values().removeIf(entry -> docId.equals(entry.value().docId()));
+    }
+
+    private <K, V> V cached(Map<K, Cached<V>> cache, K key, Supplier<V> loader) {
+        long now = System.currentTimeMillis();
+        Cached<V> entry = cache.get(key);
+        if (entry != null && entry.expiresAt() > now) {
+            return entry.value();
+        }
+        long seen = generation.get();
+        V value = loader.get();
+        if (value != null && generation.get() == seen) {
+            if (cache.size() >= maxEntries) {
+                cache.values().removeIf(old -> old.expiresAt() <= now);
+                if (cache.size() >= maxEntries) {
+                    cache.clear();
+                }
+            }
+            cache.put(key, new Cached<>(value, now + ttlMs));
+        }
+        return value;
+    }
+
+    private long expiry() {
+        return System.currentTimeMillis() + ttlMs;
+    }
+
+    private record UserKey(String username, Long docId) {
+    }
+
+    private record Cached<V>(V value, long expiresAt) {
+    }
+}
@@ -0,0 +1,343 @@
+package com.se.documinity.service;
+
+import com.se.documinity.dto.document.RevisionContentResponse;
+import com.se.documinity.dto.document.RevisionDiffResponse;
+import com.se.documinity.dto.document.RevisionDiffSegment;
+import com.se.documinity.dto.document.RevisionResponse;
+import com.se.documinity.entity.DocumentEntity;
+import com.se.documinity.entity.DocumentRevisionEntity;
+import com.se.documinity.entity.UserEntity;
+import com.se.documinity.exception.DocumentNotFoundException;
+import com.se.documinity.exception.NotAuthorizedException;
+import com.se.documinity.exception.UserNotFoundException;
+import com.se.documinity.repository.DocumentRepository;
+import com.se.documinity.repository.DocumentRevisionRepository;
+import com.se.documinity.repository.UserRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Revision history of document content: periodic full snapshots with
+ * compressed diff_match_patch deltas between them, so each save stores
+ * roughly what changed instead of another full copy.
+ *
+ * The last recorded revision of recently saved documents is kept in memory
+ * as the base of the next delta; on a miss it is rebuilt from the stored
+ * revisions. Writers that batch saves {@link #prepare} the revision before
+ * their transaction, so the diff (bounded by {@code diff-timeout-ms}) does
+ * not hold it open.
+ */
+@Service
+@RequiredArgsConstructor
+public class DocumentRevisionService {
+    private final DocumentRevisionRepository revisionRepository;
+    private final DocumentRepository documentRepository;
+    private final UserRepository userRepository;
+    private final DocumentAccessService documentAccessService;
+
+    private final diff_match_patch dmp = new diff_match_patch();
+    // Last recorded revision per document, least recently used first, so a save only needs a diff against memory
+    private final Map<Long, Tip> tips = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Tip> eldest) {
+            return size() > cachedTips;
+        }
+    });
+    private diff_match_patch deltas;
+
+    @Value("${app.revisions.snapshot-interval:50}")
+    private int snapshotInterval;
+
+    @Value("${app.revisions.cached-tips:1000}")
+    private int cachedTips;
+
+    @Value("${app.revisions.diff-timeout-ms:500}")
+    private long diffTimeoutMs;
+
+    private record Tip(long version, String content, int deltasSinceSnapshot) {
+    }
+
+    /**
+     * A revision ready to store: diffed against the last recorded one, or a
+     * snapshot.
+     */
+    public static final class Prepared {
+        private final Long documentId;
+        private final String kind;
+        private final Long baseVersion;
+        private final String data;
+        private final Tip tip;
+
+        private Prepared(Long documentId, String kind, Long baseVersion, String data, Tip tip) {
+            this.documentId = documentId;
+            this.kind = kind;
+            this.baseVersion = baseVersion;
+            this.data = data;
+            this.tip = tip;
+        }
+    }
+
+    @PostConstruct
+    void start() {
+        // Past the timeout the delta is just less tight; it still rebuilds the content exactly
+        deltas = dmp.with(diff_match_patch.Config.DEFAULT.withDiffTimeout(diffTimeoutMs / 1000f));
+    }
+
+    /**
+     * Records {@code content} as revision {@code version}, as a delta from the
+     * last recorded revision where possible. Joins the caller's transaction;
+     * versions at or below the last recorded one are ignored.
+     */
+    public void record(Long documentId, long version, String content, LocalDateTime savedAt) {
+        record(prepare(documentId, version, content), savedAt);
+    }
+
+    /**
+     * Diffs and compresses {@code content} as revision {@code version}, to be
+     * stored by {@link #record(Prepared, LocalDateTime)}. Needs no
+     * transaction.
+     *
+     * @return {@code null} if that version is already recorded
+     */
+    public Prepared prepare(Long documentId, long version, String content) {
+        String text = content != null ? content : "";
+        Tip tip = tips.get(documentId);
+        if (tip == null) {
+            tip = loadTip(documentId);
+        }
+        if (tip != null && version <= tip.version) {
+            return null;
+        }
+        if (tip == null && revisionRepository.existsByDocumentIdAndVersion(documentId, version)) {
+            return null;
+        }
+
+        String delta = null;
+        if (tip != null && tip.deltasSinceSnapshot + 1 < snapshotInterval) {
+            LinkedList<diff_match_patch.Diff> diffs = deltas.diff_main(tip.content, text, false);
+            delta = dmp.diff_toDelta(diffs);
+            // A rewrite is cheaper to store (and replay) as a snapshot
+            if (delta.length() > text.length() / 2) {
+                delta = null;
+            }
+        }
+        if (delta != null) {
+            return new Prepared(documentId, DocumentRevisionEntity.KIND_DELTA, tip.version, compress(delta),
+                    new Tip(version, text, tip.deltasSinceSnapshot + 1));
+        }
+        return new Prepared(documentId, DocumentRevisionEntity.KIND_SNAPSHOT, null, compress(text),
+                new Tip(version, text, 0));
+    }
+
+    /**
+     * Stores a prepared revision. Joins the caller's transaction; does
+     * nothing if {@code prepared} is {@code null} or a newer version was
+     * recorded since it was prepared.
+     */
+    public void record(Prepared prepared, LocalDateTime savedAt) {
+        if (prepared == null) {
+            return;
+        }
+        Long documentId = prepared.documentId;
+        Tip tip = tips.get(documentId);
+        if (tip != null && prepared.tip.version <= tip.version) {
+            return;
+        }
+
+        DocumentRevisionEntity revision = new DocumentRevisionEntity();
+        revision.setDocumentId(documentId);
+        revision.setVersion(prepared.tip.version);
+        revision.setContentLength(prepared.tip.content.length());
+        revision.setSavedAt(savedAt);
+        revision.setKind(prepared.kind);
+        revision.setBaseVersion(prepared.baseVersion);
+        revision.setData(prepared.data);
+        revisionRepository.save(revision);
+
+        Tip next = prepared.tip;
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            // A rolled-back revision must not become the base of the next delta
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    tips.merge(documentId, next, (old, recorded) -> recorded.version > old.version ? recorded : old);
+                }
+            });
+        } else {
+            tips.merge(documentId, next, (old, recorded) -> recorded.version > old.version ? recorded : old);
+        }
+    }
+
+    /**
+     * Drops the cached last revision of a deleted document.
+     */
+    public void forget(Long documentId) {
+        tips.remove(documentId);
+    }
+
+    /**
+     * Rebuilds the last recorded revision of a document not in the cache, or
+     * {@code null} if it has none or it cannot be rebuilt; the next one is
+     * then a snapshot.
+     */
+    private Tip loadTip(Long documentId) {
+        DocumentRevisionEntity latest = revisionRepository.findFirstByDocumentIdOrderByVersionDesc(documentId)
+                .orElse(null);
+        if (latest == null) {
+            return null;
+        }
+        try {
+            Tip tip = rebuild(documentId, latest.getVersion());
+            tips.merge(documentId, tip, (old, loaded) -> loaded.version > old.version ? loaded : old);
+            return tip;
+        } catch (RuntimeException e) {
+            System.err.println("Could not rebuild revision " + latest.getVersion() + " of document "
+                    + documentId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public List<RevisionResponse> listRevisions(Long documentId) {
+        requireViewable(documentId);
+        return revisionRepository.findByDocumentIdOrderByVersionDesc(documentId).stream()
+                .map(summary -> new RevisionResponse(summary.getVersion(), summary.getKind(),
+                        summary.getContentLength(), summary.getSavedAt()))
+                .toList();
+    }
+
+    public RevisionContentResponse getRevision(Long documentId, long version) {
+        requireViewable(documentId);
+        DocumentRevisionEntity revision = revisionRepository.findByDocumentIdAndVersion(documentId, version)
+                .orElseThrow(() -> new DocumentNotFoundException("Revision not found"));
+        return new RevisionContentResponse(version, reconstruct(documentId, version), revision.getSavedAt());
+    }
+
+    public RevisionDiffResponse diffRevisions(Long documentId, long fromVersion, long toVersion) {
+        requireViewable(documentId);
+        String from = reconstruct(documentId, fromVersion);
+        String to = reconstruct(documentId, toVersion);
+        LinkedList<diff_match_patch.Diff> diffs = dmp.diff_main(from, to);
+        dmp.diff_cleanupSemantic(diffs);
+        List<RevisionDiffSegment> segments = diffs.stream()
+                .map(diff -> new RevisionDiffSegment(diff.operation.name(), diff.text))
+                .toList();
+        return new RevisionDiffResponse(fromVersion, toVersion, segments,
+                dmp.patch_toText(dmp.patch_make(from, diffs)));
+    }
+
+    /**
+     * Rebuilds the content of a recorded version from the nearest snapshot at
+     * or below it, following each delta's base version.
+     */
+    String reconstruct(Long documentId, long version) {
+        return rebuild(documentId, version).content;
+    }
+
+    private Tip rebuild(Long documentId, long version) {
+        DocumentRevisionEntity snapshot = revisionRepository
+                .findFirstByDocumentIdAndKindAndVersionLessThanEqualOrderByVersionDesc(
+                        documentId, DocumentRevisionEntity.KIND_SNAPSHOT, version)
+                .orElseThrow(() -> new DocumentNotFoundException("Revision not found"));
+        Map<Long, DocumentRevisionEntity> byVersion = new HashMap<>();
+        for (DocumentRevisionEntity revision : revisionRepository.findByDocumentIdAndVersionBetweenOrderByVersionAsc(
+                documentId, snapshot.getVersion(), version)) {
+            byVersion.put(revision.getVersion(), revision);
+        }
+        DocumentRevisionEntity target = byVersion.get(version);
+        if (target == null) {
+            throw new DocumentNotFoundException("Revision not found");
+        }
+
+        LinkedList<DocumentRevisionEntity> chain = new LinkedList<>();
+        DocumentRevisionEntity current = target;
+        while (DocumentRevisionEntity.KIND_DELTA.equals(current.getKind())) {
+            chain.addFirst(current);
+            Long base = current.getBaseVersion();
+            DocumentRevisionEntity previous = byVersion.get(base);
+            if (previous == null) {
+                // Based on a revision older than the nearest snapshot
+                previous = revisionRepository.findByDocumentIdAndVersion(documentId, base)
+                        .orElseThrow(() -> new IllegalStateException(
+                                "Revision " + base + " of document " + documentId + " is missing"));
+            }
+            current = previous;
+        }
+
+        String content = decompress(current.getData());
+        for (DocumentRevisionEntity delta : chain) {
+            content = dmp.diff_text2(dmp.diff_fromDelta(content, decompress(delta.getData())));
+        }
+        return new Tip(version, content, chain.size());
+    }
+
+    private void requireViewable(Long documentId) {
+        DocumentEntity doc = documentRepository.findById(documentId)
+                .orElseThrow(() -> new DocumentNotFoundException("Document not found"));
+        UserEntity user = null;
+        String currentUsername = SecurityContextHolder.getContext().getAuthentication().getName();
+        if (currentUsername != null && !currentUsername.equals("anonymousUser")) {
+            user = userRepository.findByUsername(currentUsername)
+                    .orElseThrow(() -> new UserNotFoundException("User not found"));
+        }
+        if (!documentAccessService.canView(doc, user)) {
+            throw new NotAuthorizedException("You are not authorized to view this document");
+        }
+    }
+
+    static String compress(String text) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(text.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return Base64.getEncoder().encodeToString(out.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static String decompress(String data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(Base64.getDecoder().decode(data));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int read = inflater.inflate(buffer);
+                if (read == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("Truncated revision data");
+                }
+                out.write(buffer, 0, read);
+            }
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt revision data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
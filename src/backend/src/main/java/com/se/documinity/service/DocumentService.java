@@ -10,6 +10,7 @@ import com.se.documinity.exception.DocumentNotFoundException;
 import com.se.documinity.exception.NotAuthorizedException;
 import com.se.documinity.repository.CommentRepository;
 import com.se.documinity.repository.DocumentCollaboratorRepository;
+import com.se.documinity.repository.DocumentRevisionRepository;
 
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
@@ -27,6 +28,7 @@ import com.se.documinity.entity.TagEntity;
 
 import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -45,8 +47,11 @@ public class DocumentService {
     private final TagRepository tagRepository;
     private final CommentRepository commentRepository;
     private final DocumentCollaboratorRepository documentCollaboratorRepository;
+    private final DocumentRevisionRepository revisionRepository;
     private final DocumentAccessService documentAccessService;
     private final EmailService emailService;
+    private final DocumentRevisionService documentRevisionService;
+    private final CollabAccessService collabAccessService;
 
     private static final int PAGE_SIZE = 10;
     private static final String ACTIVE_STATUS = "ACTIVE";
@@ -87,6 +92,7 @@ public class DocumentService {
         doc.setContentVersion(0L);
         // 4. Save
         DocumentEntity savedDoc = documentRepository.save(doc);
+        documentRevisionService.record(savedDoc.getId(), 0L, savedDoc.getContent(), savedDoc.getCreatedDate());
 
         // 5. Send notification to followers if document is public
         if (Boolean.TRUE.equals(savedDoc.getIsPublic())) {
@@ -310,6 +316,7 @@ public class DocumentService {
         // Track if document is being published (from private to public)
         boolean wasPrivate = !Boolean.TRUE.equals(doc.getIsPublic());
         boolean willBePublic = Boolean.TRUE.equals(request.getIsPublic());
+        List<Object> joinStateBefore = joinState(doc);
 
         if (request.getTitle() != null) {
             doc.setTitle(request.getTitle());
@@ -337,6 +344,13 @@ public class DocumentService {
         }
         doc.setLastModified(LocalDateTime.now(java.time.ZoneId.of("Asia/Ho_Chi_Minh")));
         documentRepository.save(doc);
+        if (!joinStateBefore.equals(joinState(doc))) {
+            collabAccessService.invalidate(doc.getId());
+        }
+        if (request.getContent() != null) {
+            documentRevisionService.record(doc.getId(), doc.getContentVersion(), doc.getContent(),
+                    doc.getLastModified());
+        }
 
         // 4. Send notification to followers if document is being published
         if (wasPrivate && willBePublic) {
@@ -360,7 +374,10 @@ public class DocumentService {
         System.out.println("Authorization check passed for user: " + currentUsername);
 
         try {
+            documentRevisionService.forget(doc.getId());
+            revisionRepository.deleteByDocumentId(doc.getId());
             documentRepository.delete(doc);
+            collabAccessService.invalidate(doc.getId());
             System.out.println("Document deleted successfully: " + doc.getTitle());
         } catch (Exception e) {
             System.out.println("🔥 Error when deleting document: " + e.getClass().getName()
@@ -567,6 +584,15 @@ public class DocumentService {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Every document column CollabAccessService decides joins on; cached
+     * decisions go whenever one of them changes.
+     */
+    private static List<Object> joinState(DocumentEntity doc) {
+        return Arrays.asList(doc.getStatus(), doc.getIsPublic(), doc.getShareEnabled(), doc.getShareTokenHash(),
+                doc.getShareRole(), doc.getUser() != null ? doc.getUser().getId() : null);
+    }
+
     public ShareLinkResponse createShareLink(Long documentId) {
         DocumentEntity doc = documentRepository.findById(documentId)
                 .orElseThrow(() -> new DocumentNotFoundException("Document not found"));
@@ -587,6 +613,7 @@ public class DocumentService {
         doc.setShareTokenHash(ShareTokenUtil.hashToken(token));
         doc.setShareToken(token);
         documentRepository.save(doc);
+        collabAccessService.invalidate(doc.getId());
 
         return new ShareLinkResponse(true, token);
     }
@@ -613,6 +640,7 @@ public class DocumentService {
         doc.setShareTokenHash(null);
         doc.setShareToken(null);
         documentRepository.save(doc);
+        collabAccessService.invalidate(doc.getId());
     }
 
     public ResolveShareResponse resolveShareToken(String token) {
@@ -679,6 +707,7 @@ public class DocumentService {
         }
         collaborator.setUpdatedAt(LocalDateTime.now(java.time.ZoneId.of("Asia/Ho_Chi_Minh")));
         documentCollaboratorRepository.save(collaborator);
+        collabAccessService.invalidate(documentId);
 
         return toCollaboratorResponse(doc, target, collaborator.getRole(), currentUser);
     }
@@ -702,6 +731,7 @@ public class DocumentService {
         }
         collaborator.setUpdatedAt(LocalDateTime.now(java.time.ZoneId.of("Asia/Ho_Chi_Minh")));
         documentCollaboratorRepository.save(collaborator);
+        collabAccessService.invalidate(documentId);
 
         return toCollaboratorResponse(doc, collaborator.getUser(), collaborator.getRole(), currentUser);
     }
@@ -717,6 +747,7 @@ public class DocumentService {
             throw new NotAuthorizedException("Cannot remove owner");
         }
         documentCollaboratorRepository.deleteByDocumentIdAndUserId(documentId, userId);
+        collabAccessService.invalidate(documentId);
     }
 
     private CollaboratorResponse toCollaboratorResponse(DocumentEntity doc, UserEntity user, String role,
@@ -26,6 +26,7 @@ public class UserService {
     private final UserRepository userRepository;
     private final DocumentRepository documentRepository;
     private final PasswordEncoder passwordEncoder;
+    private final CollabAccessService collabAccessService;
 
     public UserResponse getCurrentUser() {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
@@ -57,7 +58,9 @@ public class UserService {
         if (request.getEmail() != null && !request.getEmail().isBlank()) {
             user.setEmail(request.getEmail());
         }
-        if (request.getFullName() != null && !request.getFullName().isBlank()) {
+        boolean renamed = request.getFullName() != null && !request.getFullName().isBlank()
+                && !request.getFullName().equals(user.getFullname());
+        if (renamed) {
             user.setFullname(request.getFullName());
         }
         if (request.getPhone() != null && !request.getPhone().isBlank()) {
@@ -69,6 +72,10 @@ public class UserService {
 
         // 3. Save changes
         UserEntity updatedUser = userRepository.save(user);
+        if (renamed) {
+            // Collab joins carry the display name
+            collabAccessService.invalidateUser(currentUsername);
+        }
 
         // 4. Return the updated response
         return new UserResponse(
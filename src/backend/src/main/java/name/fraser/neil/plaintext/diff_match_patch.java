@@ -22,6 +22,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,46 +37,179 @@ import java.util.regex.Pattern;
 /**
  * Class containing the diff, match and patch methods.
  * Also contains the behaviour settings.
+ *
+ * Instances are immutable: the settings are fixed by the Config they are
+ * built from and no call keeps state on the instance, so one instance can
+ * be shared by any number of threads.  For different settings, per caller
+ * or per call, use with(Config).
  */
 public class diff_match_patch {
 
-  // Defaults.
-  // Set these on your diff_match_patch instance to override the defaults.
-
   /**
    * Number of seconds to map a diff before giving up (0 for infinity).
    */
-  public float Diff_Timeout = 1.0f;
+  public final float Diff_Timeout;
   /**
    * Cost of an empty edit operation in terms of edit characters.
    */
-  public short Diff_EditCost = 4;
+  public final short Diff_EditCost;
   /**
    * At what point is no match declared (0.0 = perfection, 1.0 = very loose).
    */
-  public float Match_Threshold = 0.5f;
+  public final float Match_Threshold;
   /**
    * How far to search for a match (0 = exact location, 1000+ = broad match).
    * A match this many characters away from the expected location will add
    * 1.0 to the score (0.0 is a perfect match).
    */
-  public int Match_Distance = 1000;
+  public final int Match_Distance;
   /**
    * When deleting a large block of text (over ~64 characters), how close do
    * the contents have to be to match the expected contents. (0.0 = perfection,
    * 1.0 = very loose).  Note that Match_Threshold controls how closely the
    * end points of a delete need to match.
    */
-  public float Patch_DeleteThreshold = 0.5f;
+  public final float Patch_DeleteThreshold;
   /**
    * Chunk size for context length.
    */
-  public short Patch_Margin = 4;
+  public final short Patch_Margin;
 
   /**
    * The number of bits in an int.
    */
-  private short Match_MaxBits = 32;
+  private static final short Match_MaxBits = 32;
+
+  private final Config config;
+
+  /**
+   * An engine with the default settings.
+   */
+  public diff_match_patch() {
+    this(Config.DEFAULT);
+  }
+
+  /**
+   * An engine with the given settings.
+   * @param config Settings, see Config.
+   */
+  public diff_match_patch(Config config) {
+    this.config = config;
+    this.Diff_Timeout = config.diffTimeout;
+    this.Diff_EditCost = config.diffEditCost;
+    this.Match_Threshold = config.matchThreshold;
+    this.Match_Distance = config.matchDistance;
+    this.Patch_DeleteThreshold = config.patchDeleteThreshold;
+    this.Patch_Margin = config.patchMargin;
+  }
+
+  /**
+   * @return The settings this engine was built with.
+   */
+  public Config config() {
+    return config;
+  }
+
+  /**
+   * @param config Settings for the returned engine.
+   * @return This engine if it already has those settings, else a new one.
+   */
+  public diff_match_patch with(Config config) {
+    return this.config.equals(config) ? this : new diff_match_patch(config);
+  }
+
+  /**
+   * Immutable settings for a diff_match_patch engine.  Start from DEFAULT
+   * and change what is needed with the with...() methods.
+   */
+  public static final class Config {
+    public static final Config DEFAULT =
+        new Config(1.0f, (short) 4, 0.5f, 1000, 0.5f, (short) 4);
+
+    /** See diff_match_patch.Diff_Timeout. */
+    public final float diffTimeout;
+    /** See diff_match_patch.Diff_EditCost. */
+    public final short diffEditCost;
+    /** See diff_match_patch.Match_Threshold. */
+    public final float matchThreshold;
+    /** See diff_match_patch.Match_Distance. */
+    public final int matchDistance;
+    /** See diff_match_patch.Patch_DeleteThreshold. */
+    public final float patchDeleteThreshold;
+    /** See diff_match_patch.Patch_Margin. */
+    public final short patchMargin;
+
+    private Config(float diffTimeout, short diffEditCost, float matchThreshold,
+        int matchDistance, float patchDeleteThreshold, short patchMargin) {
+      this.diffTimeout = diffTimeout;
+      this.diffEditCost = diffEditCost;
+      this.matchThreshold = matchThreshold;
+      this.matchDistance = matchDistance;
+      this.patchDeleteThreshold = patchDeleteThreshold;
+      this.patchMargin = patchMargin;
+    }
+
+    public Config withDiffTimeout(float diffTimeout) {
+      return new Config(diffTimeout, diffEditCost, matchThreshold,
+          matchDistance, patchDeleteThreshold, patchMargin);
+    }
+
+    public Config withDiffEditCost(short diffEditCost) {
+      return new Config(diffTimeout, diffEditCost, matchThreshold,
+          matchDistance, patchDeleteThreshold, patchMargin);
+    }
+
+    public Config withMatchThreshold(float matchThreshold) {
+      return new Config(diffTimeout, diffEditCost, matchThreshold,
+          matchDistance, patchDeleteThreshold, patchMargin);
+    }
+
+    public Config withMatchDistance(int matchDistance) {
+      return new Config(diffTimeout, diffEditCost, matchThreshold,
+          matchDistance, patchDeleteThreshold, patchMargin);
+    }
+
+    public Config withPatchDeleteThreshold(float patchDeleteThreshold) {
+      return new Config(diffTimeout, diffEditCost, matchThreshold,
+          matchDistance, patchDeleteThreshold, patchMargin);
+    }
+
+    public Config withPatchMargin(short patchMargin) {
+      return new Config(diffTimeout, diffEditCost, matchThreshold,
+          matchDistance, patchDeleteThreshold, patchMargin);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Config)) {
+        return false;
+      }
+      Config other = (Config) obj;
+      return diffTimeout == other.diffTimeout
+          && diffEditCost == other.diffEditCost
+          && matchThreshold == other.matchThreshold
+          && matchDistance == other.matchDistance
+          && patchDeleteThreshold == other.patchDeleteThreshold
+          && patchMargin == other.patchMargin;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(diffTimeout, diffEditCost, matchThreshold,
+          matchDistance, patchDeleteThreshold, patchMargin);
+    }
+
+    @Override
+    public String toString() {
+      return "Config(diffTimeout=" + diffTimeout + ", diffEditCost="
+          + diffEditCost + ", matchThreshold=" + matchThreshold
+          + ", matchDistance=" + matchDistance + ", patchDeleteThreshold="
+          + patchDeleteThreshold + ", patchMargin=" + patchMargin + ")";
+    }
+  }
 
   /**
    * Internal class for returning results from diff_linesToChars().
@@ -171,17 +305,16 @@ public class diff_match_patch {
       return diffs;
     }
 
-    // Trim off common prefix (speedup).
-    int commonlength = diff_commonPrefix(text1, text2);
-    String commonprefix = text1.substring(0, commonlength);
-    text1 = text1.substring(commonlength);
-    text2 = text2.substring(commonlength);
-
-    // Trim off common suffix (speedup).
-    commonlength = diff_commonSuffix(text1, text2);
-    String commonsuffix = text1.substring(text1.length() - commonlength);
-    text1 = text1.substring(0, text1.length() - commonlength);
-    text2 = text2.substring(0, text2.length() - commonlength);
+    // Trim off common prefix and suffix (speedup), copying the middle once.
+    int text1_length = text1.length();
+    int text2_length = text2.length();
+    int prefixlength = diff_commonPrefix(text1, text2);
+    int suffixlength = diff_commonSuffix(text1, text1_length, text2,
+        text2_length, Math.min(text1_length, text2_length) - prefixlength);
+    String commonprefix = text1.substring(0, prefixlength);
+    String commonsuffix = text1.substring(text1_length - suffixlength);
+    text1 = text1.substring(prefixlength, text1_length - suffixlength);
+    text2 = text2.substring(prefixlength, text2_length - suffixlength);
 
     // Compute the diff on the middle block.
     diffs = diff_compute(text1, text2, checklines, deadline);
@@ -359,13 +492,18 @@ public class diff_match_patch {
     int text1_length = text1.length();
     int text2_length = text2.length();
     int max_d = (text1_length + text2_length + 1) / 2;
-    int v_offset = max_d;
-    int v_length = 2 * max_d;
-    int[] v1 = new int[v_length];
-    int[] v2 = new int[v_length];
-    for (int x = 0; x < v_length; x++) {
-      v1[x] = -1;
-      v2[x] = -1;
+    // The vectors are indexed by k + v_offset as in the paper, but only the
+    // diagonals reached so far are stored: the arrays come from a shared
+    // pool, grow with d and are filled with -1 up to radius 'filled'.
+    // Anything beyond that radius has never been written and reads as -1.
+    BisectScratch scratch = BisectScratch.acquire();
+    int v_offset = scratch.v1.length / 2;
+    int filled = 1;
+    int[] v1 = scratch.v1;
+    int[] v2 = scratch.v2;
+    for (int k = -1; k <= 1; k++) {
+      v1[v_offset + k] = -1;
+      v2[v_offset + k] = -1;
     }
     v1[v_offset + 1] = 0;
     v2[v_offset + 1] = 0;
@@ -379,12 +517,28 @@ public class diff_match_patch {
     int k1end = 0;
     int k2start = 0;
     int k2end = 0;
+    // Where the paths overlapped, if they did.
+    int split_x = -1;
+    int split_y = -1;
+    search:
     for (int d = 0; d < max_d; d++) {
       // Bail out if deadline is reached.
       if (System.currentTimeMillis() > deadline) {
         break;
       }
 
+      if (d > filled) {
+        if (d >= v_offset) {
+          scratch.grow(d, filled);
+          v_offset = scratch.v1.length / 2;
+          v1 = scratch.v1;
+          v2 = scratch.v2;
+        }
+        v1[v_offset - d] = v1[v_offset + d] = -1;
+        v2[v_offset - d] = v2[v_offset + d] = -1;
+        filled = d;
+      }
+
       // Walk the front path one step.
       for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
         int k1_offset = v_offset + k1;
@@ -408,13 +562,16 @@ public class diff_match_patch {
           // Ran off the bottom of the graph.
           k1start += 2;
         } else if (front) {
-          int k2_offset = v_offset + delta - k1;
-          if (k2_offset >= 0 && k2_offset < v_length && v2[k2_offset] != -1) {
+          int k2 = delta - k1;
+          if (k2 >= -filled && k2 <= filled && k2 < max_d
+              && v2[v_offset + k2] != -1) {
             // Mirror x2 onto top-left coordinate system.
-            int x2 = text1_length - v2[k2_offset];
+            int x2 = text1_length - v2[v_offset + k2];
             if (x1 >= x2) {
               // Overlap detected.
-              return diff_bisectSplit(text1, text2, x1, y1, deadline);
+              split_x = x1;
+              split_y = y1;
+              break search;
             }
           }
         }
@@ -444,20 +601,28 @@ public class diff_match_patch {
           // Ran off the top of the graph.
           k2start += 2;
         } else if (!front) {
-          int k1_offset = v_offset + delta - k2;
-          if (k1_offset >= 0 && k1_offset < v_length && v1[k1_offset] != -1) {
-            int x1 = v1[k1_offset];
-            int y1 = v_offset + x1 - k1_offset;
+          int k1 = delta - k2;
+          if (k1 >= -filled && k1 <= filled && k1 < max_d
+              && v1[v_offset + k1] != -1) {
+            int x1 = v1[v_offset + k1];
+            int y1 = x1 - k1;
             // Mirror x2 onto top-left coordinate system.
             x2 = text1_length - x2;
             if (x1 >= x2) {
               // Overlap detected.
-              return diff_bisectSplit(text1, text2, x1, y1, deadline);
+              split_x = x1;
+              split_y = y1;
+              break search;
             }
           }
         }
       }
     }
+    // The vectors are not needed by the recursion; let it reuse them.
+    scratch.release();
+    if (split_x != -1) {
+      return diff_bisectSplit(text1, text2, split_x, split_y, deadline);
+    }
     // Diff took too long and hit the deadline or
     // number of diffs equals number of characters, no commonality at all.
     LinkedList<Diff> diffs = new LinkedList<Diff>();
@@ -466,6 +631,62 @@ public class diff_match_patch {
     return diffs;
   }
 
+  /**
+   * Reusable vectors for diff_bisect().  Instances are pooled per class
+   * rather than per thread: callers run on virtual threads, which would
+   * never reuse a thread-local.  Vectors that grew past MAX_POOLED entries
+   * for one large diff are dropped instead of being kept around.
+   */
+  private static final class BisectScratch {
+    private static final int INITIAL_LENGTH = 256;
+    private static final int MAX_POOLED = 1 << 16;
+    private static final AtomicReferenceArray<BisectScratch> POOL =
+        new AtomicReferenceArray<BisectScratch>(8);
+
+    int[] v1 = new int[INITIAL_LENGTH];
+    int[] v2 = new int[INITIAL_LENGTH];
+
+    static BisectScratch acquire() {
+      for (int i = 0; i < POOL.length(); i++) {
+        if (POOL.get(i) != null) {
+          BisectScratch scratch = POOL.getAndSet(i, null);
+          if (scratch != null) {
+            return scratch;
+          }
+        }
+      }
+      return new BisectScratch();
+    }
+
+    void release() {
+      if (v1.length > MAX_POOLED) {
+        return;
+      }
+      for (int i = 0; i < POOL.length(); i++) {
+        if (POOL.compareAndSet(i, null, this)) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Re-centres both vectors in arrays that fit radius d, keeping the
+     * entries within radius 'filled'.
+     */
+    void grow(int d, int filled) {
+      int length = Math.max(v1.length * 2, 2 * d + 2);
+      v1 = recentre(v1, length, filled);
+      v2 = recentre(v2, length, filled);
+    }
+
+    private static int[] recentre(int[] v, int length, int filled) {
+      int[] grown = new int[length];
+      System.arraycopy(v, v.length / 2 - filled, grown, length / 2 - filled,
+          2 * filled + 1);
+      return grown;
+    }
+  }
+
   /**
    * Given the location of the 'middle snake', split the diff in two parts
    * and recurse.
@@ -502,9 +723,9 @@ public class diff_match_patch {
    */
   protected LinesToCharsResult diff_linesToChars(String text1, String text2) {
     List<String> lineArray = new ArrayList<String>();
-    Map<String, Integer> lineHash = new HashMap<String, Integer>();
+    LineHash lineHash = new LineHash(lineArray);
     // e.g. linearray[4] == "Hello\n"
-    // e.g. linehash.get("Hello\n") == 4
+    // e.g. linehash.find(text, start, end) == 4 for that line
 
     // "\x00" is a valid character, but various debuggers don't like it.
     // So we'll insert a junk entry to avoid generating a null character.
@@ -521,44 +742,111 @@ public class diff_match_patch {
    * hashes where each Unicode character represents one line.
    * @param text String to encode.
    * @param lineArray List of unique strings.
-   * @param lineHash Map of strings to indices.
+   * @param lineHash Index of the strings in lineArray.
    * @param maxLines Maximum length of lineArray.
    * @return Encoded string.
    */
   private String diff_linesToCharsMunge(String text, List<String> lineArray,
-      Map<String, Integer> lineHash, int maxLines) {
+      LineHash lineHash, int maxLines) {
     int lineStart = 0;
     int lineEnd = -1;
     String line;
     StringBuilder chars = new StringBuilder();
-    // Walk the text, pulling out a substring for each line.
-    // text.split('\n') would would temporarily double our memory footprint.
-    // Modifying text would create many large strings to garbage collect.
+    // Walk the text, looking each line up in place.  Only lines not seen
+    // before are copied out; text.split('\n') would temporarily double our
+    // memory footprint, and a substring per line is garbage for every
+    // repeated one.
     while (lineEnd < text.length() - 1) {
       lineEnd = text.indexOf('\n', lineStart);
       if (lineEnd == -1) {
         lineEnd = text.length() - 1;
       }
-      line = text.substring(lineStart, lineEnd + 1);
 
-      if (lineHash.containsKey(line)) {
-        chars.append(String.valueOf((char) (int) lineHash.get(line)));
+      int index = lineHash.find(text, lineStart, lineEnd + 1);
+      if (index != -1) {
+        chars.append((char) index);
       } else {
         if (lineArray.size() == maxLines) {
           // Bail out at 65535 because
           // String.valueOf((char) 65536).equals(String.valueOf(((char) 0)))
           line = text.substring(lineStart);
           lineEnd = text.length();
+        } else {
+          line = text.substring(lineStart, lineEnd + 1);
         }
         lineArray.add(line);
-        lineHash.put(line, lineArray.size() - 1);
-        chars.append(String.valueOf((char) (lineArray.size() - 1)));
+        lineHash.add(line, lineArray.size() - 1);
+        chars.append((char) (lineArray.size() - 1));
       }
       lineStart = lineEnd + 1;
     }
     return chars.toString();
   }
 
+  /**
+   * Open-addressing index from line text to its position in the line array,
+   * probed with a region of the text being split so that lines already seen
+   * need no substring, and holding plain ints rather than boxed entries.
+   */
+  private static final class LineHash {
+    private final List<String> lineArray;
+    private int[] slots = new int[64];
+    private int size;
+
+    LineHash(List<String> lineArray) {
+      this.lineArray = lineArray;
+    }
+
+    /**
+     * @return Index of text[start, end) in the line array, or -1.
+     */
+    int find(String text, int start, int end) {
+      int mask = slots.length - 1;
+      int length = end - start;
+      for (int i = hash(text, start, end) & mask; slots[i] != 0;
+          i = (i + 1) & mask) {
+        String line = lineArray.get(slots[i]);
+        if (line.length() == length
+            && line.regionMatches(0, text, start, length)) {
+          return slots[i];
+        }
+      }
+      return -1;
+    }
+
+    void add(String line, int index) {
+      if (2 * (size + 1) > slots.length) {
+        int[] old = slots;
+        slots = new int[old.length * 2];
+        for (int slot : old) {
+          if (slot != 0) {
+            insert(lineArray.get(slot), slot);
+          }
+        }
+      }
+      insert(line, index);
+      size++;
+    }
+
+    private void insert(String line, int index) {
+      int mask = slots.length - 1;
+      int i = hash(line, 0, line.length()) & mask;
+      while (slots[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      slots[i] = index;
+    }
+
+    // Same as String.hashCode() over the region, spread so the low bits mix
+    private static int hash(String text, int start, int end) {
+      int h = 0;
+      for (int i = start; i < end; i++) {
+        h = 31 * h + text.charAt(i);
+      }
+      return h ^ (h >>> 16);
+    }
+  }
+
   /**
    * Rehydrate the text in a diff from a string of line hashes to real lines of
    * text.
@@ -567,9 +855,9 @@ public class diff_match_patch {
    */
   protected void diff_charsToLines(List<Diff> diffs,
                                   List<String> lineArray) {
-    StringBuilder text;
+    StringBuilder text = new StringBuilder();
     for (Diff diff : diffs) {
-      text = new StringBuilder();
+      text.setLength(0);
       for (int j = 0; j < diff.text.length(); j++) {
         text.append(lineArray.get(diff.text.charAt(j)));
       }
@@ -604,15 +892,41 @@ public class diff_match_patch {
     // Performance analysis: https://neil.fraser.name/news/2007/10/09/
     int text1_length = text1.length();
     int text2_length = text2.length();
-    int n = Math.min(text1_length, text2_length);
-    for (int i = 1; i <= n; i++) {
-      if (text1.charAt(text1_length - i) != text2.charAt(text2_length - i)) {
-        return i - 1;
+    return diff_commonSuffix(text1, text1_length, text2, text2_length,
+        Math.min(text1_length, text2_length));
+  }
+
+  /**
+   * Determine the common prefix of two strings from the given offsets,
+   * without taking substrings.
+   * @return The number of characters common to text1[start1..] and
+   *     text2[start2..].
+   */
+  private static int diff_commonPrefix(String text1, int start1,
+      String text2, int start2) {
+    int n = Math.min(text1.length() - start1, text2.length() - start2);
+    for (int i = 0; i < n; i++) {
+      if (text1.charAt(start1 + i) != text2.charAt(start2 + i)) {
+        return i;
       }
     }
     return n;
   }
 
+  /**
+   * Determine the common suffix of text1[..end1] and text2[..end2], looking
+   * back at most max characters, without taking substrings.
+   */
+  private static int diff_commonSuffix(String text1, int end1, String text2,
+      int end2, int max) {
+    for (int i = 1; i <= max; i++) {
+      if (text1.charAt(end1 - i) != text2.charAt(end2 - i)) {
+        return i - 1;
+      }
+    }
+    return max;
+  }
+
   /**
    * Determine if the suffix of one string is the prefix of another.
    * @param text1 First string.
@@ -722,26 +1036,27 @@ public class diff_match_patch {
     // Start with a 1/4 length substring at position i as a seed.
     String seed = longtext.substring(i, i + longtext.length() / 4);
     int j = -1;
-    String best_common = "";
-    String best_longtext_a = "", best_longtext_b = "";
-    String best_shorttext_a = "", best_shorttext_b = "";
+    // Only the best candidate's strings are built, once the search is done.
+    int best_j = -1;
+    int best_prefix = 0;
+    int best_suffix = 0;
     while ((j = shorttext.indexOf(seed, j + 1)) != -1) {
-      int prefixLength = diff_commonPrefix(longtext.substring(i),
-                                           shorttext.substring(j));
-      int suffixLength = diff_commonSuffix(longtext.substring(0, i),
-                                           shorttext.substring(0, j));
-      if (best_common.length() < suffixLength + prefixLength) {
-        best_common = shorttext.substring(j - suffixLength, j)
-            + shorttext.substring(j, j + prefixLength);
-        best_longtext_a = longtext.substring(0, i - suffixLength);
-        best_longtext_b = longtext.substring(i + prefixLength);
-        best_shorttext_a = shorttext.substring(0, j - suffixLength);
-        best_shorttext_b = shorttext.substring(j + prefixLength);
-      }
-    }
-    if (best_common.length() * 2 >= longtext.length()) {
-      return new String[]{best_longtext_a, best_longtext_b,
-                          best_shorttext_a, best_shorttext_b, best_common};
+      int prefixLength = diff_commonPrefix(longtext, i, shorttext, j);
+      int suffixLength = diff_commonSuffix(longtext, i, shorttext, j,
+                                           Math.min(i, j));
+      if (best_prefix + best_suffix < suffixLength + prefixLength) {
+        best_j = j;
+        best_prefix = prefixLength;
+        best_suffix = suffixLength;
+      }
+    }
+    if ((best_prefix + best_suffix) * 2 >= longtext.length()) {
+      return new String[]{longtext.substring(0, i - best_suffix),
+                          longtext.substring(i + best_prefix),
+                          shorttext.substring(0, best_j - best_suffix),
+                          shorttext.substring(best_j + best_prefix),
+                          shorttext.substring(best_j - best_suffix,
+                                              best_j + best_prefix)};
     } else {
       return null;
     }
@@ -1031,9 +1346,9 @@ public class diff_match_patch {
   }
 
   // Define some regex patterns for matching boundaries.
-  private Pattern BLANKLINEEND
+  private static final Pattern BLANKLINEEND
       = Pattern.compile("\\n\\r?\\n\\Z", Pattern.DOTALL);
-  private Pattern BLANKLINESTART
+  private static final Pattern BLANKLINESTART
       = Pattern.compile("\\A\\r?\\n\\r?\\n", Pattern.DOTALL);
 
   /**
@@ -1561,7 +1876,7 @@ public class diff_match_patch {
       // Nothing to match.
       return -1;
     } else if (loc + pattern.length() <= text.length()
-        && text.substring(loc, loc + pattern.length()).equals(pattern)) {
+        && text.regionMatches(loc, pattern, 0, pattern.length())) {
       // Perfect match at the perfect spot!  (Includes case of null pattern)
       return loc;
     } else {
@@ -1926,8 +2241,23 @@ public class diff_match_patch {
    *      boolean values.
    */
   public Object[] patch_apply(LinkedList<Patch> patches, String text) {
+    PatchResult result = patch_applyResult(patches, text);
+    return new Object[]{result.text, result.pieces};
+  }
+
+  /**
+   * Merge a set of patches onto the text, reporting which of the given
+   * patches failed.  Unlike patch_apply(), whose flags are per piece once
+   * long patches are split, the flags here line up with the patches passed
+   * in.
+   * @param patches Array of Patch objects
+   * @param text Old text.
+   * @return The new text and which patches applied.
+   */
+  public PatchResult patch_applyResult(LinkedList<Patch> patches,
+      String text) {
     if (patches.isEmpty()) {
-      return new Object[]{text, new boolean[0]};
+      return new PatchResult(text, new boolean[0], new boolean[0]);
     }
 
     // Deep copy the patches so that no changes are made to originals.
@@ -1935,7 +2265,26 @@ public class diff_match_patch {
 
     String nullPadding = patch_addPadding(patches);
     text = nullPadding + text + nullPadding;
-    patch_splitMax(patches);
+    // Split one patch at a time, remembering which patch each piece is from.
+    LinkedList<Patch> pieces = new LinkedList<Patch>();
+    int[] sources = new int[patches.size()];
+    int hunk = 0;
+    for (Patch aPatch : patches) {
+      LinkedList<Patch> split = new LinkedList<Patch>();
+      split.add(aPatch);
+      patch_splitMax(split);
+      if (pieces.size() + split.size() > sources.length) {
+        sources = Arrays.copyOf(sources,
+            Math.max(2 * sources.length, pieces.size() + split.size()));
+      }
+      for (int i = 0; i < split.size(); i++) {
+        sources[pieces.size() + i] = hunk;
+      }
+      pieces.addAll(split);
+      hunk++;
+    }
+    boolean[] applied = new boolean[patches.size()];
+    Arrays.fill(applied, true);
 
     int x = 0;
     // delta keeps track of the offset between the expected and actual location
@@ -1943,21 +2292,27 @@ public class diff_match_patch {
     // 20, but the first patch was found at 12, delta is 2 and the second patch
     // has an effective expected position of 22.
     int delta = 0;
-    boolean[] results = new boolean[patches.size()];
-    for (Patch aPatch : patches) {
+    boolean[] results = new boolean[pieces.size()];
+    for (Patch aPatch : pieces) {
       int expected_loc = aPatch.start2 + delta;
       String text1 = diff_text1(aPatch.diffs);
       int start_loc;
       int end_loc = -1;
-      if (text1.length() > this.Match_MaxBits) {
+      // Nearly every live patch is applied to the text it was made against,
+      // so check for its context at the expected spot before searching.
+      boolean exact = expected_loc >= 0
+          && text.regionMatches(expected_loc, text1, 0, text1.length());
+      if (exact) {
+        start_loc = expected_loc;
+      } else if (text1.length() > Match_MaxBits) {
         // patch_splitMax will only provide an oversized pattern in the case of
         // a monster delete.
         start_loc = match_main(text,
-            text1.substring(0, this.Match_MaxBits), expected_loc);
+            text1.substring(0, Match_MaxBits), expected_loc);
         if (start_loc != -1) {
           end_loc = match_main(text,
-              text1.substring(text1.length() - this.Match_MaxBits),
-              expected_loc + text1.length() - this.Match_MaxBits);
+              text1.substring(text1.length() - Match_MaxBits),
+              expected_loc + text1.length() - Match_MaxBits);
           if (end_loc == -1 || start_loc >= end_loc) {
             // Can't find valid trailing context.  Drop this patch.
             start_loc = -1;
@@ -1976,12 +2331,14 @@ public class diff_match_patch {
         results[x] = true;
         delta = start_loc - expected_loc;
         String text2;
-        if (end_loc == -1) {
+        if (exact) {
+          text2 = text1;
+        } else if (end_loc == -1) {
           text2 = text.substring(start_loc,
               Math.min(start_loc + text1.length(), text.length()));
         } else {
           text2 = text.substring(start_loc,
-              Math.min(end_loc + this.Match_MaxBits, text.length()));
+              Math.min(end_loc + Match_MaxBits, text.length()));
         }
         if (text1.equals(text2)) {
           // Perfect match, just shove the replacement text in.
@@ -1991,7 +2348,7 @@ public class diff_match_patch {
           // Imperfect match.  Run a diff to get a framework of equivalent
           // indices.
           LinkedList<Diff> diffs = diff_main(text1, text2, false);
-          if (text1.length() > this.Match_MaxBits
+          if (text1.length() > Match_MaxBits
               && diff_levenshtein(diffs) / (float) text1.length()
               > this.Patch_DeleteThreshold) {
             // The end points match, but the content is unacceptably bad.
@@ -2020,12 +2377,15 @@ public class diff_match_patch {
           }
         }
       }
+      if (!results[x]) {
+        applied[sources[x]] = false;
+      }
       x++;
     }
     // Strip the padding off.
     text = text.substring(nullPadding.length(), text.length()
         - nullPadding.length());
-    return new Object[]{text, results};
+    return new PatchResult(text, applied, results);
   }
 
   /**
@@ -2380,6 +2740,51 @@ public class diff_match_patch {
   }
 
 
+  /**
+   * Result of patch_applyResult(): the patched text and, for each patch
+   * passed in, whether it applied.  A patch that was split for length
+   * counts as failed if any of its pieces did.
+   */
+  public static class PatchResult {
+    public final String text;
+    public final boolean[] applied;
+    // Per-piece flags, as patch_apply() has always returned them.
+    private final boolean[] pieces;
+
+    private PatchResult(String text, boolean[] applied, boolean[] pieces) {
+      this.text = text;
+      this.applied = applied;
+      this.pieces = pieces;
+    }
+
+    /**
+     * @return True if every patch applied.
+     */
+    public boolean allApplied() {
+      return failed().length == 0;
+    }
+
+    /**
+     * @return Indices, in the list passed in, of the patches that failed.
+     */
+    public int[] failed() {
+      int count = 0;
+      for (boolean ok : applied) {
+        if (!ok) {
+          count++;
+        }
+      }
+      int[] failed = new int[count];
+      for (int i = 0, j = 0; i < applied.length; i++) {
+        if (!applied[i]) {
+          failed[j++] = i;
+        }
+      }
+      return failed;
+    }
+  }
+
+
   /**
    * Class representing one patch operation.
    */
@@ -0,0 +1,163 @@
+package com.se.documinity.collab;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryCollabCodecTest {
+
+    private diff_match_patch dmp;
+    private BinaryCollabCodec codec;
+
+    @BeforeEach
+    public void setUp() {
+        dmp = new diff_match_patch();
+        codec = new BinaryCollabCodec(new JsonCollabCodec(new ObjectMapper(), dmp), dmp);
+    }
+
+    @Test
+    public void testPatchesRoundTrip() {
+        String text = dmp.patch_toText(dmp.patch_make("Hello wörld, 100% done", "Hello brave wörld, 99% done"));
+        BinaryCollabCodec.Output out = new BinaryCollabCodec.Output();
+        BinaryCollabCodec.writePatches(out, dmp.patch_make("Hello wörld, 100% done", "Hello brave wörld, 99% done"));
+
+        byte[] bytes = out.toByteArray();
+
+        assertEquals(text, dmp.patch_toText(BinaryCollabCodec.readPatches(ByteBuffer.wrap(bytes))));
+        assertTrue(bytes.length < text.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    public void testDecodePatchUpdate() throws Exception {
+        BinaryCollabCodec.Output out = new BinaryCollabCodec.Output();
+        out.writeByte(BinaryCollabCodec.TAG_PATCH_UPDATE);
+        out.writeVarint(300 + 1);
+        out.writeString("op-1");
+        BinaryCollabCodec.writePatches(out, dmp.patch_make("abc", "abXc"));
+
+        InboundMessage.PatchUpdate update =
+                (InboundMessage.PatchUpdate) codec.decode(ByteBuffer.wrap(out.toByteArray()));
+
+        assertEquals(300L, update.baseVersion());
+        assertEquals("op-1", update.opId());
+        assertEquals("abXc", dmp.patch_apply(update.patches().patches(), "abc")[0]);
+    }
+
+    @Test
+    public void testAbsentBaseVersionDecodesAsNull() throws Exception {
+        BinaryCollabCodec.Output out = new BinaryCollabCodec.Output();
+        out.writeByte(BinaryCollabCodec.TAG_PATCH_UPDATE);
+        out.writeVarint(0);
+        out.writeString(null);
+        out.writeVarint(0);
+
+        InboundMessage.PatchUpdate update =
+                (InboundMessage.PatchUpdate) codec.decode(ByteBuffer.wrap(out.toByteArray()));
+
+        assertNull(update.baseVersion());
+        assertNull(update.opId());
+    }
+
+    @Test
+    public void testDecodeJoinWithAndWithoutLastVersion() throws Exception {
+        BinaryCollabCodec.Output out = new BinaryCollabCodec.Output();
+        out.writeByte(BinaryCollabCodec.TAG_JOIN);
+        out.writeVarint(42 + 1);
+        out.writeString("c1");
+        out.writeString("Ann");
+        out.writeString("#fff");
+        out.writeString("t");
+        out.writeString(null);
+        byte[] legacy = out.toByteArray();
+        out.writeVarint(17 + 1);
+
+        assertNull(((InboundMessage.Join) codec.decode(ByteBuffer.wrap(legacy))).lastVersion());
+        assertEquals(new InboundMessage.Join(42L, "c1", "Ann", "#fff", "t", null, 17L),
+                codec.decode(ByteBuffer.wrap(out.toByteArray())));
+    }
+
+    @Test
+    public void testEncodeAck() throws Exception {
+        ByteBuffer frame = ByteBuffer.wrap(codec.encode(new OutboundMessage.Ack(7L, "x", 130L)));
+
+        assertEquals(BinaryCollabCodec.TAG_ACK, frame.get());
+        assertEquals(7L, BinaryCollabCodec.readNullableLong(frame));
+        assertEquals(130L, BinaryCollabCodec.readVarint(frame));
+        assertEquals("x", BinaryCollabCodec.readString(frame));
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    public void testEncodeOpRejectedWithFailedHunks() throws Exception {
+        ByteBuffer frame = ByteBuffer.wrap(codec.encode(
+                new OutboundMessage.OpRejected(7L, "x", "conflict", "abc", 9L, new int[] { 0, 2 })));
+
+        assertEquals(BinaryCollabCodec.TAG_OP_REJECTED, frame.get());
+        assertEquals(7L, BinaryCollabCodec.readNullableLong(frame));
+        assertEquals(9L, BinaryCollabCodec.readVarint(frame));
+        assertEquals("x", BinaryCollabCodec.readString(frame));
+        assertEquals("conflict", BinaryCollabCodec.readString(frame));
+        assertEquals("abc", BinaryCollabCodec.readString(frame));
+        assertEquals(2L, BinaryCollabCodec.readVarint(frame));
+        assertEquals(0L, BinaryCollabCodec.readVarint(frame));
+        assertEquals(2L, BinaryCollabCodec.readVarint(frame));
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    public void testEncoderReusesBufferAcrossFrames() throws Exception {
+        BinaryCollabCodec.Encoder encoder = codec.newEncoder();
+        OutboundMessage.UserJoined joined = new OutboundMessage.UserJoined(
+                new OutboundMessage.UserView("c1", "Ann", "#fff", "EDITOR"));
+
+        byte[] first = encoder.encode(joined);
+        byte[] second = encoder.encode(new OutboundMessage.ErrorMessage("nope"));
+        byte[] third = encoder.encode(joined);
+
+        assertArrayEquals(first, third);
+        assertEquals(BinaryCollabCodec.TAG_ERROR, second[0]);
+        assertEquals("nope", BinaryCollabCodec.readString(ByteBuffer.wrap(second, 1, second.length - 1)));
+    }
+
+    @Test
+    public void testJsonTaggedFrameIsDecodedAsJson() throws Exception {
+        byte[] json = "{\"type\":\"cursor-update\",\"selectionStart\":3,\"selectionEnd\":5}"
+                .getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(json.length + 1).put(BinaryCollabCodec.TAG_JSON).put(json).flip();
+
+        assertEquals(new InboundMessage.CursorUpdate(3, 5), codec.decode(frame));
+    }
+
+    @Test
+    public void testTruncatedFrameIsRejected() {
+        byte[] frame = { BinaryCollabCodec.TAG_CURSOR_UPDATE, (byte) 0x80 };
+
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(ByteBuffer.wrap(frame)));
+    }
+
+    @Test
+    public void testStringLengthPastTheFrameIsRejected() {
+        BinaryCollabCodec.Output out = new BinaryCollabCodec.Output();
+        out.writeByte(BinaryCollabCodec.TAG_CONTENT_UPDATE);
+        // Narrowed first, this length would read as an empty string
+        out.writeVarint((1L << 32) + 1);
+
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(ByteBuffer.wrap(out.toByteArray())));
+    }
+
+    @Test
+    public void testMissingDocIdIsEncodedAsAbsent() throws Exception {
+        ByteBuffer frame = ByteBuffer.wrap(codec.encode(new OutboundMessage.SaveError(null, "x")));
+
+        assertEquals(BinaryCollabCodec.TAG_SAVE_ERROR, frame.get());
+        assertNull(BinaryCollabCodec.readNullableLong(frame));
+        assertEquals("x", BinaryCollabCodec.readString(frame));
+    }
+}
@@ -0,0 +1,535 @@
+package com.se.documinity.collab;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.se.documinity.repository.DocumentContent;
+import com.se.documinity.repository.DocumentHeader;
+import com.se.documinity.repository.DocumentRepository;
+import com.se.documinity.repository.UserRepository;
+import com.se.documinity.service.CollabAccessService;
+import com.se.documinity.service.DocumentAccessService;
+import com.se.documinity.service.JwtService;
+import com.se.documinity.util.ShareTokenUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+public class ClusterRelayTest {
+
+    @Mock
+    private DocumentRepository documentRepository;
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private JwtService jwtService;
+
+    @Mock
+    private DocumentAccessService accessService;
+
+    @Mock
+    private SaveFlusher saveFlusher;
+
+    @Mock
+    private EditJournal journal;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final diff_match_patch dmp = new diff_match_patch();
+    private final InProcessClusterBus.Hub hub = new InProcessClusterBus.Hub();
+    private final AtomicReference<String> savedContent = new AtomicReference<>("hello world");
+    private final AtomicLong savedVersion = new AtomicLong();
+
+    @BeforeEach
+    public void setUp() {
+        DocumentHeader editorLink = header(DocumentAccessService.ROLE_EDITOR);
+        DocumentContent content = content();
+        when(documentRepository.findHeaderByShareTokenHash(any())).thenReturn(Optional.of(editorLink));
+        when(documentRepository.findContentById(1L)).thenReturn(Optional.of(content));
+        when(accessService.canEditRole(DocumentAccessService.ROLE_EDITOR)).thenReturn(true);
+        when(journal.append(anyLong(), anyLong(), anyLong(), anyByte(), any()))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        when(saveFlusher.writeNow(any(), any(), anyLong())).thenAnswer(invocation -> {
+            savedContent.set(invocation.getArgument(1));
+            savedVersion.set(invocation.getArgument(2));
+            return LocalDateTime.now();
+        });
+    }
+
+    private DocumentHeader header(String shareRole) {
+        DocumentHeader header = mock(DocumentHeader.class);
+        when(header.getId()).thenReturn(1L);
+        when(header.getStatus()).thenReturn("ACTIVE");
+        when(header.getShareRole()).thenReturn(shareRole);
+        return header;
+    }
+
+    private DocumentContent content() {
+        DocumentContent content = mock(DocumentContent.class);
+        when(content.getStatus()).thenReturn("ACTIVE");
+        when(content.getContent()).thenAnswer(invocation -> savedContent.get());
+        when(content.getContentVersion()).thenAnswer(invocation -> savedVersion.get());
+        return content;
+    }
+
+    private DocumentCollabHandler node(String nodeId) {
+        return node(nodeId, "", "");
+    }
+
+    private DocumentCollabHandler node(String nodeId, String sessionLimits, String roomLimits) {
+        RateLimiter rateLimiter = new RateLimiter(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(rateLimiter, "sessionSpec", sessionLimits);
+        ReflectionTestUtils.setField(rateLimiter, "roomSpec", roomLimits);
+        rateLimiter.start();
+        CollabMetrics metrics = new CollabMetrics(new SimpleMeterRegistry());
+        metrics.start();
+        DiffEngines diffEngines = new DiffEngines();
+        ReflectionTestUtils.setField(diffEngines, "timeoutMs", 1000L);
+        ReflectionTestUtils.setField(diffEngines, "largeDocChars", 1 << 18);
+        ReflectionTestUtils.setField(diffEngines, "largeTimeoutMs", 5000L);
+        ReflectionTestUtils.setField(diffEngines, "matchThreshold", 0.5f);
+        ReflectionTestUtils.setField(diffEngines, "matchDistance", 1000);
+        diffEngines.start();
+        RoomRegistry rooms = new RoomRegistry(new SimpleMeterRegistry());
+        rooms.start();
+        CollabAccessService collabAccess = new CollabAccessService(documentRepository, userRepository, accessService);
+        ReflectionTestUtils.setField(collabAccess, "ttlMs", 30_000L);
+        ReflectionTestUtils.setField(collabAccess, "maxEntries", 100);
+        DocumentCollabHandler handler = new DocumentCollabHandler(documentRepository, jwtService, accessService,
+                collabAccess, saveFlusher, journal, new InProcessClusterBus(hub, nodeId), rooms, rateLimiter,
+                metrics, diffEngines);
+        ReflectionTestUtils.setField(handler, "maxEditors", 10);
+        ReflectionTestUtils.setField(handler, "maxViewers", 1000);
+        ReflectionTestUtils.setField(handler, "cursorTickHz", 25);
+        ReflectionTestUtils.setField(handler, "outboxBufferSizeLimit", 1 << 20);
+        ReflectionTestUtils.setField(handler, "outboxSendTimeLimitMs", 5000L);
+        ReflectionTestUtils.setField(handler, "heartbeatIntervalMs", 15_000L);
+        ReflectionTestUtils.setField(handler, "heartbeatTimeoutMs", 45_000L);
+        ReflectionTestUtils.setField(handler, "presenceDebounceMs", 20L);
+        ReflectionTestUtils.setField(handler, "drainTimeoutMs", 5000L);
+        ReflectionTestUtils.setField(handler, "drainParallelism", 2);
+        handler.start();
+        return handler;
+    }
+
+    private Client connect(DocumentCollabHandler handler, String clientId) throws Exception {
+        return connect(handler, clientId, "token");
+    }
+
+    private Client connect(DocumentCollabHandler handler, String clientId, String shareToken) throws Exception {
+        Client client = new Client(clientId);
+        handler.afterConnectionEstablished(client.session);
+        handler.handleTextMessage(client.session, new TextMessage("{\"type\":\"join\",\"shareToken\":\""
+                + shareToken + "\",\"clientId\":\"" + clientId + "\"}"));
+        return client;
+    }
+
+    private void sendPatch(DocumentCollabHandler handler, Client client, long baseVersion, String opId,
+            String from, String to) throws Exception {
+        String patches = dmp.patch_toText(dmp.patch_make(from, to));
+        handler.handleTextMessage(client.session, new TextMessage(objectMapper.writeValueAsString(Map.of(
+                "type", "patch-update", "baseVersion", baseVersion, "opId", opId, "patches", patches))));
+    }
+
+    private void moveCursor(DocumentCollabHandler handler, Client client, int position) throws Exception {
+        handler.handleTextMessage(client.session, new TextMessage(
+                "{\"type\":\"cursor-update\",\"selectionStart\":" + position + ",\"selectionEnd\":" + position + "}"));
+    }
+
+    private static int selectionOf(JsonNode cursors, String clientId) {
+        for (JsonNode cursor : cursors.path("cursors")) {
+            if (clientId.equals(cursor.path("user").path("clientId").asText())) {
+                return cursor.path("selectionStart").asInt();
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testFollowerSessionsEditThroughTheOwner() throws Exception {
+        DocumentCollabHandler owner = node("node-1");
+        DocumentCollabHandler follower = node("node-2");
+
+        Client alice = connect(owner, "alice");
+        assertEquals("hello world", alice.next("joined").path("content").asText());
+        Client bob = connect(follower, "bob");
+        JsonNode joined = bob.next("joined");
+        assertEquals("hello world", joined.path("content").asText());
+        assertEquals(2, joined.path("users").size());
+
+        sendPatch(owner, alice, 0, "a1", "hello world", "hello big world");
+        JsonNode relayed = bob.next("patch-update");
+        assertEquals("alice", relayed.path("from").asText());
+        assertEquals(1, relayed.path("serverVersion").asLong());
+
+        sendPatch(follower, bob, 1, "b1", "hello big world", "hello big world!");
+        assertEquals("bob", alice.next("patch-update").path("from").asText());
+        JsonNode ack = bob.next("ack");
+        assertEquals("b1", ack.path("opId").asText());
+        assertEquals(2, ack.path("serverVersion").asLong());
+    }
+
+    @Test
+    public void testRoomMovesToFollowerWhenOwnerLeaves() throws Exception {
+        DocumentCollabHandler owner = node("node-1");
+        DocumentCollabHandler follower = node("node-2");
+        Client alice = connect(owner, "alice");
+        alice.next("joined");
+        Client bob = connect(follower, "bob");
+        bob.next("joined");
+        sendPatch(follower, bob, 0, "b1", "hello world", "hello world!");
+        bob.next("ack");
+
+        DocumentCollabHandler.DrainReport report = owner.drain();
+        assertEquals(1, report.rooms());
+        assertEquals(1, report.saved());
+        // Its own sessions are told to reconnect, and joins are turned away from then on
+        verify(alice.session, timeout(5000)).close(CloseStatus.SERVICE_RESTARTED);
+        Client late = connect(owner, "late");
+        verify(late.session).close(CloseStatus.SERVICE_RESTARTED);
+
+        // The owner saved on the way out and the follower reopened the room from that state
+        JsonNode rejoined = bob.next("joined");
+        assertEquals("hello world!", rejoined.path("content").asText());
+        assertEquals(1, rejoined.path("serverVersion").asLong());
+        sendPatch(follower, bob, 1, "b2", "hello world!", "hello world!!");
+        assertEquals(2, bob.next("ack").path("serverVersion").asLong());
+
+        follower.afterConnectionClosed(bob.session, CloseStatus.NORMAL);
+        verify(saveFlusher, timeout(5000)).writeNow(any(), eq("hello world!!"), eq(2L));
+    }
+
+    @Test
+    public void testDrainReportsRoomsThatCouldNotBeSaved() throws Exception {
+        DocumentCollabHandler owner = node("node-1");
+        Client alice = connect(owner, "alice");
+        alice.next("joined");
+        sendPatch(owner, alice, 0, "a1", "hello world", "hello world!");
+        alice.next("ack");
+        when(saveFlusher.writeNow(any(), any(), anyLong())).thenReturn(null);
+
+        DocumentCollabHandler.DrainReport report = owner.drain();
+
+        assertEquals(1, report.rooms());
+        assertEquals(0, report.saved());
+        assertEquals(1, report.failed());
+        // Acked edits stay journaled for replay on the next start
+        verify(journal, never()).saved(anyLong(), anyLong());
+        assertSame(report, owner.drain());
+    }
+
+    @Test
+    public void testOpsThatCannotBeJournaledAreSavedBeforeTheAck() throws Exception {
+        DocumentCollabHandler owner = node("node-1");
+        DocumentCollabHandler follower = node("node-2");
+        Client alice = connect(owner, "alice");
+        alice.next("joined");
+        Client bob = connect(follower, "bob");
+        bob.next("joined");
+        when(journal.append(anyLong(), anyLong(), anyLong(), anyByte(), any()))
+                .thenReturn(CompletableFuture.failedFuture(new IOException("disk full")));
+
+        sendPatch(owner, alice, 0, "a1", "hello world", "hello world!");
+        assertEquals(1, alice.next("ack").path("serverVersion").asLong());
+        verify(saveFlusher).writeNow(any(), eq("hello world!"), eq(1L));
+
+        // Neither journaled nor saved: the sender rejoins instead of being told the op is safe
+        when(saveFlusher.writeNow(any(), any(), anyLong())).thenReturn(null);
+        sendPatch(follower, bob, 1, "b1", "hello world!", "hello world!?");
+        verify(bob.session, timeout(5000)).close(SessionOutbox.RESYNC);
+        for (JsonNode message : bob.received) {
+            assertNotEquals("ack", message.path("type").asText());
+        }
+    }
+
+    @Test
+    public void testViewersJoinPastTheEditorLimitAndSkipPresence() throws Exception {
+        DocumentHeader viewerLink = header(DocumentAccessService.ROLE_VIEWER);
+        when(documentRepository.findHeaderByShareTokenHash(ShareTokenUtil.hashToken("view")))
+                .thenReturn(Optional.of(viewerLink));
+        DocumentCollabHandler owner = node("node-1");
+        DocumentCollabHandler follower = node("node-2");
+        ReflectionTestUtils.setField(owner, "maxEditors", 1);
+        Client alice = connect(owner, "alice");
+        alice.next("joined");
+        alice.next("user-joined");
+
+        // The single editor seat is taken, but viewers have their own limit
+        Client carol = connect(owner, "carol", "view");
+        JsonNode joined = carol.next("joined");
+        assertEquals(DocumentAccessService.ROLE_VIEWER, joined.path("role").asText());
+        assertEquals(1, joined.path("users").size());
+        Client dave = connect(follower, "dave", "view");
+        assertEquals("hello world", dave.next("joined").path("content").asText());
+
+        owner.handleTextMessage(alice.session, new TextMessage(
+                "{\"type\":\"cursor-update\",\"selectionStart\":3,\"selectionEnd\":3}"));
+        sendPatch(owner, alice, 0, "a1", "hello world", "hello big world");
+        assertEquals(1, carol.next("patch-update").path("serverVersion").asLong());
+        assertEquals(1, dave.next("patch-update").path("serverVersion").asLong());
+
+        // Viewers never caused a roster event and never see cursors
+        alice.next("ack");
+        Thread.sleep(200);
+        for (Client viewer : new Client[] { carol, dave }) {
+            for (JsonNode message : viewer.received) {
+                assertNotEquals("cursors", message.path("type").asText());
+            }
+        }
+        for (JsonNode message : alice.received) {
+            assertFalse(message.path("type").asText().startsWith("user-"));
+        }
+    }
+
+    @Test
+    public void testRejoinReceivesOnlyTheMissedOps() throws Exception {
+        DocumentCollabHandler owner = node("node-1");
+        DocumentCollabHandler follower = node("node-2");
+        Client alice = connect(owner, "alice");
+        alice.next("joined");
+        Client bob = connect(follower, "bob");
+        bob.next("joined");
+        follower.afterConnectionClosed(bob.session, CloseStatus.GOING_AWAY);
+
+        sendPatch(owner, alice, 0, "a1", "hello world", "hello big world");
+        sendPatch(owner, alice, 1, "a2", "hello big world", "hello big world!");
+        alice.next("ack");
+        alice.next("ack");
+
+        Client back = new Client("bob-2");
+        follower.handleTextMessage(back.session, new TextMessage(
+                "{\"type\":\"join\",\"shareToken\":\"token\",\"clientId\":\"bob\",\"lastVersion\":0}"));
+        JsonNode joined = back.next("joined");
+        assertTrue(joined.path("content").isNull());
+        assertEquals(0, joined.path("serverVersion").asLong());
+        String content = "hello world";
+        for (long version = 1; version <= 2; version++) {
+            JsonNode missed = back.next("patch-update");
+            assertEquals(version, missed.path("serverVersion").asLong());
+            content = (String) dmp.patch_apply(
+                    new LinkedList<>(dmp.patch_fromText(missed.path("patches").asText())), content)[0];
+        }
+        assertEquals("hello big world!", content);
+
+        // A version the room cannot continue from gets a full snapshot instead
+        Client stale = new Client("carol");
+        owner.handleTextMessage(stale.session, new TextMessage(
+                "{\"type\":\"join\",\"shareToken\":\"token\",\"clientId\":\"carol\",\"lastVersion\":9}"));
+        JsonNode snapshot = stale.next("joined");
+        assertEquals("hello big world!", snapshot.path("content").asText());
+        assertEquals(2, snapshot.path("serverVersion").asLong());
+    }
+
+    @Test
+    public void testFullContentGoesOutAsAPatchAndSnapshotsOnRequest() throws Exception {
+        DocumentCollabHandler owner = node("node-1");
+        DocumentCollabHandler follower = node("node-2");
+        Client alice = connect(owner, "alice");
+        alice.next("joined");
+        Client bob = connect(follower, "bob");
+        bob.next("joined");
+
+        follower.handleTextMessage(bob.session, new TextMessage(
+                "{\"type\":\"content-update\",\"content\":\"hello brave world\"}"));
+
+        JsonNode relayed = alice.next("patch-update");
+        assertEquals("bob", relayed.path("from").asText());
+        assertEquals(1, relayed.path("serverVersion").asLong());
+        assertEquals("hello brave world", dmp.patch_apply(
+                new LinkedList<>(dmp.patch_fromText(relayed.path("patches").asText())), "hello world")[0]);
+        assertEquals(1, bob.next("ack").path("serverVersion").asLong());
+
+        follower.handleTextMessage(bob.session, new TextMessage("{\"type\":\"snapshot-request\"}"));
+        JsonNode snapshot = bob.next("content-update");
+        assertEquals("hello brave world", snapshot.path("content").asText());
+        assertEquals(1, snapshot.path("serverVersion").asLong());
+        for (JsonNode message : alice.received) {
+            assertNotEquals("content-update", message.path("type").asText());
+        }
+    }
+
+    @Test
+    public void testRosterChangesAreAnnouncedAsDebouncedDeltas() throws Exception {
+        DocumentCollabHandler owner = node("node-1");
+        DocumentCollabHandler follower = node("node-2");
+        ReflectionTestUtils.setField(owner, "presenceDebounceMs", 300L);
+        Client alice = connect(owner, "alice");
+        alice.next("joined");
+        assertEquals("alice", alice.next("user-joined").path("user").path("clientId").asText());
+
+        Client bob = connect(follower, "bob");
+        assertEquals(2, bob.next("joined").path("users").size());
+        JsonNode joined = alice.next("user-joined");
+        assertEquals("bob", joined.path("user").path("clientId").asText());
+        assertEquals(DocumentAccessService.ROLE_EDITOR, joined.path("user").path("role").asText());
+
+        // Dropping and rejoining within the debounce window announces nothing
+        follower.afterConnectionClosed(bob.session, CloseStatus.GOING_AWAY);
+        Client back = connect(follower, "bob");
+        back.next("joined");
+        Thread.sleep(600);
+        for (JsonNode message : alice.received) {
+            assertFalse(message.path("type").asText().startsWith("user-"), message.toString());
+        }
+
+        follower.afterConnectionClosed(back.session, CloseStatus.NORMAL);
+        assertEquals("bob", alice.next("user-left").path("clientId").asText());
+    }
+
+    @Test
+    public void testEditsOverTheLimitsAreDroppedAndSignalled() throws Exception {
+        DocumentCollabHandler owner = node("node-1", "patch-update=0.1/2", "content-update=0.1/1");
+        DocumentCollabHandler follower = node("node-2", "", "");
+        Client alice = connect(owner, "alice");
+        alice.next("joined");
+
+        sendPatch(owner, alice, 0, "a1", "hello world", "hello world!");
+        sendPatch(owner, alice, 1, "a2", "hello world!", "hello world!!");
+        sendPatch(owner, alice, 2, "a3", "hello world!!", "hello world!!!");
+        sendPatch(owner, alice, 2, "a4", "hello world!!", "hello world!!?");
+        JsonNode throttled = alice.next("throttled");
+        assertEquals("patch-update", throttled.path("request").asText());
+        assertEquals("a3", throttled.path("opId").asText());
+        assertTrue(throttled.path("retryAfterMs").asLong() > 0);
+        Thread.sleep(200);
+        // One signal per run of drops, and only the admitted ops were applied
+        for (JsonNode message : alice.received) {
+            assertNotEquals("throttled", message.path("type").asText());
+            if ("ack".equals(message.path("type").asText())) {
+                assertTrue(message.path("serverVersion").asLong() <= 2);
+            }
+        }
+
+        // The owner's room limit also covers edits relayed from other nodes
+        Client bob = connect(follower, "bob");
+        bob.next("joined");
+        follower.handleTextMessage(bob.session, new TextMessage(
+                "{\"type\":\"content-update\",\"content\":\"hello brave world\"}"));
+        assertEquals(3, bob.next("ack").path("serverVersion").asLong());
+        follower.handleTextMessage(bob.session, new TextMessage(
+                "{\"type\":\"content-update\",\"content\":\"hello braver world\"}"));
+        assertEquals("content-update", bob.next("throttled").path("request").asText());
+    }
+
+    @Test
+    public void testCursorMovesAreCoalescedIntoOneFramePerTick() throws Exception {
+        DocumentCollabHandler owner = node("node-1");
+        // 5ms ticks, read when the room opens
+        ReflectionTestUtils.setField(owner, "cursorTickHz", 200);
+        Client alice = connect(owner, "alice");
+        alice.next("joined");
+        Client bob = connect(owner, "bob");
+        bob.next("joined");
+        moveCursor(owner, alice, 1);
+
+        long started = System.nanoTime();
+        int moves = 50;
+        for (int i = 1; i <= moves; i++) {
+            moveCursor(owner, bob, i);
+        }
+        int frames = 0;
+        JsonNode frame;
+        do {
+            frame = alice.next("cursors");
+            frames++;
+        } while (selectionOf(frame, "bob") != moves);
+        long ticks = (System.nanoTime() - started) / TimeUnit.MILLISECONDS.toNanos(5) + 1;
+        assertTrue(frames <= ticks + 1, frames + " frames in " + ticks + " ticks");
+        assertTrue(frames < moves, frames + " frames for " + moves + " moves");
+        assertEquals(1, selectionOf(frame, "alice"));
+
+        // A move applied between a tick and its flush can repeat the last frame once
+        Thread.sleep(50);
+        for (JsonNode message : alice.received) {
+            if ("cursors".equals(message.path("type").asText())) {
+                assertEquals(moves, selectionOf(message, "bob"), message.toString());
+            }
+        }
+        alice.received.clear();
+        // Twenty idle ticks send nothing
+        Thread.sleep(100);
+        for (JsonNode message : alice.received) {
+            assertNotEquals("cursors", message.path("type").asText(), message.toString());
+        }
+
+        // A departed user's cursor goes out of the next frame
+        owner.afterConnectionClosed(bob.session, CloseStatus.NORMAL);
+        JsonNode afterLeave = alice.next("cursors");
+        assertEquals(-1, selectionOf(afterLeave, "bob"));
+        assertEquals(1, selectionOf(afterLeave, "alice"));
+    }
+
+    @Test
+    public void testInProcessBusHandsOwnershipOver() throws Exception {
+        InProcessClusterBus first = new InProcessClusterBus(hub, "node-1");
+        InProcessClusterBus second = new InProcessClusterBus(hub, "node-2");
+        BlockingQueue<String> left = new LinkedBlockingQueue<>();
+        second.onNodeLeft(left::add);
+
+        assertEquals("node-1", first.claim(7L));
+        assertEquals("node-1", second.claim(7L));
+        first.leave();
+
+        assertEquals("node-1", left.poll(5, TimeUnit.SECONDS));
+        assertEquals("node-2", second.claim(7L));
+    }
+
+    /**
+     * A WebSocket client on one node, recording the JSON frames it receives.
+     */
+    private final class Client {
+        final WebSocketSession session = mock(WebSocketSession.class);
+        final BlockingQueue<JsonNode> received = new LinkedBlockingQueue<>();
+
+        Client(String id) throws Exception {
+            Map<String, Object> attributes = new ConcurrentHashMap<>();
+            when(session.getId()).thenReturn(id);
+            when(session.getAttributes()).thenReturn(attributes);
+            when(session.isOpen()).thenReturn(true);
+            doAnswer(invocation -> {
+                TextMessage message = invocation.getArgument(0);
+                received.add(objectMapper.readTree(message.getPayload()));
+                return null;
+            }).when(session).sendMessage(any());
+        }
+
+        JsonNode next(String type) throws InterruptedException {
+            while (true) {
+                JsonNode message = received.poll(5, TimeUnit.SECONDS);
+                assertNotNull(message, "timed out waiting for " + type);
+                if (type.equals(message.path("type").asText())) {
+                    return message;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,592 @@
+package com.se.documinity.collab;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.se.documinity.entity.DocumentEntity;
+import com.se.documinity.repository.DocumentContent;
+import com.se.documinity.repository.DocumentRepository;
+import com.se.documinity.service.DocumentAccessService;
+import com.se.documinity.util.ShareTokenUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.websocket.ContainerProvider;
+import jakarta.websocket.WebSocketContainer;
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Load harness for {@code /ws/documents}: starts the app against H2, opens
+ * {@code load.clients} simulated editors spread over {@code load.rooms}
+ * shared documents and has each type into its document for
+ * {@code load.seconds}. Clients follow the same protocol as the web client:
+ * they keep the server's text at the last serverVersion and at most one op
+ * in flight, apply the patches of others to that text exactly, rebase the
+ * op in flight over them the way the server will, and send what was typed
+ * meanwhile once the op is settled. A snapshot is only asked for when a
+ * patch does not apply.
+ *
+ * Once typing stops every client must hold the room's content, and the room
+ * must be saved once everyone leaves. Reports throughput, end-to-end
+ * propagation latency (from a patch being sent to it reaching each other
+ * editor), convergence errors and the server threads' allocation rate.
+ *
+ * Not part of the normal build; run it with
+ * {@code mvn test -Pcollab-load -Dload.clients=200 -Dload.rooms=20 -Dload.seconds=60}.
+ * Add {@code -Dload.typing-ms=} to change the mean pause between keystrokes.
+ */
+@Tag("load")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        // The harness measures the engine; room-wide limits would only turn extra clients into drops
+        "app.collab.rate-limit.room=",
+        "app.collab.max-editors=100",
+        "app.collab.journal.dir=target/collab-load-journal"
+})
+public class CollabLoadTest {
+    private static final int CLIENTS = Integer.getInteger("load.clients", 40);
+    private static final int ROOMS = Integer.getInteger("load.rooms", 4);
+    private static final int SECONDS = Integer.getInteger("load.seconds", 20);
+    private static final int TYPING_MS = Integer.getInteger("load.typing-ms", 150);
+    private static final long SETTLE_SECONDS = 30;
+    private static final String[] WORDS = {"the", "collab", "room", "patch", "version", "quick", "brown", "fox",
+            "server", "rebase", "cursor", "markdown", "editor", "latency", "snapshot", "merge"};
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private DocumentRepository documentRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final diff_match_patch dmp = new diff_match_patch();
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor();
+    // Editors queue their sends like the server does, so none blocks while handling what it receives
+    private final ExecutorService sends = Executors.newVirtualThreadPerTaskExecutor();
+    // When each accepted version was sent, and when each other editor received it
+    private final Map<String, Long> sentAt = new ConcurrentHashMap<>();
+    private final Map<String, Queue<Long>> receivedAt = new ConcurrentHashMap<>();
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    @Test
+    public void testEditorsConvergeUnderLoad() throws Exception {
+        List<Long> docIds = new ArrayList<>();
+        for (int room = 0; room < ROOMS; room++) {
+            docIds.add(seed(room));
+        }
+        WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+        container.setDefaultMaxTextMessageBufferSize(4 << 20);
+        StandardWebSocketClient client = new StandardWebSocketClient(container);
+        ScheduledExecutorService typing = Executors.newScheduledThreadPool(4);
+
+        List<SimulatedEditor> editors = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            int room = i % ROOMS;
+            SimulatedEditor editor = new SimulatedEditor("load-" + i, docIds.get(room), token(room), new Random(i));
+            editor.connect(client);
+            editors.add(editor);
+        }
+        for (SimulatedEditor editor : editors) {
+            editor.awaitJoined();
+        }
+
+        Map<Long, Long> allocatedBefore = serverAllocatedBytes();
+        long started = System.nanoTime();
+        long deadline = started + TimeUnit.SECONDS.toNanos(SECONDS);
+        for (SimulatedEditor editor : editors) {
+            editor.typeUntil(typing, deadline);
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(SECONDS));
+        typing.shutdown();
+        typing.awaitTermination(5, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - started;
+        long allocated = 0;
+        for (Map.Entry<Long, Long> thread : serverAllocatedBytes().entrySet()) {
+            allocated += thread.getValue() - allocatedBefore.getOrDefault(thread.getKey(), 0L);
+        }
+
+        // Let the last ops, holds and snapshots land
+        long settleBy = System.nanoTime() + TimeUnit.SECONDS.toNanos(SETTLE_SECONDS);
+        while (System.nanoTime() < settleBy && !editors.stream().allMatch(SimulatedEditor::settled)) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(1000);
+
+        int divergent = 0;
+        Map<Long, String> roomContent = new HashMap<>();
+        for (int room = 0; room < ROOMS; room++) {
+            SimulatedEditor checker = new SimulatedEditor("check-" + room, docIds.get(room), token(room), new Random());
+            checker.connect(client);
+            checker.awaitJoined();
+            roomContent.put(docIds.get(room), checker.text());
+            checker.close();
+        }
+        for (SimulatedEditor editor : editors) {
+            if (!editor.text().equals(roomContent.get(editor.docId))) {
+                divergent++;
+            }
+            editor.close();
+        }
+        timers.shutdown();
+        sends.shutdown();
+
+        // The last session out flushes the room
+        int unsaved = 0;
+        for (Long docId : docIds) {
+            long savedBy = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            String saved = null;
+            while (System.nanoTime() < savedBy) {
+                saved = documentRepository.findContentById(docId).map(DocumentContent::getContent).orElse(null);
+                if (roomContent.get(docId).equals(saved)) {
+                    break;
+                }
+                Thread.sleep(100);
+            }
+            if (!roomContent.get(docId).equals(saved)) {
+                unsaved++;
+            }
+        }
+
+        report(elapsed, allocated, divergent, unsaved);
+        assertEquals(0, divergent, "editors whose content differs from the room's after settling");
+        assertEquals(0, unsaved, "rooms whose saved content differs from the live content");
+    }
+
+    private Long seed(int room) {
+        DocumentEntity document = new DocumentEntity();
+        document.setTitle("Load room " + room);
+        document.setContent(markdown(room));
+        document.setStatus("ACTIVE");
+        document.setIsPublic(false);
+        document.setShareEnabled(true);
+        document.setShareTokenHash(ShareTokenUtil.hashToken(token(room)));
+        document.setShareRole(DocumentAccessService.ROLE_EDITOR);
+        document.setContentVersion(0L);
+        document.setCreatedDate(LocalDateTime.now());
+        document.setLastModified(LocalDateTime.now());
+        return documentRepository.save(document).getId();
+    }
+
+    private static String token(int room) {
+        return "load-room-" + room;
+    }
+
+    private static String markdown(int room) {
+        StringBuilder text = new StringBuilder("# Load room " + room + "\n\n");
+        Random random = new Random(room);
+        for (int section = 1; section <= 8; section++) {
+            text.append("## Section ").append(section).append("\n\n");
+            for (int sentence = 0; sentence < 6; sentence++) {
+                for (int word = 0; word < 12; word++) {
+                    text.append(WORDS[random.nextInt(WORDS.length)]).append(word == 11 ? ". " : " ");
+                }
+            }
+            text.append("\n\n- first point\n- second point\n\n");
+        }
+        return text.toString();
+    }
+
+    private void report(long elapsedNanos, long allocatedBytes, int divergent, int unsaved) {
+        List<Long> latencies = new ArrayList<>();
+        receivedAt.forEach((version, receipts) -> {
+            Long sent = sentAt.get(version);
+            if (sent != null) {
+                for (Long receipt : receipts) {
+                    latencies.add(receipt - sent);
+                }
+            }
+        });
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        double seconds = elapsedNanos / 1e9;
+        Map<String, Object> rows = new LinkedHashMap<>();
+        rows.put("clients / rooms", CLIENTS + " / " + ROOMS);
+        rows.put("ops acked", acked.get() + String.format(" (%.0f/s)", acked.get() / seconds));
+        rows.put("patches received", received.get() + String.format(" (%.0f/s)", received.get() / seconds));
+        rows.put("propagation p50", millis(percentile(sorted, 0.50)));
+        rows.put("propagation p99", millis(percentile(sorted, 0.99)));
+        rows.put("propagation max", millis(sorted.length > 0 ? sorted[sorted.length - 1] : 0));
+        rows.put("ops rejected", rejected.get());
+        rows.put("snapshots requested", snapshots.get());
+        rows.put("throttled", throttled.get() + " (server counted "
+                + (long) meterRegistry.find("collab.throttled").counters().stream().mapToDouble(Counter::count).sum()
+                + ")");
+        rows.put("convergence errors", divergent);
+        rows.put("rooms saved wrong", unsaved);
+        rows.put("allocation rate", String.format("%.1f MB/s (server threads)",
+                allocatedBytes / seconds / (1 << 20)));
+        System.out.println("\n==== collab load: " + SECONDS + "s ====");
+        rows.forEach((name, value) -> System.out.printf("%-22s %s%n", name, value));
+    }
+
+    /**
+     * Bytes allocated so far by each live server thread: the connector's and
+     * the carriers the server's virtual threads (room mailboxes, outboxes,
+     * saves) run on. The clients' container and typing threads share the JVM
+     * but are left out.
+     */
+    private Map<Long, Long> serverAllocatedBytes() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        String connector = "http-nio-" + port + "-";
+        long[] ids = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith(connector)
+                        || "jdk.internal.misc.CarrierThread".equals(thread.getClass().getName()))
+                .mapToLong(Thread::threadId)
+                .toArray();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0) {
+                allocated.put(ids[i], bytes[i]);
+            }
+        }
+        return allocated;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+
+    /**
+     * One editor typing into a document. All of its state is guarded by
+     * the instance, as messages arrive on the container's threads and
+     * keystrokes on the typing pool.
+     */
+    private final class SimulatedEditor extends TextWebSocketHandler {
+        final String clientId;
+        final Long docId;
+        final String shareToken;
+        final Random random;
+        final Map<String, Long> pending = new HashMap<>();
+        WebSocketSession session;
+        SessionOutbox outbox;
+        // The server's text at serverVersion, and the one op it has yet to settle
+        Rope confirmed;
+        long serverVersion;
+        LinkedList<diff_match_patch.Patch> inflight;
+        // confirmed with the op in flight applied, and that plus what was typed since; ropes, like
+        // the room's, so that keeping up with everyone else's patches costs little
+        Rope basis;
+        Rope local;
+        // Whether local holds edits not sent yet
+        boolean typed;
+        // Acks still to come for ops already counted in from a version gap or a snapshot
+        int settledAhead;
+        int opSeq;
+        int cursor;
+        boolean holding;
+        boolean awaitingSnapshot;
+
+        SimulatedEditor(String clientId, Long docId, String shareToken, Random random) {
+            this.clientId = clientId;
+            this.docId = docId;
+            this.shareToken = shareToken;
+            this.random = random;
+        }
+
+        void connect(StandardWebSocketClient client) throws Exception {
+            session = client.execute(this, new WebSocketHttpHeaders(),
+                    URI.create("ws://localhost:" + port + "/api/ws/documents")).get(10, TimeUnit.SECONDS);
+            outbox = new SessionOutbox(session, false, sends, 4 << 20, 10_000);
+            send(Map.of("type", "join", "docId", docId, "clientId", clientId, "shareToken", shareToken,
+                    "displayName", clientId));
+        }
+
+        synchronized void awaitJoined() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (local == null && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertNotNull(local, clientId + " was not let in");
+        }
+
+        synchronized String text() {
+            return local.toString();
+        }
+
+        synchronized boolean settled() {
+            return inflight == null && settledAhead == 0 && !holding && !awaitingSnapshot && !typed;
+        }
+
+        void typeUntil(ScheduledExecutorService typing, long deadline) {
+            long delay = (long) (-Math.log(1 - random.nextDouble()) * TYPING_MS);
+            typing.schedule(() -> {
+                if (System.nanoTime() >= deadline) {
+                    return;
+                }
+                try {
+                    keystroke();
+                } catch (Exception e) {
+                    System.err.println(clientId + " failed to send: " + e.getMessage());
+                }
+                typeUntil(typing, deadline);
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void keystroke() throws Exception {
+            cursor = Math.min(cursor, local.length());
+            int roll = random.nextInt(100);
+            if (roll < 80) {
+                String word = WORDS[random.nextInt(WORDS.length)] + " ";
+                local = local.replace(cursor, 0, word);
+                cursor += word.length();
+            } else if (roll < 92 && cursor > 0) {
+                local = local.replace(cursor - 1, 1, "");
+                cursor--;
+            } else if (roll < 97) {
+                cursor = random.nextInt(local.length() + 1);
+                send(Map.of("type", "cursor-update", "docId", docId, "selectionStart", cursor, "selectionEnd", cursor));
+                return;
+            } else {
+                String line = "\n- pasted " + WORDS[random.nextInt(WORDS.length)] + " line\n";
+                local = local.replace(cursor, 0, line);
+                cursor += line.length();
+            }
+            typed = true;
+            flush();
+        }
+
+        /** Sends everything typed since the last op, unless that op is still in flight. */
+        private void flush() {
+            if (inflight != null || holding || awaitingSnapshot || !typed) {
+                return;
+            }
+            typed = false;
+            String from = confirmed.toString();
+            String to = local.toString();
+            if (from.equals(to)) {
+                return;
+            }
+            inflight = dmp.patch_make(from, to);
+            basis = local;
+            String opId = clientId + ":" + ++opSeq;
+            pending.put(opId, System.nanoTime());
+            trySend(Map.of("type", "patch-update", "docId", docId, "baseVersion", serverVersion, "opId", opId,
+                    "patches", dmp.patch_toText(inflight)));
+        }
+
+        /** Carries what was typed on top of the old basis over to the new one. */
+        private void rebaseLocal(Rope next) {
+            if (!typed) {
+                local = next;
+            } else if (next != basis) {
+                // Only a few keystrokes apart, so a plain diff finds them without the line pass
+                String from = basis.toString();
+                LinkedList<diff_match_patch.Diff> edits = dmp.diff_main(from, local.toString(), false);
+                local = Rope.of((String) dmp.patch_apply(dmp.patch_make(from, edits), next.toString())[0]);
+            }
+            basis = next;
+        }
+
+        private void settleInflight(long version) {
+            Rope next = TransformEngine.applyExact(confirmed, inflight);
+            inflight = null;
+            if (next == null) {
+                requestSnapshot();
+                return;
+            }
+            confirmed = next;
+            serverVersion = version;
+        }
+
+        @Override
+        protected synchronized void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+            long now = System.nanoTime();
+            JsonNode data = objectMapper.readTree(message.getPayload());
+            switch (data.path("type").asText()) {
+                case "joined" -> {
+                    confirmed = Rope.of(data.path("content").asText());
+                    basis = confirmed;
+                    local = confirmed;
+                    serverVersion = data.path("serverVersion").asLong();
+                    notifyAll();
+                }
+                case "patch-update" -> {
+                    received.incrementAndGet();
+                    long version = data.path("serverVersion").asLong();
+                    receivedAt.computeIfAbsent(docId + ":" + version, key -> new ConcurrentLinkedQueue<>()).add(now);
+                    if (version <= serverVersion || awaitingSnapshot) {
+                        return;
+                    }
+                    if (version == serverVersion + 2 && inflight != null) {
+                        // Only our own ops are not relayed to us, so the version skipped is ours
+                        settledAhead++;
+                        settleInflight(version - 1);
+                    }
+                    LinkedList<diff_match_patch.Patch> patches =
+                            new LinkedList<>(dmp.patch_fromText(data.path("patches").asText()));
+                    Rope applied = version == serverVersion + 1 ? TransformEngine.applyExact(confirmed, patches) : null;
+                    if (applied == null) {
+                        requestSnapshot();
+                        return;
+                    }
+                    confirmed = applied;
+                    serverVersion = version;
+                    if (inflight == null) {
+                        rebaseLocal(confirmed);
+                    } else {
+                        TransformEngine.rebase(inflight, TransformEngine.spansOf(patches));
+                        Rope next = TransformEngine.applyExact(confirmed, inflight);
+                        if (next != null) {
+                            rebaseLocal(next);
+                        } else {
+                            // The op will be rejected; until then only this edit moves what is shown
+                            basis = Rope.of((String) dmp.patch_apply(patches, basis.toString())[0]);
+                            local = typed ? Rope.of((String) dmp.patch_apply(patches, local.toString())[0]) : basis;
+                        }
+                    }
+                    flush();
+                }
+                case "content-update" -> {
+                    long version = data.path("serverVersion").asLong();
+                    if (!awaitingSnapshot && version <= serverVersion) {
+                        return;
+                    }
+                    awaitingSnapshot = false;
+                    if (inflight != null) {
+                        // Asked for after the op was sent, so it holds it; the ack is still to come
+                        inflight = null;
+                        settledAhead++;
+                    }
+                    confirmed = Rope.of(data.path("content").asText());
+                    serverVersion = version;
+                    rebaseLocal(confirmed);
+                    flush();
+                }
+                case "ack" -> {
+                    long version = data.path("serverVersion").asLong();
+                    Long sent = data.hasNonNull("opId") ? pending.remove(data.path("opId").asText()) : null;
+                    if (sent != null) {
+                        sentAt.put(docId + ":" + version, sent);
+                    }
+                    acked.incrementAndGet();
+                    if (settledAhead > 0) {
+                        settledAhead--;
+                        return;
+                    }
+                    if (inflight == null) {
+                        return;
+                    }
+                    if (awaitingSnapshot) {
+                        inflight = null;
+                    } else if (version == serverVersion + 1) {
+                        settleInflight(version);
+                    } else {
+                        inflight = null;
+                        requestSnapshot();
+                    }
+                    flush();
+                }
+                case "op-rejected" -> {
+                    rejected.incrementAndGet();
+                    inflight = null;
+                    // Redo the rejected op and whatever was typed since on top of the server's text
+                    Rope content = Rope.of(data.path("content").asText());
+                    basis = confirmed;
+                    typed = true;
+                    rebaseLocal(content);
+                    confirmed = content;
+                    serverVersion = data.path("serverVersion").asLong();
+                    flush();
+                }
+                case "throttled" -> {
+                    throttled.incrementAndGet();
+                    String request = data.path("request").asText();
+                    if ("patch-update".equals(request) || "content-update".equals(request)) {
+                        // Dropped unapplied; it goes out again with whatever is typed meanwhile
+                        inflight = null;
+                        basis = confirmed;
+                        typed = true;
+                        if (!holding) {
+                            holding = true;
+                            timers.schedule(this::endHold, data.path("retryAfterMs").asLong(), TimeUnit.MILLISECONDS);
+                        }
+                    } else if ("snapshot-request".equals(request)) {
+                        timers.schedule(this::resendSnapshotRequest, data.path("retryAfterMs").asLong(),
+                                TimeUnit.MILLISECONDS);
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+
+        private synchronized void endHold() {
+            holding = false;
+            flush();
+        }
+
+        private void requestSnapshot() {
+            if (!awaitingSnapshot) {
+                awaitingSnapshot = true;
+                snapshots.incrementAndGet();
+                trySend(Map.of("type", "snapshot-request", "docId", docId));
+            }
+        }
+
+        private synchronized void resendSnapshotRequest() {
+            trySend(Map.of("type", "snapshot-request", "docId", docId));
+        }
+
+        private void trySend(Map<String, Object> message) {
+            try {
+                send(message);
+            } catch (Exception e) {
+                System.err.println(clientId + " failed to send: " + e.getMessage());
+            }
+        }
+
+        private void send(Map<String, Object> message) throws Exception {
+            String json = objectMapper.writeValueAsString(message);
+            outbox.offer(new OutboundFrame((String) message.get("type"), null, new TextMessage(json), json.length(),
+                    null, 0));
+        }
+
+        void close() throws Exception {
+            session.close(CloseStatus.NORMAL);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.se.documinity.collab;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CollabMetricsTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private CollabMetrics metrics;
+
+    @BeforeEach
+    public void setUp() {
+        metrics = new CollabMetrics(meterRegistry);
+        metrics.start();
+    }
+
+    @Test
+    public void testInboundMessagesAreCountedByType() {
+        metrics.received(new InboundMessage.CursorUpdate(1, 2));
+        metrics.received(new InboundMessage.CursorUpdate(3, 4));
+        metrics.received(new InboundMessage.SnapshotRequest());
+        metrics.received(new InboundMessage.Unknown("made-up-1"));
+        metrics.received(new InboundMessage.Unknown("made-up-2"));
+
+        assertEquals(2, meterRegistry.get("collab.messages.inbound").tag("type", "cursor-update").counter().count());
+        assertEquals(1, meterRegistry.get("collab.messages.inbound").tag("type", "snapshot-request").counter().count());
+        // Whatever a client calls its messages, they share one series
+        assertEquals(2, meterRegistry.get("collab.messages.inbound").tag("type", "unknown").counter().count());
+        assertEquals(3, meterRegistry.get("collab.messages.inbound").counters().size());
+    }
+
+    @Test
+    public void testApplyAndFanOutAreTimed() {
+        metrics.applied("patch-update", true, TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.applied("patch-update", false, TimeUnit.MILLISECONDS.toNanos(4));
+        metrics.fannedOut(TimeUnit.MILLISECONDS.toNanos(1), 300);
+        metrics.fannedOut(TimeUnit.MILLISECONDS.toNanos(1), 500);
+
+        assertEquals(1, meterRegistry.get("collab.ops.apply")
+                .tag("type", "patch-update").tag("outcome", CollabMetrics.OUTCOME_REJECTED).timer().count());
+        assertEquals(2.0, meterRegistry.get("collab.ops.apply")
+                .tag("outcome", CollabMetrics.OUTCOME_APPLIED).timer().totalTime(TimeUnit.MILLISECONDS));
+        assertEquals(2, meterRegistry.get("collab.broadcast.fanout").timer().count());
+        assertEquals(800.0, meterRegistry.get("collab.broadcast.bytes").summary().totalAmount());
+    }
+
+    @Test
+    public void testSessionsGaugeFollowsConnections() {
+        metrics.sessionOpened();
+        metrics.sessionOpened();
+        metrics.sessionClosed();
+
+        assertEquals(1.0, meterRegistry.get("collab.sessions").gauge().value());
+    }
+}
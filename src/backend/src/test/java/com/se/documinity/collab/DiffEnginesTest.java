@@ -0,0 +1,31 @@
+package com.se.documinity.collab;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiffEnginesTest {
+
+    @Test
+    public void testLargeDocumentsGetTheirOwnTimeout() {
+        DiffEngines engines = new DiffEngines();
+        ReflectionTestUtils.setField(engines, "timeoutMs", 500L);
+        ReflectionTestUtils.setField(engines, "largeDocChars", 1000);
+        ReflectionTestUtils.setField(engines, "largeTimeoutMs", 4000L);
+        ReflectionTestUtils.setField(engines, "matchThreshold", 0.3f);
+        ReflectionTestUtils.setField(engines, "matchDistance", 200);
+        engines.start();
+
+        diff_match_patch small = engines.forLength(999);
+        diff_match_patch large = engines.forLength(1000);
+        assertEquals(0.5f, small.Diff_Timeout);
+        assertEquals(4.0f, large.Diff_Timeout);
+        assertEquals(0.3f, large.Match_Threshold);
+        assertEquals(200, large.Match_Distance);
+        // Engines are shared, not built per call
+        assertSame(small, engines.forLength(10));
+        assertSame(small, small.with(small.config()));
+    }
+}
@@ -0,0 +1,87 @@
+package com.se.documinity.collab;
+
+import com.se.documinity.entity.DocumentEntity;
+import com.se.documinity.repository.DocumentRepository;
+import com.se.documinity.repository.DocumentRevisionRepository;
+import com.se.documinity.service.DocumentRevisionService;
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Replays a journal against H2 the way startup does: from outside any
+ * transaction, through the real repositories.
+ */
+@SpringBootTest
+public class EditJournalRecoveryTest {
+
+    @Autowired
+    private DocumentRepository documentRepository;
+
+    @Autowired
+    private DocumentRevisionRepository revisionRepository;
+
+    @Autowired
+    private DocumentRevisionService revisionService;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @TempDir
+    private Path dir;
+
+    private final diff_match_patch dmp = new diff_match_patch();
+
+    private String patch(String from, String to) {
+        return dmp.patch_toText(dmp.patch_make(from, to));
+    }
+
+    @Test
+    public void testStartupWritesReplayedContentAndRevision() throws Exception {
+        DocumentEntity doc = new DocumentEntity();
+        doc.setTitle("Journaled");
+        doc.setContent("abc");
+        doc.setContentVersion(3L);
+        Long docId = documentRepository.save(doc).getId();
+
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        for (EditJournal.Entry entry : List.of(
+                new EditJournal.Entry(docId, 4L, EditJournal.checksum("abc"), EditJournal.KIND_PATCH,
+                        patch("abc", "abXc")),
+                new EditJournal.Entry(docId, 5L, EditJournal.NO_BASE, EditJournal.KIND_PATCH,
+                        patch("abXc", "abXcY")))) {
+            segment.write(EditJournal.encode(entry).array());
+        }
+        Files.write(dir.resolve("journal-00000000000000000000.log"), segment.toByteArray());
+
+        EditJournal journal = new EditJournal(documentRepository, revisionService, transactionTemplate);
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "dir", dir.toString());
+        ReflectionTestUtils.setField(journal, "segmentBytes", 1L << 20);
+        journal.start();
+        journal.stop();
+
+        DocumentEntity recovered = documentRepository.findById(docId).orElseThrow();
+        assertEquals("abXcY", recovered.getContent());
+        assertEquals(5L, recovered.getContentVersion());
+        assertTrue(revisionRepository.existsByDocumentIdAndVersion(docId, 5L));
+        // The replayed segment is gone; only the fresh, empty one is left
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> left = files.toList();
+            assertEquals(1, left.size());
+            assertEquals(0, Files.size(left.get(0)));
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.se.documinity.collab;
+
+import com.se.documinity.entity.DocumentEntity;
+import com.se.documinity.repository.DocumentRepository;
+import com.se.documinity.service.DocumentRevisionService;
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class EditJournalTest {
+
+    @Mock
+    private DocumentRepository documentRepository;
+
+    @Mock
+    private DocumentRevisionService revisionService;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @TempDir
+    private Path dir;
+
+    private final diff_match_patch dmp = new diff_match_patch();
+    private EditJournal journal;
+
+    private EditJournal open(long segmentBytes) throws Exception {
+        EditJournal opened = new EditJournal(documentRepository, revisionService,
+                new TransactionTemplate(transactionManager));
+        ReflectionTestUtils.setField(opened, "enabled", true);
+        ReflectionTestUtils.setField(opened, "dir", dir.toString());
+        ReflectionTestUtils.setField(opened, "segmentBytes", segmentBytes);
+        opened.start();
+        return opened;
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (journal != null) {
+            journal.stop();
+        }
+    }
+
+    private String patch(String from, String to) {
+        return dmp.patch_toText(dmp.patch_make(from, to));
+    }
+
+    private List<Path> segments() throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().toList();
+        }
+    }
+
+    /**
+     * Compaction runs once a batch's appends are acknowledged, so an awaited
+     * append does not mean its batch has compacted yet.
+     */
+    private void awaitSegments(IntPredicate expected) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!expected.test(segments().size()) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private long journaledBytes() throws Exception {
+        long total = 0;
+        for (Path segment : segments()) {
+            total += Files.size(segment);
+        }
+        return total;
+    }
+
+    @Test
+    public void testRecordRoundTrip() throws Exception {
+        EditJournal.Entry entry = new EditJournal.Entry(7L, 12L, EditJournal.checksum("abc"), EditJournal.KIND_PATCH,
+                "@@ -1,3 +1,4 @@\n ab\n+ü\n c\n");
+        ByteBuffer record = EditJournal.encode(entry);
+        Path file = dir.resolve("journal-00000000000000000000.log");
+        Files.write(file, record.array());
+
+        assertEquals(List.of(entry), EditJournal.read(file));
+    }
+
+    @Test
+    public void testTornTailIsIgnored() throws Exception {
+        EditJournal.Entry first = new EditJournal.Entry(7L, 1L, EditJournal.NO_BASE, EditJournal.KIND_CONTENT, "hello");
+        byte[] whole = EditJournal.encode(first).array();
+        byte[] torn = EditJournal.encode(
+                new EditJournal.Entry(7L, 2L, EditJournal.NO_BASE, EditJournal.KIND_CONTENT, "hello world")).array();
+        byte[] bytes = new byte[whole.length + torn.length - 3];
+        System.arraycopy(whole, 0, bytes, 0, whole.length);
+        System.arraycopy(torn, 0, bytes, whole.length, torn.length - 3);
+        Path file = dir.resolve("journal-00000000000000000000.log");
+        Files.write(file, bytes);
+
+        assertEquals(List.of(first), EditJournal.read(file));
+    }
+
+    @Test
+    public void testAppendIsDurableBeforeFutureCompletes() throws Exception {
+        journal = open(1 << 20);
+
+        journal.append(7L, 1L, EditJournal.checksum("abc"), EditJournal.KIND_PATCH, patch("abc", "abXc"))
+                .get(5, TimeUnit.SECONDS);
+
+        List<Path> files = segments();
+        assertEquals(1, files.size());
+        List<EditJournal.Entry> entries = EditJournal.read(files.get(0));
+        assertEquals(1, entries.size());
+        assertEquals(1L, entries.get(0).version());
+    }
+
+    @Test
+    public void testStartupReplaysEditsNewerThanPersistedVersion() throws Exception {
+        journal = open(1 << 20);
+        journal.append(7L, 3L, EditJournal.checksum("abc"), EditJournal.KIND_PATCH, patch("abc", "abXc"));
+        // Saved at version 3, so version 4 records what it was applied to
+        journal.append(7L, 4L, EditJournal.checksum("abXc"), EditJournal.KIND_PATCH, patch("abXc", "abXcY"));
+        journal.append(7L, 5L, EditJournal.NO_BASE, EditJournal.KIND_PATCH, patch("abXcY", "ZabXcY"))
+                .get(5, TimeUnit.SECONDS);
+        journal.stop();
+        journal = null;
+
+        DocumentEntity doc = new DocumentEntity();
+        doc.setId(7L);
+        doc.setContent("abXc");
+        doc.setContentVersion(3L);
+        when(documentRepository.findById(7L)).thenReturn(Optional.of(doc));
+        when(documentRepository.updateContent(eq(7L), eq("ZabXcY"), eq(5L), any())).thenReturn(1);
+        journal = open(1 << 20);
+
+        verify(transactionManager).commit(any());
+        verify(revisionService).record(eq(7L), eq(5L), eq("ZabXcY"), any());
+        assertEquals(0, journaledBytes());
+    }
+
+    @Test
+    public void testReplayStopsAtGap() throws Exception {
+        journal = open(1 << 20);
+        journal.append(7L, 2L, EditJournal.checksum("one"), EditJournal.KIND_CONTENT, "two");
+        journal.append(7L, 4L, EditJournal.NO_BASE, EditJournal.KIND_CONTENT, "four").get(5, TimeUnit.SECONDS);
+        journal.stop();
+        journal = null;
+
+        DocumentEntity doc = new DocumentEntity();
+        doc.setId(7L);
+        doc.setContent("one");
+        doc.setContentVersion(1L);
+        when(documentRepository.findById(7L)).thenReturn(Optional.of(doc));
+        journal = open(1 << 20);
+
+        verify(documentRepository).updateContent(eq(7L), eq("two"), eq(2L), any());
+    }
+
+    @Test
+    public void testReplayIsRefusedOverAnotherOwnersHistory() throws Exception {
+        journal = open(1 << 20);
+        journal.append(7L, 3L, EditJournal.checksum("abc"), EditJournal.KIND_PATCH, patch("abc", "abXc"));
+        journal.append(7L, 4L, EditJournal.NO_BASE, EditJournal.KIND_PATCH, patch("abXc", "abXcY"))
+                .get(5, TimeUnit.SECONDS);
+        journal.stop();
+        journal = null;
+
+        // Another node took the room over from version 2 and saved its own version 3
+        DocumentEntity doc = new DocumentEntity();
+        doc.setId(7L);
+        doc.setContent("abcQ");
+        doc.setContentVersion(3L);
+        when(documentRepository.findById(7L)).thenReturn(Optional.of(doc));
+        journal = open(1 << 20);
+
+        verify(documentRepository, never()).updateContent(anyLong(), any(), anyLong(), any());
+        assertEquals(0, journaledBytes());
+    }
+
+    @Test
+    public void testReplayRequiresTheTextThePatchWasAppliedTo() {
+        EditJournal unstarted = new EditJournal(documentRepository, revisionService,
+                new TransactionTemplate(transactionManager));
+        EditJournal.Entry entry = new EditJournal.Entry(7L, 2L, EditJournal.NO_BASE, EditJournal.KIND_PATCH,
+                patch("abc def", "abc XX def"));
+
+        assertEquals("abc XX def", unstarted.replay("abc def", entry));
+        // No fuzzy match: a patch found elsewhere would replay a different edit than the one made
+        assertThrows(IllegalStateException.class, () -> unstarted.replay("0123 abc def", entry));
+    }
+
+    @Test
+    public void testSavedSegmentsAreCompacted() throws Exception {
+        journal = open(64);
+        for (long version = 1; version <= 5; version++) {
+            journal.append(7L, version, EditJournal.NO_BASE, EditJournal.KIND_CONTENT,
+                    "content at version " + version);
+        }
+        journal.append(8L, 1L, EditJournal.NO_BASE, EditJournal.KIND_CONTENT, "other document")
+                .get(5, TimeUnit.SECONDS);
+        int before = segments().size();
+        assertTrue(before > 1);
+
+        journal.saved(7L, 5L);
+        journal.append(9L, 1L, EditJournal.NO_BASE, EditJournal.KIND_CONTENT, "x").get(5, TimeUnit.SECONDS);
+        awaitSegments(count -> count < before);
+        assertTrue(segments().size() < before);
+
+        journal.saved(8L, 1L);
+        journal.saved(9L, 1L);
+        journal.append(7L, 6L, EditJournal.NO_BASE, EditJournal.KIND_CONTENT, "y").get(5, TimeUnit.SECONDS);
+        journal.saved(7L, 6L);
+        journal.append(7L, 7L, EditJournal.NO_BASE, EditJournal.KIND_CONTENT, "z").get(5, TimeUnit.SECONDS);
+        awaitSegments(count -> count == 1);
+        assertEquals(1, segments().size());
+    }
+
+    @Test
+    public void testFailedWriteFailsItsBatchAndMovesToANewSegment() throws Exception {
+        journal = open(1 << 20);
+        journal.append(7L, 1L, EditJournal.NO_BASE, EditJournal.KIND_CONTENT, "one").get(5, TimeUnit.SECONDS);
+        Object active = ReflectionTestUtils.getField(journal, "active");
+        ((FileChannel) ReflectionTestUtils.getField(active, "channel")).close();
+
+        CompletableFuture<Void> failed = journal.append(7L, 2L, EditJournal.NO_BASE, EditJournal.KIND_CONTENT, "two");
+        assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+
+        // The writer is still running, and later records do not follow the failed one
+        journal.append(7L, 3L, EditJournal.NO_BASE, EditJournal.KIND_CONTENT, "three").get(5, TimeUnit.SECONDS);
+        List<Path> segments = segments();
+        assertEquals(2, segments.size());
+        assertEquals(3L, EditJournal.read(segments.get(1)).get(0).version());
+    }
+
+    @Test
+    public void testSegmentsLeftByAFailedReplayAreCompactedOnceSaved() throws Exception {
+        journal = open(1 << 20);
+        journal.append(7L, 2L, EditJournal.checksum("one"), EditJournal.KIND_CONTENT, "two")
+                .get(5, TimeUnit.SECONDS);
+        journal.stop();
+        journal = null;
+
+        when(documentRepository.findById(7L)).thenThrow(new IllegalStateException("database down"));
+        journal = open(1 << 20);
+        assertEquals(2, segments().size());
+
+        journal.saved(7L, 2L);
+        journal.append(8L, 1L, EditJournal.NO_BASE, EditJournal.KIND_CONTENT, "x").get(5, TimeUnit.SECONDS);
+        awaitSegments(count -> count == 1);
+        assertEquals(1, segments().size());
+    }
+}
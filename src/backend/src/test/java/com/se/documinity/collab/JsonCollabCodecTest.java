@@ -0,0 +1,131 @@
+package com.se.documinity.collab;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JsonCollabCodecTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private diff_match_patch dmp;
+    private JsonCollabCodec codec;
+
+    @BeforeEach
+    public void setUp() {
+        dmp = new diff_match_patch();
+        codec = new JsonCollabCodec(objectMapper, dmp);
+    }
+
+    @Test
+    public void testDecodeJoin() throws Exception {
+        InboundMessage message = codec.decode("{\"type\":\"join\",\"docId\":42,\"clientId\":\"c1\","
+                + "\"displayName\":\"Ann\",\"color\":\"#fff\",\"authToken\":\"t\",\"lastVersion\":17}");
+
+        assertEquals(new InboundMessage.Join(42L, "c1", "Ann", "#fff", "t", null, 17L), message);
+    }
+
+    @Test
+    public void testDecodeNumericStringDocId() throws Exception {
+        InboundMessage.Join join = (InboundMessage.Join) codec.decode("{\"type\":\"join\",\"docId\":\"42\"}");
+
+        assertEquals(42L, join.docId());
+    }
+
+    @Test
+    public void testDecodePatchUpdate() throws Exception {
+        String patches = dmp.patch_toText(dmp.patch_make("abc", "abXc"));
+        String json = "{\"type\":\"patch-update\",\"docId\":1,\"patches\":"
+                + objectMapper.writeValueAsString(patches) + ",\"baseVersion\":9,\"opId\":\"c1:3\"}";
+
+        InboundMessage.PatchUpdate update =
+                (InboundMessage.PatchUpdate) codec.decode(json.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(9L, update.baseVersion());
+        assertEquals("c1:3", update.opId());
+        assertEquals("abXc", dmp.patch_apply(update.patches().patches(), "abc")[0]);
+    }
+
+    @Test
+    public void testDecodeSkipsUnusedFields() throws Exception {
+        InboundMessage message = codec.decode("{\"type\":\"cursor-update\",\"docId\":1,"
+                + "\"extra\":{\"nested\":[1,2]},\"selectionStart\":3,\"selectionEnd\":5}");
+
+        assertEquals(new InboundMessage.CursorUpdate(3, 5), message);
+    }
+
+    @Test
+    public void testDecodeTypeNotFirst() throws Exception {
+        InboundMessage message = codec.decode("{\"content\":\"hi\",\"type\":\"content-update\"}");
+
+        assertEquals(new InboundMessage.ContentUpdate("hi"), message);
+    }
+
+    @Test
+    public void testDecodeSnapshotRequest() throws Exception {
+        assertEquals(new InboundMessage.SnapshotRequest(),
+                codec.decode("{\"type\":\"snapshot-request\",\"docId\":1}"));
+    }
+
+    @Test
+    public void testDecodeUnknownType() throws Exception {
+        assertEquals(new InboundMessage.Unknown("ping"), codec.decode("{\"type\":\"ping\"}"));
+        assertEquals(new InboundMessage.Unknown(null), codec.decode("{\"docId\":1}"));
+    }
+
+    @Test
+    public void testEncodePatchUpdate() throws Exception {
+        PatchPayload patches = PatchPayload.ofPatches(dmp, dmp.patch_make("abc", "abXc"));
+
+        JsonNode node = objectMapper.readTree(codec.encode(
+                new OutboundMessage.PatchUpdate(7L, patches, 3L, 4L, "c1")));
+
+        assertEquals("patch-update", node.get("type").asText());
+        assertEquals(7L, node.get("docId").asLong());
+        assertEquals(patches.text(), node.get("patches").asText());
+        assertEquals(3L, node.get("baseVersion").asLong());
+        assertEquals(4L, node.get("serverVersion").asLong());
+        assertEquals("c1", node.get("from").asText());
+    }
+
+    @Test
+    public void testEncodeOpRejectedListsFailedHunks() throws Exception {
+        JsonNode node = objectMapper.readTree(codec.encode(
+                new OutboundMessage.OpRejected(7L, "c1:3", "conflict", "abc", 9L, new int[] { 1 })));
+
+        assertEquals("op-rejected", node.get("type").asText());
+        assertEquals("abc", node.get("content").asText());
+        assertEquals(9L, node.get("serverVersion").asLong());
+        assertEquals(1, node.get("failedHunks").size());
+        assertEquals(1, node.get("failedHunks").get(0).asInt());
+    }
+
+    @Test
+    public void testEncodeCursorsNestsUser() throws Exception {
+        JsonNode node = objectMapper.readTree(codec.encode(new OutboundMessage.Cursors(7L,
+                List.of(new OutboundMessage.CursorView("c1", "Ann", "#fff", 2, 4)))));
+
+        JsonNode cursor = node.get("cursors").get(0);
+        assertEquals(2, cursor.get("selectionStart").asInt());
+        assertEquals(4, cursor.get("selectionEnd").asInt());
+        assertEquals("c1", cursor.get("user").get("clientId").asText());
+        assertEquals("Ann", cursor.get("user").get("name").asText());
+    }
+
+    @Test
+    public void testEncoderReuseProducesIndependentFrames() throws Exception {
+        JsonCollabCodec.Encoder encoder = codec.newEncoder();
+
+        String first = encoder.encode(new OutboundMessage.Ack(1L, "a", 2L));
+        String second = encoder.encode(new OutboundMessage.ErrorMessage("nope"));
+
+        assertEquals("{\"type\":\"ack\",\"docId\":1,\"opId\":\"a\",\"serverVersion\":2}", first);
+        assertEquals("{\"type\":\"error\",\"message\":\"nope\"}", second);
+    }
+}
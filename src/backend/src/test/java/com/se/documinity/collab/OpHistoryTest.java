@@ -0,0 +1,84 @@
+package com.se.documinity.collab;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OpHistoryTest {
+
+    private final diff_match_patch dmp = new diff_match_patch();
+
+    private PatchPayload payload(String text) {
+        return PatchPayload.ofText(dmp, text);
+    }
+
+    @Test
+    public void testReplaysExactlyTheMissedOps() {
+        OpHistory history = new OpHistory(8, 1000);
+        for (long version = 1; version <= 5; version++) {
+            history.append(version, "c" + version, new int[] { 0, 0, 1 }, payload("op" + version));
+        }
+
+        List<OpHistory.Entry> missed = history.replayable(2, 5);
+
+        assertEquals(List.of(3L, 4L, 5L), missed.stream().map(OpHistory.Entry::version).toList());
+        assertEquals("op3", missed.get(0).payload().text());
+        assertTrue(history.replayable(5, 5).isEmpty());
+    }
+
+    @Test
+    public void testRingKeepsOnlyTheLatestVersions() {
+        OpHistory history = new OpHistory(4, 1000);
+        for (long version = 1; version <= 10; version++) {
+            history.append(version, "c", new int[] { 0, 0, 1 }, payload("op"));
+        }
+
+        assertNull(history.since(5, 10));
+        assertEquals(4, history.since(6, 10).size());
+        assertEquals(8L, history.replayable(7, 10).get(0).version());
+        assertEquals(8, history.payloadChars());
+    }
+
+    @Test
+    public void testOpsPastTheBudgetKeepTheirSpansOnly() {
+        OpHistory history = new OpHistory(8, 10);
+        history.append(1, "c", new int[] { 0, 0, 6 }, payload("first"));
+        history.append(2, "c", new int[] { 0, 0, 6 }, payload("second"));
+
+        // The first payload went over budget: it can still be rebased over, but not replayed
+        assertEquals(2, history.since(0, 2).size());
+        assertNull(history.replayable(0, 2));
+        assertEquals(1, history.replayable(1, 2).size());
+        assertEquals(6, history.payloadChars());
+    }
+
+    @Test
+    public void testContentOpsAndDroppedPayloadsForceASnapshot() {
+        OpHistory history = new OpHistory(8, 1000);
+        history.append(1, "c", new int[] { 0, 0, 1 }, payload("op"));
+        history.append(2, "c", new int[] { 0, 1, 5 }, null);
+        history.append(3, "c", new int[] { 0, 0, 1 }, payload("op"));
+
+        assertNull(history.replayable(0, 3));
+        assertEquals(1, history.replayable(2, 3).size());
+
+        history.dropPayloads();
+
+        assertNull(history.replayable(2, 3));
+        assertEquals(3, history.since(0, 3).size());
+        assertEquals(0, history.payloadChars());
+    }
+
+    @Test
+    public void testGapInVersionsStartsOver() {
+        OpHistory history = new OpHistory(8, 1000);
+        history.append(1, "c", new int[] { 0, 0, 1 }, payload("op"));
+        history.append(7, "c", new int[] { 0, 0, 1 }, payload("op"));
+
+        assertNull(history.since(0, 7));
+        assertEquals(1, history.replayable(6, 7).size());
+    }
+}
@@ -0,0 +1,68 @@
+package com.se.documinity.collab;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testBucketRefillsAtItsRateUpToTheBurst() {
+        long second = 1_000_000_000L;
+        TokenBucket bucket = new TokenBucket(2, 3, 0);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.tryAcquire(0));
+        }
+        assertEquals(second / 2, bucket.tryAcquire(0));
+        assertEquals(0, bucket.tryAcquire(second / 2));
+
+        // Idle time never banks more than the burst
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.tryAcquire(100 * second));
+        }
+        assertTrue(bucket.tryAcquire(100 * second) > 0);
+    }
+
+    @Test
+    public void testOnlyTheFirstRefusalOfARunIsSignalled() {
+        TokenBucket bucket = new TokenBucket(1, 1, 0);
+        bucket.tryAcquire(0);
+        assertTrue(bucket.tryAcquire(0) > 0);
+        assertTrue(bucket.startThrottling());
+        assertFalse(bucket.startThrottling());
+
+        assertEquals(0, bucket.tryAcquire(2_000_000_000L));
+        assertTrue(bucket.tryAcquire(2_000_000_000L) > 0);
+        assertTrue(bucket.startThrottling());
+    }
+
+    @Test
+    public void testLimitsAreConfiguredPerTypeAndCounted() {
+        Map<String, double[]> limits = RateLimiter.parse(" patch-update=10/20, cursor-update=0/5");
+        assertArrayEquals(new double[] {10, 20}, limits.get("patch-update"));
+        // A zero rate leaves the type unlimited
+        assertFalse(limits.containsKey("cursor-update"));
+        assertThrows(IllegalArgumentException.class, () -> RateLimiter.parse("patch-update=10"));
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        RateLimiter rateLimiter = new RateLimiter(meterRegistry);
+        ReflectionTestUtils.setField(rateLimiter, "sessionSpec", "content-update=1/1");
+        ReflectionTestUtils.setField(rateLimiter, "roomSpec", "");
+        rateLimiter.start();
+
+        RateLimiter.Buckets session = rateLimiter.forSession();
+        assertEquals(0, session.acquire("content-update"));
+        assertTrue(session.acquire("content-update") > 0);
+        assertTrue(session.acquire("content-update") > 0);
+        assertEquals(0, session.acquire("patch-update"));
+        assertEquals(0, rateLimiter.forRoom().acquire("content-update"));
+        assertEquals(2, meterRegistry.get("collab.throttled")
+                .tag("scope", RateLimiter.SCOPE_SESSION)
+                .tag("type", "content-update")
+                .counter().count());
+    }
+}
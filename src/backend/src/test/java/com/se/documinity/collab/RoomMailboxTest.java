@@ -0,0 +1,133 @@
+package com.se.documinity.collab;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RoomMailboxTest {
+
+    private final List<Runnable> drains = new ArrayList<>();
+
+    private void runDrains() {
+        while (!drains.isEmpty()) {
+            drains.remove(0).run();
+        }
+    }
+
+    @Test
+    public void testTasksRunInOrderOnOneDrain() {
+        RoomMailbox mailbox = new RoomMailbox(drains::add);
+        List<Integer> ran = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            int task = i;
+            mailbox.execute(() -> ran.add(task));
+        }
+
+        // Queued while no drain ran: one drain is scheduled for all of them
+        assertEquals(1, drains.size());
+        assertEquals(5, mailbox.pending());
+        runDrains();
+        assertEquals(List.of(0, 1, 2, 3, 4), ran);
+        assertEquals(0, mailbox.pending());
+    }
+
+    @Test
+    public void testTaskQueuedDuringDrainRuns() {
+        RoomMailbox mailbox = new RoomMailbox(drains::add);
+        List<String> ran = new ArrayList<>();
+
+        mailbox.execute(() -> {
+            ran.add("first");
+            mailbox.execute(() -> ran.add("queued by first"));
+        });
+        runDrains();
+
+        assertEquals(List.of("first", "queued by first"), ran);
+    }
+
+    @Test
+    public void testTaskQueuedAfterTheLastPollGetsAnotherDrain() {
+        List<String> ran = new ArrayList<>();
+        RoomMailbox[] mailbox = new RoomMailbox[1];
+        AtomicBoolean raced = new AtomicBoolean();
+        // Another thread's submit landing after the drain found the queue empty, before it stood down
+        Queue<Runnable> tasks = new ConcurrentLinkedQueue<>() {
+            @Override
+            public Runnable poll() {
+                Runnable task = super.poll();
+                if (task == null && raced.compareAndSet(false, true)) {
+                    mailbox[0].execute(() -> ran.add("raced"));
+                }
+                return task;
+            }
+        };
+        mailbox[0] = new RoomMailbox(drains::add, tasks);
+
+        mailbox[0].execute(() -> ran.add("first"));
+        runDrains();
+
+        assertEquals(List.of("first", "raced"), ran);
+        assertEquals(0, mailbox[0].pending());
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopTheMailbox() {
+        RoomMailbox mailbox = new RoomMailbox(drains::add);
+        List<String> ran = new ArrayList<>();
+
+        mailbox.execute(() -> {
+            throw new IllegalStateException("boom");
+        });
+        mailbox.execute(() -> ran.add("after"));
+        runDrains();
+        mailbox.execute(() -> ran.add("later"));
+        runDrains();
+
+        assertEquals(List.of("after", "later"), ran);
+    }
+
+    @Test
+    public void testConcurrentSubmittersNeverOverlapOrStrandTasks() throws Exception {
+        int threads = 8;
+        int perThread = 5_000;
+        ExecutorService drainer = Executors.newCachedThreadPool();
+        ExecutorService submitters = Executors.newFixedThreadPool(threads);
+        try {
+            RoomMailbox mailbox = new RoomMailbox(drainer);
+            AtomicBoolean running = new AtomicBoolean();
+            AtomicBoolean overlapped = new AtomicBoolean();
+            CountDownLatch done = new CountDownLatch(threads * perThread);
+            for (int t = 0; t < threads; t++) {
+                submitters.execute(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        mailbox.execute(() -> {
+                            if (!running.compareAndSet(false, true)) {
+                                overlapped.set(true);
+                            }
+                            running.set(false);
+                            done.countDown();
+                        });
+                    }
+                });
+            }
+
+            // A task added just as a drain finishes is picked up by the drain its finally block schedules
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertFalse(overlapped.get());
+        } finally {
+            submitters.shutdownNow();
+            drainer.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.se.documinity.collab;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RoomRegistryTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private RoomRegistry registry;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new RoomRegistry(meterRegistry);
+        ReflectionTestUtils.setField(registry, "maxResidentBytes", 100_000L);
+        registry.start();
+    }
+
+    private DocRoom open(long docId, int chars, long lastActive) {
+        DocRoom room = registry.open(docId, id -> new DocRoom(id, "x".repeat(chars), 0, Runnable::run));
+        room.lastActiveNanos = lastActive;
+        return room;
+    }
+
+    @Test
+    public void testResidentBytesFollowContent() {
+        DocRoom room = open(1L, 1000, 0);
+        long opened = registry.residentBytes();
+        assertTrue(opened >= 2000);
+
+        room.content = Rope.of("x".repeat(3000));
+        registry.account(room);
+        assertEquals(opened + 4000, registry.residentBytes());
+        assertEquals(registry.residentBytes(), meterRegistry.get("collab.rooms.resident.bytes").gauge().value());
+
+        room.content = null;
+        registry.evicted(room, true);
+        assertEquals(0, registry.residentBytes());
+        assertEquals(1.0, meterRegistry.get("collab.rooms.evicted").tag("reason", "idle").counter().count());
+    }
+
+    @Test
+    public void testClosedRoomIsNoLongerCounted() {
+        DocRoom room = open(1L, 1000, 0);
+        open(2L, 1000, 0);
+
+        room.closed = true;
+        registry.remove(room);
+        room.content = Rope.of("x".repeat(5000));
+        registry.account(room);
+
+        assertNull(registry.get(1L));
+        assertEquals(1.0, meterRegistry.get("collab.rooms").gauge().value());
+        assertEquals(registry.get(2L).residentBytes, registry.residentBytes());
+    }
+
+    @Test
+    public void testLeastRecentlyActiveRoomsAreEvictedFirst() {
+        open(1L, 20_000, 300);
+        open(2L, 20_000, 100);
+        open(3L, 20_000, 200);
+        assertTrue(registry.overBudget());
+
+        List<DocRoom> candidates = registry.evictionCandidates();
+
+        // Three ~42KB rooms against a 100KB budget: evicting the oldest one is enough
+        assertEquals(1, candidates.size());
+        assertEquals(2L, candidates.get(0).docId);
+    }
+
+    @Test
+    public void testFollowerRoomsHoldNoContent() {
+        DocRoom room = registry.open(1L, id -> {
+            DocRoom follower = new DocRoom(id, "", 0, Runnable::run);
+            follower.owner = "node-2";
+            return follower;
+        });
+        room.content = Rope.of("x".repeat(80_000));
+        registry.account(room);
+
+        assertEquals(0, registry.residentBytes());
+        assertTrue(registry.evictionCandidates().isEmpty());
+    }
+
+    @Test
+    public void testZeroBudgetIsUnbounded() {
+        ReflectionTestUtils.setField(registry, "maxResidentBytes", 0L);
+        open(1L, 1_000_000, 0);
+
+        assertFalse(registry.overBudget());
+        assertTrue(registry.evictionCandidates().isEmpty());
+    }
+}
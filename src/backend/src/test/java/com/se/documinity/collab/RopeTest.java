@@ -0,0 +1,52 @@
+package com.se.documinity.collab;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RopeTest {
+
+    @Test
+    public void testEditsMatchTheSameEditsOnAString() {
+        Random random = new Random(42);
+        StringBuilder expected = new StringBuilder("x".repeat(5 * Rope.MAX_LEAF));
+        Rope rope = Rope.of(expected.toString());
+        for (int i = 0; i < 2000; i++) {
+            int offset = random.nextInt(expected.length() + 1);
+            int deleted = random.nextInt(Math.min(expected.length() - offset, 40) + 1);
+            // Mostly typing, with the odd paste that spans several chunks
+            String inserted = Integer.toString(i, 36).repeat(random.nextInt(10) == 0 ? 300 : 1);
+            Rope before = rope;
+            String beforeText = expected.toString();
+
+            rope = rope.replace(offset, deleted, inserted);
+            expected.replace(offset, offset + deleted, inserted);
+
+            assertEquals(expected.length(), rope.length());
+            // Earlier versions are left as they were
+            assertEquals(beforeText, before.toString());
+        }
+        assertEquals(expected.toString(), rope.toString());
+        assertTrue(rope.regionMatches(10, expected.substring(10, 700)));
+        assertFalse(rope.regionMatches(expected.length() - 1, "ab"));
+    }
+
+    @Test
+    public void testExactPatchesEditTheRopeLikePatchApply() {
+        diff_match_patch dmp = new diff_match_patch();
+        String base = "The quick brown fox jumps over the lazy dog.\n".repeat(100);
+        String edited = base.replace("lazy dog.\nThe quick", "sleepy dog.\nA quick");
+        LinkedList<diff_match_patch.Patch> patches = dmp.patch_make(base, edited);
+
+        Rope result = TransformEngine.applyExact(Rope.of(base), patches);
+
+        assertNotNull(result);
+        assertEquals(dmp.patch_apply(patches, base)[0], result.toString());
+        // Context that has moved is left to patch_apply's fuzzy match
+        assertNull(TransformEngine.applyExact(Rope.of("Intro.\n" + base), patches));
+    }
+}
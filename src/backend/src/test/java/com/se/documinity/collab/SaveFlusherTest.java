@@ -0,0 +1,162 @@
+package com.se.documinity.collab;
+
+import com.se.documinity.repository.DocumentRepository;
+import com.se.documinity.service.DocumentRevisionService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class SaveFlusherTest {
+
+    @Mock
+    private DocumentRepository documentRepository;
+
+    @Mock
+    private DocumentRevisionService revisionService;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final BlockingQueue<Object[]> flushed = new ArrayBlockingQueue<>(16);
+    private SaveFlusher flusher;
+
+    @BeforeEach
+    public void setUp() {
+        flusher = new SaveFlusher(documentRepository, revisionService,
+                new TransactionTemplate(transactionManager), meterRegistry);
+        ReflectionTestUtils.setField(flusher, "quietMs", 0L);
+        ReflectionTestUtils.setField(flusher, "maxStalenessMs", 5000L);
+        ReflectionTestUtils.setField(flusher, "parallelism", 2);
+        ReflectionTestUtils.setField(flusher, "batchSize", 10);
+        flusher.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        flusher.stop();
+    }
+
+    private void record(DocRoom room, long version, LocalDateTime savedAt) {
+        flushed.add(new Object[] { room, version, savedAt });
+    }
+
+    @Test
+    public void testDirtyRoomIsWrittenWithTargetedUpdate() throws Exception {
+        when(documentRepository.updateContent(eq(7L), eq("hello"), eq(3L), any())).thenReturn(1);
+        DocRoom room = new DocRoom(7L, "hello", 3, Runnable::run);
+
+        flusher.markDirty(room, this::record);
+        Object[] result = flushed.poll(5, TimeUnit.SECONDS);
+
+        assertNotNull(result);
+        assertSame(room, result[0]);
+        assertEquals(3L, result[1]);
+        assertNotNull(result[2]);
+        verify(documentRepository, never()).findById(any());
+        verify(revisionService).prepare(7L, 3L, "hello");
+        verify(revisionService).record(any(), any());
+        assertEquals(1, meterRegistry.get("collab.flush.lag").timer().count());
+        assertEquals(1, meterRegistry.get("collab.flush.settle").timer().count());
+        assertEquals(1, meterRegistry.get("collab.flush.write").tag("outcome", "success").timer().count());
+        assertEquals(0, meterRegistry.get("collab.flush.write").tag("outcome", "failure").timer().count());
+    }
+
+    @Test
+    public void testRepeatedEditsCoalesceIntoOneWrite() throws Exception {
+        ReflectionTestUtils.setField(flusher, "quietMs", 60_000L);
+        ReflectionTestUtils.setField(flusher, "maxStalenessMs", 60_000L);
+        when(documentRepository.updateContent(eq(7L), any(), anyLong(), any())).thenReturn(1);
+        DocRoom room = new DocRoom(7L, "a", 1, Runnable::run);
+
+        for (int i = 2; i <= 20; i++) {
+            room.content = room.content.replace(room.content.length(), 0, "a");
+            room.version = i;
+            flusher.markDirty(room, this::record);
+        }
+        assertEquals(1.0, meterRegistry.get("collab.flush.dirty").gauge().value());
+        ReflectionTestUtils.setField(flusher, "maxStalenessMs", 0L);
+
+        assertNotNull(flushed.poll(5, TimeUnit.SECONDS));
+        verify(documentRepository, times(1)).updateContent(eq(7L), eq("a".repeat(20)), eq(20L), any());
+    }
+
+    @Test
+    public void testNoMatchingRowIsReportedAsFailure() throws Exception {
+        when(documentRepository.updateContent(eq(7L), any(), anyLong(), any())).thenReturn(0);
+        DocRoom room = new DocRoom(7L, "hello", 3, Runnable::run);
+
+        flusher.markDirty(room, this::record);
+        Object[] result = flushed.poll(5, TimeUnit.SECONDS);
+
+        assertNotNull(result);
+        assertNull(result[2]);
+        assertEquals(1.0, meterRegistry.get("collab.flush.failures").counter().count());
+    }
+
+    @Test
+    public void testRoomsOfAFailedBatchAreRetriedAfterABackoff() throws Exception {
+        ReflectionTestUtils.setField(flusher, "retryMs", 200L);
+        ReflectionTestUtils.setField(flusher, "retryMaxMs", 200L);
+        when(documentRepository.updateContent(eq(7L), eq("hello"), eq(3L), any()))
+                .thenThrow(new IllegalStateException("connection lost"))
+                .thenReturn(1);
+        DocRoom room = new DocRoom(7L, "hello", 3, Runnable::run);
+
+        flusher.markDirty(room, this::record);
+        Object[] failed = flushed.poll(5, TimeUnit.SECONDS);
+        long failedAt = System.nanoTime();
+        assertNotNull(failed);
+        assertNull(failed[2]);
+
+        Object[] retried = flushed.poll(5, TimeUnit.SECONDS);
+        assertNotNull(retried);
+        assertNotNull(retried[2]);
+        assertTrue(System.nanoTime() - failedAt >= TimeUnit.MILLISECONDS.toNanos(100));
+        verify(documentRepository, times(2)).updateContent(eq(7L), eq("hello"), eq(3L), any());
+    }
+
+    @Test
+    public void testClosedRoomIsSkipped() throws Exception {
+        ReflectionTestUtils.setField(flusher, "quietMs", 60_000L);
+        DocRoom room = new DocRoom(7L, "hello", 3, Runnable::run);
+        room.closed = true;
+
+        flusher.markDirty(room, this::record);
+        ReflectionTestUtils.setField(flusher, "quietMs", 0L);
+
+        assertNull(flushed.poll(500, TimeUnit.MILLISECONDS));
+        verify(documentRepository, never()).updateContent(any(), any(), anyLong(), any());
+    }
+
+    @Test
+    public void testWriteNowClearsPendingWrite() throws Exception {
+        ReflectionTestUtils.setField(flusher, "quietMs", 60_000L);
+        when(documentRepository.updateContent(eq(7L), eq("bye"), eq(4L), any())).thenReturn(1);
+        DocRoom room = new DocRoom(7L, "bye", 4, Runnable::run);
+        flusher.markDirty(room, this::record);
+
+        assertNotNull(flusher.writeNow(room, "bye", 4));
+
+        assertEquals(0.0, meterRegistry.get("collab.flush.dirty").gauge().value());
+        ReflectionTestUtils.setField(flusher, "quietMs", 0L);
+        assertNull(flushed.poll(300, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,115 @@
+package com.se.documinity.collab;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class SessionOutboxTest {
+
+    @Mock
+    private WebSocketSession session;
+
+    private final List<Runnable> drains = new ArrayList<>();
+
+    private OutboundFrame frame(String type, String collapseKey, int size) {
+        return new OutboundFrame(type, collapseKey, new TextMessage(type), size, null, 0);
+    }
+
+    private void runDrains() {
+        List<Runnable> pending = new ArrayList<>(drains);
+        drains.clear();
+        pending.forEach(Runnable::run);
+    }
+
+    @Test
+    public void testFramesAreSentInOrder() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        SessionOutbox outbox = new SessionOutbox(session, false, drains::add, 1000, 5000);
+
+        assertTrue(outbox.offer(frame("a", null, 10)));
+        assertTrue(outbox.offer(frame("b", null, 10)));
+        runDrains();
+
+        var inOrder = inOrder(session);
+        inOrder.verify(session).sendMessage(new TextMessage("a"));
+        inOrder.verify(session).sendMessage(new TextMessage("b"));
+        assertEquals(0, outbox.queuedBytes());
+    }
+
+    @Test
+    public void testCollapsibleFrameReplacesQueuedOne() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        SessionOutbox outbox = new SessionOutbox(session, false, drains::add, 1000, 5000);
+
+        outbox.offer(frame("cursor-1", "cursor:a", 10));
+        outbox.offer(frame("cursor-2", "cursor:a", 10));
+        assertEquals(10, outbox.queuedBytes());
+        runDrains();
+
+        verify(session).sendMessage(new TextMessage("cursor-2"));
+        verify(session, never()).sendMessage(new TextMessage("cursor-1"));
+    }
+
+    @Test
+    public void testCollapsibleFramesAreDroppedBeforeEvicting() {
+        SessionOutbox outbox = new SessionOutbox(session, false, drains::add, 100, 5000);
+
+        outbox.offer(frame("cursor", "cursor:a", 60));
+        assertTrue(outbox.offer(frame("patch", null, 60)));
+
+        assertEquals(60, outbox.queuedBytes());
+    }
+
+    @Test
+    public void testSessionOverLimitIsClosedForResync() throws Exception {
+        SessionOutbox outbox = new SessionOutbox(session, false, drains::add, 100, 5000);
+
+        outbox.offer(frame("patch-1", null, 60));
+        assertFalse(outbox.offer(frame("patch-2", null, 60)));
+        assertFalse(outbox.offer(frame("patch-3", null, 1)));
+        runDrains();
+
+        verify(session).close(SessionOutbox.RESYNC);
+        verify(session, never()).sendMessage(any());
+    }
+
+    @Test
+    public void testFramesQueuedBeforeFirstDrainAreNotTimedOut() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        SessionOutbox outbox = new SessionOutbox(session, false, drains::add, 1000, 5000);
+
+        assertTrue(outbox.offer(frame("joined", null, 10)));
+        assertTrue(outbox.offer(frame("presence", "presence", 10)));
+        runDrains();
+
+        verify(session, never()).close(any());
+        verify(session).sendMessage(new TextMessage("presence"));
+    }
+
+    @Test
+    public void testPingsGoOutInOrderAndCollapse() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        SessionOutbox outbox = new SessionOutbox(session, false, drains::add, 1000, 5000);
+
+        outbox.ping();
+        outbox.offer(frame("a", null, 10));
+        outbox.ping();
+        runDrains();
+
+        var inOrder = inOrder(session);
+        inOrder.verify(session).sendMessage(new TextMessage("a"));
+        inOrder.verify(session).sendMessage(any(PingMessage.class));
+        verify(session, times(2)).sendMessage(any());
+    }
+}
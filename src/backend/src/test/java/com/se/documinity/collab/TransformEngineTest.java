@@ -0,0 +1,243 @@
+package com.se.documinity.collab;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TransformEngineTest {
+
+    private diff_match_patch dmp;
+    private TransformEngine engine;
+
+    @BeforeEach
+    public void setUp() {
+        dmp = new diff_match_patch();
+        engine = new TransformEngine(dmp);
+    }
+
+    private String patch(String from, String to) {
+        return dmp.patch_toText(dmp.patch_make(from, to));
+    }
+
+    @Test
+    public void testPatchOnCurrentVersionIsAccepted() {
+        DocRoom room = new DocRoom("Hello world", 3L);
+
+        TransformResult result = engine.submitPatch(room, "a", 3L, patch("Hello world", "Hello brave world"));
+
+        assertTrue(result.accepted());
+        assertEquals(4L, result.version());
+        assertEquals("Hello brave world", room.text());
+    }
+
+    @Test
+    public void testConcurrentPatchesConverge() {
+        String base = "The quick brown fox jumps over the lazy dog. It was a sunny day in the park.";
+        DocRoom room = new DocRoom(base, 0L);
+        String fromA = patch(base, "The quick brown fox leaps over the lazy dog. It was a sunny day in the park.");
+        String fromB = patch(base, "The quick brown fox jumps over the lazy dog. It was a rainy day in the park.");
+
+        TransformResult first = engine.submitPatch(room, "a", 0L, fromA);
+        TransformResult second = engine.submitPatch(room, "b", 0L, fromB);
+
+        assertTrue(first.accepted());
+        assertTrue(second.accepted());
+        assertEquals(2L, room.version);
+        assertEquals("The quick brown fox leaps over the lazy dog. It was a rainy day in the park.", room.text());
+    }
+
+    @Test
+    public void testOwnEarlierOpsAreNotRebasedTwice() {
+        DocRoom room = new DocRoom("abc def ghi jkl", 0L);
+        String step1 = "abc XX def ghi jkl";
+        String step2 = "abc XX def ghi YY jkl";
+
+        assertTrue(engine.submitPatch(room, "a", 0L, patch("abc def ghi jkl", step1)).accepted());
+        TransformResult result = engine.submitPatch(room, "a", 0L, patch(step1, step2));
+
+        assertTrue(result.accepted());
+        assertEquals(step2, room.text());
+    }
+
+    @Test
+    public void testOthersOpsAroundOwnOpsRebaseInTheSendersCoordinates() {
+        String base = "line zero\nline one\nline two\nline three\nline four\nline five\n";
+        DocRoom room = new DocRoom(base, 0L);
+        String mine = base.replace("line one\n", "line one\nmy own line, long enough to matter\n");
+        String edited = mine.replace("line two", "line two!");
+        String theirs = base.replace("line four", "inserted\nline four");
+
+        // The other editor's line lands past "c"'s next edit, but not in the text "c" diffed that edit against
+        assertTrue(engine.submitPatch(room, "x", 0L, patch(base, theirs)).accepted());
+        assertTrue(engine.submitPatch(room, "c", 0L, patch(base, mine)).accepted());
+        String current = room.text();
+        assertTrue(engine.submitPatch(room, "z", 2L, patch(current, current + "line six\n")).accepted());
+        TransformResult result = engine.submitPatch(room, "c", 0L, patch(mine, edited));
+
+        assertTrue(result.accepted());
+        assertEquals(edited.replace("line four", "inserted\nline four") + "line six\n", room.text());
+    }
+
+    @Test
+    public void testRebasedPatchWhoseContextChangedIsRejected() {
+        // Repeating lines, so a fuzzy match would find the context a line further on
+        String line = "abcdefghi\n";
+        String base = line.repeat(8);
+        DocRoom room = new DocRoom(base, 0L);
+        String edited = base.substring(0, 25) + "!" + base.substring(25);
+        assertTrue(engine.submitPatch(room, "x", 0L,
+                patch(base, base.substring(0, 30) + "XXXXXXXXX\n" + base.substring(30))).accepted());
+        String current = room.text();
+
+        TransformResult result = engine.submitPatch(room, "c", 0L, patch(base, edited));
+
+        assertFalse(result.accepted());
+        assertEquals(TransformEngine.REJECT_CONFLICT, result.reason());
+        assertEquals(current, room.text());
+    }
+
+    @Test
+    public void testOwnOpOverlappingAnothersIsRejected() {
+        DocRoom room = new DocRoom("abc def ghi jkl", 0L);
+        assertTrue(engine.submitPatch(room, "x", 0L, patch("abc def ghi jkl", "abc DEF ghi jkl")).accepted());
+        // Deletes the text the other editor had just written
+        assertTrue(engine.submitPatch(room, "c", 1L, patch("abc DEF ghi jkl", "abc ghi jkl")).accepted());
+
+        TransformResult result = engine.submitPatch(room, "c", 0L, patch("abc ghi jkl", "abc ghi jkl!"));
+
+        assertFalse(result.accepted());
+        assertEquals(TransformEngine.REJECT_CONFLICT, result.reason());
+        assertEquals("abc ghi jkl", room.text());
+    }
+
+    @Test
+    public void testBaseVersionOutsideHistoryIsRejected() {
+        DocRoom room = new DocRoom("text", 500L);
+
+        TransformResult result = engine.submitPatch(room, "a", 10L, patch("text", "texts"));
+
+        assertFalse(result.accepted());
+        assertEquals(TransformEngine.REJECT_STALE_VERSION, result.reason());
+        assertEquals("text", room.text());
+        assertEquals(500L, room.version);
+    }
+
+    @Test
+    public void testConflictNamesTheHunksThatFailed() {
+        String base = "alpha beta gamma.\n" + "x".repeat(200) + "\nomega psi chi.\n";
+        String current = base.replace("omega psi chi.", "0000000000000.");
+        DocRoom room = new DocRoom(current, 0L);
+
+        TransformResult result = engine.submitPatch(room, "a", 0L,
+                patch(base, base.replace("beta", "BETA").replace("psi", "PSI")));
+
+        assertFalse(result.accepted());
+        assertEquals(TransformEngine.REJECT_CONFLICT, result.reason());
+        assertArrayEquals(new int[] {1}, result.failedHunks());
+        // The hunk that did apply is not kept either
+        assertEquals(current, room.text());
+        assertEquals(0L, room.version);
+    }
+
+    @Test
+    public void testFuzzyMatchedPatchIsRelayedWhereItApplied() {
+        String base = "The quick brown fox jumps over the lazy dog.\n".repeat(20);
+        String current = "Intro.\n" + base;
+        DocRoom room = new DocRoom(current, 0L);
+
+        TransformResult result = engine.submitPatch(room, "a", 0L,
+                patch(base, base.replace("lazy dog.\nThe", "dog.\nA")));
+
+        assertTrue(result.accepted());
+        // What is relayed and journaled applies exactly to the text it was applied to
+        Rope relayed = TransformEngine.applyExact(Rope.of(current), result.patches().patches());
+        assertNotNull(relayed);
+        assertEquals(room.text(), relayed.toString());
+    }
+
+    @Test
+    public void testFullContentIsRelayedAsAPatch() {
+        String paragraph = "Lorem ipsum dolor sit amet, consectetur adipiscing elit.\n";
+        String base = paragraph.repeat(2000);
+        DocRoom room = new DocRoom(base, 0L);
+        String edited = base.substring(0, 50_000) + "an edit in the middle" + base.substring(50_000);
+
+        TransformResult result = engine.submitContent(room, "a", edited);
+
+        assertTrue(result.accepted());
+        assertEquals(1L, result.version());
+        assertEquals(edited, room.text());
+        assertTrue(result.patches().text().length() < 200);
+        assertEquals(edited, dmp.patch_apply(result.patches().patches(), base)[0]);
+    }
+
+    @Test
+    public void testPatchesRebaseOverFullContentUpdates() {
+        DocRoom room = new DocRoom("abc def ghi", 0L);
+        assertTrue(engine.submitContent(room, "a", "XX abc def ghi").accepted());
+
+        // Only the inserted prefix shifts a concurrent edit further along
+        TransformResult result = engine.submitPatch(room, "b", 0L, patch("abc def ghi", "abc def ghi!"));
+
+        assertTrue(result.accepted());
+        assertEquals("XX abc def ghi!", room.text());
+    }
+
+    @Test
+    public void testUnchangedContentKeepsTheVersion() {
+        DocRoom room = new DocRoom("same", 4L);
+
+        TransformResult result = engine.submitContent(room, "a", "same");
+
+        assertTrue(result.accepted());
+        assertTrue(result.patches().isEmpty());
+        assertEquals(4L, room.version);
+    }
+
+    @Test
+    public void testMalformedPatchIsRejected() {
+        DocRoom room = new DocRoom("text", 0L);
+
+        TransformResult result = engine.submitPatch(room, "a", 0L, "not a patch");
+
+        assertFalse(result.accepted());
+        assertEquals(TransformEngine.REJECT_MALFORMED, result.reason());
+    }
+
+    @Test
+    public void testSwapPastMovesSpansBehindOwnEdits() {
+        int[] spans = { 20, 0, 10 };
+
+        assertTrue(TransformEngine.swapPast(spans, new int[] { 5, 0, 4 }));
+        assertArrayEquals(new int[] { 24, 0, 10 }, spans);
+        assertTrue(TransformEngine.swapPast(spans, new int[] { 40, 2, 0 }));
+        assertArrayEquals(new int[] { 24, 0, 10 }, spans);
+        assertFalse(TransformEngine.swapPast(spans, new int[] { 26, 3, 0 }));
+    }
+
+    @Test
+    public void testMapPositionShiftsOverEarlierEdits() {
+        int[] spans = { 2, 3, 1 };
+
+        assertEquals(1, TransformEngine.mapPosition(1, spans));
+        assertEquals(2, TransformEngine.mapPosition(3, spans));
+        assertEquals(8, TransformEngine.mapPosition(10, spans));
+    }
+
+    @Test
+    public void testPatchStartingAtAnEarlierInsertLandsAfterIt() {
+        String base = "one two three four five six seven";
+        DocRoom room = new DocRoom(base, 0L);
+        // b's patch starts with the context "ix seven", right where a inserts
+        String fromA = patch(base, "one two three four five sXix seven");
+        String fromB = patch(base, base + "!");
+
+        assertTrue(engine.submitPatch(room, "a", 0L, fromA).accepted());
+        assertTrue(engine.submitPatch(room, "b", 0L, fromB).accepted());
+
+        assertEquals("one two three four five sXix seven!", room.text());
+        assertEquals(5, TransformEngine.mapPosition(2, new int[] { 2, 0, 3 }));
+    }
+}
@@ -0,0 +1,52 @@
+package com.se.documinity.collab;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class ViewerTierTest {
+
+    @Mock
+    private WebSocketSession session;
+
+    private final List<Runnable> drains = new ArrayList<>();
+
+    private OutboundFrame frame(String type) {
+        return new OutboundFrame(type, null, new TextMessage(type), 10, null, 0);
+    }
+
+    private void runDrains() {
+        while (!drains.isEmpty()) {
+            List<Runnable> pending = new ArrayList<>(drains);
+            drains.clear();
+            pending.forEach(Runnable::run);
+        }
+    }
+
+    @Test
+    public void testFrameForOneViewerDoesNotOvertakeEarlierBroadcast() throws Exception {
+        when(session.getId()).thenReturn("viewer-1");
+        when(session.isOpen()).thenReturn(true);
+        ViewerTier tier = new ViewerTier(drains::add);
+        SessionState state = new SessionState(session, null,
+                new SessionOutbox(session, false, drains::add, 1000, 5000));
+        tier.add(state);
+
+        tier.publish(frame("patch-update"));
+        tier.send(state, frame("content-update"));
+        runDrains();
+
+        var inOrder = inOrder(session);
+        inOrder.verify(session).sendMessage(new TextMessage("patch-update"));
+        inOrder.verify(session).sendMessage(new TextMessage("content-update"));
+    }
+}
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.se.documinity.dto.document.CreateDocumentRequest;
 import com.se.documinity.dto.document.DocumentResponse;
 import com.se.documinity.service.AIService;
+import com.se.documinity.service.DocumentRevisionService;
 import com.se.documinity.service.DocumentService;
 import com.se.documinity.service.JwtService;
 import com.se.documinity.service.UserDetailsServiceImpl;
@@ -44,6 +45,9 @@ public class DocumentControllerTest {
         @MockBean
         private AIService aiService;
 
+        @MockBean
+        private DocumentRevisionService documentRevisionService;
+
         @MockBean
         private JwtService jwtService;
 
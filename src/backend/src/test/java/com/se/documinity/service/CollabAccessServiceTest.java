@@ -0,0 +1,177 @@
+package com.se.documinity.service;
+
+import com.se.documinity.exception.DocumentNotFoundException;
+import com.se.documinity.exception.NotAuthorizedException;
+import com.se.documinity.repository.DocumentCollaboratorRepository;
+import com.se.documinity.repository.DocumentHeader;
+import com.se.documinity.repository.DocumentRepository;
+import com.se.documinity.repository.JoinPrincipal;
+import com.se.documinity.repository.UserRepository;
+import com.se.documinity.util.ShareTokenUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+public class CollabAccessServiceTest {
+
+    @Mock
+    private DocumentRepository documentRepository;
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private DocumentCollaboratorRepository collaboratorRepository;
+
+    private CollabAccessService service;
+
+    @BeforeEach
+    public void setUp() {
+        service = new CollabAccessService(documentRepository, userRepository,
+                new DocumentAccessService(collaboratorRepository));
+        ReflectionTestUtils.setField(service, "ttlMs", 60_000L);
+        ReflectionTestUtils.setField(service, "maxEntries", 100);
+    }
+
+    private DocumentHeader header(Long id, boolean isPublic, String shareRole) {
+        DocumentHeader header = mock(DocumentHeader.class);
+        when(header.getId()).thenReturn(id);
+        when(header.getStatus()).thenReturn("ACTIVE");
+        when(header.getIsPublic()).thenReturn(isPublic);
+        when(header.getShareRole()).thenReturn(shareRole);
+        when(header.getOwnerId()).thenReturn(1L);
+        return header;
+    }
+
+    private void principal(String username, Long userId, Long docId, String role) {
+        JoinPrincipal principal = mock(JoinPrincipal.class);
+        when(principal.getUserId()).thenReturn(userId);
+        when(principal.getUsername()).thenReturn(username);
+        when(principal.getFullname()).thenReturn(username.toUpperCase());
+        when(principal.getRole()).thenReturn(role);
+        when(userRepository.findJoinPrincipal(username, docId)).thenReturn(Optional.of(principal));
+    }
+
+    @Test
+    public void testShareLinkJoinsShareOneLookup() {
+        DocumentHeader header = header(7L, false, DocumentAccessService.ROLE_VIEWER);
+        when(documentRepository.findHeaderByShareTokenHash(ShareTokenUtil.hashToken("token")))
+                .thenReturn(Optional.of(header));
+
+        for (int i = 0; i < 50; i++) {
+            CollabAccessService.Grant grant = service.resolveShareJoin("token");
+            assertEquals(7L, grant.docId());
+            assertEquals(DocumentAccessService.ROLE_VIEWER, grant.role());
+        }
+
+        verify(documentRepository, times(1)).findHeaderByShareTokenHash(any());
+        verify(documentRepository, never()).findByShareTokenHashAndShareEnabledTrue(any());
+    }
+
+    @Test
+    public void testUnknownShareLinkIsRefusedFromCache() {
+        when(documentRepository.findHeaderByShareTokenHash(any())).thenReturn(Optional.empty());
+
+        assertThrows(DocumentNotFoundException.class, () -> service.resolveShareJoin("nope"));
+        assertThrows(DocumentNotFoundException.class, () -> service.resolveShareJoin("nope"));
+
+        verify(documentRepository, times(1)).findHeaderByShareTokenHash(any());
+    }
+
+    @Test
+    public void testUserRolesAndSharedHeader() {
+        DocumentHeader header = header(7L, true, null);
+        when(documentRepository.findHeaderById(7L)).thenReturn(Optional.of(header));
+        principal("owner", 1L, 7L, null);
+        principal("editor", 2L, 7L, DocumentAccessService.ROLE_EDITOR);
+        principal("reader", 3L, 7L, null);
+
+        assertEquals(DocumentAccessService.ROLE_OWNER, service.resolveUserJoin("owner", 7L).role());
+        CollabAccessService.Grant editor = service.resolveUserJoin("editor", 7L);
+        assertEquals(DocumentAccessService.ROLE_EDITOR, editor.role());
+        assertEquals("EDITOR", editor.displayName());
+        // Public documents let anyone else in read-only
+        assertEquals(DocumentAccessService.ROLE_VIEWER, service.resolveUserJoin("reader", 7L).role());
+
+        verify(documentRepository, times(1)).findHeaderById(7L);
+        verify(documentRepository, never()).findById(any());
+    }
+
+    @Test
+    public void testPrivateDocumentRefusesNonCollaborators() {
+        DocumentHeader header = header(7L, false, null);
+        when(documentRepository.findHeaderById(7L)).thenReturn(Optional.of(header));
+        principal("stranger", 3L, 7L, null);
+
+        assertThrows(NotAuthorizedException.class, () -> service.resolveUserJoin("stranger", 7L));
+    }
+
+    @Test
+    public void testInvalidateDropsDecisionsForTheDocument() {
+        DocumentHeader header = header(7L, false, null);
+        when(documentRepository.findHeaderById(7L)).thenReturn(Optional.of(header));
+        principal("bob", 2L, 7L, DocumentAccessService.ROLE_EDITOR);
+        assertEquals(DocumentAccessService.ROLE_EDITOR, service.resolveUserJoin("bob", 7L).role());
+
+        // Bob is demoted; the next join must see it
+        principal("bob", 2L, 7L, DocumentAccessService.ROLE_VIEWER);
+        service.invalidate(7L);
+
+        assertEquals(DocumentAccessService.ROLE_VIEWER, service.resolveUserJoin("bob", 7L).role());
+        verify(documentRepository, times(2)).findHeaderById(7L);
+    }
+
+    @Test
+    public void testInvalidateUserDropsOnlyThatUsersDecisions() {
+        DocumentHeader header = header(7L, false, null);
+        when(documentRepository.findHeaderById(7L)).thenReturn(Optional.of(header));
+        principal("bob", 2L, 7L, DocumentAccessService.ROLE_EDITOR);
+        principal("carol", 3L, 7L, DocumentAccessService.ROLE_VIEWER);
+        service.resolveUserJoin("bob", 7L);
+        service.resolveUserJoin("carol", 7L);
+
+        service.invalidateUser("bob");
+        service.resolveUserJoin("bob", 7L);
+        service.resolveUserJoin("carol", 7L);
+
+        verify(userRepository, times(2)).findJoinPrincipal("bob", 7L);
+        verify(userRepository, times(1)).findJoinPrincipal("carol", 7L);
+    }
+
+    @Test
+    public void testInvalidateInsideATransactionWaitsForCommit() {
+        DocumentHeader header = header(7L, false, null);
+        when(documentRepository.findHeaderById(7L)).thenReturn(Optional.of(header));
+        principal("bob", 2L, 7L, DocumentAccessService.ROLE_EDITOR);
+        assertEquals(DocumentAccessService.ROLE_EDITOR, service.resolveUserJoin("bob", 7L).role());
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            principal("bob", 2L, 7L, DocumentAccessService.ROLE_VIEWER);
+            service.invalidate(7L);
+            // Not committed yet: a join in between still gets the committed role
+            assertEquals(DocumentAccessService.ROLE_EDITOR, service.resolveUserJoin("bob", 7L).role());
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        assertEquals(DocumentAccessService.ROLE_VIEWER, service.resolveUserJoin("bob", 7L).role());
+    }
+}
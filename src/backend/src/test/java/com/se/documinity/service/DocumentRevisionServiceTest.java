@@ -0,0 +1,190 @@
+package com.se.documinity.service;
+
+import com.se.documinity.dto.document.RevisionDiffResponse;
+import com.se.documinity.entity.DocumentEntity;
+import com.se.documinity.entity.DocumentRevisionEntity;
+import com.se.documinity.exception.DocumentNotFoundException;
+import com.se.documinity.repository.DocumentRepository;
+import com.se.documinity.repository.DocumentRevisionRepository;
+import com.se.documinity.repository.UserRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+public class DocumentRevisionServiceTest {
+
+    @Mock
+    private DocumentRevisionRepository revisionRepository;
+
+    @Mock
+    private DocumentRepository documentRepository;
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private DocumentAccessService documentAccessService;
+
+    @Mock
+    private SecurityContext securityContext;
+
+    @Mock
+    private Authentication authentication;
+
+    private final List<DocumentRevisionEntity> rows = new ArrayList<>();
+    private DocumentRevisionService revisionService;
+
+    private static final String BASE = "# Notes\n\n" + "Lorem ipsum dolor sit amet, consectetur adipiscing elit. ".repeat(20);
+
+    @BeforeEach
+    public void setUp() {
+        revisionService = new DocumentRevisionService(revisionRepository, documentRepository,
+                userRepository, documentAccessService);
+        ReflectionTestUtils.setField(revisionService, "snapshotInterval", 4);
+        ReflectionTestUtils.setField(revisionService, "cachedTips", 100);
+        ReflectionTestUtils.setField(revisionService, "diffTimeoutMs", 500L);
+        revisionService.start();
+
+        // Back the repository with an in-memory table
+        when(revisionRepository.save(any(DocumentRevisionEntity.class))).thenAnswer(invocation -> {
+            DocumentRevisionEntity revision = invocation.getArgument(0);
+            rows.add(revision);
+            return revision;
+        });
+        when(revisionRepository.existsByDocumentIdAndVersion(anyLong(), anyLong())).thenAnswer(invocation ->
+                find(invocation.getArgument(1)).isPresent());
+        when(revisionRepository.findByDocumentIdAndVersion(anyLong(), anyLong())).thenAnswer(invocation ->
+                find(invocation.getArgument(1)));
+        when(revisionRepository.findFirstByDocumentIdOrderByVersionDesc(anyLong())).thenAnswer(invocation ->
+                rows.stream().max(Comparator.comparing(DocumentRevisionEntity::getVersion)));
+        when(revisionRepository.findFirstByDocumentIdAndKindAndVersionLessThanEqualOrderByVersionDesc(
+                anyLong(), anyString(), anyLong())).thenAnswer(invocation -> rows.stream()
+                .filter(r -> r.getKind().equals(invocation.getArgument(1)))
+                .filter(r -> r.getVersion() <= (Long) invocation.getArgument(2))
+                .max(Comparator.comparing(DocumentRevisionEntity::getVersion)));
+        when(revisionRepository.findByDocumentIdAndVersionBetweenOrderByVersionAsc(anyLong(), anyLong(), anyLong()))
+                .thenAnswer(invocation -> rows.stream()
+                        .filter(r -> r.getVersion() >= (Long) invocation.getArgument(1))
+                        .filter(r -> r.getVersion() <= (Long) invocation.getArgument(2))
+                        .sorted(Comparator.comparing(DocumentRevisionEntity::getVersion))
+                        .toList());
+
+        DocumentEntity doc = new DocumentEntity();
+        doc.setId(1L);
+        when(documentRepository.findById(1L)).thenReturn(Optional.of(doc));
+        when(documentAccessService.canView(eq(doc), any())).thenReturn(true);
+        when(securityContext.getAuthentication()).thenReturn(authentication);
+        when(authentication.getName()).thenReturn("anonymousUser");
+        SecurityContextHolder.setContext(securityContext);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    private Optional<DocumentRevisionEntity> find(long version) {
+        return rows.stream().filter(r -> r.getVersion() == version).findFirst();
+    }
+
+    private void recordVersions(int count) {
+        for (int v = 0; v < count; v++) {
+            revisionService.record(1L, v, BASE + " edit " + v, LocalDateTime.now());
+        }
+    }
+
+    @Test
+    public void testSmallEditsAreStoredAsDeltasBetweenSnapshots() {
+        recordVersions(9);
+
+        assertEquals(9, rows.size());
+        assertEquals(DocumentRevisionEntity.KIND_SNAPSHOT, rows.get(0).getKind());
+        assertEquals(DocumentRevisionEntity.KIND_DELTA, rows.get(1).getKind());
+        assertEquals(0L, rows.get(1).getBaseVersion());
+        assertEquals(DocumentRevisionEntity.KIND_SNAPSHOT, rows.get(4).getKind());
+        assertEquals(DocumentRevisionEntity.KIND_SNAPSHOT, rows.get(8).getKind());
+        assertTrue(rows.get(1).getData().length() < rows.get(0).getData().length());
+    }
+
+    @Test
+    public void testEveryVersionIsReconstructed() {
+        recordVersions(9);
+
+        for (int v = 0; v < 9; v++) {
+            assertEquals(BASE + " edit " + v, revisionService.getRevision(1L, v).getContent());
+        }
+    }
+
+    @Test
+    public void testRewriteIsStoredAsSnapshot() {
+        recordVersions(2);
+        revisionService.record(1L, 2, "Something else entirely", LocalDateTime.now());
+
+        assertEquals(DocumentRevisionEntity.KIND_SNAPSHOT, rows.get(2).getKind());
+        assertEquals("Something else entirely", revisionService.getRevision(1L, 2).getContent());
+    }
+
+    @Test
+    public void testOlderOrRepeatedVersionIsIgnored() {
+        recordVersions(3);
+        revisionService.record(1L, 1, "stale", LocalDateTime.now());
+        revisionService.forget(1L);
+        revisionService.record(1L, 2, BASE + " edit 2", LocalDateTime.now());
+
+        assertEquals(3, rows.size());
+    }
+
+    @Test
+    public void testEvictedBaseIsRebuiltFromStoredRevisions() {
+        recordVersions(3);
+        revisionService.forget(1L);
+
+        revisionService.record(1L, 3, BASE + " edit 3", LocalDateTime.now());
+
+        // Still a delta from version 2, not a fresh snapshot
+        assertEquals(DocumentRevisionEntity.KIND_DELTA, rows.get(3).getKind());
+        assertEquals(2L, rows.get(3).getBaseVersion());
+        assertEquals(BASE + " edit 3", revisionService.getRevision(1L, 3).getContent());
+    }
+
+    @Test
+    public void testDiffBetweenVersions() {
+        recordVersions(3);
+
+        RevisionDiffResponse diff = revisionService.diffRevisions(1L, 0, 2);
+
+        assertEquals(0L, diff.getFromVersion());
+        assertEquals(2L, diff.getToVersion());
+        assertTrue(diff.getDiffs().stream().anyMatch(d -> d.getOperation().equals("DELETE") && d.getText().contains("0")));
+        assertTrue(diff.getDiffs().stream().anyMatch(d -> d.getOperation().equals("INSERT") && d.getText().contains("2")));
+        assertTrue(diff.getPatch().startsWith("@@"));
+    }
+
+    @Test
+    public void testUnknownVersionThrows() {
+        recordVersions(2);
+
+        assertThrows(DocumentNotFoundException.class, () -> revisionService.getRevision(1L, 5));
+    }
+}
@@ -49,6 +49,9 @@ public class DocumentServiceTest {
     @Mock
     private com.se.documinity.repository.CommentRepository commentRepository;
 
+    @Mock
+    private DocumentRevisionService documentRevisionService;
+
     @InjectMocks
     private DocumentService documentService;
 
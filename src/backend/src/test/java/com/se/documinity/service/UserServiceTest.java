@@ -39,6 +39,9 @@ public class UserServiceTest {
     @Mock
     private Authentication authentication;
 
+    @Mock
+    private CollabAccessService collabAccessService;
+
     @InjectMocks
     private UserService userService;
 
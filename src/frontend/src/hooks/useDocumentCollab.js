@@ -1,10 +1,22 @@
 import { useCallback, useEffect, useRef, useState } from 'react';
 import DiffMatchPatch from 'diff-match-patch';
+import { BINARY_PROTOCOL, decodeServerMessage, encodeClientMessage } from '../services/collabBinaryCodec';
+import { applyExact, rebasePatches, spansOf } from '../services/collabOps';
 
 const dmp = new DiffMatchPatch();
 
 const COLORS = ['#f97316', '#22c55e', '#3b82f6', '#eab308', '#ec4899', '#14b8a6'];
 
+// Close code the server uses when it drops a client that fell too far behind
+const RESYNC_CLOSE_CODE = 4001;
+
+// Going away, abnormal closure, server error/restart/overload, and missed heartbeats
+const RETRY_CLOSE_CODES = new Set([1001, 1006, 1011, 1012, 1013, 4500]);
+const MAX_RETRY_DELAY_MS = 10000;
+
+// Opt into the compact binary sub-protocol; JSON remains the default
+const USE_BINARY = import.meta.env.VITE_COLLAB_BINARY === 'true';
+
 const getRandomColor = () => COLORS[Math.floor(Math.random() * COLORS.length)];
 
 const trimTrailingSlash = (value) => value.replace(/\/+$/, '');
@@ -17,23 +29,103 @@ const getWsUrl = () => {
     return `${wsBase}/ws/documents`;
 };
 
+const send = (ws, message) => {
+    ws.send(USE_BINARY ? encodeClientMessage(message) : JSON.stringify(message));
+};
+
+// Carries the edits made on top of `from` over to `to`. They have not been sent yet, so
+// wherever they land is what the next op will say. They are a few keystrokes, so a plain
+// diff finds them without the line pass.
+const carryOver = (from, to, text) => {
+    if (text === from) return to;
+    if (from === to) return text;
+    return dmp.patch_apply(dmp.patch_make(from, dmp.diff_main(from, text, false)), to)[0];
+};
+
 export const useDocumentCollab = ({ docId, shareToken, displayName, onRemoteContent, onError, onStatusChange, onSaveConfirm }) => {
     const [connected, setConnected] = useState(false);
     const [remoteCursors, setRemoteCursors] = useState([]);
+    const [reconnectKey, setReconnectKey] = useState(0);
     const wsRef = useRef(null);
     const clientIdRef = useRef(`client_${Math.random().toString(36).slice(2)}`);
     const colorRef = useRef(getRandomColor());
 
-    // Track the last confirmed content from server to calculate diffs against
-    const lastSyncedContentRef = useRef('');
+    // The server's text at serverVersion; remote patches apply to it exactly
+    const confirmedRef = useRef('');
+    const serverVersionRef = useRef(0);
+    // Our one op the server has not settled yet, in the coordinates of confirmedRef.
+    // { patches } is rebased over each remote op as the server will rebase it; { content } replaces the text.
+    const inflightRef = useRef(null);
+    // confirmedRef with the op in flight applied, and what the editor shows: that plus edits not sent yet
+    const basisRef = useRef('');
+    const localRef = useRef('');
+    // Acks still to come for ops we already counted in, from a version gap or a snapshot
+    const settledAheadRef = useRef(0);
+    const awaitingSnapshotRef = useRef(false);
+    const opSeqRef = useRef(0);
+    // Document the state above belongs to
+    const syncedDocRef = useRef(null);
+    const retryDelayRef = useRef(0);
+    // Set while the server throttles our edits; they go out as one op when it ends
+    const holdingRef = useRef(false);
+
+    // Sends everything not yet sent as one op, unless one is still in flight
+    const flush = useCallback(() => {
+        const ws = wsRef.current;
+        if (!ws || ws.readyState !== WebSocket.OPEN || syncedDocRef.current !== docId
+            || inflightRef.current || holdingRef.current || awaitingSnapshotRef.current) {
+            return;
+        }
+        const confirmed = confirmedRef.current;
+        const content = localRef.current;
+        if (confirmed === content) return;
+
+        const diffs = dmp.diff_main(confirmed, content);
+        dmp.diff_cleanupSemantic(diffs);
+        const patches = dmp.patch_make(confirmed, diffs);
+        const patchText = dmp.patch_toText(patches);
+        basisRef.current = content;
+
+        // Heuristic: If patch is larger than content (rare), send content
+        if (patchText.length > content.length) {
+            inflightRef.current = { content };
+            send(ws, { type: 'content-update', docId, content });
+        } else {
+            inflightRef.current = { patches };
+            send(ws, {
+                type: 'patch-update',
+                docId,
+                patches: USE_BINARY ? patches : patchText,
+                baseVersion: serverVersionRef.current,
+                opId: `${clientIdRef.current}:${++opSeqRef.current}`
+            });
+        }
+    }, [docId]);
 
     useEffect(() => {
         if (!docId) return undefined;
         setRemoteCursors([]);
-        lastSyncedContentRef.current = ''; // Reset on doc switch
+        if (syncedDocRef.current !== docId) {
+            confirmedRef.current = ''; // Reset on doc switch
+            basisRef.current = '';
+            localRef.current = '';
+            serverVersionRef.current = 0;
+            syncedDocRef.current = null;
+        }
+        // An op still in flight may or may not have reached the server; a snapshot settles it
+        const canResume = syncedDocRef.current === docId && !inflightRef.current
+            && settledAheadRef.current === 0 && !awaitingSnapshotRef.current;
+        inflightRef.current = null;
+        settledAheadRef.current = 0;
+        // Nothing is sent until joined gives us a baseline
+        awaitingSnapshotRef.current = true;
+        holdingRef.current = false;
+        let retryTimer = null;
+        let holdTimer = null;
 
         const wsUrl = getWsUrl();
-        const ws = new WebSocket(wsUrl);
+        const ws = USE_BINARY ? new WebSocket(wsUrl, [BINARY_PROTOCOL]) : new WebSocket(wsUrl);
+        if (USE_BINARY) ws.binaryType = 'arraybuffer';
         wsRef.current = ws;
 
         ws.onopen = () => {
@@ -50,63 +142,208 @@ export const useDocumentCollab = ({ docId, shareToken, displayName, onRemoteCont
             } else if (authToken) {
                 payload.authToken = authToken;
             }
-            ws.send(JSON.stringify(payload));
+            if (canResume) {
+                // Only the ops we missed are sent back, if the server still has them
+                payload.lastVersion = serverVersionRef.current;
+            }
+            send(ws, payload);
             setConnected(true);
         };
 
+        const requestSnapshot = () => {
+            if (awaitingSnapshotRef.current) return;
+            awaitingSnapshotRef.current = true;
+            send(ws, { type: 'snapshot-request', docId });
+        };
+
+        const rebaseLocal = (basis) => {
+            const previous = localRef.current;
+            localRef.current = carryOver(basisRef.current, basis, previous);
+            basisRef.current = basis;
+            if (localRef.current !== previous) {
+                onRemoteContent?.(localRef.current);
+            }
+        };
+
+        // Our op in flight was accepted under `version`, in the form we rebased it to
+        const settleInflight = (version) => {
+            const inflight = inflightRef.current;
+            inflightRef.current = null;
+            const next = inflight.content ?? applyExact(confirmedRef.current, inflight.patches);
+            if (next === null) {
+                requestSnapshot();
+                return;
+            }
+            confirmedRef.current = next;
+            serverVersionRef.current = version;
+        };
+
         ws.onmessage = (event) => {
             try {
-                const data = JSON.parse(event.data);
+                const data = typeof event.data === 'string'
+                    ? JSON.parse(event.data)
+                    : decodeServerMessage(event.data);
 
-                // 1. Initial Join
+                // 1. Initial Join, or a resume that keeps our baseline and is followed by the missed patches
                 if (data.type === 'joined' && data.content !== undefined) {
-                    lastSyncedContentRef.current = data.content; // Sync baseline
-                    onRemoteContent?.(data.content);
+                    retryDelayRef.current = 0;
+                    awaitingSnapshotRef.current = false;
+                    serverVersionRef.current = data.serverVersion ?? 0;
+                    if (data.content !== null) {
+                        // Edits not sent yet are kept on top of the snapshot
+                        const kept = syncedDocRef.current === docId
+                            ? carryOver(basisRef.current, data.content, localRef.current)
+                            : data.content;
+                        confirmedRef.current = data.content; // Sync baseline
+                        basisRef.current = data.content;
+                        localRef.current = kept;
+                        onRemoteContent?.(kept);
+                    }
+                    syncedDocRef.current = docId;
                     onStatusChange?.('saved');
+                    flush();
                     return;
                 }
 
-                // 2. Full Content Update (Fallback)
+                // 2. Full content, sent only when we asked for a snapshot
                 if (data.type === 'content-update') {
-                    if (data.from !== clientIdRef.current) {
-                        lastSyncedContentRef.current = data.content; // Update baseline
-                        onRemoteContent?.(data.content);
+                    const version = data.serverVersion ?? 0;
+                    if (!awaitingSnapshotRef.current && version <= serverVersionRef.current) return;
+                    awaitingSnapshotRef.current = false;
+                    if (inflightRef.current) {
+                        // Asked for after our op was sent, so it holds the op; the ack is still to come
+                        inflightRef.current = null;
+                        settledAheadRef.current += 1;
                     }
+                    confirmedRef.current = data.content ?? '';
+                    serverVersionRef.current = version;
+                    rebaseLocal(confirmedRef.current);
                     onStatusChange?.('saved');
+                    flush();
                     return;
                 }
 
-                // 3. Patch Update (Bandwidth Optimized)
+                // 3. Another editor's op, exactly as the server applied it after serverVersion - 1
                 if (data.type === 'patch-update') {
-                    if (data.from !== clientIdRef.current) {
-                        // Apply patch to our shadow copy
-                        const patches = dmp.patch_fromText(data.patches);
-                        const [newContent, results] = dmp.patch_apply(patches, lastSyncedContentRef.current);
-
-                        // Check if patch applied successfully (optional strictness)
-                        // For LWW, we just accept the result
-                        lastSyncedContentRef.current = newContent;
-                        onRemoteContent?.(newContent);
-                    } else {
-                        // It's our own patch echoing back (optional confirmation)
-                        // If backend rejected/modified it, we might need logic here
-                        // For now, assume server ack
+                    const version = data.serverVersion ?? 0;
+                    // Already in our text, e.g. behind a snapshot that overtook it
+                    if (version <= serverVersionRef.current || awaitingSnapshotRef.current) return;
+                    if (version === serverVersionRef.current + 2 && inflightRef.current) {
+                        // Our own ops are the only ones not relayed to us, so the version skipped is ours
+                        settledAheadRef.current += 1;
+                        settleInflight(version - 1);
+                    }
+                    if (version !== serverVersionRef.current + 1) {
+                        requestSnapshot();
+                        return;
+                    }
+                    const patches = typeof data.patches === 'string'
+                        ? dmp.patch_fromText(data.patches)
+                        : data.patches;
+                    const confirmed = applyExact(confirmedRef.current, patches);
+                    if (confirmed === null) {
+                        // Our baseline drifted from the server's; fetch the whole text once
+                        requestSnapshot();
+                        return;
                     }
+                    confirmedRef.current = confirmed;
+                    serverVersionRef.current = version;
+                    const inflight = inflightRef.current;
+                    if (!inflight) {
+                        rebaseLocal(confirmed);
+                    } else if (inflight.patches) {
+                        // The server moves our op over this one before applying it; do the same
+                        inflight.patches = rebasePatches(inflight.patches, spansOf(patches));
+                        const basis = applyExact(confirmed, inflight.patches);
+                        if (basis !== null) {
+                            rebaseLocal(basis);
+                        } else {
+                            // The op will be rejected; until then only this edit moves what is shown
+                            basisRef.current = dmp.patch_apply(patches, basisRef.current)[0];
+                            localRef.current = dmp.patch_apply(patches, localRef.current)[0];
+                            onRemoteContent?.(localRef.current);
+                        }
+                    }
+                    onStatusChange?.('saved');
+                    flush();
+                    return;
+                }
+
+                // 4. Our op was accepted under a new server version
+                if (data.type === 'ack') {
                     onStatusChange?.('saved');
+                    if (settledAheadRef.current > 0) {
+                        settledAheadRef.current -= 1;
+                        return;
+                    }
+                    const inflight = inflightRef.current;
+                    if (!inflight) return;
+                    const version = data.serverVersion ?? 0;
+                    if (awaitingSnapshotRef.current) {
+                        // The snapshot we asked for after sending it already holds it
+                        inflightRef.current = null;
+                    } else if (version === serverVersionRef.current + 1) {
+                        settleInflight(version);
+                    } else if (inflight.content !== undefined && version <= serverVersionRef.current) {
+                        // The room already had this content, so it took no version
+                        inflightRef.current = null;
+                        rebaseLocal(confirmedRef.current);
+                    } else {
+                        inflightRef.current = null;
+                        requestSnapshot();
+                    }
+                    flush();
                     return;
                 }
 
-                if (data.type === 'cursor-update') {
-                    if (data.user?.clientId === clientIdRef.current) return;
-                    setRemoteCursors((prev) => {
-                        const filtered = prev.filter((c) => c.user?.clientId !== data.user?.clientId);
-                        return [...filtered, data];
-                    });
+                // 5. Our op could not be applied; redo what it and later edits did on top of the server state.
+                // failedHunks names the patches that found no match; the redo diffs afresh, so the next op
+                // carries just the regions still different from the server's text.
+                if (data.type === 'op-rejected') {
+                    inflightRef.current = null;
+                    const content = data.content ?? '';
+                    const previous = localRef.current;
+                    localRef.current = carryOver(confirmedRef.current, content, previous);
+                    confirmedRef.current = content;
+                    basisRef.current = content;
+                    serverVersionRef.current = data.serverVersion ?? serverVersionRef.current;
+                    if (localRef.current !== previous) {
+                        onRemoteContent?.(localRef.current);
+                    }
+                    flush();
+                    return;
+                }
+
+                // Latest selection of every user, coalesced per server tick
+                if (data.type === 'cursors') {
+                    setRemoteCursors((data.cursors || []).filter((c) => c.user?.clientId !== clientIdRef.current));
+                    return;
+                }
+                // Roster changes arrive one user at a time; only a departure affects what we draw
+                if (data.type === 'user-left') {
+                    setRemoteCursors((prev) => prev.filter((c) => c.user?.clientId !== data.clientId));
+                    return;
+                }
+                if (data.type === 'user-joined' || data.type === 'user-updated') {
                     return;
                 }
-                if (data.type === 'presence') {
-                    const activeIds = new Set((data.users || []).map((u) => u.clientId));
-                    setRemoteCursors((prev) => prev.filter((c) => activeIds.has(c.user?.clientId)));
+                // We went over a rate limit; whatever it dropped is resent once the limit allows
+                if (data.type === 'throttled') {
+                    const retryAfterMs = data.retryAfterMs ?? 1000;
+                    if (data.request === 'patch-update' || data.request === 'content-update') {
+                        // Dropped unapplied; it goes out again along with everything typed meanwhile
+                        inflightRef.current = null;
+                        basisRef.current = confirmedRef.current;
+                        if (!holdingRef.current) {
+                            holdingRef.current = true;
+                            holdTimer = setTimeout(() => {
+                                holdingRef.current = false;
+                                flush();
+                            }, retryAfterMs);
+                        }
+                    } else if (data.request === 'snapshot-request') {
+                        holdTimer = setTimeout(() => send(ws, { type: 'snapshot-request', docId }), retryAfterMs);
+                    }
                     return;
                 }
                 if (data.type === 'saved') {
@@ -132,15 +369,27 @@ export const useDocumentCollab = ({ docId, shareToken, displayName, onRemoteCont
             onStatusChange?.('error');
         };
 
-        ws.onclose = () => {
+        ws.onclose = (event) => {
             setConnected(false);
+            if (event.code === RESYNC_CLOSE_CODE) {
+                // Rejoin to catch up on what we missed
+                setReconnectKey((key) => key + 1);
+                return;
+            }
             onStatusChange?.('error');
+            if (RETRY_CLOSE_CODES.has(event.code)) {
+                const delay = retryDelayRef.current;
+                retryDelayRef.current = Math.min(MAX_RETRY_DELAY_MS, Math.max(1000, delay * 2));
+                retryTimer = setTimeout(() => setReconnectKey((key) => key + 1), delay);
+            }
         };
 
         return () => {
+            clearTimeout(retryTimer);
+            clearTimeout(holdTimer);
             ws.close();
         };
-    }, [docId, shareToken, displayName, onRemoteContent, onError, onStatusChange]);
+    }, [docId, shareToken, displayName, onRemoteContent, onError, onStatusChange, reconnectKey, flush]);
 
     const sendContentUpdate = useCallback((newContent) => {
         if (!wsRef.current || wsRef.current.readyState !== WebSocket.OPEN) {
@@ -150,54 +399,23 @@ export const useDocumentCollab = ({ docId, shareToken, displayName, onRemoteCont
             return false;
         }
 
-        // Calculate diff
-        const oldContent = lastSyncedContentRef.current;
-
-        // If content is very small or very different, full update might be better?
-        // But patches are usually safe.
-        // Let's rely on patches if we have a baseline.
-
-        if (oldContent === newContent) return; // No change
-
-        // If this is the FIRST update and no baseline, send full.
-        // But we usually have baseline from 'joined'.
-
-        const diffs = dmp.diff_main(oldContent, newContent);
-        dmp.diff_cleanupSemantic(diffs);
-        const patches = dmp.patch_make(oldContent, diffs);
-        const patchText = dmp.patch_toText(patches);
-
-        // Optimistic update of our shadow
-        // NOTE: If server rejects, we drift. But in LWW server accepts all.
-        lastSyncedContentRef.current = newContent;
+        if (localRef.current === newContent) return; // No change
 
-        // Heuristic: If patch is larger than content (rare), send content
-        if (patchText.length > newContent.length) {
-            wsRef.current.send(JSON.stringify({
-                type: 'content-update',
-                docId,
-                content: newContent
-            }));
-        } else {
-            wsRef.current.send(JSON.stringify({
-                type: 'patch-update',
-                docId,
-                patches: patchText,
-                // Optional: Send checksum or base version for robustness
-            }));
-        }
+        // Goes out now, or with the next op if one is still in flight
+        localRef.current = newContent;
+        flush();
         return true;
 
-    }, [docId, onStatusChange, onError]);
+    }, [onStatusChange, onError, flush]);
 
     const sendCursorUpdate = useCallback((selectionStart, selectionEnd) => {
         if (!wsRef.current || wsRef.current.readyState !== WebSocket.OPEN) return;
-        wsRef.current.send(JSON.stringify({
+        send(wsRef.current, {
             type: 'cursor-update',
             docId,
             selectionStart,
             selectionEnd
-        }));
+        });
     }, [docId]);
 
     return {
@@ -0,0 +1,282 @@
+import DiffMatchPatch from 'diff-match-patch';
+
+// Mirrors BinaryCollabCodec on the backend. Each frame starts with a one-byte
+// tag; integers are unsigned LEB128 varints, nullable ones shifted by one
+// (0 = null), strings are a varint byte length (+1, 0 = null) followed by
+// UTF-8. Unknown message types travel as JSON.
+export const BINARY_PROTOCOL = 'documinity.binary.v1';
+
+const TAG_JSON = 0;
+const TAG_JOIN = 1;
+const TAG_JOINED = 2;
+const TAG_PATCH_UPDATE = 3;
+const TAG_CONTENT_UPDATE = 4;
+const TAG_CURSOR_UPDATE = 5;
+const TAG_CURSORS = 6;
+// 7 carried the full roster on every join and leave; it is no longer sent
+const TAG_ACK = 8;
+const TAG_OP_REJECTED = 9;
+const TAG_SAVED = 10;
+const TAG_SAVE_ERROR = 11;
+const TAG_ERROR = 12;
+const TAG_USER_JOINED = 13;
+const TAG_USER_LEFT = 14;
+const TAG_USER_UPDATED = 15;
+
+// diff-match-patch ops (-1 delete, 0 equal, 1 insert) to wire ops and back
+const OP_TO_WIRE = { 0: 0, 1: 1, '-1': 2 };
+const WIRE_TO_OP = [0, 1, -1];
+
+const encoder = new TextEncoder();
+const decoder = new TextDecoder();
+
+class Output {
+    constructor() {
+        this.bytes = new Uint8Array(64);
+        this.size = 0;
+    }
+
+    ensure(extra) {
+        if (this.size + extra <= this.bytes.length) return;
+        const next = new Uint8Array(Math.max(this.bytes.length * 2, this.size + extra));
+        next.set(this.bytes.subarray(0, this.size));
+        this.bytes = next;
+    }
+
+    byte(value) {
+        this.ensure(1);
+        this.bytes[this.size++] = value;
+    }
+
+    varint(value) {
+        this.ensure(10);
+        let rest = value;
+        while (rest >= 0x80) {
+            this.bytes[this.size++] = (rest % 0x80) | 0x80;
+            rest = Math.floor(rest / 0x80);
+        }
+        this.bytes[this.size++] = rest;
+    }
+
+    string(value) {
+        if (value === null || value === undefined) {
+            this.varint(0);
+            return;
+        }
+        const utf8 = encoder.encode(String(value));
+        this.varint(utf8.length + 1);
+        this.raw(utf8);
+    }
+
+    raw(utf8) {
+        this.ensure(utf8.length);
+        this.bytes.set(utf8, this.size);
+        this.size += utf8.length;
+    }
+
+    toBuffer() {
+        return this.bytes.slice(0, this.size).buffer;
+    }
+}
+
+class Input {
+    constructor(buffer) {
+        this.bytes = new Uint8Array(buffer);
+        this.pos = 0;
+    }
+
+    byte() {
+        if (this.pos >= this.bytes.length) throw new Error('Truncated collab frame');
+        return this.bytes[this.pos++];
+    }
+
+    varint() {
+        let value = 0;
+        let scale = 1;
+        for (;;) {
+            const b = this.byte();
+            value += (b & 0x7f) * scale;
+            if ((b & 0x80) === 0) return value;
+            scale *= 0x80;
+        }
+    }
+
+    nullableVarint() {
+        const value = this.varint();
+        return value === 0 ? null : value - 1;
+    }
+
+    string() {
+        const length = this.varint();
+        if (length === 0) return null;
+        const end = this.pos + length - 1;
+        if (end > this.bytes.length) throw new Error('Truncated collab frame');
+        const value = decoder.decode(this.bytes.subarray(this.pos, end));
+        this.pos = end;
+        return value;
+    }
+
+    rest() {
+        return decoder.decode(this.bytes.subarray(this.pos));
+    }
+}
+
+const writePatches = (out, patches) => {
+    out.varint(patches.length);
+    patches.forEach((patch) => {
+        out.varint(patch.start1);
+        out.varint(patch.length1);
+        out.varint(patch.start2);
+        out.varint(patch.length2);
+        out.varint(patch.diffs.length);
+        patch.diffs.forEach(([op, text]) => {
+            out.byte(OP_TO_WIRE[op]);
+            out.string(text);
+        });
+    });
+};
+
+const readPatches = (input) => {
+    const count = input.varint();
+    const patches = [];
+    for (let i = 0; i < count; i++) {
+        const patch = new DiffMatchPatch.patch_obj();
+        patch.start1 = input.varint();
+        patch.length1 = input.varint();
+        patch.start2 = input.varint();
+        patch.length2 = input.varint();
+        const diffs = input.varint();
+        for (let d = 0; d < diffs; d++) {
+            const op = WIRE_TO_OP[input.byte()];
+            patch.diffs.push(new DiffMatchPatch.Diff(op, input.string() ?? ''));
+        }
+        patches.push(patch);
+    }
+    return patches;
+};
+
+const readUser = (input) => ({
+    clientId: input.string(),
+    name: input.string(),
+    color: input.string(),
+    role: input.string()
+});
+
+const readUsers = (input) => {
+    const count = input.varint();
+    const users = [];
+    for (let i = 0; i < count; i++) {
+        users.push(readUser(input));
+    }
+    return users;
+};
+
+// Client -> server. `patches` on patch-update is an array of patch objects.
+export const encodeClientMessage = (message) => {
+    const out = new Output();
+    switch (message.type) {
+        case 'join':
+            out.byte(TAG_JOIN);
+            out.varint(message.docId != null ? Number(message.docId) + 1 : 0);
+            out.string(message.clientId);
+            out.string(message.displayName);
+            out.string(message.color);
+            out.string(message.authToken);
+            out.string(message.shareToken);
+            out.varint(message.lastVersion != null ? message.lastVersion + 1 : 0);
+            break;
+        case 'patch-update':
+            out.byte(TAG_PATCH_UPDATE);
+            out.varint(message.baseVersion != null ? message.baseVersion + 1 : 0);
+            out.string(message.opId);
+            writePatches(out, message.patches);
+            break;
+        case 'content-update':
+            out.byte(TAG_CONTENT_UPDATE);
+            out.string(message.content);
+            break;
+        case 'cursor-update':
+            out.byte(TAG_CURSOR_UPDATE);
+            out.varint(message.selectionStart ?? 0);
+            out.varint(message.selectionEnd ?? 0);
+            break;
+        default:
+            out.byte(TAG_JSON);
+            out.raw(encoder.encode(JSON.stringify(message)));
+    }
+    return out.toBuffer();
+};
+
+// Server -> client. Produces the same shapes as the JSON protocol, except that
+// patch-update carries decoded patch objects instead of patch text.
+export const decodeServerMessage = (buffer) => {
+    const input = new Input(buffer);
+    const tag = input.byte();
+    switch (tag) {
+        case TAG_JSON:
+            return JSON.parse(input.rest());
+        case TAG_JOINED:
+            return {
+                type: 'joined',
+                docId: input.nullableVarint(),
+                serverVersion: input.varint(),
+                role: input.string(),
+                // null when resuming from lastVersion; the missed ops follow
+                content: input.string(),
+                users: readUsers(input)
+            };
+        case TAG_PATCH_UPDATE:
+            return {
+                type: 'patch-update',
+                docId: input.nullableVarint(),
+                baseVersion: input.varint(),
+                serverVersion: input.varint(),
+                from: input.string(),
+                patches: readPatches(input)
+            };
+        case TAG_CONTENT_UPDATE:
+            return {
+                type: 'content-update',
+                docId: input.nullableVarint(),
+                serverVersion: input.varint(),
+                from: input.string(),
+                content: input.string() ?? ''
+            };
+        case TAG_CURSORS: {
+            const docId = input.nullableVarint();
+            const count = input.varint();
+            const cursors = [];
+            for (let i = 0; i < count; i++) {
+                const user = { clientId: input.string(), name: input.string(), color: input.string() };
+                cursors.push({ user, selectionStart: input.varint(), selectionEnd: input.varint() });
+            }
+            return { type: 'cursors', docId, cursors };
+        }
+        case TAG_USER_JOINED:
+            return { type: 'user-joined', user: readUser(input) };
+        case TAG_USER_LEFT:
+            return { type: 'user-left', clientId: input.string() };
+        case TAG_USER_UPDATED:
+            return { type: 'user-updated', user: readUser(input) };
+        case TAG_ACK:
+            return { type: 'ack', docId: input.nullableVarint(), serverVersion: input.varint(), opId: input.string() };
+        case TAG_OP_REJECTED:
+            return {
+                type: 'op-rejected',
+                docId: input.nullableVarint(),
+                serverVersion: input.varint(),
+                opId: input.string(),
+                reason: input.string(),
+                content: input.string() ?? '',
+                failedHunks: Array.from({ length: input.varint() }, () => input.varint())
+            };
+        case TAG_SAVED:
+            return { type: 'saved', docId: input.nullableVarint(), version: input.varint(), savedAt: input.string() };
+        case TAG_SAVE_ERROR:
+            return { type: 'save-error', docId: input.nullableVarint(), message: input.string() };
+        case TAG_ERROR:
+            return { type: 'error', message: input.string() };
+        default:
+            throw new Error(`Unknown collab frame tag ${tag}`);
+    }
+};
@@ -0,0 +1,90 @@
+// Mirrors the rebasing in TransformEngine on the backend. Both sides must
+// order concurrent edits the same way, so these follow it step for step: an
+// op is rebased by moving each patch's start over the spans of the ops
+// accepted before it, and an op that moved only applies if its context is
+// found exactly where it landed.
+//
+// Same-position rule: an op accepted earlier keeps its place. A later op
+// whose patch starts where the earlier one inserted text lands after that
+// text; one that starts inside a deleted range lands where the range was.
+
+const DIFF_DELETE = -1;
+const DIFF_INSERT = 1;
+
+// Patches from diff-match-patch (or the binary codec) hold diffs as [op, text]
+const opOf = (diff) => diff[0];
+const textOf = (diff) => diff[1];
+
+// The edited text, or null if any patch's context is not at its start offset
+export const applyExact = (text, patches) => {
+    let result = text;
+    for (const patch of patches) {
+        let pos = patch.start2;
+        for (const diff of patch.diffs) {
+            if (opOf(diff) !== DIFF_INSERT) {
+                if (!result.startsWith(textOf(diff), pos)) return null;
+                pos += textOf(diff).length;
+            }
+        }
+        pos = patch.start2;
+        for (const diff of patch.diffs) {
+            const length = textOf(diff).length;
+            if (opOf(diff) === DIFF_DELETE) {
+                result = result.slice(0, pos) + result.slice(pos + length);
+            } else if (opOf(diff) === DIFF_INSERT) {
+                result = result.slice(0, pos) + textOf(diff) + result.slice(pos);
+                pos += length;
+            } else {
+                pos += length;
+            }
+        }
+    }
+    return result;
+};
+
+// (offset, deleted, inserted) triples, in the coordinates of the text as each patch is applied in turn
+export const spansOf = (patches) => {
+    const spans = [];
+    for (const patch of patches) {
+        let pos = patch.start2;
+        for (const diff of patch.diffs) {
+            const length = textOf(diff).length;
+            if (opOf(diff) !== DIFF_DELETE && opOf(diff) !== DIFF_INSERT) {
+                pos += length;
+                continue;
+            }
+            const deleted = opOf(diff) === DIFF_DELETE ? length : 0;
+            const inserted = length - deleted;
+            const size = spans.length;
+            if (size > 0 && spans[size - 3] + spans[size - 1] === pos) {
+                spans[size - 2] += deleted;
+                spans[size - 1] += inserted;
+            } else {
+                spans.push(pos, deleted, inserted);
+            }
+            pos += inserted;
+        }
+    }
+    return spans;
+};
+
+export const mapPosition = (position, spans) => {
+    let mapped = position;
+    for (let i = 0; i < spans.length; i += 3) {
+        const offset = spans[i];
+        const deleted = spans[i + 1];
+        const inserted = spans[i + 2];
+        if (mapped < offset) continue;
+        mapped = mapped >= offset + deleted ? mapped + inserted - deleted : offset;
+    }
+    return mapped;
+};
+
+// Copies of the patches moved over the spans of ops accepted before them; diffs are shared
+export const rebasePatches = (patches, spans) => patches.map((patch) => ({
+    diffs: patch.diffs,
+    start1: mapPosition(patch.start1, spans),
+    start2: mapPosition(patch.start2, spans),
+    length1: patch.length1,
+    length2: patch.length2
+}));
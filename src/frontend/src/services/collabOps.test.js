@@ -0,0 +1,34 @@
+import { describe, it, expect } from 'vitest';
+import DiffMatchPatch from 'diff-match-patch';
+import { applyExact, mapPosition, rebasePatches, spansOf } from './collabOps';
+
+const dmp = new DiffMatchPatch();
+
+describe('collabOps', () => {
+    const base = 'The quick brown fox jumps over the lazy dog. It was a sunny day in the park.';
+
+    it('applies patches made against the same text exactly', () => {
+        const patches = dmp.patch_make(base, base.replace('jumps', 'leaps'));
+
+        expect(applyExact(base, patches)).toBe(base.replace('jumps', 'leaps'));
+        expect(applyExact(base.replace('fox', 'cat'), patches)).toBeNull();
+    });
+
+    it('rebases an op over one accepted before it the way the server does', () => {
+        const first = dmp.patch_make(base, base.replace('jumps', 'leaps over and'));
+        const second = dmp.patch_make(base, base.replace('sunny', 'rainy'));
+
+        const rebased = rebasePatches(second, spansOf(first));
+
+        expect(applyExact(applyExact(base, first), rebased))
+            .toBe('The quick brown fox leaps over and over the lazy dog. It was a rainy day in the park.');
+        expect(second[0].start2).toBe(dmp.patch_make(base, base.replace('sunny', 'rainy'))[0].start2);
+    });
+
+    it('keeps an earlier insert before a later op starting at the same offset', () => {
+        expect(mapPosition(2, [2, 0, 3])).toBe(5);
+        expect(mapPosition(3, [2, 3, 1])).toBe(2);
+        expect(mapPosition(10, [2, 3, 1])).toBe(8);
+        expect(mapPosition(1, [2, 3, 1])).toBe(1);
+    });
+});